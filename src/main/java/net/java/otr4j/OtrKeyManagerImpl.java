@@ -38,7 +38,8 @@ import java.util.Vector;
 
 import org.bouncycastle.util.encoders.Base64;
 
-import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.crypto.FingerprintCache;
+import net.java.otr4j.crypto.OtrCryptoEngines;
 import net.java.otr4j.crypto.OtrCryptoException;
 import net.java.otr4j.session.SessionID;
 
@@ -189,6 +190,13 @@ public class OtrKeyManagerImpl implements OtrKeyManager {
 
 	@Override
 	public String getLocalFingerprint(SessionID sessionID) {
+		byte[] encoded = loadLocalPublicKeyBytes(sessionID);
+		if (encoded != null) {
+			String fingerprint = FingerprintCache.getCachedFingerprint(encoded);
+			if (fingerprint != null)
+				return fingerprint;
+		}
+
 		KeyPair keyPair = loadLocalKeyPair(sessionID);
 
 		if (keyPair == null)
@@ -197,7 +205,7 @@ public class OtrKeyManagerImpl implements OtrKeyManager {
 		PublicKey pubKey = keyPair.getPublic();
 
 		try {
-			return new OtrCryptoEngineImpl().getFingerprint(pubKey);
+			return OtrCryptoEngines.getEngine().getFingerprint(pubKey);
 		} catch (OtrCryptoException e) {
 			e.printStackTrace();
 			return null;
@@ -206,6 +214,14 @@ public class OtrKeyManagerImpl implements OtrKeyManager {
 
 	@Override
 	public byte[] getLocalFingerprintRaw(SessionID sessionID) {
+		byte[] encoded = loadLocalPublicKeyBytes(sessionID);
+		if (encoded != null) {
+			byte[] fingerprint = FingerprintCache
+					.getCachedFingerprintRaw(encoded);
+			if (fingerprint != null)
+				return fingerprint;
+		}
+
 		KeyPair keyPair = loadLocalKeyPair(sessionID);
 
 		if (keyPair == null)
@@ -214,7 +230,7 @@ public class OtrKeyManagerImpl implements OtrKeyManager {
 		PublicKey pubKey = keyPair.getPublic();
 
 		try {
-			return new OtrCryptoEngineImpl().getFingerprintRaw(pubKey);
+			return OtrCryptoEngines.getEngine().getFingerprintRaw(pubKey);
 		} catch (OtrCryptoException e) {
 			e.printStackTrace();
 			return null;
@@ -223,17 +239,42 @@ public class OtrKeyManagerImpl implements OtrKeyManager {
 
 	@Override
 	public String getRemoteFingerprint(SessionID sessionID) {
+		if (sessionID == null)
+			return null;
+		byte[] encoded = this.store.getPropertyBytes(sessionID.getUserID()
+				+ ".publicKey");
+		if (encoded != null) {
+			String fingerprint = FingerprintCache.getCachedFingerprint(encoded);
+			if (fingerprint != null)
+				return fingerprint;
+		}
+
 		PublicKey remotePublicKey = loadRemotePublicKey(sessionID);
 		if (remotePublicKey == null)
 			return null;
 		try {
-			return new OtrCryptoEngineImpl().getFingerprint(remotePublicKey);
+			return OtrCryptoEngines.getEngine().getFingerprint(remotePublicKey);
 		} catch (OtrCryptoException e) {
 			e.printStackTrace();
 			return null;
 		}
 	}
 
+	/**
+	 * Get the stored encoding of the account's public key, if the account
+	 * has a complete key pair. Fingerprints are looked up in the cache by
+	 * these bytes, which saves decoding the key pair.
+	 */
+	private byte[] loadLocalPublicKeyBytes(SessionID sessionID) {
+		if (sessionID == null)
+			return null;
+
+		String accountID = sessionID.getAccountID();
+		if (this.store.getPropertyBytes(accountID + ".privateKey") == null)
+			return null;
+		return this.store.getPropertyBytes(accountID + ".publicKey");
+	}
+
 	@Override
 	public boolean isVerified(SessionID sessionID) {
 		if (sessionID == null)
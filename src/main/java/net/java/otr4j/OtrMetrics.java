@@ -0,0 +1,287 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import net.java.otr4j.crypto.DHKeyPairPool;
+import net.java.otr4j.session.Session;
+import net.java.otr4j.session.SessionImpl;
+import net.java.otr4j.session.SessionMetrics;
+import net.java.otr4j.session.SessionStatus;
+import net.java.otr4j.util.LatencyHistogram;
+
+/**
+ * Metrics of the sessions of one {@link OtrSessionManagerImpl}, as a JMX
+ * MBean. Obtain it from {@link OtrSessionManagerImpl#enableMetrics()} and
+ * publish it with {@link #register(String)}.
+ * <p>
+ * The sessions count into {@link SessionMetrics}; the session counts and the
+ * key derivations are taken from the sessions when they are read, and the
+ * key pair pool figures from the installed {@link DHKeyPairPool}.
+ */
+public final class OtrMetrics implements OtrMetricsMBean {
+
+	private final OtrSessionManagerImpl manager;
+	private final SessionMetrics sessionMetrics = new SessionMetrics();
+	private volatile ObjectName name;
+
+	OtrMetrics(OtrSessionManagerImpl manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * @return the counters that the sessions of the manager count into
+	 */
+	public SessionMetrics getSessionMetrics() {
+		return sessionMetrics;
+	}
+
+	/**
+	 * Register this MBean with the platform MBean server as
+	 * <tt>net.java.otr4j:type=OtrSessionManager,name=</tt><i>name</i>.
+	 *
+	 * @param name the name that tells this session manager apart from others
+	 * @return the name of the MBean
+	 * @throws JMException if the MBean cannot be registered
+	 */
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName(
+				"net.java.otr4j:type=OtrSessionManager,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		this.name = objectName;
+		return objectName;
+	}
+
+	/**
+	 * Unregister this MBean, if it was registered.
+	 *
+	 * @throws JMException if the MBean cannot be unregistered
+	 */
+	public void unregister() throws JMException {
+		ObjectName objectName = name;
+		if (objectName == null)
+			return;
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		name = null;
+	}
+
+	@Override
+	public int getSessionCount() {
+		return manager.getSessionCount();
+	}
+
+	@Override
+	public int getPlaintextSessions() {
+		return countInstances(SessionStatus.PLAINTEXT);
+	}
+
+	@Override
+	public int getEncryptedSessions() {
+		return countInstances(SessionStatus.ENCRYPTED);
+	}
+
+	@Override
+	public int getFinishedSessions() {
+		return countInstances(SessionStatus.FINISHED);
+	}
+
+	/**
+	 * Count the instances, master and slave sessions, with the given status.
+	 */
+	private int countInstances(SessionStatus status) {
+		int count = 0;
+		for (SessionImpl session : manager.sessions()) {
+			for (Session instance : session.getInstances()) {
+				if (session.getSessionStatus(instance.getReceiverInstanceTag()) == status)
+					count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public long getIdleEvictions() {
+		return manager.getIdleEvictionCount();
+	}
+
+	@Override
+	public long getCapacityEvictions() {
+		return manager.getCapacityEvictionCount();
+	}
+
+	@Override
+	public long getAkesStarted() {
+		return sessionMetrics.getAkesStarted();
+	}
+
+	@Override
+	public long getAkesCompleted() {
+		return sessionMetrics.getAkesCompleted();
+	}
+
+	@Override
+	public long getAkesFailed() {
+		return sessionMetrics.getAkesFailed();
+	}
+
+	@Override
+	public long getUnreadableMessages() {
+		return sessionMetrics.getUnreadableMessages();
+	}
+
+	@Override
+	public long getMacFailures() {
+		return sessionMetrics.getMacFailures();
+	}
+
+	@Override
+	public long getMessagesAssembled() {
+		return sessionMetrics.getMessagesAssembled();
+	}
+
+	@Override
+	public long getFragmentsDiscarded() {
+		return sessionMetrics.getFragmentsDiscarded();
+	}
+
+	@Override
+	public long getBytesEncrypted() {
+		return sessionMetrics.getBytesEncrypted();
+	}
+
+	@Override
+	public long getBytesDecrypted() {
+		return sessionMetrics.getBytesDecrypted();
+	}
+
+	@Override
+	public long getSendCount() {
+		return sessionMetrics.getSendLatency().getCount();
+	}
+
+	@Override
+	public double getSendLatencyMean() {
+		return sessionMetrics.getSendLatency().getMean(TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public double getSendLatency50thPercentile() {
+		return percentile(sessionMetrics.getSendLatency(), 50);
+	}
+
+	@Override
+	public double getSendLatency99thPercentile() {
+		return percentile(sessionMetrics.getSendLatency(), 99);
+	}
+
+	@Override
+	public double getSendLatency999thPercentile() {
+		return percentile(sessionMetrics.getSendLatency(), 99.9);
+	}
+
+	@Override
+	public double getSendLatencyMax() {
+		return sessionMetrics.getSendLatency().getMax(TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public long getReceiveCount() {
+		return sessionMetrics.getReceiveLatency().getCount();
+	}
+
+	@Override
+	public double getReceiveLatencyMean() {
+		return sessionMetrics.getReceiveLatency().getMean(TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public double getReceiveLatency50thPercentile() {
+		return percentile(sessionMetrics.getReceiveLatency(), 50);
+	}
+
+	@Override
+	public double getReceiveLatency99thPercentile() {
+		return percentile(sessionMetrics.getReceiveLatency(), 99);
+	}
+
+	@Override
+	public double getReceiveLatency999thPercentile() {
+		return percentile(sessionMetrics.getReceiveLatency(), 99.9);
+	}
+
+	@Override
+	public double getReceiveLatencyMax() {
+		return sessionMetrics.getReceiveLatency().getMax(TimeUnit.MICROSECONDS);
+	}
+
+	private static double percentile(LatencyHistogram histogram, double percentile) {
+		return histogram.getPercentile(percentile, TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public long getPrefetchedKeyDerivations() {
+		long count = 0;
+		for (SessionImpl session : manager.sessions()) {
+			for (Session instance : session.getInstances())
+				count += ((SessionImpl) instance).getPrefetchedKeyDerivations();
+		}
+		return count;
+	}
+
+	@Override
+	public long getOnDemandKeyDerivations() {
+		long count = 0;
+		for (SessionImpl session : manager.sessions()) {
+			for (Session instance : session.getInstances())
+				count += ((SessionImpl) instance).getOnDemandKeyDerivations();
+		}
+		return count;
+	}
+
+	@Override
+	public long getKeyPairPoolHits() {
+		DHKeyPairPool pool = DHKeyPairPool.getDefault();
+		return pool == null ? 0 : pool.getHits();
+	}
+
+	@Override
+	public long getKeyPairPoolMisses() {
+		DHKeyPairPool pool = DHKeyPairPool.getDefault();
+		return pool == null ? 0 : pool.getMisses();
+	}
+
+	@Override
+	public int getKeyPairPoolAvailable() {
+		DHKeyPairPool pool = DHKeyPairPool.getDefault();
+		return pool == null ? 0 : pool.getAvailable();
+	}
+
+	@Override
+	public double getKeyPairPoolAverageRefill() {
+		DHKeyPairPool pool = DHKeyPairPool.getDefault();
+		return pool == null ? 0 : pool.getAverageRefillNanos() / 1e3;
+	}
+
+	@Override
+	public void reset() {
+		sessionMetrics.reset();
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j;
+
+/**
+ * Management interface of {@link OtrMetrics}. Latencies are in
+ * microseconds.
+ */
+public interface OtrMetricsMBean {
+
+	int getSessionCount();
+
+	int getPlaintextSessions();
+
+	int getEncryptedSessions();
+
+	int getFinishedSessions();
+
+	long getIdleEvictions();
+
+	long getCapacityEvictions();
+
+	long getAkesStarted();
+
+	long getAkesCompleted();
+
+	long getAkesFailed();
+
+	long getUnreadableMessages();
+
+	long getMacFailures();
+
+	long getMessagesAssembled();
+
+	long getFragmentsDiscarded();
+
+	long getBytesEncrypted();
+
+	long getBytesDecrypted();
+
+	long getSendCount();
+
+	double getSendLatencyMean();
+
+	double getSendLatency50thPercentile();
+
+	double getSendLatency99thPercentile();
+
+	double getSendLatency999thPercentile();
+
+	double getSendLatencyMax();
+
+	long getReceiveCount();
+
+	double getReceiveLatencyMean();
+
+	double getReceiveLatency50thPercentile();
+
+	double getReceiveLatency99thPercentile();
+
+	double getReceiveLatency999thPercentile();
+
+	double getReceiveLatencyMax();
+
+	long getPrefetchedKeyDerivations();
+
+	long getOnDemandKeyDerivations();
+
+	long getKeyPairPoolHits();
+
+	long getKeyPairPoolMisses();
+
+	int getKeyPairPoolAvailable();
+
+	double getKeyPairPoolAverageRefill();
+
+	/**
+	 * Set the counters and latencies back to zero. The session counts and
+	 * the figures of the sessions and the key pair pool are not reset.
+	 */
+	void reset();
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j;
+
+import net.java.otr4j.session.SessionID;
+
+/**
+ * Notified by {@link OtrSessionManagerImpl} when it evicts a session.
+ */
+public interface OtrSessionEvictionListener {
+
+	/**
+	 * Why a session was evicted.
+	 */
+	enum Cause {
+		/** The session was idle for longer than the maximum idle time. */
+		IDLE,
+		/** The session was among the least recently used ones when the
+		 * number of sessions went over the maximum. */
+		CAPACITY
+	}
+
+	/**
+	 * Called after a session was removed from the manager and its key
+	 * material was wiped. A later {@link OtrSessionManager#getSession} for
+	 * the same ID creates a new session.
+	 *
+	 * @param sessionID the ID of the evicted session
+	 * @param cause why the session was evicted
+	 */
+	void sessionEvicted(SessionID sessionID, Cause cause);
+}
@@ -15,24 +15,92 @@
  */
 package net.java.otr4j;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.java.otr4j.OtrSessionEvictionListener.Cause;
 import net.java.otr4j.session.Session;
 import net.java.otr4j.session.SessionID;
 import net.java.otr4j.session.SessionImpl;
 
 /**
+ * Sessions are kept until they are evicted. Eviction is off by default. With
+ * a maximum idle time, sessions that have been idle for longer are evicted by
+ * {@link #evictIdleSessions()}, which {@link #getSession(SessionID)} also runs
+ * every so often. With a maximum number of sessions, creating a session past
+ * the maximum evicts the least recently used sessions. Encrypted sessions and
+ * sessions in the middle of an AKE are never evicted; evicted sessions are
+ * wiped and can no longer be used.
  *
  * @author George Politis
  */
 public class OtrSessionManagerImpl implements OtrSessionManager {
 
+	/**
+	 * Fraction of the maximum number of sessions that eviction for capacity
+	 * brings the sessions down to, so that it runs once per many new
+	 * sessions rather than for each.
+	 */
+	private static final double CAPACITY_LOW_WATER = 0.9;
+
 	private OtrEngineHost host;
-	private Map<SessionID, Session> sessions;
-	private final List<OtrEngineListener> listeners = new Vector<OtrEngineListener>();
+	private final ConcurrentMap<SessionID, SessionImpl> sessions =
+			new ConcurrentHashMap<SessionID, SessionImpl>();
+	private final CopyOnWriteArrayList<OtrEngineListener> listeners =
+			new CopyOnWriteArrayList<OtrEngineListener>();
+	private final List<OtrSessionEvictionListener> evictionListeners =
+			new CopyOnWriteArrayList<OtrSessionEvictionListener>();
+	private volatile Executor executor;
+	private volatile OtrMetrics metrics;
+
+	private volatile long maxIdleNanos;
+	private volatile int maxSessions;
+	private volatile long lastIdleSweep = System.nanoTime();
+	private final AtomicLong idleEvictions = new AtomicLong();
+	private final AtomicLong capacityEvictions = new AtomicLong();
+
+	/**
+	 * Number of sessions created, and the number before which eviction for
+	 * capacity does not run again. When encrypted sessions keep the count
+	 * above the maximum, eviction runs once per as many new sessions as it
+	 * normally frees, rather than sorting all sessions for each.
+	 */
+	private final AtomicLong sessionsCreated = new AtomicLong();
+	private volatile long nextCapacitySweep;
+
+	/**
+	 * Forwards the events of all sessions to the listeners of the manager.
+	 */
+	private final OtrEngineListener forwarder = new OtrEngineListener() {
+		@Override
+		public void sessionStatusChanged(SessionID sessionID) {
+			for (OtrEngineListener l : listeners)
+				l.sessionStatusChanged(sessionID);
+		}
+
+		@Override
+		public void multipleInstancesDetected(SessionID sessionID) {
+			for (OtrEngineListener l : listeners)
+				l.multipleInstancesDetected(sessionID);
+		}
+
+		@Override
+		public void outgoingSessionChanged(SessionID sessionID) {
+			for (OtrEngineListener l : listeners)
+				l.outgoingSessionChanged(sessionID);
+		}
+	};
 
 	public OtrSessionManagerImpl(OtrEngineHost host) {
 		if (host == null)
@@ -47,35 +115,251 @@ public class OtrSessionManagerImpl implements OtrSessionManager {
 		if (sessionID == null || sessionID.equals(SessionID.Empty))
 			throw new IllegalArgumentException();
 
-		if (sessions == null)
-			sessions = new Hashtable<SessionID, Session>();
-
-		if (!sessions.containsKey(sessionID)) {
-			Session session = new SessionImpl(sessionID, getHost());
-			sessions.put(sessionID, session);
-
-			session.addOtrEngineListener(new OtrEngineListener() {
-				@Override
-				public void sessionStatusChanged(SessionID sessionID) {
-					for (OtrEngineListener l : listeners)
-						l.sessionStatusChanged(sessionID);
-				}
-
-				@Override
-				public void multipleInstancesDetected(SessionID sessionID) {
-					for (OtrEngineListener l : listeners)
-						l.multipleInstancesDetected(sessionID);
-				}
-
-				@Override
-				public void outgoingSessionChanged(SessionID sessionID) {
-					for (OtrEngineListener l : listeners)
-						l.outgoingSessionChanged(sessionID);
-				}
-			});
+		if (maxIdleNanos > 0 && System.nanoTime() - lastIdleSweep > maxIdleNanos / 2)
+			evictIdleSessions();
+
+		SessionImpl session = sessions.get(sessionID);
+		if (session != null)
 			return session;
-		} else
-			return sessions.get(sessionID);
+
+		// A new session has no effect until it is used, so threads that race
+		// to create the same session may each construct one; the one that
+		// is registered first is returned to all of them.
+		SessionImpl created = new SessionImpl(sessionID, getHost());
+		if (executor != null)
+			created.setExecutor(executor);
+		created.addOtrEngineListener(forwarder);
+		session = sessions.putIfAbsent(sessionID, created);
+		if (session != null)
+			return session;
+		// Read after the session is registered, so that enableMetrics either
+		// sees the session or is seen here.
+		OtrMetrics m = metrics;
+		if (m != null)
+			created.setMetrics(m.getSessionMetrics());
+
+		int max = maxSessions;
+		if (max > 0) {
+			int target = (int) (max * CAPACITY_LOW_WATER);
+			long count = sessionsCreated.incrementAndGet();
+			if (sessions.size() > max && count >= nextCapacitySweep) {
+				nextCapacitySweep = count + max - target;
+				evictLeastRecentlyUsed(target, created);
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Export a session, for example before the host restarts, so that it can
+	 * be restored with {@link #importSession(byte[], byte[])} instead of
+	 * running the AKE again. The session is wiped and removed from this
+	 * manager, as it must not be used once exported.
+	 * <p>
+	 * <b>The snapshot must be destroyed once it was imported.</b>
+	 *
+	 * @param sessionID the session to export
+	 * @param key the key to seal the snapshot under, of at least 16 bytes
+	 * @return the sealed snapshot, or null if there is no such session
+	 * @see SessionImpl#exportState(byte[])
+	 */
+	public byte[] exportSession(SessionID sessionID, byte[] key) throws OtrException {
+		SessionImpl session = sessions.get(sessionID);
+		if (session == null)
+			return null;
+		byte[] snapshot = session.exportState(key);
+		sessions.remove(sessionID, session);
+		return snapshot;
+	}
+
+	/**
+	 * Restore a session exported by {@link #exportSession(SessionID, byte[])},
+	 * replacing the session with the same ID if there is one. The replaced
+	 * session is wiped and can no longer be used.
+	 * <p>
+	 * <b>The snapshot must be destroyed once it was imported.</b> Importing
+	 * it again does not reuse keystream, as each import skips the sending
+	 * counters ahead by a random amount, but leaves two copies of the
+	 * session.
+	 *
+	 * @param snapshot the sealed snapshot
+	 * @param key the key the snapshot was sealed under
+	 * @return the restored session
+	 * @throws OtrException if the snapshot was sealed under another key, was
+	 *             tampered with or cannot be read
+	 */
+	public Session importSession(byte[] snapshot, byte[] key) throws OtrException {
+		SessionImpl session = SessionImpl.importState(snapshot, key, getHost());
+		if (executor != null)
+			session.setExecutor(executor);
+		session.addOtrEngineListener(forwarder);
+		SessionImpl replaced = sessions.put(session.getSessionID(), session);
+		if (replaced != null)
+			replaced.discard();
+		OtrMetrics m = metrics;
+		if (m != null)
+			session.setMetrics(m.getSessionMetrics());
+		return session;
+	}
+
+	/**
+	 * Set the executor on which the asynchronous calls of the sessions created
+	 * from now on run.
+	 *
+	 * @param executor the executor, or null for the sessions' default
+	 * @see SessionImpl#setExecutor(Executor)
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Set the time after which a session that is not encrypted, not in the
+	 * middle of an AKE and not used is evicted.
+	 *
+	 * @param time the maximum idle time, or 0 to keep idle sessions
+	 * @param unit the unit of time
+	 */
+	public void setMaxIdleTime(long time, TimeUnit unit) {
+		this.maxIdleNanos = unit.toNanos(time);
+	}
+
+	/**
+	 * Set the number of sessions above which the least recently used
+	 * sessions that are not encrypted or in the middle of an AKE are
+	 * evicted. Those sessions are kept even if that leaves more sessions
+	 * than the maximum, in which case eviction runs again only after a
+	 * tenth of the maximum of new sessions.
+	 *
+	 * @param maxSessions the maximum number of sessions, or 0 for no maximum
+	 */
+	public void setMaxSessions(int maxSessions) {
+		if (maxSessions < 0)
+			throw new IllegalArgumentException("maxSessions must not be negative");
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * Evict the sessions that are not encrypted or in the middle of an AKE
+	 * and have been idle for longer than the maximum idle time. Hosts may
+	 * call this from a timer; {@link #getSession(SessionID)} calls it when
+	 * half the maximum idle time has passed since the last time.
+	 *
+	 * @return the number of evicted sessions
+	 */
+	public int evictIdleSessions() {
+		long maxIdle = maxIdleNanos;
+		lastIdleSweep = System.nanoTime();
+		if (maxIdle <= 0)
+			return 0;
+
+		int evicted = 0;
+		for (Map.Entry<SessionID, SessionImpl> entry : sessions.entrySet()) {
+			if (entry.getValue().getIdleTime(TimeUnit.NANOSECONDS) > maxIdle
+					&& evict(entry.getKey(), entry.getValue(), Cause.IDLE))
+				evicted++;
+		}
+		return evicted;
+	}
+
+	/**
+	 * Evict the least recently used sessions, other than the one just
+	 * created, until at most target sessions remain or only encrypted ones
+	 * and ones in the middle of an AKE are left to evict.
+	 */
+	private void evictLeastRecentlyUsed(int target, SessionImpl created) {
+		List<Map.Entry<SessionID, SessionImpl>> entries =
+				new ArrayList<Map.Entry<SessionID, SessionImpl>>(sessions.entrySet());
+		final Map<SessionImpl, Long> idle = new IdentityHashMap<SessionImpl, Long>();
+		for (Map.Entry<SessionID, SessionImpl> entry : entries)
+			idle.put(entry.getValue(), entry.getValue().getIdleTime(TimeUnit.NANOSECONDS));
+		Collections.sort(entries, new Comparator<Map.Entry<SessionID, SessionImpl>>() {
+			@Override
+			public int compare(Map.Entry<SessionID, SessionImpl> a,
+					Map.Entry<SessionID, SessionImpl> b)
+			{
+				return idle.get(b.getValue()).compareTo(idle.get(a.getValue()));
+			}
+		});
+		for (Map.Entry<SessionID, SessionImpl> entry : entries) {
+			if (sessions.size() <= target)
+				break;
+			if (entry.getValue() != created)
+				evict(entry.getKey(), entry.getValue(), Cause.CAPACITY);
+		}
+	}
+
+	private boolean evict(SessionID sessionID, SessionImpl session, Cause cause) {
+		// Remove the session before it is wiped, so that getSession never
+		// returns a wiped session, and put it back if it turned out to be in
+		// use after all. Whoever evicts the session concurrently as well,
+		// only one removes it.
+		if (session.isInUse() || !sessions.remove(sessionID, session))
+			return false;
+		if (!session.wipe()) {
+			sessions.putIfAbsent(sessionID, session);
+			return false;
+		}
+		(cause == Cause.IDLE ? idleEvictions : capacityEvictions).incrementAndGet();
+		for (OtrSessionEvictionListener l : evictionListeners)
+			l.sessionEvicted(sessionID, cause);
+		return true;
+	}
+
+	/**
+	 * Turn on the metrics of this manager's sessions, which are off by
+	 * default, for the sessions kept now and those created from now on.
+	 *
+	 * @return the metrics, to read or to register as an MBean
+	 */
+	public synchronized OtrMetrics enableMetrics() {
+		if (metrics == null) {
+			metrics = new OtrMetrics(this);
+			for (SessionImpl session : sessions.values())
+				session.setMetrics(metrics.getSessionMetrics());
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return the metrics, or null if they are not enabled
+	 */
+	public OtrMetrics getMetrics() {
+		return metrics;
+	}
+
+	Collection<SessionImpl> sessions() {
+		return sessions.values();
+	}
+
+	/**
+	 * @return the number of sessions currently kept
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return the number of sessions evicted for being idle
+	 */
+	public long getIdleEvictionCount() {
+		return idleEvictions.get();
+	}
+
+	/**
+	 * @return the number of sessions evicted to stay within the maximum
+	 *         number of sessions
+	 */
+	public long getCapacityEvictionCount() {
+		return capacityEvictions.get();
+	}
+
+	public void addSessionEvictionListener(OtrSessionEvictionListener l) {
+		evictionListeners.add(l);
+	}
+
+	public void removeSessionEvictionListener(OtrSessionEvictionListener l) {
+		evictionListeners.remove(l);
 	}
 
 	private void setHost(OtrEngineHost host) {
@@ -88,16 +372,11 @@ public class OtrSessionManagerImpl implements OtrSessionManager {
 
 	@Override
 	public void addOtrEngineListener(OtrEngineListener l) {
-		synchronized (listeners) {
-			if (!listeners.contains(l))
-				listeners.add(l);
-		}
+		listeners.addIfAbsent(l);
 	}
 
 	@Override
 	public void removeOtrEngineListener(OtrEngineListener l) {
-		synchronized (listeners) {
-			listeners.remove(l);
-		}
+		listeners.remove(l);
 	}
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+/**
+ * Provides {@link OtrCryptoEngineImpl}, which uses Bouncy Castle's
+ * table-based AES for AES-CTR.
+ */
+public class BouncyCastleOtrCryptoEngineProvider implements
+		OtrCryptoEngineProvider
+{
+	public static final String NAME = "bouncycastle";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+
+	@Override
+	public OtrCryptoEngine createEngine() {
+		return new OtrCryptoEngineImpl();
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.java.otr4j.util.DaemonThreadFactory;
+
+/**
+ * Bounded pool of pre-generated D-H key pairs.
+ *
+ * Generating a D-H key pair costs a 1536-bit modular exponentiation. The pool
+ * moves that cost to background threads, so that key rotation on the message
+ * path only has to take a ready-made key pair. When the pool runs dry, key
+ * pairs are generated inline and the miss is counted.
+ *
+ * Sessions draw their key pairs through {@link #nextKeyPair()}, which uses
+ * the pool installed with {@link #setDefault(DHKeyPairPool)}, if any.
+ */
+public final class DHKeyPairPool {
+
+	private static final Logger logger = Logger.getLogger(DHKeyPairPool.class.getName());
+
+	private static volatile DHKeyPairPool defaultPool;
+
+	private final OtrCryptoEngine engine;
+	private final int capacity;
+	private final BlockingQueue<KeyPair> pairs;
+	private final ExecutorService executor;
+
+	/**
+	 * Number of submitted refill tasks that have not finished yet.
+	 */
+	private final AtomicInteger pendingRefills = new AtomicInteger();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong refills = new AtomicLong();
+	private final AtomicLong refillNanos = new AtomicLong();
+	private final AtomicLong maxRefillNanos = new AtomicLong();
+
+	/**
+	 * Create a pool and start filling it.
+	 *
+	 * @param capacity maximum number of key pairs kept ready
+	 * @param threads number of background threads generating key pairs
+	 */
+	public DHKeyPairPool(int capacity, int threads) {
+		this(OtrCryptoEngines.getEngine(), capacity, threads);
+	}
+
+	/**
+	 * Create a pool and start filling it.
+	 *
+	 * @param engine the engine used to generate key pairs
+	 * @param capacity maximum number of key pairs kept ready
+	 * @param threads number of background threads generating key pairs
+	 */
+	public DHKeyPairPool(OtrCryptoEngine engine, int capacity, int threads) {
+		if (engine == null)
+			throw new NullPointerException("engine");
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1");
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be at least 1");
+
+		this.engine = engine;
+		this.capacity = capacity;
+		this.pairs = new ArrayBlockingQueue<KeyPair>(capacity);
+		this.executor = Executors.newFixedThreadPool(threads,
+				new DaemonThreadFactory("otr4j-dh-pool"));
+		refill();
+	}
+
+	/**
+	 * Install the pool that sessions draw their D-H key pairs from. The
+	 * previously installed pool, if any, is not shut down.
+	 *
+	 * @param pool the pool, or <tt>null</tt> to generate key pairs inline
+	 */
+	public static void setDefault(DHKeyPairPool pool) {
+		defaultPool = pool;
+	}
+
+	/**
+	 * @return the installed pool, or <tt>null</tt> if none is installed
+	 */
+	public static DHKeyPairPool getDefault() {
+		return defaultPool;
+	}
+
+	/**
+	 * Get a D-H key pair from the installed pool, or generate one inline if
+	 * no pool is installed.
+	 *
+	 * @return a fresh D-H key pair
+	 * @throws OtrCryptoException when a key pair has to be generated inline
+	 * and that fails
+	 */
+	public static KeyPair nextKeyPair() throws OtrCryptoException {
+		DHKeyPairPool pool = defaultPool;
+		if (pool == null)
+			return OtrCryptoEngines.getEngine().generateDHKeyPair();
+		return pool.take();
+	}
+
+	/**
+	 * Take a key pair from the pool. If none is ready, one is generated on
+	 * the calling thread. Either way, a refill is scheduled.
+	 *
+	 * @return a fresh D-H key pair, never handed out before
+	 * @throws OtrCryptoException when a key pair has to be generated inline
+	 * and that fails
+	 */
+	public KeyPair take() throws OtrCryptoException {
+		KeyPair pair = pairs.poll();
+		if (pair != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			logger.finest("D-H key pair pool is empty, generating key pair inline.");
+			pair = engine.generateDHKeyPair();
+		}
+		refill();
+		return pair;
+	}
+
+	/**
+	 * Stop the background threads and drop all pooled key pairs. Subsequent
+	 * calls to {@link #take()} generate key pairs inline.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		pairs.clear();
+	}
+
+	/**
+	 * Submit refill tasks until the pooled plus pending key pairs reach the
+	 * capacity.
+	 */
+	private void refill() {
+		while (!executor.isShutdown()) {
+			int pending = pendingRefills.get();
+			if (pending + pairs.size() >= capacity)
+				return;
+			if (!pendingRefills.compareAndSet(pending, pending + 1))
+				continue;
+			try {
+				executor.execute(new Refill());
+			} catch (RejectedExecutionException e) {
+				pendingRefills.decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	private final class Refill implements Runnable {
+		@Override
+		public void run() {
+			try {
+				long start = System.nanoTime();
+				KeyPair pair = engine.generateDHKeyPair();
+				long elapsed = System.nanoTime() - start;
+
+				refills.incrementAndGet();
+				refillNanos.addAndGet(elapsed);
+				long max;
+				do {
+					max = maxRefillNanos.get();
+				} while (elapsed > max && !maxRefillNanos.compareAndSet(max, elapsed));
+
+				pairs.offer(pair);
+			} catch (OtrCryptoException e) {
+				logger.log(Level.WARNING, "Failed to generate D-H key pair for the pool.", e);
+			} finally {
+				pendingRefills.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return maximum number of key pairs kept ready
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return number of key pairs that are ready to be taken
+	 */
+	public int getAvailable() {
+		return pairs.size();
+	}
+
+	/**
+	 * @return number of takes that were served from the pool
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of takes that had to generate a key pair inline
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of key pairs generated in the background
+	 */
+	public long getRefills() {
+		return refills.get();
+	}
+
+	/**
+	 * @return average time, in nanoseconds, to generate a key pair in the
+	 * background, or 0 if none was generated yet
+	 */
+	public long getAverageRefillNanos() {
+		long count = refills.get();
+		return count == 0 ? 0 : refillNanos.get() / count;
+	}
+
+	/**
+	 * @return longest time, in nanoseconds, taken to generate a key pair in
+	 * the background
+	 */
+	public long getMaxRefillNanos() {
+		return maxRefillNanos.get();
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.math.BigInteger;
+import java.security.PublicKey;
+import java.security.interfaces.DSAParams;
+import java.security.interfaces.DSAPublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DSA verifier for one public key, with fixed-base tables for g and y.
+ *
+ * Verification computes v = (g^u1 y^u2 mod p) mod q. With tables for both
+ * bases the two exponentiations need no squarings, which pays off for peers
+ * that we run the AKE with repeatedly. Verifiers are kept in a size-bounded
+ * LRU cache keyed by the public key; see {@link #getInstance(DSAPublicKey)}.
+ *
+ * The tables cost more than a plain verification and p, q and g are chosen by
+ * the peer, so they are only built once a signature by the key has verified
+ * and the key is used again, and never for keys larger than OTR's DSA keys.
+ */
+public final class DSAVerifier {
+
+	/**
+	 * Default number of public keys whose verifiers are kept.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 32;
+
+	/**
+	 * Digit size of the g and y tables. For a 160-bit q, window 4 keeps both
+	 * tables of a 1024-bit key at about 150 kB.
+	 */
+	private static final int WINDOW = 4;
+
+	/**
+	 * Largest p and q of the keys that are cached, which are the sizes of the
+	 * DSA keys OTR uses.
+	 */
+	private static final int MAX_P_BITS = 1024;
+	private static final int MAX_Q_BITS = 160;
+
+	private static int maxCacheSize = DEFAULT_CACHE_SIZE;
+
+	private static final LinkedHashMap<PublicKey, DSAVerifier> CACHE = new LinkedHashMap<PublicKey, DSAVerifier>(
+			16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<PublicKey, DSAVerifier> eldest)
+		{
+			return size() > maxCacheSize;
+		}
+	};
+
+	private final BigInteger p;
+	private final BigInteger q;
+	private final BigInteger g;
+	private final BigInteger y;
+
+	/** Set once a signature by the key has verified. */
+	private volatile boolean verified;
+	private volatile FixedBaseModPow gTable;
+	private volatile FixedBaseModPow yTable;
+
+	private DSAVerifier(DSAPublicKey key) {
+		DSAParams params = key.getParams();
+		this.p = params.getP();
+		this.q = params.getQ();
+		this.g = params.getG();
+		this.y = key.getY();
+	}
+
+	/**
+	 * Get the cached verifier for a public key. A new key gets a verifier
+	 * without tables; the tables are built when a key whose signature has
+	 * verified is used again. Keys larger than OTR's DSA keys get a verifier
+	 * of their own that is not cached.
+	 *
+	 * @param key the peer's long-term public key
+	 * @return the verifier
+	 */
+	public static DSAVerifier getInstance(DSAPublicKey key) {
+		DSAParams params = key.getParams();
+		if (params.getP().bitLength() > MAX_P_BITS
+				|| params.getQ().bitLength() > MAX_Q_BITS)
+			return new DSAVerifier(key);
+
+		DSAVerifier verifier;
+		synchronized (CACHE) {
+			verifier = CACHE.get(key);
+			if (verifier == null) {
+				verifier = new DSAVerifier(key);
+				CACHE.put(key, verifier);
+				return verifier;
+			}
+		}
+		// Build the tables outside the lock; a concurrent build for the same
+		// key only wastes some work.
+		if (verifier.verified && verifier.gTable == null) {
+			int bits = verifier.q.bitLength();
+			verifier.yTable = new FixedBaseModPow(verifier.y, verifier.p, bits, WINDOW);
+			verifier.gTable = new FixedBaseModPow(verifier.g, verifier.p, bits, WINDOW);
+		}
+		return verifier;
+	}
+
+	/**
+	 * Set the number of public keys whose verifiers are kept. Least recently
+	 * used verifiers are evicted first.
+	 *
+	 * @param size the cache size; 0 disables caching
+	 */
+	public static void setCacheSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("size must not be negative");
+		synchronized (CACHE) {
+			maxCacheSize = size;
+			while (CACHE.size() > size)
+				CACHE.remove(CACHE.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * @return the maximum number of cached verifiers
+	 */
+	public static int getCacheSize() {
+		synchronized (CACHE) {
+			return maxCacheSize;
+		}
+	}
+
+	/**
+	 * @return the number of verifiers currently cached
+	 */
+	public static int getCachedCount() {
+		synchronized (CACHE) {
+			return CACHE.size();
+		}
+	}
+
+	/**
+	 * @return true if the fixed-base tables for g and y have been built
+	 */
+	boolean hasTables() {
+		return gTable != null && yTable != null;
+	}
+
+	/**
+	 * @return the DSA subgroup order q
+	 */
+	public BigInteger getQ() {
+		return q;
+	}
+
+	/**
+	 * Verify a signature.
+	 *
+	 * @param m the message representative, 0 &lt;= m &lt; q
+	 * @param r the signature's r
+	 * @param s the signature's s
+	 * @return true if the signature is valid
+	 */
+	public boolean verify(BigInteger m, BigInteger r, BigInteger s) {
+		if (r.signum() <= 0 || r.compareTo(q) >= 0)
+			return false;
+		if (s.signum() <= 0 || s.compareTo(q) >= 0)
+			return false;
+
+		BigInteger w = s.modInverse(q);
+		BigInteger u1 = m.multiply(w).mod(q);
+		BigInteger u2 = r.multiply(w).mod(q);
+		FixedBaseModPow gt = gTable;
+		FixedBaseModPow yt = yTable;
+		BigInteger v;
+		if (gt != null && yt != null)
+			v = gt.pow(u1).multiply(yt.pow(u2));
+		else
+			v = g.modPow(u1, p).multiply(y.modPow(u2, p));
+		if (!v.mod(p).mod(q).equals(r))
+			return false;
+		verified = true;
+		return true;
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.java.otr4j.io.SerializationUtils;
+
+/**
+ * Cache of public key fingerprints, in raw and hex form.
+ *
+ * A fingerprint is the SHA-1 hash of the OTR serialization of a public key.
+ * Entries are found by the identity of the {@link PublicKey} object, so that
+ * repeated lookups for a session's key cost one map access, and by the key's
+ * encoded bytes, so that keys decoded again from a key store hit the same
+ * entry. The cache holds the most recently used entries only.
+ */
+public final class FingerprintCache {
+
+	/**
+	 * Maximum number of cache entries. A key found both ways takes two.
+	 */
+	private static final int MAX_SIZE = 512;
+
+	private static final Map<Object, Fingerprint> CACHE = new LinkedHashMap<Object, Fingerprint>(
+			64, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, Fingerprint> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	private FingerprintCache() {
+	}
+
+	/**
+	 * @param pubKey the public key
+	 * @return the 20-byte fingerprint
+	 * @throws OtrCryptoException if the key cannot be serialized
+	 */
+	public static byte[] getFingerprintRaw(PublicKey pubKey)
+			throws OtrCryptoException
+	{
+		return get(pubKey).raw.clone();
+	}
+
+	/**
+	 * @param pubKey the public key
+	 * @return the fingerprint as upper case hex string
+	 * @throws OtrCryptoException if the key cannot be serialized
+	 */
+	public static String getFingerprint(PublicKey pubKey)
+			throws OtrCryptoException
+	{
+		return get(pubKey).hex;
+	}
+
+	/**
+	 * Look up the fingerprint of a key by its encoded form, without decoding
+	 * the key.
+	 *
+	 * @param encoded the key's {@link PublicKey#getEncoded()} bytes
+	 * @return the fingerprint as upper case hex string, or <tt>null</tt> if
+	 * the key is not in the cache
+	 */
+	public static String getCachedFingerprint(byte[] encoded) {
+		Fingerprint fingerprint;
+		synchronized (CACHE) {
+			fingerprint = CACHE.get(new EncodedKey(encoded));
+		}
+		return fingerprint == null ? null : fingerprint.hex;
+	}
+
+	/**
+	 * Look up the fingerprint of a key by its encoded form, without decoding
+	 * the key.
+	 *
+	 * @param encoded the key's {@link PublicKey#getEncoded()} bytes
+	 * @return the 20-byte fingerprint, or <tt>null</tt> if the key is not in
+	 * the cache
+	 */
+	public static byte[] getCachedFingerprintRaw(byte[] encoded) {
+		Fingerprint fingerprint;
+		synchronized (CACHE) {
+			fingerprint = CACHE.get(new EncodedKey(encoded));
+		}
+		return fingerprint == null ? null : fingerprint.raw.clone();
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public static void clear() {
+		synchronized (CACHE) {
+			CACHE.clear();
+		}
+	}
+
+	private static Fingerprint get(PublicKey pubKey) throws OtrCryptoException {
+		IdentityKey identity = new IdentityKey(pubKey);
+		Fingerprint fingerprint;
+		synchronized (CACHE) {
+			fingerprint = CACHE.get(identity);
+		}
+		if (fingerprint != null)
+			return fingerprint;
+
+		byte[] bytes = pubKey.getEncoded();
+		EncodedKey encoded = (bytes == null) ? null : new EncodedKey(bytes);
+		if (encoded != null) {
+			synchronized (CACHE) {
+				fingerprint = CACHE.get(encoded);
+				if (fingerprint != null) {
+					CACHE.put(identity, fingerprint);
+					return fingerprint;
+				}
+			}
+		}
+
+		fingerprint = new Fingerprint(compute(pubKey));
+		synchronized (CACHE) {
+			CACHE.put(identity, fingerprint);
+			if (encoded != null)
+				CACHE.put(encoded, fingerprint);
+		}
+		return fingerprint;
+	}
+
+	private static byte[] compute(PublicKey pubKey) throws OtrCryptoException {
+		try {
+			byte[] bRemotePubKey = SerializationUtils.writePublicKey(pubKey);
+
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			if (pubKey.getAlgorithm().equals("DSA")) {
+				// The fingerprint does not cover the key type.
+				sha1.update(bRemotePubKey, 2, bRemotePubKey.length - 2);
+			} else {
+				sha1.update(bRemotePubKey);
+			}
+			return sha1.digest();
+		} catch (IOException e) {
+			throw new OtrCryptoException(e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new OtrCryptoException(e);
+		}
+	}
+
+	private static final class Fingerprint {
+		final byte[] raw;
+		final String hex;
+
+		Fingerprint(byte[] raw) {
+			this.raw = raw;
+			this.hex = SerializationUtils.byteArrayToHexString(raw);
+		}
+	}
+
+	/**
+	 * Map key comparing public keys by identity.
+	 */
+	private static final class IdentityKey {
+		private final PublicKey key;
+
+		IdentityKey(PublicKey key) {
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof IdentityKey && ((IdentityKey) obj).key == key;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(key);
+		}
+	}
+
+	/**
+	 * Map key comparing encoded public keys by content.
+	 */
+	private static final class EncodedKey {
+		private final byte[] encoded;
+		private final int hash;
+
+		EncodedKey(byte[] encoded) {
+			this.encoded = encoded;
+			this.hash = Arrays.hashCode(encoded);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof EncodedKey
+					&& Arrays.equals(((EncodedKey) obj).encoded, encoded);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
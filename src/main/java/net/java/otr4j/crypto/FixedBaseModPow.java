@@ -0,0 +1,180 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Modular exponentiation with a fixed base, using a precomputed table.
+ *
+ * The exponent is split into digits of <tt>window</tt> bits. For every digit
+ * position <tt>i</tt> the table holds <tt>base^(d * 2^(window * i))</tt> for
+ * all non-zero digit values <tt>d</tt>, so an exponentiation is one modular
+ * multiplication per non-zero digit and no squarings at all. Exponents that
+ * are negative or longer than the table covers fall back to
+ * {@link BigInteger#modPow(BigInteger, BigInteger)}.
+ *
+ * Products are reduced with Barrett reduction, which only needs
+ * multiplications and shifts; {@link BigInteger#mod(BigInteger)} uses long
+ * division and would cost more than the squarings that the table saves.
+ *
+ * Instances are immutable and safe to share between threads.
+ */
+public final class FixedBaseModPow {
+
+	/**
+	 * Digit size used for the shared generator table. Window 5 keeps the table
+	 * of the 1536-bit group at about 2 MB.
+	 */
+	private static final int GENERATOR_WINDOW = 5;
+
+	private static volatile FixedBaseModPow generator;
+
+	private final BigInteger base;
+	private final BigInteger modulus;
+	private final int window;
+	private final int maxExponentBits;
+
+	/**
+	 * Bit length of the modulus and floor(2^(2 * k) / modulus), for Barrett
+	 * reduction.
+	 */
+	private final int k;
+	private final BigInteger mu;
+
+	/**
+	 * table[i][d - 1] = base^(d * 2^(window * i)) mod modulus
+	 */
+	private final BigInteger[][] table;
+
+	/**
+	 * @param base the fixed base
+	 * @param modulus the modulus
+	 * @param maxExponentBits the longest exponent, in bits, that is served
+	 * from the table
+	 * @param window the digit size, in bits
+	 */
+	public FixedBaseModPow(BigInteger base, BigInteger modulus,
+			int maxExponentBits, int window)
+	{
+		if (modulus.signum() <= 0)
+			throw new IllegalArgumentException("modulus must be positive");
+		if (maxExponentBits < 1)
+			throw new IllegalArgumentException("maxExponentBits must be at least 1");
+		if (window < 1 || window > 16)
+			throw new IllegalArgumentException("window must be between 1 and 16");
+
+		this.base = base;
+		this.modulus = modulus;
+		this.window = window;
+		this.maxExponentBits = maxExponentBits;
+		this.k = modulus.bitLength();
+		this.mu = BigInteger.ONE.shiftLeft(2 * k).divide(modulus);
+
+		int rows = (maxExponentBits + window - 1) / window;
+		int digits = (1 << window) - 1;
+		this.table = new BigInteger[rows][digits];
+
+		BigInteger rowBase = base.mod(modulus);
+		for (int i = 0; i < rows; i++) {
+			BigInteger[] row = table[i];
+			row[0] = rowBase;
+			for (int d = 1; d < digits; d++)
+				row[d] = multiply(row[d - 1], rowBase);
+			// rowBase^(2^window) is the base of the next digit position.
+			rowBase = multiply(row[digits - 1], rowBase);
+		}
+	}
+
+	/**
+	 * Get the shared table for {@link OtrCryptoEngine#GENERATOR} over
+	 * {@link OtrCryptoEngine#MODULUS}, which is also the group used by the
+	 * Socialist Millionaire Protocol. The table is built on first use.
+	 *
+	 * @return the shared generator table
+	 */
+	public static FixedBaseModPow getGenerator() {
+		FixedBaseModPow result = generator;
+		if (result == null) {
+			synchronized (FixedBaseModPow.class) {
+				result = generator;
+				if (result == null) {
+					result = new FixedBaseModPow(OtrCryptoEngine.GENERATOR,
+							OtrCryptoEngine.MODULUS,
+							OtrCryptoEngine.MODULUS.bitLength(),
+							GENERATOR_WINDOW);
+					generator = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the fixed base
+	 */
+	public BigInteger getBase() {
+		return base;
+	}
+
+	/**
+	 * @return the modulus
+	 */
+	public BigInteger getModulus() {
+		return modulus;
+	}
+
+	/**
+	 * Compute <tt>base^exponent mod modulus</tt>.
+	 *
+	 * @param exponent the exponent
+	 * @return the result, same as
+	 * <tt>base.modPow(exponent, modulus)</tt>
+	 */
+	public BigInteger pow(BigInteger exponent) {
+		int bits = exponent.bitLength();
+		if (exponent.signum() < 0 || bits > maxExponentBits)
+			return base.modPow(exponent, modulus);
+
+		BigInteger result = null;
+		for (int i = 0, offset = 0; offset < bits; i++, offset += window) {
+			int digit = 0;
+			for (int b = window - 1; b >= 0; b--) {
+				digit <<= 1;
+				if (exponent.testBit(offset + b))
+					digit |= 1;
+			}
+			if (digit == 0)
+				continue;
+
+			BigInteger factor = table[i][digit - 1];
+			result = (result == null) ? factor : multiply(result, factor);
+		}
+		return (result == null) ? BigInteger.ONE.mod(modulus) : result;
+	}
+
+	/**
+	 * Compute <tt>a * b mod modulus</tt> for <tt>0 &lt;= a, b &lt; modulus</tt>.
+	 */
+	private BigInteger multiply(BigInteger a, BigInteger b) {
+		BigInteger x = a.multiply(b);
+		BigInteger q = x.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+		BigInteger r = x.subtract(q.multiply(modulus));
+		while (r.compareTo(modulus) >= 0)
+			r = r.subtract(modulus);
+		return r;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Crypto engine that does AES-CTR with the JCE <tt>AES/CTR/NoPadding</tt>
+ * cipher. On JVMs with AES intrinsics this is much faster than Bouncy
+ * Castle's table-based AES for larger payloads. Everything else is inherited
+ * from {@link OtrCryptoEngineImpl}.
+ */
+public class JceOtrCryptoEngine extends OtrCryptoEngineImpl {
+
+	static final String AES_CTR_TRANSFORMATION = "AES/CTR/NoPadding";
+
+	private static final ThreadLocal<Cipher> AES_CTR = new ThreadLocal<Cipher>();
+
+	/**
+	 * Creates an engine that reuses per-thread primitives.
+	 */
+	public JceOtrCryptoEngine() {
+		super(true);
+	}
+
+	@Override
+	public byte[] aesDecrypt(byte[] key, byte[] ctr, byte[] b)
+			throws OtrCryptoException
+	{
+		return aesCtr(Cipher.DECRYPT_MODE, key, ctr, b);
+	}
+
+	@Override
+	public byte[] aesEncrypt(byte[] key, byte[] ctr, byte[] b)
+			throws OtrCryptoException
+	{
+		return aesCtr(Cipher.ENCRYPT_MODE, key, ctr, b);
+	}
+
+	@Override
+	public OtrCipherContext createAesCtrContext(byte[] key)
+			throws OtrCryptoException
+	{
+		try {
+			return new AesCtrContext(key);
+		} catch (GeneralSecurityException e) {
+			throw new OtrCryptoException(e);
+		}
+	}
+
+	private static byte[] aesCtr(int mode, byte[] key, byte[] ctr, byte[] b)
+			throws OtrCryptoException
+	{
+		// Create initial counter value 0.
+		if (ctr == null)
+			ctr = ZERO_CTR;
+		try {
+			Cipher cipher = AES_CTR.get();
+			if (cipher == null) {
+				cipher = Cipher.getInstance(AES_CTR_TRANSFORMATION);
+				AES_CTR.set(cipher);
+			}
+			cipher.init(mode, new SecretKeySpec(key, "AES"),
+					new IvParameterSpec(ctr));
+			return cipher.doFinal(b);
+		} catch (GeneralSecurityException e) {
+			throw new OtrCryptoException(e);
+		}
+	}
+
+	/**
+	 * JCE AES-CTR cipher bound to one key. The key object is kept, so that
+	 * re-initializing with a new counter does not expand the key again.
+	 */
+	private static final class AesCtrContext implements OtrCipherContext {
+
+		private final Cipher cipher;
+		private final SecretKeySpec key;
+
+		AesCtrContext(byte[] key) throws GeneralSecurityException {
+			this.cipher = Cipher.getInstance(AES_CTR_TRANSFORMATION);
+			this.key = new SecretKeySpec(key, "AES");
+		}
+
+		@Override
+		public byte[] encrypt(byte[] ctr, byte[] b) throws OtrCryptoException {
+			return process(ctr, b);
+		}
+
+		@Override
+		public byte[] decrypt(byte[] ctr, byte[] b) throws OtrCryptoException {
+			// Counter mode decryption is the same operation as encryption.
+			return process(ctr, b);
+		}
+
+		@Override
+		public synchronized void encrypt(byte[] ctr, byte[] b, int offset,
+				int length, byte[] out, int outOffset) throws OtrCryptoException
+		{
+			// Create initial counter value 0.
+			if (ctr == null)
+				ctr = ZERO_CTR;
+			try {
+				cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(ctr));
+				cipher.doFinal(b, offset, length, out, outOffset);
+			} catch (GeneralSecurityException e) {
+				throw new OtrCryptoException(e);
+			}
+		}
+
+		private synchronized byte[] process(byte[] ctr, byte[] b)
+				throws OtrCryptoException
+		{
+			// Create initial counter value 0.
+			if (ctr == null)
+				ctr = ZERO_CTR;
+			try {
+				cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(ctr));
+				return cipher.doFinal(b);
+			} catch (GeneralSecurityException e) {
+				throw new OtrCryptoException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import javax.crypto.Cipher;
+
+/**
+ * Provides {@link JceOtrCryptoEngine}, which uses the JCE
+ * <tt>AES/CTR/NoPadding</tt> cipher for AES-CTR.
+ */
+public class JceOtrCryptoEngineProvider implements OtrCryptoEngineProvider {
+
+	public static final String NAME = "jce";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		try {
+			Cipher.getInstance(JceOtrCryptoEngine.AES_CTR_TRANSFORMATION);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	@Override
+	public OtrCryptoEngine createEngine() {
+		return new JceOtrCryptoEngine();
+	}
+}
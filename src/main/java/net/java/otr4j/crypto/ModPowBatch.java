@@ -0,0 +1,140 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.java.otr4j.crypto.SM.SMException;
+
+/**
+ * A set of independent products of powers modulo the SMP prime, as evaluated
+ * by {@link MultiExp}. Without an {@link Executor} the products are evaluated
+ * in order on the calling thread. With one, they are handed to the executor
+ * while the calling thread works through whatever has not been picked up
+ * yet, so a busy or shut down executor never stalls the caller. The values
+ * are the same either way.
+ */
+final class ModPowBatch {
+
+	private final Executor executor;
+	private final List<BigInteger[]> terms = new ArrayList<BigInteger[]>();
+
+	/**
+	 * @param executor the executor to evaluate on, or null to evaluate on the
+	 *            calling thread
+	 */
+	ModPowBatch(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the index of base^exponent in the result of {@link #evaluate()}
+	 */
+	int add(BigInteger base, BigInteger exponent) {
+		return add(new BigInteger[] { base, exponent });
+	}
+
+	/**
+	 * @return the index of b1^e1 * b2^e2 in the result of {@link #evaluate()}
+	 */
+	int add(BigInteger b1, BigInteger e1, BigInteger b2, BigInteger e2) {
+		return add(new BigInteger[] { b1, e1, b2, e2 });
+	}
+
+	/**
+	 * @return the index of b1^e1 * b2^e2 * b3^e3 in the result of
+	 *         {@link #evaluate()}
+	 */
+	int add(BigInteger b1, BigInteger e1, BigInteger b2, BigInteger e2,
+			BigInteger b3, BigInteger e3)
+	{
+		return add(new BigInteger[] { b1, e1, b2, e2, b3, e3 });
+	}
+
+	private int add(BigInteger[] term) {
+		terms.add(term);
+		return terms.size() - 1;
+	}
+
+	/**
+	 * @return the value of every product, in the order they were added
+	 * @throws SMException when the evaluation failed or was interrupted
+	 */
+	BigInteger[] evaluate() throws SMException {
+		BigInteger[] results = new BigInteger[terms.size()];
+		if (executor == null || results.length < 2) {
+			for (int i = 0; i < results.length; i++)
+				results[i] = evaluate(terms.get(i));
+			return results;
+		}
+
+		List<FutureTask<BigInteger>> tasks = new ArrayList<FutureTask<BigInteger>>(
+				results.length);
+		for (final BigInteger[] term : terms) {
+			tasks.add(new FutureTask<BigInteger>(new Callable<BigInteger>() {
+				@Override
+				public BigInteger call() {
+					return evaluate(term);
+				}
+			}));
+		}
+
+		/*
+		 * Hand all but the first product to the executor. The calling thread
+		 * takes the first one and then runs, from the back, every task that
+		 * has not been started yet; FutureTask.run() does nothing for tasks
+		 * that are already running or done.
+		 */
+		try {
+			for (int i = 1; i < tasks.size(); i++)
+				executor.execute(tasks.get(i));
+		} catch (RejectedExecutionException e) {
+			// The remaining tasks are run below.
+		}
+		for (int i = 0; i < tasks.size(); i++)
+			tasks.get(i == 0 ? 0 : tasks.size() - i).run();
+
+		try {
+			for (int i = 0; i < results.length; i++)
+				results[i] = tasks.get(i).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (FutureTask<BigInteger> task : tasks)
+				task.cancel(false);
+			throw new SMException(e);
+		} catch (ExecutionException e) {
+			throw new SMException(e.getCause());
+		}
+		return results;
+	}
+
+	private static BigInteger evaluate(BigInteger[] term) {
+		BigInteger[] bases = new BigInteger[term.length / 2];
+		BigInteger[] exponents = new BigInteger[bases.length];
+		for (int i = 0; i < bases.length; i++) {
+			bases[i] = term[2 * i];
+			exponents[i] = term[2 * i + 1];
+		}
+		return MultiExp.product(bases, exponents);
+	}
+}
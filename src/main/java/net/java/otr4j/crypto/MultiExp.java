@@ -0,0 +1,85 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Products of powers modulo the 1536-bit prime shared by D-H and the
+ * Socialist Millionaire Protocol, as needed by the SMP proof checks.
+ *
+ * Powers of the group generator come from the shared fixed-base table. Other
+ * powers use {@link BigInteger#modPow(BigInteger, BigInteger)}, whose
+ * Montgomery arithmetic is faster than any interleaved (Shamir/Straus)
+ * evaluation built from {@link BigInteger#multiply(BigInteger)} and a
+ * separate reduction; see <tt>MultiExpBenchmark</tt> in the tests.
+ */
+public final class MultiExp {
+
+	private MultiExp() {
+	}
+
+	/**
+	 * @param base the base
+	 * @param exponent the exponent
+	 * @return base^exponent mod MODULUS
+	 */
+	public static BigInteger pow(BigInteger base, BigInteger exponent) {
+		FixedBaseModPow generator = FixedBaseModPow.getGenerator();
+		if (base.equals(generator.getBase()))
+			return generator.pow(exponent);
+		return base.modPow(exponent, generator.getModulus());
+	}
+
+	/**
+	 * @return b1^e1 * b2^e2 mod MODULUS
+	 */
+	public static BigInteger product(BigInteger b1, BigInteger e1,
+			BigInteger b2, BigInteger e2)
+	{
+		return product(new BigInteger[] { b1, b2 },
+				new BigInteger[] { e1, e2 });
+	}
+
+	/**
+	 * @return b1^e1 * b2^e2 * b3^e3 mod MODULUS
+	 */
+	public static BigInteger product(BigInteger b1, BigInteger e1,
+			BigInteger b2, BigInteger e2, BigInteger b3, BigInteger e3)
+	{
+		return product(new BigInteger[] { b1, b2, b3 }, new BigInteger[] {
+				e1, e2, e3 });
+	}
+
+	/**
+	 * @param bases the bases
+	 * @param exponents the exponents, one per base
+	 * @return the product of bases[i]^exponents[i] mod MODULUS
+	 */
+	public static BigInteger product(BigInteger[] bases, BigInteger[] exponents) {
+		if (bases.length != exponents.length)
+			throw new IllegalArgumentException(
+					"Need exactly one exponent per base.");
+
+		BigInteger modulus = OtrCryptoEngine.MODULUS;
+		BigInteger result = BigInteger.ONE;
+		for (int i = 0; i < bases.length; i++) {
+			BigInteger term = pow(bases[i], exponents[i]);
+			result = (i == 0) ? term : result.multiply(term).mod(modulus);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+/**
+ * AES-CTR cipher bound to one key, whose key schedule is computed once.
+ * Obtain one from {@link OtrCryptoEngine#createAesCtrContext(byte[])}.
+ */
+public interface OtrCipherContext {
+
+	/**
+	 * Encrypt with the bound key.
+	 *
+	 * @param ctr the initial counter, or <tt>null</tt> for counter 0
+	 * @param b the plaintext
+	 * @return the ciphertext
+	 * @throws OtrCryptoException if encryption fails
+	 */
+	byte[] encrypt(byte[] ctr, byte[] b) throws OtrCryptoException;
+
+	/**
+	 * Encrypt with the bound key into a buffer of the caller, which may be
+	 * the plaintext buffer itself for encryption in place.
+	 *
+	 * @param ctr the initial counter, or <tt>null</tt> for counter 0
+	 * @param b the buffer holding the plaintext
+	 * @param offset the offset of the plaintext in b
+	 * @param length the length of the plaintext
+	 * @param out the buffer to write the ciphertext to
+	 * @param outOffset the offset to write the ciphertext at
+	 * @throws OtrCryptoException if encryption fails
+	 */
+	void encrypt(byte[] ctr, byte[] b, int offset, int length, byte[] out,
+			int outOffset) throws OtrCryptoException;
+
+	/**
+	 * Decrypt with the bound key.
+	 *
+	 * @param ctr the initial counter, or <tt>null</tt> for counter 0
+	 * @param b the ciphertext
+	 * @return the plaintext
+	 * @throws OtrCryptoException if decryption fails
+	 */
+	byte[] decrypt(byte[] ctr, byte[] b) throws OtrCryptoException;
+}
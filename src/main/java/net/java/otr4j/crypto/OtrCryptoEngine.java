@@ -70,6 +70,18 @@ public interface OtrCryptoEngine {
 	byte[] aesEncrypt(byte[] key, byte[] ctr, byte[] b)
 			throws OtrCryptoException;
 
+	/**
+	 * Create an AES-CTR cipher bound to the key, for encrypting or decrypting
+	 * many messages with the same key.
+	 */
+	OtrCipherContext createAesCtrContext(byte[] key) throws OtrCryptoException;
+
+	/**
+	 * Create an HmacSHA1 bound to the key, for authenticating many messages
+	 * with the same key.
+	 */
+	OtrMacContext createSha1HmacContext(byte[] key) throws OtrCryptoException;
+
 	BigInteger generateSecret(PrivateKey privKey, PublicKey pubKey)
 			throws OtrCryptoException;
 
@@ -15,45 +15,26 @@
  */
 package net.java.otr4j.crypto;
 
-import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.security.interfaces.DSAParams;
 import java.security.interfaces.DSAPrivateKey;
 import java.security.interfaces.DSAPublicKey;
 
-import javax.crypto.KeyAgreement;
-import javax.crypto.interfaces.DHPrivateKey;
 import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHPrivateKeySpec;
-import javax.crypto.spec.DHPublicKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import net.java.otr4j.io.SerializationUtils;
-
-import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
 import org.bouncycastle.crypto.BufferedBlockCipher;
 import org.bouncycastle.crypto.engines.AESFastEngine;
-import org.bouncycastle.crypto.generators.DHKeyPairGenerator;
 import org.bouncycastle.crypto.modes.SICBlockCipher;
-import org.bouncycastle.crypto.params.DHKeyGenerationParameters;
-import org.bouncycastle.crypto.params.DHParameters;
-import org.bouncycastle.crypto.params.DHPrivateKeyParameters;
-import org.bouncycastle.crypto.params.DHPublicKeyParameters;
-import org.bouncycastle.crypto.params.DSAParameters;
-import org.bouncycastle.crypto.params.DSAPrivateKeyParameters;
-import org.bouncycastle.crypto.params.DSAPublicKeyParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ParametersWithIV;
-import org.bouncycastle.crypto.signers.DSASigner;
 import org.bouncycastle.util.BigIntegers;
 
 /**
@@ -62,42 +43,95 @@ import org.bouncycastle.util.BigIntegers;
  */
 public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 
-	@Override
-	public KeyPair generateDHKeyPair() throws OtrCryptoException {
-
-		// Generate a AsymmetricCipherKeyPair using BC.
-		DHParameters dhParams = new DHParameters(MODULUS, GENERATOR, null,
-				DH_PRIVATE_KEY_MINIMUM_BIT_LENGTH);
-		DHKeyGenerationParameters params = new DHKeyGenerationParameters(
-				new SecureRandom(), dhParams);
-		DHKeyPairGenerator kpGen = new DHKeyPairGenerator();
+	/*
+	 * Per-thread primitives, used when the engine is created in reusing mode.
+	 * Looking up a MessageDigest or Mac through the JCA providers, or building
+	 * a new AES-CTR cipher graph, is costly compared to the few bytes that
+	 * are typically processed per call.
+	 */
+	private static final ThreadLocal<MessageDigest> SHA1_DIGEST = new ThreadLocal<MessageDigest>();
+	private static final ThreadLocal<MessageDigest> SHA256_DIGEST = new ThreadLocal<MessageDigest>();
+	private static final ThreadLocal<javax.crypto.Mac> SHA1_HMAC = new ThreadLocal<javax.crypto.Mac>();
+	private static final ThreadLocal<javax.crypto.Mac> SHA256_HMAC = new ThreadLocal<javax.crypto.Mac>();
+	private static final ThreadLocal<BufferedBlockCipher> AES_CTR = new ThreadLocal<BufferedBlockCipher>();
+
+	private final boolean reusePrimitives;
+
+	/**
+	 * Creates an engine that reuses per-thread digest, MAC and cipher
+	 * instances.
+	 */
+	public OtrCryptoEngineImpl() {
+		this(true);
+	}
 
-		kpGen.init(params);
-		AsymmetricCipherKeyPair pair = kpGen.generateKeyPair();
+	/**
+	 * Creates an engine.
+	 *
+	 * @param reusePrimitives if <tt>true</tt>, digests, MACs and AES-CTR
+	 * ciphers are kept per thread and reset between uses; if <tt>false</tt>
+	 * new instances are looked up and constructed on every call
+	 */
+	public OtrCryptoEngineImpl(boolean reusePrimitives) {
+		this.reusePrimitives = reusePrimitives;
+	}
 
-		// Convert this AsymmetricCipherKeyPair to a standard JCE KeyPair.
-		DHPublicKeyParameters pub = (DHPublicKeyParameters) pair.getPublic();
-		DHPrivateKeyParameters priv = (DHPrivateKeyParameters) pair
-				.getPrivate();
+	/**
+	 * Get a digest for the specified algorithm in its initial state.
+	 */
+	private MessageDigest getDigest(ThreadLocal<MessageDigest> cache,
+			String algorithm) throws NoSuchAlgorithmException
+	{
+		if (!reusePrimitives)
+			return MessageDigest.getInstance(algorithm);
 
-		try {
-			KeyFactory keyFac = KeyFactory.getInstance("DH");
+		MessageDigest digest = cache.get();
+		if (digest == null) {
+			digest = MessageDigest.getInstance(algorithm);
+			cache.set(digest);
+		} else {
+			digest.reset();
+		}
+		return digest;
+	}
 
-			DHPublicKeySpec pubKeySpecs = new DHPublicKeySpec(pub.getY(),
-					MODULUS, GENERATOR);
-			DHPublicKey pubKey = (DHPublicKey) keyFac
-					.generatePublic(pubKeySpecs);
+	/**
+	 * Get a MAC for the specified algorithm. The MAC still has to be
+	 * initialized with a key.
+	 */
+	private javax.crypto.Mac getMac(ThreadLocal<javax.crypto.Mac> cache,
+			String algorithm) throws NoSuchAlgorithmException
+	{
+		if (!reusePrimitives)
+			return javax.crypto.Mac.getInstance(algorithm);
 
-			DHParameters dhParameters = priv.getParameters();
-			DHPrivateKeySpec privKeySpecs = new DHPrivateKeySpec(priv.getX(),
-					dhParameters.getP(), dhParameters.getG());
-			DHPrivateKey privKey = (DHPrivateKey) keyFac
-					.generatePrivate(privKeySpecs);
+		javax.crypto.Mac mac = cache.get();
+		if (mac == null) {
+			mac = javax.crypto.Mac.getInstance(algorithm);
+			cache.set(mac);
+		}
+		return mac;
+	}
 
-			return new KeyPair(pubKey, privKey);
-		} catch (Exception e) {
-			throw new OtrCryptoException(e);
+	/**
+	 * Get an AES-CTR cipher. The cipher still has to be initialized with a
+	 * key and counter, which also resets any state left from a previous use.
+	 */
+	private BufferedBlockCipher getAesCtrCipher() {
+		if (!reusePrimitives)
+			return new BufferedBlockCipher(new SICBlockCipher(new AESFastEngine()));
+
+		BufferedBlockCipher cipher = AES_CTR.get();
+		if (cipher == null) {
+			cipher = new BufferedBlockCipher(new SICBlockCipher(new AESFastEngine()));
+			AES_CTR.set(cipher);
 		}
+		return cipher;
+	}
+
+	@Override
+	public KeyPair generateDHKeyPair() throws OtrCryptoException {
+		return OtrDH.generateKeyPair(OtrRandom.getSecureRandom());
 	}
 
 	public DHPublicKey getDHPublicKey(byte[] mpiBytes)
@@ -108,15 +142,7 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 
 	@Override
 	public DHPublicKey getDHPublicKey(BigInteger mpi) throws OtrCryptoException {
-
-		DHPublicKeySpec pubKeySpecs = new DHPublicKeySpec(mpi, MODULUS,
-				GENERATOR);
-		try {
-			KeyFactory keyFac = KeyFactory.getInstance("DH");
-			return (DHPublicKey) keyFac.generatePublic(pubKeySpecs);
-		} catch (Exception e) {
-			throw new OtrCryptoException(e);
-		}
+		return new OtrDHPublicKey(mpi);
 	}
 
 	@Override
@@ -131,7 +157,7 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 		SecretKeySpec keyspec = new SecretKeySpec(key, "HmacSHA256");
 		javax.crypto.Mac mac;
 		try {
-			mac = javax.crypto.Mac.getInstance("HmacSHA256");
+			mac = getMac(SHA256_HMAC, "HmacSHA256");
 		} catch (NoSuchAlgorithmException e) {
 			throw new OtrCryptoException(e);
 		}
@@ -159,7 +185,7 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 	{
 		try {
 			SecretKeySpec keyspec = new SecretKeySpec(key, "HmacSHA1");
-			javax.crypto.Mac mac = javax.crypto.Mac.getInstance("HmacSHA1");
+			javax.crypto.Mac mac = getMac(SHA1_HMAC, "HmacSHA1");
 			mac.init(keyspec);
 
 			byte[] macBytes = mac.doFinal(b);
@@ -185,7 +211,7 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 	@Override
 	public byte[] sha256Hash(byte[] b) throws OtrCryptoException {
 		try {
-			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			MessageDigest sha256 = getDigest(SHA256_DIGEST, "SHA-256");
 			sha256.update(b, 0, b.length);
 			return sha256.digest();
 		} catch (Exception e) {
@@ -196,9 +222,9 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 	@Override
 	public byte[] sha1Hash(byte[] b) throws OtrCryptoException {
 		try {
-			MessageDigest sha256 = MessageDigest.getInstance("SHA-1");
-			sha256.update(b, 0, b.length);
-			return sha256.digest();
+			MessageDigest sha1 = getDigest(SHA1_DIGEST, "SHA-1");
+			sha1.update(b, 0, b.length);
+			return sha1.digest();
 		} catch (Exception e) {
 			throw new OtrCryptoException(e);
 		}
@@ -208,9 +234,7 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 	public byte[] aesDecrypt(byte[] key, byte[] ctr, byte[] b)
 			throws OtrCryptoException
 	{
-		AESFastEngine aesDec = new AESFastEngine();
-		SICBlockCipher sicAesDec = new SICBlockCipher(aesDec);
-		BufferedBlockCipher bufSicAesDec = new BufferedBlockCipher(sicAesDec);
+		BufferedBlockCipher bufSicAesDec = getAesCtrCipher();
 
 		// Create initial counter value 0.
 		if (ctr == null)
@@ -232,9 +256,7 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 	public byte[] aesEncrypt(byte[] key, byte[] ctr, byte[] b)
 			throws OtrCryptoException
 	{
-		AESFastEngine aesEnc = new AESFastEngine();
-		SICBlockCipher sicAesEnc = new SICBlockCipher(aesEnc);
-		BufferedBlockCipher bufSicAesEnc = new BufferedBlockCipher(sicAesEnc);
+		BufferedBlockCipher bufSicAesEnc = getAesCtrCipher();
 
 		// Create initial counter value 0.
 		if (ctr == null)
@@ -252,20 +274,24 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 	}
 
 	@Override
-	public BigInteger generateSecret(PrivateKey privKey, PublicKey pubKey)
+	public OtrCipherContext createAesCtrContext(byte[] key)
 			throws OtrCryptoException
 	{
-		try {
-			KeyAgreement ka = KeyAgreement.getInstance("DH");
-			ka.init(privKey);
-			ka.doPhase(pubKey, true);
-			byte[] sb = ka.generateSecret();
-			BigInteger s = new BigInteger(1, sb);
-			return s;
+		return new AesCtrContext(key);
+	}
 
-		} catch (Exception e) {
-			throw new OtrCryptoException(e);
-		}
+	@Override
+	public OtrMacContext createSha1HmacContext(byte[] key)
+			throws OtrCryptoException
+	{
+		return new MacContext("HmacSHA1", key);
+	}
+
+	@Override
+	public BigInteger generateSecret(PrivateKey privKey, PublicKey pubKey)
+			throws OtrCryptoException
+	{
+		return OtrDH.generateSecret(privKey, pubKey);
 	}
 
 	@Override
@@ -275,18 +301,11 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 		if (!(privatekey instanceof DSAPrivateKey))
 			throw new IllegalArgumentException();
 
-		DSAParams dsaParams = ((DSAPrivateKey) privatekey).getParams();
-		DSAParameters bcDSAParameters = new DSAParameters(dsaParams.getP(),
-				dsaParams.getQ(), dsaParams.getG());
-
-		DSAPrivateKey dsaPrivateKey = (DSAPrivateKey) privatekey;
-		DSAPrivateKeyParameters bcDSAPrivateKeyParms = new DSAPrivateKeyParameters(
-				dsaPrivateKey.getX(), bcDSAParameters);
-
-		DSASigner dsaSigner = new DSASigner();
-		dsaSigner.init(true, bcDSAPrivateKeyParms);
-
-		BigInteger q = dsaParams.getQ();
+		// The signer for this key keeps precomputed (k^-1, r) pairs, so only
+		// s has to be computed here.
+		PrecomputedDSASigner signer = PrecomputedDSASigner
+				.getInstance((DSAPrivateKey) privatekey);
+		BigInteger q = signer.getQ();
 
 		// Ian: Note that if you can get the standard DSA implementation you're
 		// using to not hash its input, you should be able to pass it ((256-bit
@@ -294,8 +313,7 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 		// should be well.
 		// ref: Interop problems with libotr - DSA signature
 		BigInteger bmpi = new BigInteger(1, b);
-		BigInteger[] rs = dsaSigner.generateSignature(BigIntegers
-				.asUnsignedByteArray(bmpi.mod(q)));
+		BigInteger[] rs = signer.sign(bmpi.mod(q));
 
 		int siglen = q.bitLength() / 4;
 		int rslen = siglen / 2;
@@ -340,53 +358,140 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 		if (!(pubKey instanceof DSAPublicKey))
 			throw new IllegalArgumentException();
 
-		DSAParams dsaParams = ((DSAPublicKey) pubKey).getParams();
-
-		BigInteger q = dsaParams.getQ();
-		DSAParameters bcDSAParams = new DSAParameters(dsaParams.getP(), q,
-				dsaParams.getG());
-
-		DSAPublicKey dsaPrivateKey = (DSAPublicKey) pubKey;
-		DSAPublicKeyParameters dsaPrivParms = new DSAPublicKeyParameters(
-				dsaPrivateKey.getY(), bcDSAParams);
+		// The verifier for this key is cached, and gets fixed-base tables for
+		// g and y once the key has verified and comes back.
+		DSAVerifier verifier = DSAVerifier.getInstance((DSAPublicKey) pubKey);
 
 		// Ian: Note that if you can get the standard DSA implementation you're
 		// using to not hash its input, you should be able to pass it ((256-bit
 		// value) mod q), (rather than truncating the 256-bit value) and all
 		// should be well.
 		// ref: Interop problems with libotr - DSA signature
-		DSASigner dsaSigner = new DSASigner();
-		dsaSigner.init(false, dsaPrivParms);
-
 		BigInteger bmpi = new BigInteger(1, b);
-		Boolean result = dsaSigner.verifySignature(BigIntegers
-				.asUnsignedByteArray(bmpi.mod(q)), r, s);
+		Boolean result = verifier.verify(bmpi.mod(verifier.getQ()), r, s);
 		return result;
 	}
 
 	@Override
 	public String getFingerprint(PublicKey pubKey) throws OtrCryptoException {
-		byte[] b = getFingerprintRaw(pubKey);
-		return SerializationUtils.byteArrayToHexString(b);
+		return FingerprintCache.getFingerprint(pubKey);
 	}
 
 	@Override
 	public byte[] getFingerprintRaw(PublicKey pubKey)
 			throws OtrCryptoException
 	{
-		byte[] b;
-		try {
-			byte[] bRemotePubKey = SerializationUtils.writePublicKey(pubKey);
-
-			if (pubKey.getAlgorithm().equals("DSA")) {
-				byte[] trimmed = new byte[bRemotePubKey.length - 2];
-				System.arraycopy(bRemotePubKey, 2, trimmed, 0, trimmed.length);
-				b = new OtrCryptoEngineImpl().sha1Hash(trimmed);
-			} else
-				b = new OtrCryptoEngineImpl().sha1Hash(bRemotePubKey);
-		} catch (IOException e) {
-			throw new OtrCryptoException(e);
+		return FingerprintCache.getFingerprintRaw(pubKey);
+	}
+
+	/**
+	 * Bouncy Castle AES-CTR cipher whose AES key schedule is set up once.
+	 * Re-initializing the counter mode with only an IV keeps the key.
+	 */
+	private static final class AesCtrContext implements OtrCipherContext {
+
+		private final BufferedBlockCipher cipher = new BufferedBlockCipher(
+				new SICBlockCipher(new AESFastEngine()));
+
+		AesCtrContext(byte[] key) {
+			cipher.init(true, new ParametersWithIV(new KeyParameter(key),
+					ZERO_CTR));
+		}
+
+		@Override
+		public byte[] encrypt(byte[] ctr, byte[] b) throws OtrCryptoException {
+			return process(ctr, b);
+		}
+
+		@Override
+		public byte[] decrypt(byte[] ctr, byte[] b) throws OtrCryptoException {
+			// Counter mode decryption is the same operation as encryption.
+			return process(ctr, b);
+		}
+
+		@Override
+		public void encrypt(byte[] ctr, byte[] b, int offset, int length,
+				byte[] out, int outOffset) throws OtrCryptoException
+		{
+			process(ctr, b, offset, length, out, outOffset);
+		}
+
+		private byte[] process(byte[] ctr, byte[] b) throws OtrCryptoException {
+			byte[] out = new byte[b.length];
+			process(ctr, b, 0, b.length, out, 0);
+			return out;
+		}
+
+		private synchronized void process(byte[] ctr, byte[] b, int offset,
+				int length, byte[] out, int outOffset) throws OtrCryptoException
+		{
+			// Create initial counter value 0.
+			if (ctr == null)
+				ctr = ZERO_CTR;
+			cipher.init(true, new ParametersWithIV(null, ctr));
+			int done = cipher.processBytes(b, offset, length, out, outOffset);
+			try {
+				cipher.doFinal(out, outOffset + done);
+			} catch (Exception e) {
+				throw new OtrCryptoException(e);
+			}
+		}
+	}
+
+	/**
+	 * JCE MAC that is initialized with its key once. {@link
+	 * javax.crypto.Mac#doFinal(byte[])} returns it to the keyed state.
+	 */
+	static final class MacContext implements OtrMacContext {
+
+		private final javax.crypto.Mac mac;
+
+		MacContext(String algorithm, byte[] key) throws OtrCryptoException {
+			try {
+				mac = javax.crypto.Mac.getInstance(algorithm);
+				mac.init(new SecretKeySpec(key, algorithm));
+			} catch (Exception e) {
+				throw new OtrCryptoException(e);
+			}
+		}
+
+		@Override
+		public synchronized byte[] mac(byte[] b, int length) {
+			return truncate(mac.doFinal(b), length);
+		}
+
+		@Override
+		public synchronized void update(byte[] b, int offset, int length) {
+			mac.update(b, offset, length);
+		}
+
+		@Override
+		public synchronized byte[] doFinal(int length) {
+			return truncate(mac.doFinal(), length);
+		}
+
+		@Override
+		public synchronized void doFinal(byte[] out, int offset, int length)
+				throws OtrCryptoException
+		{
+			if (length == mac.getMacLength()) {
+				try {
+					mac.doFinal(out, offset);
+				} catch (Exception e) {
+					throw new OtrCryptoException(e);
+				}
+			} else {
+				System.arraycopy(mac.doFinal(), 0, out, offset, length);
+			}
+		}
+
+		private static byte[] truncate(byte[] macBytes, int length) {
+			if (length > 0 && length < macBytes.length) {
+				byte[] bytes = new byte[length];
+				System.arraycopy(macBytes, 0, bytes, 0, length);
+				return bytes;
+			}
+			return macBytes;
 		}
-		return b;
 	}
 }
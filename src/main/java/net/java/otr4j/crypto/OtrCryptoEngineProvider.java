@@ -0,0 +1,45 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+/**
+ * Service provider interface for crypto engines. Providers are discovered
+ * with {@link java.util.ServiceLoader}, by listing them in
+ * <tt>META-INF/services/net.java.otr4j.crypto.OtrCryptoEngineProvider</tt>,
+ * and selected by name through {@link OtrCryptoEngines}.
+ */
+public interface OtrCryptoEngineProvider {
+
+	/**
+	 * @return the name used to select this provider, e.g.
+	 * <tt>bouncycastle</tt>
+	 */
+	String getName();
+
+	/**
+	 * @return <tt>true</tt> if the engine can be used in this JVM, e.g. all
+	 * the algorithms it relies on are installed
+	 */
+	boolean isAvailable();
+
+	/**
+	 * Create an engine. Engines are shared between sessions and threads, so
+	 * they must be thread safe.
+	 *
+	 * @return the engine
+	 */
+	OtrCryptoEngine createEngine();
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selects the crypto engine used by sessions.
+ *
+ * The engine comes from the {@link OtrCryptoEngineProvider} named by the
+ * system property {@value #ENGINE_PROPERTY}, or from the
+ * {@value BouncyCastleOtrCryptoEngineProvider#NAME} provider when the
+ * property is not set. An engine can also be installed directly with
+ * {@link #setEngine(OtrCryptoEngine)}.
+ */
+public final class OtrCryptoEngines {
+
+	/**
+	 * System property naming the provider to use.
+	 */
+	public static final String ENGINE_PROPERTY = "net.java.otr4j.crypto.engine";
+
+	private static final Logger logger = Logger.getLogger(OtrCryptoEngines.class.getName());
+
+	private static volatile OtrCryptoEngine engine;
+
+	private OtrCryptoEngines() {
+	}
+
+	/**
+	 * @return the engine to use, selected on first use
+	 */
+	public static OtrCryptoEngine getEngine() {
+		OtrCryptoEngine result = engine;
+		if (result == null) {
+			synchronized (OtrCryptoEngines.class) {
+				result = engine;
+				if (result == null) {
+					result = selectEngine();
+					engine = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Install the engine to use from now on.
+	 *
+	 * @param engine the engine, or <tt>null</tt> to select one again from
+	 * the providers on next use
+	 */
+	public static void setEngine(OtrCryptoEngine engine) {
+		OtrCryptoEngines.engine = engine;
+	}
+
+	/**
+	 * @return all providers that are available in this JVM, in service
+	 * loader order
+	 */
+	public static List<OtrCryptoEngineProvider> getProviders() {
+		List<OtrCryptoEngineProvider> providers = new ArrayList<OtrCryptoEngineProvider>();
+		Iterator<OtrCryptoEngineProvider> it = ServiceLoader.load(
+				OtrCryptoEngineProvider.class,
+				OtrCryptoEngineProvider.class.getClassLoader()).iterator();
+		while (true) {
+			try {
+				if (!it.hasNext())
+					break;
+				OtrCryptoEngineProvider provider = it.next();
+				if (provider.isAvailable())
+					providers.add(provider);
+			} catch (ServiceConfigurationError e) {
+				logger.log(Level.WARNING, "Ignoring crypto engine provider.", e);
+			}
+		}
+		return providers;
+	}
+
+	/**
+	 * @param name the provider name
+	 * @return the available provider with that name, or <tt>null</tt>
+	 */
+	public static OtrCryptoEngineProvider getProvider(String name) {
+		for (OtrCryptoEngineProvider provider : getProviders()) {
+			if (provider.getName().equals(name))
+				return provider;
+		}
+		return null;
+	}
+
+	private static OtrCryptoEngine selectEngine() {
+		String name = System.getProperty(ENGINE_PROPERTY,
+				BouncyCastleOtrCryptoEngineProvider.NAME);
+		OtrCryptoEngineProvider provider = getProvider(name);
+		if (provider == null) {
+			logger.warning("Crypto engine provider " + name
+					+ " is not available, using "
+					+ BouncyCastleOtrCryptoEngineProvider.NAME + ".");
+			return new OtrCryptoEngineImpl();
+		}
+		logger.finest("Using crypto engine provider " + name + ".");
+		return provider.createEngine();
+	}
+}
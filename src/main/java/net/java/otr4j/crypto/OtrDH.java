@@ -0,0 +1,113 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+
+import javax.crypto.interfaces.DHKey;
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * Diffie-Hellman over the fixed OTR group, working directly on
+ * {@link BigInteger} values. This avoids the JCE provider lookups of
+ * {@link java.security.KeyFactory} and {@link javax.crypto.KeyAgreement} for
+ * every received key and every shared secret.
+ */
+public final class OtrDH {
+
+	/**
+	 * The OTR group: {@link OtrCryptoEngine#MODULUS} and
+	 * {@link OtrCryptoEngine#GENERATOR}.
+	 */
+	public static final DHParameterSpec PARAMETERS = new DHParameterSpec(
+			OtrCryptoEngine.MODULUS, OtrCryptoEngine.GENERATOR,
+			OtrCryptoEngine.DH_PRIVATE_KEY_MINIMUM_BIT_LENGTH);
+
+	private OtrDH() {
+	}
+
+	/**
+	 * Generate a key pair. The private exponent is exactly
+	 * {@link OtrCryptoEngine#DH_PRIVATE_KEY_MINIMUM_BIT_LENGTH} bits long.
+	 *
+	 * @param random source of the private exponent
+	 * @return the key pair, holding an {@link OtrDHPublicKey} and an
+	 * {@link OtrDHPrivateKey}
+	 */
+	public static KeyPair generateKeyPair(SecureRandom random) {
+		int bits = OtrCryptoEngine.DH_PRIVATE_KEY_MINIMUM_BIT_LENGTH;
+		BigInteger x = new BigInteger(bits, random).setBit(bits - 1);
+		BigInteger y = FixedBaseModPow.getGenerator().pow(x);
+		return new KeyPair(new OtrDHPublicKey(y), new OtrDHPrivateKey(x));
+	}
+
+	/**
+	 * Check that a public value is legal, that is 2 &lt;= y &lt;=
+	 * modulus - 2.
+	 *
+	 * @param y the public value
+	 * @return true if the value is legal
+	 */
+	public static boolean isValidPublicValue(BigInteger y) {
+		return y.compareTo(OtrCryptoEngine.BIGINTEGER_TWO) >= 0
+				&& y.compareTo(OtrCryptoEngine.MODULUS_MINUS_TWO) <= 0;
+	}
+
+	/**
+	 * Compute the shared secret y^x mod modulus.
+	 *
+	 * @param privateKey our D-H private key
+	 * @param publicKey the peer's D-H public key
+	 * @return the shared secret
+	 * @throws OtrCryptoException if either key is not a D-H key in the OTR
+	 * group, or the peer's public value is out of range
+	 */
+	public static BigInteger generateSecret(PrivateKey privateKey,
+			PublicKey publicKey) throws OtrCryptoException
+	{
+		if (!(privateKey instanceof DHPrivateKey)
+				|| !(publicKey instanceof DHPublicKey))
+			throw new OtrCryptoException(new IllegalArgumentException(
+					"Not a D-H key."));
+		checkGroup((DHKey) privateKey);
+		checkGroup((DHKey) publicKey);
+
+		BigInteger y = ((DHPublicKey) publicKey).getY();
+		if (!isValidPublicValue(y))
+			throw new OtrCryptoException(new IllegalArgumentException(
+					"Illegal D-H Public Key value."));
+
+		BigInteger x = ((DHPrivateKey) privateKey).getX();
+		return y.modPow(x, OtrCryptoEngine.MODULUS);
+	}
+
+	private static void checkGroup(DHKey key) throws OtrCryptoException {
+		DHParameterSpec params = key.getParams();
+		if (params == PARAMETERS)
+			return;
+		if (params == null
+				|| !OtrCryptoEngine.MODULUS.equals(params.getP())
+				|| !OtrCryptoEngine.GENERATOR.equals(params.getG()))
+			throw new OtrCryptoException(new IllegalArgumentException(
+					"D-H key is not in the OTR group."));
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.math.BigInteger;
+
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * D-H private key in the OTR group, holding just the private exponent.
+ *
+ * Two keys are equal when their exponents are equal.
+ */
+public final class OtrDHPrivateKey implements DHPrivateKey {
+
+	private static final long serialVersionUID = 1L;
+
+	private final BigInteger x;
+
+	/**
+	 * @param x the private exponent
+	 */
+	public OtrDHPrivateKey(BigInteger x) {
+		if (x == null)
+			throw new NullPointerException("x");
+		this.x = x;
+	}
+
+	@Override
+	public BigInteger getX() {
+		return x;
+	}
+
+	@Override
+	public DHParameterSpec getParams() {
+		return OtrDH.PARAMETERS;
+	}
+
+	@Override
+	public String getAlgorithm() {
+		return "DH";
+	}
+
+	@Override
+	public String getFormat() {
+		return null;
+	}
+
+	@Override
+	public byte[] getEncoded() {
+		return null;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof OtrDHPrivateKey))
+			return false;
+		return x.equals(((OtrDHPrivateKey) obj).x);
+	}
+
+	@Override
+	public int hashCode() {
+		return x.hashCode();
+	}
+}
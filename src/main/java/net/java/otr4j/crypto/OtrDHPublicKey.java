@@ -0,0 +1,85 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.math.BigInteger;
+
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * D-H public key in the OTR group, holding just the public value.
+ *
+ * Two keys are equal when their public values are equal.
+ */
+public final class OtrDHPublicKey implements DHPublicKey {
+
+	private static final long serialVersionUID = 1L;
+
+	private final BigInteger y;
+
+	/**
+	 * @param y the public value
+	 */
+	public OtrDHPublicKey(BigInteger y) {
+		if (y == null)
+			throw new NullPointerException("y");
+		this.y = y;
+	}
+
+	@Override
+	public BigInteger getY() {
+		return y;
+	}
+
+	@Override
+	public DHParameterSpec getParams() {
+		return OtrDH.PARAMETERS;
+	}
+
+	@Override
+	public String getAlgorithm() {
+		return "DH";
+	}
+
+	/**
+	 * OTR keys are serialized as MPIs by the io package, so no standard
+	 * encoding is provided.
+	 */
+	@Override
+	public String getFormat() {
+		return null;
+	}
+
+	@Override
+	public byte[] getEncoded() {
+		return null;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof OtrDHPublicKey))
+			return false;
+		return y.equals(((OtrDHPublicKey) obj).y);
+	}
+
+	@Override
+	public int hashCode() {
+		return y.hashCode();
+	}
+}
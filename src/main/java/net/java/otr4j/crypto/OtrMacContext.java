@@ -0,0 +1,63 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+/**
+ * HMAC bound to one key, whose inner and outer pads are computed once.
+ * Obtain one from {@link OtrCryptoEngine#createSha1HmacContext(byte[])}.
+ */
+public interface OtrMacContext {
+
+	/**
+	 * @param b the data to authenticate
+	 * @param length number of leading MAC bytes to return, or 0 for all
+	 * @return the MAC
+	 * @throws OtrCryptoException if the MAC cannot be computed
+	 */
+	byte[] mac(byte[] b, int length) throws OtrCryptoException;
+
+	/**
+	 * Add a piece of the data to authenticate, for data that is not
+	 * available at once. Finish with {@link #doFinal(int)}. A context that
+	 * is used this way must not be used by another thread meanwhile.
+	 *
+	 * @param b the buffer holding the data
+	 * @param offset the offset of the data in b
+	 * @param length the length of the data
+	 */
+	void update(byte[] b, int offset, int length);
+
+	/**
+	 * Finish the MAC over the data added by {@link #update(byte[], int, int)}
+	 * and return the context to its keyed state.
+	 *
+	 * @param length number of leading MAC bytes to return, or 0 for all
+	 * @return the MAC
+	 * @throws OtrCryptoException if the MAC cannot be computed
+	 */
+	byte[] doFinal(int length) throws OtrCryptoException;
+
+	/**
+	 * Variant of {@link #doFinal(int)} that writes the MAC into a buffer of
+	 * the caller.
+	 *
+	 * @param out the buffer to write the MAC to
+	 * @param offset the offset to write the MAC at
+	 * @param length number of leading MAC bytes to write
+	 * @throws OtrCryptoException if the MAC cannot be computed
+	 */
+	void doFinal(byte[] out, int offset, int length) throws OtrCryptoException;
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.security.SecureRandom;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.prng.EntropySource;
+import org.bouncycastle.crypto.prng.drbg.HashSP800DRBG;
+
+/**
+ * The library's source of random numbers. Every thread gets its own SHA-256
+ * Hash_DRBG (NIST SP 800-90A), instantiated from a single shared
+ * {@link OtrRandomSource}, so generating random values neither reseeds a
+ * platform {@link SecureRandom} nor contends on a shared one. Each generator
+ * reseeds itself from the source after {@link #RESEED_BYTES} bytes or
+ * {@link #RESEED_INTERVAL_MILLIS} milliseconds, whichever comes first.
+ */
+public final class OtrRandom {
+
+	/** Number of bytes a generator produces before it is reseeded. */
+	public static final long RESEED_BYTES = 1L << 20;
+
+	/** Number of milliseconds after which a generator is reseeded. */
+	public static final long RESEED_INTERVAL_MILLIS = 10 * 60 * 1000L;
+
+	private static final int SECURITY_STRENGTH_BITS = 256;
+	private static final int NONCE_BYTES = SECURITY_STRENGTH_BITS / 16;
+	private static final int MAX_REQUEST_BYTES = 4096;
+
+	private static final OtrRandomSource DEFAULT_SOURCE = new OtrRandomSource() {
+		private final SecureRandom random = new SecureRandom();
+
+		@Override
+		public synchronized void nextSeed(byte[] seed) {
+			random.nextBytes(seed);
+		}
+	};
+
+	private static volatile OtrRandomSource source = DEFAULT_SOURCE;
+
+	/** Bumped to make every thread instantiate a new generator. */
+	private static volatile int generation;
+
+	private static final ThreadLocal<Generator> GENERATOR = new ThreadLocal<Generator>();
+
+	private OtrRandom() {
+	}
+
+	/**
+	 * Get the calling thread's generator. It may be used from other threads,
+	 * but is intended for the calling thread only.
+	 *
+	 * @return the calling thread's generator
+	 */
+	public static SecureRandom getSecureRandom() {
+		Generator generator = GENERATOR.get();
+		if (generator == null || generator.generation != generation) {
+			generator = new Generator(source, generation);
+			GENERATOR.set(generator);
+		}
+		return generator;
+	}
+
+	/**
+	 * Fill the given array with random bytes from the calling thread's
+	 * generator.
+	 *
+	 * @param bytes the array to fill
+	 */
+	public static void nextBytes(byte[] bytes) {
+		getSecureRandom().nextBytes(bytes);
+	}
+
+	/**
+	 * Install the source of seed material. Every thread instantiates a new
+	 * generator from it on its next use.
+	 *
+	 * @param source the source, or null for the default source
+	 */
+	public static synchronized void setSource(OtrRandomSource source) {
+		OtrRandom.source = (source == null) ? DEFAULT_SOURCE : source;
+		generation++;
+	}
+
+	/**
+	 * @return the source of seed material
+	 */
+	public static OtrRandomSource getSource() {
+		return source;
+	}
+
+	/**
+	 * Make every thread instantiate a new generator from the source on its
+	 * next use, e.g. after the host has been resumed from a snapshot.
+	 */
+	public static synchronized void reseed() {
+		generation++;
+	}
+
+	/**
+	 * A Hash_DRBG for a single thread. Random (and so BigInteger and every
+	 * next* method) obtain all their bytes through {@link #nextBytes(byte[])}.
+	 */
+	private static final class Generator extends SecureRandom {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient OtrRandomSource source;
+		private final transient HashSP800DRBG drbg;
+		final int generation;
+		private long remaining;
+		private long reseedTime;
+
+		Generator(final OtrRandomSource source, int generation) {
+			// No platform SPI: every method is served by the DRBG below.
+			super(null, null);
+			this.source = source;
+			this.generation = generation;
+			EntropySource entropy = new EntropySource() {
+				@Override
+				public boolean isPredictionResistant() {
+					return false;
+				}
+
+				@Override
+				public byte[] getEntropy() {
+					byte[] seed = new byte[entropySize() / 8];
+					source.nextSeed(seed);
+					return seed;
+				}
+
+				@Override
+				public int entropySize() {
+					return SECURITY_STRENGTH_BITS;
+				}
+			};
+			byte[] nonce = new byte[NONCE_BYTES];
+			source.nextSeed(nonce);
+			this.drbg = new HashSP800DRBG(new SHA256Digest(),
+					SECURITY_STRENGTH_BITS, entropy, null, nonce);
+			scheduleReseed();
+		}
+
+		private void scheduleReseed() {
+			remaining = RESEED_BYTES;
+			reseedTime = System.currentTimeMillis() + RESEED_INTERVAL_MILLIS;
+		}
+
+		@Override
+		public synchronized void nextBytes(byte[] bytes) {
+			if (remaining <= 0 || System.currentTimeMillis() >= reseedTime) {
+				drbg.reseed(null);
+				scheduleReseed();
+			}
+			remaining -= bytes.length;
+
+			if (bytes.length <= MAX_REQUEST_BYTES) {
+				generate(bytes);
+				return;
+			}
+			byte[] chunk = new byte[MAX_REQUEST_BYTES];
+			for (int offset = 0; offset < bytes.length; offset += chunk.length) {
+				int length = Math.min(chunk.length, bytes.length - offset);
+				if (length < chunk.length)
+					chunk = new byte[length];
+				generate(chunk);
+				System.arraycopy(chunk, 0, bytes, offset, length);
+			}
+		}
+
+		private void generate(byte[] bytes) {
+			if (drbg.generate(bytes, null, false) < 0) {
+				drbg.reseed(null);
+				drbg.generate(bytes, null, false);
+			}
+		}
+
+		@Override
+		public void setSeed(byte[] seed) {
+			// Seed material only comes from the source.
+		}
+
+		@Override
+		public void setSeed(long seed) {
+			// Called by the Random constructor; see setSeed(byte[]).
+		}
+
+		@Override
+		public byte[] generateSeed(int numBytes) {
+			byte[] seed = new byte[numBytes];
+			source.nextSeed(seed);
+			return seed;
+		}
+
+		@Override
+		public String getAlgorithm() {
+			return "Hash_DRBG/SHA-256";
+		}
+	}
+}
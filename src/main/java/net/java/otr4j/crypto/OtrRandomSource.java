@@ -0,0 +1,34 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+/**
+ * The seed material from which {@link OtrRandom} instantiates and reseeds its
+ * per-thread generators. The default source is a single, once-seeded
+ * {@link java.security.SecureRandom}; tests and benchmarks may install a
+ * deterministic source to make runs reproducible.
+ *
+ * Implementations must be safe for use from multiple threads.
+ */
+public interface OtrRandomSource {
+
+	/**
+	 * Fill the given array with seed material.
+	 *
+	 * @param seed the array to fill
+	 */
+	void nextSeed(byte[] seed);
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.math.BigInteger;
+import java.security.interfaces.DSAParams;
+import java.security.interfaces.DSAPrivateKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.java.otr4j.util.DaemonThreadFactory;
+
+/**
+ * DSA signer for one long-term private key, with a background-filled pool of
+ * precomputed per-signature values.
+ *
+ * A DSA signature is r = (g^k mod p) mod q and s = k^-1 (m + x r) mod q for a
+ * fresh random k. Only s depends on the message, so (k^-1, r) is computed
+ * ahead of time and signing costs two multiplications modulo q. Every
+ * precomputed pair is handed out exactly once.
+ *
+ * Signers are shared per key through {@link #getInstance(DSAPrivateKey)}.
+ * Hosts can call it when an account's key is loaded to have values ready for
+ * the first AKE.
+ */
+public final class PrecomputedDSASigner {
+
+	/**
+	 * Number of precomputed pairs kept ready per key.
+	 */
+	private static final int POOL_CAPACITY = 8;
+
+	/**
+	 * Number of keys whose signers are kept.
+	 */
+	private static final int MAX_SIGNERS = 16;
+
+	private static final ExecutorService EXECUTOR = Executors
+			.newSingleThreadExecutor(new DaemonThreadFactory(
+					"otr4j-dsa-precompute"));
+
+	private static final Map<BigInteger, PrecomputedDSASigner> SIGNERS = new LinkedHashMap<BigInteger, PrecomputedDSASigner>(
+			MAX_SIGNERS, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<BigInteger, PrecomputedDSASigner> eldest)
+		{
+			return size() > MAX_SIGNERS;
+		}
+	};
+
+	private final BigInteger p;
+	private final BigInteger q;
+	private final BigInteger g;
+	private final BigInteger x;
+
+	/**
+	 * Precomputed pairs { k^-1 mod q, r }.
+	 */
+	private final BlockingQueue<BigInteger[]> pairs = new ArrayBlockingQueue<BigInteger[]>(
+			POOL_CAPACITY);
+	private final AtomicInteger pendingRefills = new AtomicInteger();
+
+	private PrecomputedDSASigner(DSAPrivateKey key) {
+		DSAParams params = key.getParams();
+		this.p = params.getP();
+		this.q = params.getQ();
+		this.g = params.getG();
+		this.x = key.getX();
+	}
+
+	/**
+	 * Get the signer for a private key, and start precomputing for it if it
+	 * is new.
+	 *
+	 * @param key the long-term private key
+	 * @return the shared signer for the key
+	 */
+	public static PrecomputedDSASigner getInstance(DSAPrivateKey key) {
+		PrecomputedDSASigner signer;
+		synchronized (SIGNERS) {
+			signer = SIGNERS.get(key.getX());
+			if (signer == null || !signer.matches(key)) {
+				signer = new PrecomputedDSASigner(key);
+				SIGNERS.put(key.getX(), signer);
+			}
+		}
+		signer.refill();
+		return signer;
+	}
+
+	private boolean matches(DSAPrivateKey key) {
+		DSAParams params = key.getParams();
+		return p.equals(params.getP()) && q.equals(params.getQ())
+				&& g.equals(params.getG());
+	}
+
+	/**
+	 * @return the DSA subgroup order q
+	 */
+	public BigInteger getQ() {
+		return q;
+	}
+
+	/**
+	 * Sign a message representative.
+	 *
+	 * @param m the message representative, 0 &lt;= m &lt; q
+	 * @return { r, s }
+	 */
+	public BigInteger[] sign(BigInteger m) {
+		while (true) {
+			BigInteger[] pair = pairs.poll();
+			if (pair == null)
+				pair = precompute();
+			refill();
+
+			BigInteger kInv = pair[0];
+			BigInteger r = pair[1];
+			BigInteger s = kInv.multiply(m.add(x.multiply(r))).mod(q);
+			if (s.signum() != 0)
+				return new BigInteger[] { r, s };
+		}
+	}
+
+	/**
+	 * @return number of precomputed pairs that are ready
+	 */
+	public int getAvailable() {
+		return pairs.size();
+	}
+
+	/**
+	 * Compute a fresh { k^-1 mod q, r } pair with r != 0.
+	 */
+	private BigInteger[] precompute() {
+		int qBitLength = q.bitLength();
+		while (true) {
+			BigInteger k;
+			do {
+				k = new BigInteger(qBitLength, OtrRandom.getSecureRandom());
+			} while (k.signum() == 0 || k.compareTo(q) >= 0);
+
+			BigInteger r = g.modPow(k, p).mod(q);
+			if (r.signum() != 0)
+				return new BigInteger[] { k.modInverse(q), r };
+		}
+	}
+
+	private void refill() {
+		while (true) {
+			int pending = pendingRefills.get();
+			if (pending + pairs.size() >= POOL_CAPACITY)
+				return;
+			if (!pendingRefills.compareAndSet(pending, pending + 1))
+				continue;
+			try {
+				EXECUTOR.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							pairs.offer(precompute());
+						} finally {
+							pendingRefills.decrementAndGet();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				pendingRefills.decrementAndGet();
+				return;
+			}
+		}
+	}
+}
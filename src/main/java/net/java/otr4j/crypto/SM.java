@@ -28,6 +28,7 @@ import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.Executor;
 
 import net.java.otr4j.io.OtrInputStream;
 import net.java.otr4j.io.OtrOutputStream;
@@ -105,13 +106,57 @@ public class SM {
 		public int smProgState;
 		public boolean approved;
 		public boolean asked;
+		Executor executor;
+		/** Source of the random exponents; null means {@link OtrRandom}. */
+		SecureRandom random;
 
 		public SMState() {
 			g1 = new BigInteger(1, SM.GENERATOR_S);
 			smProgState = SM.PROG_OK;
 			approved = false;
 			asked = false;
+			executor = defaultExecutor;
 		}
+
+		/**
+		 * Set the executor on which the independent exponentiations of each
+		 * protocol step are evaluated. The messages produced are the same as
+		 * when evaluating serially.
+		 *
+		 * @param executor the executor, or null to evaluate every
+		 *            exponentiation on the calling thread
+		 */
+		public void setExecutor(Executor executor) {
+			this.executor = executor;
+		}
+
+		/**
+		 * @return the executor for the exponentiations of each protocol step,
+		 *         or null if they are evaluated on the calling thread
+		 */
+		public Executor getExecutor() {
+			return executor;
+		}
+	}
+
+	private static volatile Executor defaultExecutor;
+
+	/**
+	 * Set the executor that newly created {@link SMState}s start out with.
+	 *
+	 * @param executor the executor, or null (the default) to evaluate every
+	 *            exponentiation on the calling thread
+	 */
+	public static void setDefaultExecutor(Executor executor) {
+		defaultExecutor = executor;
+	}
+
+	/**
+	 * @return the executor that newly created {@link SMState}s start out
+	 *         with, or null
+	 */
+	public static Executor getDefaultExecutor() {
+		return defaultExecutor;
 	}
 
 	public static class SMException extends Exception {
@@ -144,12 +189,32 @@ public class SM {
 	 * @return the generated random exponent.
 	 */
 	public static BigInteger randomExponent() {
-		SecureRandom sr = new SecureRandom();
+		return randomExponent(OtrRandom.getSecureRandom());
+	}
+
+	private static BigInteger randomExponent(SMState state) {
+		return randomExponent(state.random == null ? OtrRandom
+				.getSecureRandom() : state.random);
+	}
+
+	private static BigInteger randomExponent(SecureRandom sr) {
 		byte[] sb = new byte[MOD_LEN_BYTES];
 		sr.nextBytes(sb);
 		return new BigInteger(1, sb);
 	}
 
+	/**
+	 * Compute base^exponent mod MODULUS_S. Powers of the group generator are
+	 * taken from the shared fixed-base table.
+	 *
+	 * @param base the base
+	 * @param exponent the exponent
+	 * @return base^exponent mod MODULUS_S
+	 */
+	static BigInteger modExp(BigInteger base, BigInteger exponent) {
+		return MultiExp.pow(base, exponent);
+	}
+
 	/**
 	 * Hash one or two BigIntegers. To hash only one BigInteger, b may be set to
 	 * NULL.
@@ -247,9 +312,15 @@ public class SM {
 			int version) throws SMException
 	{
 		BigInteger r = randomExponent();
-		BigInteger temp = g.modPow(r, SM.MODULUS_S);
-		BigInteger c = hash(version, temp, null);
-		temp = x.multiply(c).mod(ORDER_S);
+		return proofKnowLog(modExp(g, r), r, x, version);
+	}
+
+	/* Finish a proof of knowledge of x, given r and g^r */
+	private static BigInteger[] proofKnowLog(BigInteger gr, BigInteger r,
+			BigInteger x, int version) throws SMException
+	{
+		BigInteger c = hash(version, gr, null);
+		BigInteger temp = x.multiply(c).mod(ORDER_S);
 		BigInteger d = r.subtract(temp).mod(ORDER_S);
 		BigInteger[] ret = new BigInteger[2];
 		ret[0] = c;
@@ -272,9 +343,13 @@ public class SM {
 	public static int checkKnowLog(BigInteger c, BigInteger d, BigInteger g,
 			BigInteger x, int version) throws SMException
 	{
-		BigInteger gd = g.modPow(d, MODULUS_S);
-		BigInteger xc = x.modPow(c, MODULUS_S);
-		BigInteger gdxc = gd.multiply(xc).mod(MODULUS_S);
+		return checkKnowLog(c, MultiExp.product(g, d, x, c), version);
+	}
+
+	/* Finish a check of a proof of knowledge, given g^d x^c */
+	private static int checkKnowLog(BigInteger c, BigInteger gdxc, int version)
+			throws SMException
+	{
 		BigInteger hgdxc = hash(version, gdxc, null);
 
 		return hgdxc.compareTo(c);
@@ -295,15 +370,21 @@ public class SM {
 		BigInteger r1 = randomExponent();
 		BigInteger r2 = randomExponent();
 
+		BigInteger temp1 = state.g3.modPow(r1, MODULUS_S);
+		BigInteger temp2 = MultiExp.product(state.g1, r1, state.g2, r2);
+		return proofEqualCoords(state, r, r1, r2, temp1, temp2, version);
+	}
+
+	/* Finish a proof of equal coordinates, given g3^r1 and g1^r1 g2^r2 */
+	private static BigInteger[] proofEqualCoords(SMState state, BigInteger r,
+			BigInteger r1, BigInteger r2, BigInteger g3r1, BigInteger g1r1g2r2,
+			int version) throws SMException
+	{
 		/* Compute the value of c, as c = h(g3^r1, g1^r1 g2^r2) */
-		BigInteger temp1 = state.g1.modPow(r1, MODULUS_S);
-		BigInteger temp2 = state.g2.modPow(r2, MODULUS_S);
-		temp2 = temp1.multiply(temp2).mod(MODULUS_S);
-		temp1 = state.g3.modPow(r1, MODULUS_S);
-		BigInteger c = hash(version, temp1, temp2);
+		BigInteger c = hash(version, g3r1, g1r1g2r2);
 
 		/* Compute the d values, as d1 = r1 - r c, d2 = r2 - secret c */
-		temp1 = r.multiply(c).mod(ORDER_S);
+		BigInteger temp1 = r.multiply(c).mod(ORDER_S);
 		BigInteger d1 = r1.subtract(temp1).mod(ORDER_S);
 
 		temp1 = state.secret.multiply(c).mod(ORDER_S);
@@ -342,16 +423,16 @@ public class SM {
 		 * = hash(g3^r1, g1^r1 g2^r2)
 		 * = c
 		 */
-		BigInteger temp2 = state.g3.modPow(d1, MODULUS_S);
-		BigInteger temp3 = p.modPow(c, MODULUS_S);
-		BigInteger temp1 = temp2.multiply(temp3).mod(MODULUS_S);
+		BigInteger temp1 = MultiExp.product(state.g3, d1, p, c);
+		BigInteger temp2 = MultiExp.product(state.g1, d1, state.g2, d2, q, c);
 
-		temp2 = state.g1.modPow(d1, MODULUS_S);
-		temp3 = state.g2.modPow(d2, MODULUS_S);
-		temp2 = temp2.multiply(temp3).mod(MODULUS_S);
-		temp3 = q.modPow(c, MODULUS_S);
-		temp2 = temp3.multiply(temp2).mod(MODULUS_S);
+		return checkEqual(c, temp1, temp2, version);
+	}
 
+	/* Finish a check of an equality proof, given both hashed values */
+	private static int checkEqual(BigInteger c, BigInteger temp1,
+			BigInteger temp2, int version) throws SMException
+	{
 		BigInteger cprime = hash(version, temp1, temp2);
 
 		return c.compareTo(cprime);
@@ -369,13 +450,19 @@ public class SM {
 	{
 		BigInteger r = randomExponent();
 
+		return proofEqualLogs(state, r, modExp(state.g1, r),
+				state.qab.modPow(r, MODULUS_S), version);
+	}
+
+	/* Finish a proof of equal logarithms, given g1^r and (Qa/Qb)^r */
+	private static BigInteger[] proofEqualLogs(SMState state, BigInteger r,
+			BigInteger g1r, BigInteger qabr, int version) throws SMException
+	{
 		/* Compute the value of c, as c = h(g1^r, (Qa/Qb)^r) */
-		BigInteger temp1 = state.g1.modPow(r, MODULUS_S);
-		BigInteger temp2 = state.qab.modPow(r, MODULUS_S);
-		BigInteger c = hash(version, temp1, temp2);
+		BigInteger c = hash(version, g1r, qabr);
 
 		/* Compute the d values, as d = r - x3 c */
-		temp1 = state.x3.multiply(c).mod(ORDER_S);
+		BigInteger temp1 = state.x3.multiply(c).mod(ORDER_S);
 		BigInteger d = r.subtract(temp1).mod(ORDER_S);
 
 		BigInteger[] ret = new BigInteger[2];
@@ -411,17 +498,10 @@ public class SM {
 		 * = c
 		 */
 
-		BigInteger temp2 = state.g1.modPow(d, MODULUS_S);
-		BigInteger temp3 = state.g3o.modPow(c, MODULUS_S);
-		BigInteger temp1 = temp2.multiply(temp3).mod(MODULUS_S);
-
-		temp3 = state.qab.modPow(d, MODULUS_S);
-		temp2 = r.modPow(c, MODULUS_S);
-		temp2 = temp3.multiply(temp2).mod(MODULUS_S);
+		BigInteger temp1 = MultiExp.product(state.g1, d, state.g3o, c);
+		BigInteger temp2 = MultiExp.product(state.qab, d, r, c);
 
-		BigInteger cprime = hash(version, temp1, temp2);
-
-		return c.compareTo(cprime);
+		return checkEqual(c, temp1, temp2, version);
 	}
 
 	/** Create first message in SMP exchange.  Input is Alice's secret value
@@ -444,17 +524,26 @@ public class SM {
 
 		astate.secret = secretMpi;
 		astate.receivedQuestion = 0;
-		astate.x2 = randomExponent();
-		astate.x3 = randomExponent();
+		astate.x2 = randomExponent(astate);
+		astate.x3 = randomExponent(astate);
+		BigInteger r2 = randomExponent(astate);
+		BigInteger r3 = randomExponent(astate);
+
+		ModPowBatch batch = new ModPowBatch(astate.executor);
+		int g2a = batch.add(astate.g1, astate.x2);
+		int g1r2 = batch.add(astate.g1, r2);
+		int g3a = batch.add(astate.g1, astate.x3);
+		int g1r3 = batch.add(astate.g1, r3);
+		BigInteger[] v = batch.evaluate();
 
 		BigInteger[] msg1 = new BigInteger[6];
-		msg1[0] = astate.g1.modPow(astate.x2, MODULUS_S);
-		BigInteger[] res = proofKnowLog(astate.g1, astate.x2, 1);
+		msg1[0] = v[g2a];
+		BigInteger[] res = proofKnowLog(v[g1r2], r2, astate.x2, 1);
 		msg1[1] = res[0];
 		msg1[2] = res[1];
 
-		msg1[3] = astate.g1.modPow(astate.x3, MODULUS_S);
-		res = proofKnowLog(astate.g1, astate.x3, 2);
+		msg1[3] = v[g3a];
+		res = proofKnowLog(v[g1r3], r3, astate.x3, 2);
 		msg1[4] = res[0];
 		msg1[5] = res[1];
 
@@ -493,21 +582,29 @@ public class SM {
 		bstate.g3o = msg1[3];
 
 		/* Verify Alice's proofs */
-		if (checkKnowLog(msg1[1], msg1[2], bstate.g1, msg1[0], 1) != 0
-			|| checkKnowLog(msg1[4], msg1[5], bstate.g1, msg1[3], 2) != 0)
+		ModPowBatch batch = new ModPowBatch(bstate.executor);
+		int proof2 = batch.add(bstate.g1, msg1[2], msg1[0], msg1[1]);
+		int proof3 = batch.add(bstate.g1, msg1[5], msg1[3], msg1[4]);
+		BigInteger[] v = batch.evaluate();
+		if (checkKnowLog(msg1[1], v[proof2], 1) != 0
+			|| checkKnowLog(msg1[4], v[proof3], 2) != 0)
 		{
 			throw new SMException("Proof checking failed");
 		}
 
 		/* Create Bob's half of the generators g2 and g3 */
 
-		bstate.x2 = randomExponent();
-		bstate.x3 = randomExponent();
+		bstate.x2 = randomExponent(bstate);
+		bstate.x3 = randomExponent(bstate);
 
 		/* Combine the two halves from Bob and Alice and determine g2 and g3 */
-		bstate.g2 = msg1[0].modPow(bstate.x2, MODULUS_S);
+		batch = new ModPowBatch(bstate.executor);
+		int g2 = batch.add(msg1[0], bstate.x2);
+		int g3 = batch.add(msg1[3], bstate.x3);
+		v = batch.evaluate();
+		bstate.g2 = v[g2];
 		//Util.checkBytes("g2b", bstate.g2.getValue());
-		bstate.g3 = msg1[3].modPow(bstate.x3, MODULUS_S);
+		bstate.g3 = v[g3];
 		//Util.checkBytes("g3b", bstate.g3.getValue());
 
 		bstate.smProgState = PROG_OK;
@@ -536,35 +633,44 @@ public class SM {
 		BigInteger secretMpi = new BigInteger(1, secret);
 		bstate.secret = secretMpi;
 
+		/* Draw every random exponent up front, in the serial order */
+		BigInteger r2 = randomExponent(bstate);
+		BigInteger r3 = randomExponent(bstate);
+		BigInteger r = randomExponent(bstate);
+		BigInteger r5 = randomExponent(bstate);
+		BigInteger r6 = randomExponent(bstate);
+
+		ModPowBatch batch = new ModPowBatch(bstate.executor);
+		int g2b = batch.add(bstate.g1, bstate.x2);
+		int g1r2 = batch.add(bstate.g1, r2);
+		int g3b = batch.add(bstate.g1, bstate.x3);
+		int g1r3 = batch.add(bstate.g1, r3);
+		int pb = batch.add(bstate.g3, r);
+		int qb = batch.add(bstate.g1, r, bstate.g2, bstate.secret);
+		int g3r5 = batch.add(bstate.g3, r5);
+		int g1r5g2r6 = batch.add(bstate.g1, r5, bstate.g2, r6);
+		BigInteger[] v = batch.evaluate();
+
 		BigInteger[] msg2 = new BigInteger[11];
-		msg2[0] = bstate.g1.modPow(bstate.x2, MODULUS_S);
-		BigInteger[] res = proofKnowLog(bstate.g1, bstate.x2, 3);
+		msg2[0] = v[g2b];
+		BigInteger[] res = proofKnowLog(v[g1r2], r2, bstate.x2, 3);
 		msg2[1] = res[0];
 		msg2[2] = res[1];
 
-		msg2[3] = bstate.g1.modPow(bstate.x3, MODULUS_S);
-		res = proofKnowLog(bstate.g1, bstate.x3, 4);
+		msg2[3] = v[g3b];
+		res = proofKnowLog(v[g1r3], r3, bstate.x3, 4);
 		msg2[4] = res[0];
 		msg2[5] = res[1];
 
 		/* Calculate P and Q values for Bob */
-		BigInteger r = randomExponent();
-		//BigInteger r = new BigInteger(SM.GENERATOR_S);
-
-		bstate.p = bstate.g3.modPow(r, MODULUS_S);
+		bstate.p = v[pb];
 		//Util.checkBytes("Pb", bstate.p.getValue());
 		msg2[6] = bstate.p;
-		BigInteger qb1 = bstate.g1.modPow(r, MODULUS_S);
-		//Util.checkBytes("Qb1", qb1.getValue());
-		BigInteger qb2 = bstate.g2.modPow(bstate.secret, MODULUS_S);
-		//Util.checkBytes("Qb2", qb2.getValue());
-		//Util.checkBytes("g2", bstate.g2.getValue());
-		//Util.checkBytes("secret", bstate.secret.getValue());
-		bstate.q = qb1.multiply(qb2).mod(MODULUS_S);
+		bstate.q = v[qb];
 		//Util.checkBytes("Qb", bstate.q.getValue());
 		msg2[7] = bstate.q;
 
-		res = proofEqualCoords(bstate, r, 5);
+		res = proofEqualCoords(bstate, r, r5, r6, v[g3r5], v[g1r5g2r6], 5);
 		msg2[8] = res[0];
 		msg2[9] = res[1];
 		msg2[10] = res[2];
@@ -604,41 +710,56 @@ public class SM {
 		/* Store Bob's g3a value for later in the protocol */
 		astate.g3o = msg2[3];
 
-		/* Verify Bob's knowledge of discreet log proofs */
-		if (checkKnowLog(msg2[1], msg2[2], astate.g1, msg2[0], 3) != 0
-			|| checkKnowLog(msg2[4], msg2[5], astate.g1, msg2[3], 4) != 0)
+		/* Verify Bob's knowledge of discreet log proofs, and combine the two
+		 * halves from Bob and Alice to determine g2 and g3 */
+		ModPowBatch batch = new ModPowBatch(astate.executor);
+		int proof2 = batch.add(astate.g1, msg2[2], msg2[0], msg2[1]);
+		int proof3 = batch.add(astate.g1, msg2[5], msg2[3], msg2[4]);
+		int g2 = batch.add(msg2[0], astate.x2);
+		int g3 = batch.add(msg2[3], astate.x3);
+		BigInteger[] v = batch.evaluate();
+		if (checkKnowLog(msg2[1], v[proof2], 3) != 0
+			|| checkKnowLog(msg2[4], v[proof3], 4) != 0)
 		{
 			throw new SMException("Proof checking failed");
 		}
-
-		/* Combine the two halves from Bob and Alice and determine g2 and g3 */
-		astate.g2 = msg2[0].modPow(astate.x2, MODULUS_S);
+		astate.g2 = v[g2];
 		//Util.checkBytes("g2a", astate.g2.getValue());
-		astate.g3 = msg2[3].modPow(astate.x3, MODULUS_S);
+		astate.g3 = v[g3];
 		//Util.checkBytes("g3a", astate.g3.getValue());
 
+		/* Draw every random exponent up front, in the serial order */
+		BigInteger r = randomExponent(astate);
+		BigInteger r5 = randomExponent(astate);
+		BigInteger r6 = randomExponent(astate);
+		BigInteger r7 = randomExponent(astate);
+
+		/* Bob's coordinate equality proof, and P and Q values for Alice */
+		batch = new ModPowBatch(astate.executor);
+		int coords1 = batch.add(astate.g3, msg2[9], msg2[6], msg2[8]);
+		int coords2 = batch.add(astate.g1, msg2[9], astate.g2, msg2[10],
+				msg2[7], msg2[8]);
+		int pa = batch.add(astate.g3, r);
+		int qa = batch.add(astate.g1, r, astate.g2, astate.secret);
+		int g3r5 = batch.add(astate.g3, r5);
+		int g1r5g2r6 = batch.add(astate.g1, r5, astate.g2, r6);
+		int g1r7 = batch.add(astate.g1, r7);
+		v = batch.evaluate();
+
 		/* Verify Bob's coordinate equality proof */
-		if (checkEqualCoords(msg2[8], msg2[9], msg2[10], msg2[6], msg2[7], astate, 5) != 0)
+		if (checkEqual(msg2[8], v[coords1], v[coords2], 5) != 0)
 			throw new SMException("Invalid Parameter");
 
 		/* Calculate P and Q values for Alice */
-		BigInteger r = randomExponent();
-		//BigInteger r = new BigInteger(SM.GENERATOR_S);
-
-		astate.p = astate.g3.modPow(r, MODULUS_S);
+		astate.p = v[pa];
 		//Util.checkBytes("Pa", astate.p.getValue());
 		msg3[0] = astate.p;
-		BigInteger qa1 = astate.g1.modPow(r, MODULUS_S);
-		//Util.checkBytes("Qa1", qa1.getValue());
-		BigInteger qa2 = astate.g2.modPow(astate.secret, MODULUS_S);
-		//Util.checkBytes("Qa2", qa2.getValue());
-		//Util.checkBytes("g2", astate.g2.getValue());
-		//Util.checkBytes("secret", astate.secret.getValue());
-		astate.q = qa1.multiply(qa2).mod(MODULUS_S);
+		astate.q = v[qa];
 		msg3[1] = astate.q;
 		//Util.checkBytes("Qa", astate.q.getValue());
 
-		BigInteger[] res = proofEqualCoords(astate, r, 6);
+		BigInteger[] res = proofEqualCoords(astate, r, r5, r6, v[g3r5],
+				v[g1r5g2r6], 6);
 		msg3[2] = res[0];
 		msg3[3] = res[1];
 		msg3[4] = res[2];
@@ -648,8 +769,12 @@ public class SM {
 		astate.pab = astate.p.multiply(inv).mod(MODULUS_S);
 		inv = msg2[7].modInverse(MODULUS_S);
 		astate.qab = astate.q.multiply(inv).mod(MODULUS_S);
-		msg3[5] = astate.qab.modPow(astate.x3, MODULUS_S);
-		res = proofEqualLogs(astate, 7);
+		batch = new ModPowBatch(astate.executor);
+		int ra = batch.add(astate.qab, astate.x3);
+		int qabr7 = batch.add(astate.qab, r7);
+		BigInteger[] w = batch.evaluate();
+		msg3[5] = w[ra];
+		res = proofEqualLogs(astate, r7, v[g1r7], w[qabr7], 7);
 		msg3[6] = res[0];
 		msg3[7] = res[1];
 
@@ -689,24 +814,41 @@ public class SM {
 			throw new SMException("Invalid Parameter");
 		}
 
-		/* Verify Alice's coordinate equality proof */
-		if (checkEqualCoords(msg3[2], msg3[3], msg3[4], msg3[0], msg3[1], bstate, 6) != 0)
-			throw new SMException("Invalid Parameter");
-
 		/* Find Pa/Pb and Qa/Qb */
 		BigInteger inv = bstate.p.modInverse(MODULUS_S);
-		bstate.pab = msg3[0].multiply(inv).mod(MODULUS_S);
+		BigInteger pab = msg3[0].multiply(inv).mod(MODULUS_S);
 		inv = bstate.q.modInverse(MODULUS_S);
-		bstate.qab = msg3[1].multiply(inv).mod(MODULUS_S);
+		BigInteger qab = msg3[1].multiply(inv).mod(MODULUS_S);
+
+		BigInteger r = randomExponent(bstate);
+
+		ModPowBatch batch = new ModPowBatch(bstate.executor);
+		int coords1 = batch.add(bstate.g3, msg3[3], msg3[0], msg3[2]);
+		int coords2 = batch.add(bstate.g1, msg3[3], bstate.g2, msg3[4],
+				msg3[1], msg3[2]);
+		int logs1 = batch.add(bstate.g1, msg3[7], bstate.g3o, msg3[6]);
+		int logs2 = batch.add(qab, msg3[7], msg3[5], msg3[6]);
+		int rb = batch.add(qab, bstate.x3);
+		int g1r = batch.add(bstate.g1, r);
+		int qabr = batch.add(qab, r);
+		int rab = batch.add(msg3[5], bstate.x3);
+		BigInteger[] v = batch.evaluate();
+
+		/* Verify Alice's coordinate equality proof */
+		if (checkEqual(msg3[2], v[coords1], v[coords2], 6) != 0)
+			throw new SMException("Invalid Parameter");
+
+		bstate.pab = pab;
+		bstate.qab = qab;
 
 		/* Verify Alice's log equality proof */
-		if (checkEqualLogs(msg3[6], msg3[7], msg3[5], bstate, 7) != 0) {
+		if (checkEqual(msg3[6], v[logs1], v[logs2], 7) != 0) {
 			throw new SMException("Proof checking failed");
 		}
 
 		/* Calculate Rb and proof */
-		msg4[0] = bstate.qab.modPow(bstate.x3, MODULUS_S);
-		BigInteger[] res = proofEqualLogs(bstate, 8);
+		msg4[0] = v[rb];
+		BigInteger[] res = proofEqualLogs(bstate, r, v[g1r], v[qabr], 8);
 		msg4[1] = res[0];
 		msg4[2] = res[1];
 
@@ -714,10 +856,9 @@ public class SM {
 
 		/* Calculate Rab and verify that secrets match */
 
-		BigInteger rab = msg3[5].modPow(bstate.x3, MODULUS_S);
 		//Util.checkBytes("rab", rab.getValue());
 		//Util.checkBytes("pab", bstate.pab.getValue());
-		int comp = rab.compareTo(bstate.pab);
+		int comp = v[rab].compareTo(bstate.pab);
 
 		bstate.smProgState = (comp != 0) ? PROG_FAILED : PROG_SUCCEEDED;
 
@@ -741,16 +882,21 @@ public class SM {
 			throw new SMException("Invalid Parameter");
 		}
 
+		ModPowBatch batch = new ModPowBatch(astate.executor);
+		int logs1 = batch.add(astate.g1, msg4[2], astate.g3o, msg4[1]);
+		int logs2 = batch.add(astate.qab, msg4[2], msg4[0], msg4[1]);
+		int rab = batch.add(msg4[0], astate.x3);
+		BigInteger[] v = batch.evaluate();
+
 		/* Verify Bob's log equality proof */
-		if (checkEqualLogs(msg4[1], msg4[2], msg4[0], astate, 8) != 0)
+		if (checkEqual(msg4[1], v[logs1], v[logs2], 8) != 0)
 			throw new SMException("Invalid Parameter");
 
 		/* Calculate Rab and verify that secrets match */
 
-		BigInteger rab = msg4[0].modPow(astate.x3, MODULUS_S);
 		//Util.checkBytes("rab", rab.getValue());
 		//Util.checkBytes("pab", astate.pab.getValue());
-		int comp = rab.compareTo(astate.pab);
+		int comp = v[rab].compareTo(astate.pab);
 //		if (comp != 0) {
 //			System.out.println("checking failed");
 //		}
@@ -0,0 +1,101 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * Reads an encoded message, that is "?OTR:", the Base64 encoding of its binary
+ * form and ".", while the binary form is read from a stream. Only a few bytes
+ * of the message are held at any time.
+ */
+public final class EncodedMessageReader extends Reader {
+
+	private final InputStream in;
+
+	private final int[] group = new int[3];
+	private final char[] pending = new char[5];
+	private int pendingOffset;
+	private int pendingLength;
+	private boolean finished;
+
+	/**
+	 * @param in the binary form of the message
+	 */
+	public EncodedMessageReader(InputStream in) {
+		this.in = in;
+		SerializationConstants.HEAD.getChars(0, 4, pending, 0);
+		pending[4] = SerializationConstants.HEAD_ENCODED;
+		pendingLength = pending.length;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		int done = 0;
+		while (done < len) {
+			if (pendingOffset == pendingLength && !fill())
+				break;
+			int n = Math.min(len - done, pendingLength - pendingOffset);
+			System.arraycopy(pending, pendingOffset, cbuf, off + done, n);
+			pendingOffset += n;
+			done += n;
+		}
+		return done == 0 ? -1 : done;
+	}
+
+	/**
+	 * Encode the next group of up to three bytes.
+	 *
+	 * @return false at the end of the message
+	 */
+	private boolean fill() throws IOException {
+		if (finished)
+			return false;
+		int count = 0;
+		while (count < 3) {
+			int b = in.read();
+			if (b < 0)
+				break;
+			group[count++] = b;
+		}
+		pendingOffset = 0;
+		pendingLength = 0;
+		if (count > 0) {
+			for (int i = count; i < 3; i++)
+				group[i] = 0;
+			int v = group[0] << 16 | group[1] << 8 | group[2];
+			char[] alphabet = SerializationUtils.BASE64_ENCODER;
+			pending[pendingLength++] = alphabet[v >>> 18];
+			pending[pendingLength++] = alphabet[(v >>> 12) & 0x3F];
+			pending[pendingLength++] = count > 1 ? alphabet[(v >>> 6) & 0x3F] : '=';
+			pending[pendingLength++] = count > 2 ? alphabet[v & 0x3F] : '=';
+		}
+		if (count < 3) {
+			pending[pendingLength++] = '.';
+			finished = true;
+		}
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -29,7 +29,7 @@ import java.security.spec.InvalidKeySpecException;
 
 import javax.crypto.interfaces.DHPublicKey;
 
-import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.crypto.OtrCryptoEngines;
 import net.java.otr4j.io.messages.SignatureX;
 
 /**
@@ -119,7 +119,7 @@ public class OtrInputStream extends FilterInputStream implements
 	public DHPublicKey readDHPublicKey() throws IOException {
 		BigInteger gyMpi = readBigInt();
 		try {
-			return new OtrCryptoEngineImpl().getDHPublicKey(gyMpi);
+			return OtrCryptoEngines.getEngine().getDHPublicKey(gyMpi);
 		} catch (Exception ex) {
 			throw new IOException();
 		}
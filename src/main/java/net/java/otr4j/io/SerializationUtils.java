@@ -21,8 +21,11 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -56,6 +59,16 @@ public class SerializationUtils {
 	private static final char[] HEX_ENCODER = {'0', '1', '2', '3', '4', '5',
 			'6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
 	private static final String HEX_DECODER = "0123456789ABCDEF";
+	static final char[] BASE64_ENCODER =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+					.toCharArray();
+	private static final byte[] BASE64_DECODER = new byte[128];
+
+	static {
+		Arrays.fill(BASE64_DECODER, (byte) -1);
+		for (int i = 0; i < BASE64_ENCODER.length; i++)
+			BASE64_DECODER[BASE64_ENCODER[i]] = (byte) i;
+	}
 
 	/** Hide the ctor, because this is an utility class. */
 	private SerializationUtils() {
@@ -137,6 +150,91 @@ public class SerializationUtils {
 		return b;
 	}
 
+	/**
+	 * Serialize the binary form of an encoded message, that is, the bytes
+	 * that are Base64 encoded between "?OTR:" and ".".
+	 *
+	 * @param m the message
+	 * @return the binary form of the message
+	 * @throws IOException if the message can not be serialized
+	 */
+	public static byte[] toByteArray(AbstractEncodedMessage m) throws IOException {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		OtrOutputStream s = new OtrOutputStream(o);
+
+		switch (m.messageType) {
+			case AbstractEncodedMessage.MESSAGE_DHKEY:
+				DHKeyMessage dhkey = (DHKeyMessage) m;
+				s.writeShort(dhkey.protocolVersion);
+				s.writeByte(dhkey.messageType);
+				if (dhkey.protocolVersion == OTRv.THREE) {
+					s.writeInt(dhkey.senderInstanceTag);
+					s.writeInt(dhkey.receiverInstanceTag);
+				}
+				s.writeDHPublicKey(dhkey.dhPublicKey);
+				break;
+			case AbstractEncodedMessage.MESSAGE_REVEALSIG:
+				RevealSignatureMessage revealsig = (RevealSignatureMessage) m;
+				s.writeShort(revealsig.protocolVersion);
+				s.writeByte(revealsig.messageType);
+				if (revealsig.protocolVersion == OTRv.THREE) {
+					s.writeInt(revealsig.senderInstanceTag);
+					s.writeInt(revealsig.receiverInstanceTag);
+				}
+				s.writeData(revealsig.revealedKey);
+				s.writeData(revealsig.xEncrypted);
+				s.writeMac(revealsig.xEncryptedMAC);
+				break;
+			case AbstractEncodedMessage.MESSAGE_SIGNATURE:
+				SignatureMessage sig = (SignatureMessage) m;
+				s.writeShort(sig.protocolVersion);
+				s.writeByte(sig.messageType);
+				if (sig.protocolVersion == OTRv.THREE) {
+					s.writeInt(sig.senderInstanceTag);
+					s.writeInt(sig.receiverInstanceTag);
+				}
+				s.writeData(sig.xEncrypted);
+				s.writeMac(sig.xEncryptedMAC);
+				break;
+			case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
+				DHCommitMessage dhcommit = (DHCommitMessage) m;
+				s.writeShort(dhcommit.protocolVersion);
+				s.writeByte(dhcommit.messageType);
+				if (dhcommit.protocolVersion == OTRv.THREE) {
+					s.writeInt(dhcommit.senderInstanceTag);
+					s.writeInt(dhcommit.receiverInstanceTag);
+				}
+				s.writeData(dhcommit.dhPublicKeyEncrypted);
+				s.writeData(dhcommit.dhPublicKeyHash);
+				break;
+			case AbstractEncodedMessage.MESSAGE_DATA:
+				DataMessage data = (DataMessage) m;
+				s.writeShort(data.protocolVersion);
+				s.writeByte(data.messageType);
+				if (data.protocolVersion == OTRv.THREE) {
+					s.writeInt(data.senderInstanceTag);
+					s.writeInt(data.receiverInstanceTag);
+				}
+				s.writeByte(data.flags);
+				s.writeInt(data.senderKeyID);
+				s.writeInt(data.recipientKeyID);
+				s.writeDHPublicKey(data.nextDH);
+				s.writeCtr(data.ctr);
+				s.writeData(data.encryptedMessage);
+				s.writeMac(data.mac);
+				s.writeData(data.oldMACKeys);
+				break;
+			default:
+				// NOTE We should probably move at least part of this method into individual
+				//   toString() methods of the *Message implementations.
+				throw new UnsupportedOperationException("Unsupported message type: "
+						+ m.messageType);
+		}
+
+		s.close();
+		return o.toByteArray();
+	}
+
 	// Message IO.
 	public static String toString(AbstractMessage m) throws IOException {
 		StringWriter writer = new StringWriter();
@@ -184,80 +282,8 @@ public class SerializationUtils {
 			case AbstractEncodedMessage.MESSAGE_SIGNATURE:
 			case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
 			case AbstractEncodedMessage.MESSAGE_DATA:
-				ByteArrayOutputStream o = new ByteArrayOutputStream();
-				OtrOutputStream s = new OtrOutputStream(o);
-
-				switch (m.messageType) {
-					case AbstractEncodedMessage.MESSAGE_DHKEY:
-						DHKeyMessage dhkey = (DHKeyMessage) m;
-						s.writeShort(dhkey.protocolVersion);
-						s.writeByte(dhkey.messageType);
-						if (dhkey.protocolVersion == OTRv.THREE) {
-							s.writeInt(dhkey.senderInstanceTag);
-							s.writeInt(dhkey.receiverInstanceTag);
-						}
-						s.writeDHPublicKey(dhkey.dhPublicKey);
-						break;
-					case AbstractEncodedMessage.MESSAGE_REVEALSIG:
-						RevealSignatureMessage revealsig = (RevealSignatureMessage) m;
-						s.writeShort(revealsig.protocolVersion);
-						s.writeByte(revealsig.messageType);
-						if (revealsig.protocolVersion == OTRv.THREE) {
-							s.writeInt(revealsig.senderInstanceTag);
-							s.writeInt(revealsig.receiverInstanceTag);
-						}
-						s.writeData(revealsig.revealedKey);
-						s.writeData(revealsig.xEncrypted);
-						s.writeMac(revealsig.xEncryptedMAC);
-						break;
-					case AbstractEncodedMessage.MESSAGE_SIGNATURE:
-						SignatureMessage sig = (SignatureMessage) m;
-						s.writeShort(sig.protocolVersion);
-						s.writeByte(sig.messageType);
-						if (sig.protocolVersion == OTRv.THREE) {
-							s.writeInt(sig.senderInstanceTag);
-							s.writeInt(sig.receiverInstanceTag);
-						}
-						s.writeData(sig.xEncrypted);
-						s.writeMac(sig.xEncryptedMAC);
-						break;
-					case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
-						DHCommitMessage dhcommit = (DHCommitMessage) m;
-						s.writeShort(dhcommit.protocolVersion);
-						s.writeByte(dhcommit.messageType);
-						if (dhcommit.protocolVersion == OTRv.THREE) {
-							s.writeInt(dhcommit.senderInstanceTag);
-							s.writeInt(dhcommit.receiverInstanceTag);
-						}
-						s.writeData(dhcommit.dhPublicKeyEncrypted);
-						s.writeData(dhcommit.dhPublicKeyHash);
-						break;
-					case AbstractEncodedMessage.MESSAGE_DATA:
-						DataMessage data = (DataMessage) m;
-						s.writeShort(data.protocolVersion);
-						s.writeByte(data.messageType);
-						if (data.protocolVersion == OTRv.THREE) {
-							s.writeInt(data.senderInstanceTag);
-							s.writeInt(data.receiverInstanceTag);
-						}
-						s.writeByte(data.flags);
-						s.writeInt(data.senderKeyID);
-						s.writeInt(data.recipientKeyID);
-						s.writeDHPublicKey(data.nextDH);
-						s.writeCtr(data.ctr);
-						s.writeData(data.encryptedMessage);
-						s.writeMac(data.mac);
-						s.writeData(data.oldMACKeys);
-						break;
-					default:
-						// NOTE We should probably move at least part of this method into individual
-						//   toString() methods of the *Message implementations.
-						throw new UnsupportedOperationException("Unsupported message type: "
-								+ m.messageType);
-				}
-
 				writer.write(SerializationConstants.HEAD_ENCODED);
-				writer.write(new String(Base64.encode(o.toByteArray())));
+				writer.write(new String(Base64.encode(toByteArray((AbstractEncodedMessage) m))));
 				writer.write(".");
 				break;
 			default:
@@ -324,82 +350,8 @@ public class SerializationUtils {
 				 * Otr4j doesn't strip this point before passing the content to the base64 decoder.
 				 * So in order to decode the content string we have to get rid of the '.' first.
 				 */
-				ByteArrayInputStream bin = new ByteArrayInputStream(Base64
+				return toEncodedMessage(Base64
 						.decode(content.substring(0, content.length() - 1).getBytes()));
-				OtrInputStream otr = new OtrInputStream(bin);
-				// We have an encoded message.
-				int protocolVersion = otr.readShort();
-				int messageType = otr.readByte();
-				int senderInstanceTag = 0;
-				int recipientInstanceTag = 0;
-				if (protocolVersion == OTRv.THREE) {
-					senderInstanceTag = otr.readInt();
-					recipientInstanceTag = otr.readInt();
-				}
-				switch (messageType) {
-					case AbstractEncodedMessage.MESSAGE_DATA:
-						int flags = otr.readByte();
-						int senderKeyID = otr.readInt();
-						int recipientKeyID = otr.readInt();
-						DHPublicKey nextDH = otr.readDHPublicKey();
-						byte[] ctr = otr.readCtr();
-						byte[] encryptedMessage = otr.readData();
-						byte[] mac = otr.readMac();
-						byte[] oldMacKeys = otr.readMac();
-						DataMessage dataMessage =
-								new DataMessage(protocolVersion, flags, senderKeyID,
-								recipientKeyID, nextDH, ctr, encryptedMessage, mac,
-								oldMacKeys);
-						dataMessage.senderInstanceTag = senderInstanceTag;
-						dataMessage.receiverInstanceTag = recipientInstanceTag;
-						otr.close();
-						return dataMessage;
-					case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
-						byte[] dhPublicKeyEncrypted = otr.readData();
-						byte[] dhPublicKeyHash = otr.readData();
-						DHCommitMessage dhCommitMessage =
-								new DHCommitMessage(protocolVersion,
-										dhPublicKeyHash, dhPublicKeyEncrypted);
-						dhCommitMessage.senderInstanceTag = senderInstanceTag;
-						dhCommitMessage.receiverInstanceTag = recipientInstanceTag;
-						otr.close();
-						return dhCommitMessage;
-					case AbstractEncodedMessage.MESSAGE_DHKEY:
-						DHPublicKey dhPublicKey = otr.readDHPublicKey();
-						DHKeyMessage dhKeyMessage = new DHKeyMessage(protocolVersion, dhPublicKey);
-						dhKeyMessage.senderInstanceTag = senderInstanceTag;
-						dhKeyMessage.receiverInstanceTag = recipientInstanceTag;
-						otr.close();
-						return dhKeyMessage;
-					case AbstractEncodedMessage.MESSAGE_REVEALSIG: {
-						byte[] revealedKey = otr.readData();
-						byte[] xEncrypted = otr.readData();
-						byte[] xEncryptedMac = otr.readMac();
-						RevealSignatureMessage revealSignatureMessage =
-								new RevealSignatureMessage(protocolVersion,
-										xEncrypted, xEncryptedMac, revealedKey);
-						revealSignatureMessage.senderInstanceTag = senderInstanceTag;
-						revealSignatureMessage.receiverInstanceTag = recipientInstanceTag;
-						otr.close();
-						return revealSignatureMessage;
-					}
-					case AbstractEncodedMessage.MESSAGE_SIGNATURE: {
-						byte[] xEncryted = otr.readData();
-						byte[] xEncryptedMac = otr.readMac();
-						SignatureMessage signatureMessage =
-								new SignatureMessage(protocolVersion, xEncryted,
-										xEncryptedMac);
-						signatureMessage.senderInstanceTag = senderInstanceTag;
-						signatureMessage.receiverInstanceTag = recipientInstanceTag;
-						otr.close();
-						return signatureMessage;
-					}
-					default:
-						// NOTE by gp: aren't we being a little too harsh here? Passing the message as a plaintext
-						// message to the host application shouldn't hurt anybody.
-						otr.close();
-						throw new IOException("Illegal message type.");
-				}
 			}
 		}
 
@@ -439,6 +391,206 @@ public class SerializationUtils {
 		return new PlainTextMessage(versions, cleanText);
 	}
 
+	/**
+	 * Parse the binary form of an encoded message.
+	 *
+	 * @param b the bytes that are Base64 encoded between "?OTR:" and "."
+	 * @return the message
+	 * @throws IOException if the bytes are not a valid encoded message
+	 */
+	public static AbstractEncodedMessage toEncodedMessage(byte[] b) throws IOException {
+		ByteArrayInputStream bin = new ByteArrayInputStream(b);
+		OtrInputStream otr = new OtrInputStream(bin);
+		// We have an encoded message.
+		int protocolVersion = otr.readShort();
+		int messageType = otr.readByte();
+		int senderInstanceTag = 0;
+		int recipientInstanceTag = 0;
+		if (protocolVersion == OTRv.THREE) {
+			senderInstanceTag = otr.readInt();
+			recipientInstanceTag = otr.readInt();
+		}
+		switch (messageType) {
+			case AbstractEncodedMessage.MESSAGE_DATA:
+				int flags = otr.readByte();
+				int senderKeyID = otr.readInt();
+				int recipientKeyID = otr.readInt();
+				DHPublicKey nextDH = otr.readDHPublicKey();
+				byte[] ctr = otr.readCtr();
+				byte[] encryptedMessage = otr.readData();
+				byte[] mac = otr.readMac();
+				byte[] oldMacKeys = otr.readMac();
+				DataMessage dataMessage =
+						new DataMessage(protocolVersion, flags, senderKeyID,
+						recipientKeyID, nextDH, ctr, encryptedMessage, mac,
+						oldMacKeys);
+				dataMessage.senderInstanceTag = senderInstanceTag;
+				dataMessage.receiverInstanceTag = recipientInstanceTag;
+				otr.close();
+				return dataMessage;
+			case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
+				byte[] dhPublicKeyEncrypted = otr.readData();
+				byte[] dhPublicKeyHash = otr.readData();
+				DHCommitMessage dhCommitMessage =
+						new DHCommitMessage(protocolVersion,
+								dhPublicKeyHash, dhPublicKeyEncrypted);
+				dhCommitMessage.senderInstanceTag = senderInstanceTag;
+				dhCommitMessage.receiverInstanceTag = recipientInstanceTag;
+				otr.close();
+				return dhCommitMessage;
+			case AbstractEncodedMessage.MESSAGE_DHKEY:
+				DHPublicKey dhPublicKey = otr.readDHPublicKey();
+				DHKeyMessage dhKeyMessage = new DHKeyMessage(protocolVersion, dhPublicKey);
+				dhKeyMessage.senderInstanceTag = senderInstanceTag;
+				dhKeyMessage.receiverInstanceTag = recipientInstanceTag;
+				otr.close();
+				return dhKeyMessage;
+			case AbstractEncodedMessage.MESSAGE_REVEALSIG: {
+				byte[] revealedKey = otr.readData();
+				byte[] xEncrypted = otr.readData();
+				byte[] xEncryptedMac = otr.readMac();
+				RevealSignatureMessage revealSignatureMessage =
+						new RevealSignatureMessage(protocolVersion,
+								xEncrypted, xEncryptedMac, revealedKey);
+				revealSignatureMessage.senderInstanceTag = senderInstanceTag;
+				revealSignatureMessage.receiverInstanceTag = recipientInstanceTag;
+				otr.close();
+				return revealSignatureMessage;
+			}
+			case AbstractEncodedMessage.MESSAGE_SIGNATURE: {
+				byte[] xEncryted = otr.readData();
+				byte[] xEncryptedMac = otr.readMac();
+				SignatureMessage signatureMessage =
+						new SignatureMessage(protocolVersion, xEncryted,
+								xEncryptedMac);
+				signatureMessage.senderInstanceTag = senderInstanceTag;
+				signatureMessage.receiverInstanceTag = recipientInstanceTag;
+				otr.close();
+				return signatureMessage;
+			}
+			default:
+				// NOTE by gp: aren't we being a little too harsh here? Passing the message as a plaintext
+				// message to the host application shouldn't hurt anybody.
+				otr.close();
+				throw new IOException("Illegal message type.");
+		}
+	}
+
+	/**
+	 * Parse an encoded message straight from the characters of "?OTR:", the
+	 * Base64 encoding of its binary form and ".", without intermediate
+	 * Strings.
+	 *
+	 * @param s the message
+	 * @return the message, or null if s is not exactly one encoded message
+	 *         in plain Base64, in which case {@link #toMessage(String)}
+	 *         should parse it
+	 * @throws IOException if the bytes are not a valid encoded message
+	 */
+	public static AbstractEncodedMessage toEncodedMessage(CharSequence s)
+			throws IOException
+	{
+		int head = SerializationConstants.HEAD.length();
+		int end = s.length() - 1;
+		if (end <= head || s.charAt(head) != SerializationConstants.HEAD_ENCODED
+				|| s.charAt(end) != '.')
+		{
+			return null;
+		}
+		for (int i = 0; i < head; i++) {
+			if (s.charAt(i) != SerializationConstants.HEAD.charAt(i))
+				return null;
+		}
+		byte[] b = decodeBase64(s, head + 1, end);
+		return b == null ? null : toEncodedMessage(b);
+	}
+
+	private static byte[] decodeBase64(CharSequence s, int start, int end) {
+		int length = end - start;
+		if (length == 0 || length % 4 != 0)
+			return null;
+		int padding = 0;
+		if (s.charAt(end - 1) == '=')
+			padding = s.charAt(end - 2) == '=' ? 2 : 1;
+		byte[] b = new byte[length / 4 * 3 - padding];
+		int j = 0;
+		for (int i = start; i < end; i += 4) {
+			int v = 0;
+			for (int k = i; k < i + 4; k++) {
+				char c = s.charAt(k);
+				int d;
+				if (c == '=' && k >= end - padding)
+					d = 0;
+				else if (c >= BASE64_DECODER.length || (d = BASE64_DECODER[c]) < 0)
+					return null;
+				v = v << 6 | d;
+			}
+			b[j++] = (byte) (v >>> 16);
+			if (j < b.length)
+				b[j++] = (byte) (v >>> 8);
+			if (j < b.length)
+				b[j++] = (byte) v;
+		}
+		return b;
+	}
+
+	/**
+	 * @param length the length of the binary form of an encoded message
+	 * @return the number of characters of the encoded message
+	 */
+	public static int encodedLength(int length) {
+		return SerializationConstants.HEAD.length() + 1 + (length + 2) / 3 * 4 + 1;
+	}
+
+	/**
+	 * Write an encoded message, that is "?OTR:", the Base64 encoding of its
+	 * binary form and ".", straight into a character buffer.
+	 *
+	 * @param b the binary form of the message
+	 * @param out the buffer to write to
+	 * @throws BufferOverflowException if out has less room than
+	 *             {@link #encodedLength(int)}, in which case nothing is
+	 *             written
+	 */
+	public static void writeEncoded(byte[] b, CharBuffer out) {
+		writeEncoded(b, b.length, out);
+	}
+
+	/**
+	 * Variant of {@link #writeEncoded(byte[], CharBuffer)} for a binary form
+	 * that takes the first length bytes of a larger buffer.
+	 *
+	 * @param b the buffer holding the binary form of the message
+	 * @param length the length of the binary form
+	 * @param out the buffer to write to
+	 * @throws BufferOverflowException if out has less room than
+	 *             {@link #encodedLength(int)}, in which case nothing is
+	 *             written
+	 */
+	public static void writeEncoded(byte[] b, int length, CharBuffer out) {
+		if (out.remaining() < encodedLength(length))
+			throw new BufferOverflowException();
+		out.put(SerializationConstants.HEAD);
+		out.put(SerializationConstants.HEAD_ENCODED);
+		int i = 0;
+		for (; i + 3 <= length; i += 3) {
+			int v = (b[i] & 0xFF) << 16 | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF);
+			out.put(BASE64_ENCODER[v >>> 18]);
+			out.put(BASE64_ENCODER[(v >>> 12) & 0x3F]);
+			out.put(BASE64_ENCODER[(v >>> 6) & 0x3F]);
+			out.put(BASE64_ENCODER[v & 0x3F]);
+		}
+		if (i < length) {
+			boolean two = i + 2 == length;
+			int v = (b[i] & 0xFF) << 16 | (two ? (b[i + 1] & 0xFF) << 8 : 0);
+			out.put(BASE64_ENCODER[v >>> 18]);
+			out.put(BASE64_ENCODER[(v >>> 12) & 0x3F]);
+			out.put(two ? BASE64_ENCODER[(v >>> 6) & 0x3F] : '=');
+			out.put('=');
+		}
+		out.put('.');
+	}
+
 	public static String byteArrayToHexString(byte[] in) {
 
 		if (in == null || in.length <= 0)
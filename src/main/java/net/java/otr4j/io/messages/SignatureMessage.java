@@ -19,7 +19,7 @@ import java.io.IOException;
 import java.util.Arrays;
 
 import net.java.otr4j.OtrException;
-import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.crypto.OtrCryptoEngines;
 import net.java.otr4j.io.SerializationUtils;
 
 /**
@@ -46,7 +46,7 @@ public class SignatureMessage extends AbstractEncodedMessage {
 	}
 
 	public byte[] decrypt(byte[] key) throws OtrException {
-		return new OtrCryptoEngineImpl().aesDecrypt(key, null, xEncrypted);
+		return OtrCryptoEngines.getEngine().aesDecrypt(key, null, xEncrypted);
 	}
 
 	public boolean verify(byte[] key) throws OtrException {
@@ -58,7 +58,7 @@ public class SignatureMessage extends AbstractEncodedMessage {
 			throw new OtrException(e);
 		}
 
-		byte[] trialXEncryptedMAC = new OtrCryptoEngineImpl().sha256Hmac160(
+		byte[] trialXEncryptedMAC = OtrCryptoEngines.getEngine().sha256Hmac160(
 				xbEncrypted, key);
 		// Verify signature.
 		return Arrays.equals(this.xEncryptedMAC, trialXEncryptedMAC);
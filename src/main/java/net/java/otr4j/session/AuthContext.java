@@ -89,6 +89,8 @@ abstract class AuthContext {
 
 	public abstract boolean getIsSecure();
 
+	public abstract int getAuthenticationState();
+
 	public abstract DHPublicKey getRemoteDHPublicKey();
 
 	public abstract KeyPair getLocalDHKeyPair() throws OtrException;
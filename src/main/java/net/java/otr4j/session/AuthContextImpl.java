@@ -22,15 +22,17 @@ import java.security.KeyPair;
 import java.security.PublicKey;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.crypto.interfaces.DHPublicKey;
 
 import net.java.otr4j.OtrException;
+import net.java.otr4j.crypto.DHKeyPairPool;
 import net.java.otr4j.crypto.OtrCryptoEngine;
-import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.crypto.OtrCryptoEngines;
+import net.java.otr4j.crypto.OtrDH;
+import net.java.otr4j.crypto.OtrRandom;
 import net.java.otr4j.io.SerializationUtils;
 import net.java.otr4j.io.messages.DHCommitMessage;
 import net.java.otr4j.io.messages.DHKeyMessage;
@@ -121,7 +123,7 @@ class AuthContextImpl extends AuthContext {
 						getLocalLongTermKeyPair().getPublic(),
 						getLocalDHKeyPairID());
 
-				OtrCryptoEngine otrCryptoEngine = new OtrCryptoEngineImpl();
+				OtrCryptoEngine otrCryptoEngine = OtrCryptoEngines.getEngine();
 				byte[] mhash = otrCryptoEngine.sha256Hmac(SerializationUtils
 						.toByteArray(m), getM1());
 				byte[] signature = otrCryptoEngine.sign(mhash,
@@ -157,7 +159,7 @@ class AuthContextImpl extends AuthContext {
 					getLocalLongTermKeyPair().getPublic(),
 					getLocalDHKeyPairID());
 
-			OtrCryptoEngine otrCryptoEngine = new OtrCryptoEngineImpl();
+			OtrCryptoEngine otrCryptoEngine = OtrCryptoEngines.getEngine();
 			byte[] mhash;
 			try {
 				mhash = otrCryptoEngine.sha256Hmac(SerializationUtils
@@ -223,6 +225,19 @@ class AuthContextImpl extends AuthContext {
 
 	private void setIsSecure(Boolean isSecure) {
 		this.isSecure = isSecure;
+		SessionMetrics metrics = getMetrics();
+		if (isSecure && metrics != null)
+			metrics.akesCompleted.increment();
+	}
+
+	private void failed() {
+		SessionMetrics metrics = getMetrics();
+		if (metrics != null)
+			metrics.akesFailed.increment();
+	}
+
+	private SessionMetrics getMetrics() {
+		return (session instanceof SessionImpl) ? ((SessionImpl) session).getMetrics() : null;
 	}
 
 	@Override
@@ -231,10 +246,18 @@ class AuthContextImpl extends AuthContext {
 	}
 
 	void setAuthenticationState(int authenticationState) {
+		if (this.authenticationState == AuthContext.NONE
+				&& authenticationState != AuthContext.NONE)
+		{
+			SessionMetrics metrics = getMetrics();
+			if (metrics != null)
+				metrics.akesStarted.increment();
+		}
 		this.authenticationState = authenticationState;
 	}
 
-	private int getAuthenticationState() {
+	@Override
+	public int getAuthenticationState() {
 		return authenticationState;
 	}
 
@@ -242,7 +265,7 @@ class AuthContextImpl extends AuthContext {
 		if (r == null) {
 			logger.finest("Picking random key r.");
 			r = new byte[OtrCryptoEngine.AES_KEY_BYTE_LENGTH];
-			new Random().nextBytes(r);
+			OtrRandom.nextBytes(r);
 		}
 		return r;
 	}
@@ -287,7 +310,7 @@ class AuthContextImpl extends AuthContext {
 	@Override
 	public KeyPair getLocalDHKeyPair() throws OtrException {
 		if (localDHKeyPair == null) {
-			localDHKeyPair = new OtrCryptoEngineImpl().generateDHKeyPair();
+			localDHKeyPair = DHKeyPairPool.nextKeyPair();
 			logger.finest("Generated local D-H key pair.");
 		}
 		return localDHKeyPair;
@@ -299,7 +322,7 @@ class AuthContextImpl extends AuthContext {
 
 	private byte[] getLocalDHPublicKeyHash() throws OtrException {
 		if (localDHPublicKeyHash == null) {
-			localDHPublicKeyHash = new OtrCryptoEngineImpl()
+			localDHPublicKeyHash = OtrCryptoEngines.getEngine()
 					.sha256Hash(getLocalDHPublicKeyBytes());
 			logger.finest("Hashed local D-H public key.");
 		}
@@ -308,7 +331,7 @@ class AuthContextImpl extends AuthContext {
 
 	private byte[] getLocalDHPublicKeyEncrypted() throws OtrException {
 		if (localDHPublicKeyEncrypted == null) {
-			localDHPublicKeyEncrypted = new OtrCryptoEngineImpl().aesEncrypt(
+			localDHPublicKeyEncrypted = OtrCryptoEngines.getEngine().aesEncrypt(
 					getR(), null, getLocalDHPublicKeyBytes());
 			logger.finest("Encrypted our D-H public key.");
 		}
@@ -318,9 +341,8 @@ class AuthContextImpl extends AuthContext {
 	@Override
 	public BigInteger getS() throws OtrException {
 		if (s == null) {
-			s = new OtrCryptoEngineImpl().generateSecret(this
-					.getLocalDHKeyPair().getPrivate(), this
-					.getRemoteDHPublicKey());
+			s = OtrDH.generateSecret(this.getLocalDHKeyPair().getPrivate(),
+					this.getRemoteDHPublicKey());
 			logger.finest("Generated shared secret.");
 		}
 		return s;
@@ -426,7 +448,7 @@ class AuthContextImpl extends AuthContext {
 		buff.put(b);
 		buff.put(secbytes);
 		byte[] sdata = buff.array();
-		return new OtrCryptoEngineImpl().sha256Hash(sdata);
+		return OtrCryptoEngines.getEngine().sha256Hash(sdata);
 	}
 
 	private byte[] getLocalDHPublicKeyBytes() throws OtrException {
@@ -510,6 +532,7 @@ class AuthContextImpl extends AuthContext {
 			// Verify MAC.
 			if (!m.verify(this.getM2p())) {
 				logger.finest("Signature MACs are not equal, ignoring message.");
+				failed();
 				return;
 			}
 
@@ -526,7 +549,7 @@ class AuthContextImpl extends AuthContext {
 			SignatureM remoteM = new SignatureM(this.getRemoteDHPublicKey(),
 					(DHPublicKey) this.getLocalDHKeyPair().getPublic(),
 					localRemoteLongTermPublicKey, remoteX.dhKeyID);
-			OtrCryptoEngine otrCryptoEngine = new OtrCryptoEngineImpl();
+			OtrCryptoEngine otrCryptoEngine = OtrCryptoEngines.getEngine();
 			// Verify signature.
 			byte[] signature;
 			try {
@@ -539,6 +562,7 @@ class AuthContextImpl extends AuthContext {
 					remoteX.signature))
 			{
 				logger.finest("Signature verification failed.");
+				failed();
 				return;
 			}
 
@@ -571,7 +595,7 @@ class AuthContextImpl extends AuthContext {
 			// send
 			// it as a Data Message.
 
-			OtrCryptoEngine otrCryptoEngine = new OtrCryptoEngineImpl();
+			OtrCryptoEngine otrCryptoEngine = OtrCryptoEngines.getEngine();
 			// Uses r to decrypt the value of gx sent earlier
 			byte[] remoteDHPublicKeyDecrypted = otrCryptoEngine.aesDecrypt(
 					m.revealedKey, null, this.getRemoteDHPublicKeyEncrypted());
@@ -583,6 +607,7 @@ class AuthContextImpl extends AuthContext {
 					.getRemoteDHPublicKeyHash()))
 			{
 				logger.finest("Hashes don't match, ignoring message.");
+				failed();
 				return;
 			}
 
@@ -602,6 +627,7 @@ class AuthContextImpl extends AuthContext {
 			// Verify received Data.
 			if (!m.verify(this.getM2())) {
 				logger.finest("Signature MACs are not equal, ignoring message.");
+				failed();
 				return;
 			}
 
@@ -633,6 +659,7 @@ class AuthContextImpl extends AuthContext {
 					remoteX.signature))
 			{
 				logger.finest("Signature verification failed.");
+				failed();
 				return;
 			}
 
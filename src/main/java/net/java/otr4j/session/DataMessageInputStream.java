@@ -0,0 +1,168 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import net.java.otr4j.OtrException;
+import net.java.otr4j.crypto.OtrCipherContext;
+import net.java.otr4j.crypto.OtrMacContext;
+import net.java.otr4j.io.SerializationConstants;
+
+/**
+ * The binary form of a data message whose plaintext is read from a stream and
+ * encrypted a chunk at a time as the message is read. The MAC over T is
+ * updated as the ciphertext is produced, so that only one chunk of the
+ * message is held at any time.
+ */
+final class DataMessageInputStream extends InputStream {
+
+	/**
+	 * Size of the plaintext chunks, a multiple of the AES block size.
+	 */
+	static final int CHUNK_SIZE = 4096;
+
+	private static final int AES_BLOCK_SIZE = 16;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final InputStream content;
+	private final OtrCipherContext cipher;
+	private final OtrMacContext mac;
+	private final byte[] ctr;
+	private final byte[] oldMacKeys;
+	private final byte[] plaintext;
+
+	/**
+	 * Number of plaintext bytes that remain to be read from content.
+	 */
+	private int remaining;
+
+	/**
+	 * Number of AES blocks encrypted so far.
+	 */
+	private long blocks;
+
+	private byte[] buffer;
+	private int position;
+	private boolean tail;
+
+	/**
+	 * @param header the serialized T up to and including the length of the
+	 *            encrypted message
+	 * @param content the plaintext
+	 * @param length the number of plaintext bytes to read from content
+	 * @param cipher the sending cipher
+	 * @param ctr the counter of this message, 16 bytes of which the last 8
+	 *            are zero
+	 * @param mac a sending MAC context that is not used elsewhere
+	 * @param oldMacKeys the old MAC keys to reveal
+	 */
+	DataMessageInputStream(byte[] header, InputStream content, int length,
+			OtrCipherContext cipher, byte[] ctr, OtrMacContext mac,
+			byte[] oldMacKeys)
+	{
+		this.content = content;
+		this.remaining = length;
+		this.cipher = cipher;
+		this.ctr = ctr.clone();
+		this.mac = mac;
+		this.oldMacKeys = oldMacKeys == null ? EMPTY : oldMacKeys;
+		this.plaintext = new byte[Math.min(CHUNK_SIZE, length)];
+		this.buffer = header;
+		mac.update(header, 0, header.length);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (position == buffer.length && !fill())
+			return -1;
+		return buffer[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (position == buffer.length && !fill())
+			return -1;
+		int n = Math.min(len, buffer.length - position);
+		System.arraycopy(buffer, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	/**
+	 * Produce the next chunk of ciphertext, or the MAC and old MAC keys
+	 * after the last one.
+	 *
+	 * @return false at the end of the message
+	 */
+	private boolean fill() throws IOException {
+		position = 0;
+		if (remaining > 0) {
+			int n = Math.min(plaintext.length, remaining);
+			int done = 0;
+			while (done < n) {
+				int read = content.read(plaintext, done, n - done);
+				if (read < 0)
+					throw new IOException("Content ended before its length.");
+				done += read;
+			}
+			remaining -= n;
+
+			// Continue the counter at the first block of this chunk.
+			byte[] blockCtr = ctr.clone();
+			for (int i = 0; i < 8; i++)
+				blockCtr[15 - i] = (byte) (blocks >>> (8 * i));
+			blocks += n / AES_BLOCK_SIZE;
+
+			byte[] chunk = n == plaintext.length ? plaintext : Arrays.copyOf(plaintext, n);
+			try {
+				buffer = cipher.encrypt(blockCtr, chunk);
+			} catch (OtrException e) {
+				throw new IOException(e);
+			}
+			mac.update(buffer, 0, buffer.length);
+			return true;
+		}
+		if (!tail) {
+			tail = true;
+			int macLength = SerializationConstants.TYPE_LEN_MAC;
+			buffer = new byte[macLength + SerializationConstants.DATA_LEN
+					+ oldMacKeys.length];
+			try {
+				System.arraycopy(mac.doFinal(macLength), 0, buffer, 0, macLength);
+			} catch (OtrException e) {
+				throw new IOException(e);
+			}
+			int length = oldMacKeys.length;
+			for (int i = 0; i < 4; i++)
+				buffer[macLength + i] = (byte) (length >>> (8 * (3 - i)));
+			System.arraycopy(oldMacKeys, 0, buffer, macLength + 4, length);
+			return true;
+		}
+		buffer = EMPTY;
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		content.close();
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.session;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.interfaces.DHPublicKey;
+
+import net.java.otr4j.OtrException;
+import net.java.otr4j.crypto.OtrMacContext;
+import net.java.otr4j.io.SerializationConstants;
+import net.java.otr4j.io.SerializationUtils;
+import net.java.otr4j.io.messages.AbstractEncodedMessage;
+
+import org.bouncycastle.util.BigIntegers;
+
+/**
+ * Writes encoded data messages through buffers that are kept from one message
+ * to the next, so that sending a steady stream of messages allocates little
+ * more than the encoded strings. The plaintext is written where the binary
+ * form holds the encrypted message, encrypted in place and authenticated
+ * without copying. Not thread safe: a session uses it under its lock.
+ */
+final class DataMessageWriter {
+
+	/**
+	 * Capacity of the buffers when the first message is written. They are
+	 * not allocated before, as many sessions never send a data message.
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private byte[] buffer = new byte[0];
+	private CharBuffer chars = CharBuffer.allocate(0);
+
+	/**
+	 * The last next D-H public key and its serialized value, which only
+	 * changes when the local keys rotate.
+	 */
+	private DHPublicKey nextDH;
+	private byte[] nextDHBytes;
+
+	private volatile SessionMetrics metrics;
+
+	void setMetrics(SessionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Encrypt, authenticate and encode a data message.
+	 *
+	 * @param protocolVersion the protocol version
+	 * @param senderInstanceTag the sender instance tag, for version 3
+	 * @param receiverInstanceTag the receiver instance tag, for version 3
+	 * @param encryptionKeys the keys to send with, whose counter is
+	 *            incremented
+	 * @param nextDH the next D-H public key
+	 * @param keyRing the ring whose old MAC keys are revealed
+	 * @param text the message text, or null
+	 * @param tlvs the TLVs, or null
+	 * @return the encoded message
+	 */
+	String write(int protocolVersion, int senderInstanceTag,
+			int receiverInstanceTag, SessionKeys encryptionKeys,
+			DHPublicKey nextDH, SessionKeyRing keyRing, String text,
+			List<TLV> tlvs) throws OtrException
+	{
+		if (nextDH != this.nextDH) {
+			this.nextDHBytes = BigIntegers.asUnsignedByteArray(nextDH.getY());
+			this.nextDH = nextDH;
+		}
+
+		int textLength = text == null ? 0 : utf8Length(text);
+		int dataLength = dataLength(textLength, tlvs);
+		int oldKeysLength = keyRing.oldMacKeysLength();
+		int length = length(protocolVersion, nextDHBytes.length, dataLength,
+				oldKeysLength);
+		if (length > buffer.length)
+			buffer = new byte[Math.max(Math.max(length, INITIAL_CAPACITY), 2 * buffer.length)];
+		byte[] b = buffer;
+
+		encryptionKeys.incrementSendingCtr();
+		byte[] ctr = encryptionKeys.getSendingCtr();
+
+		// T: the header, the next D-H public key, the counter and the data.
+		int offset = putShort(b, 0, protocolVersion);
+		b[offset++] = (byte) AbstractEncodedMessage.MESSAGE_DATA;
+		if (protocolVersion == 3) {
+			offset = putInt(b, offset, senderInstanceTag);
+			offset = putInt(b, offset, receiverInstanceTag);
+		}
+		b[offset++] = 0;
+		offset = putInt(b, offset, encryptionKeys.getLocalKeyID());
+		offset = putInt(b, offset, encryptionKeys.getRemoteKeyID());
+		offset = putInt(b, offset, nextDHBytes.length);
+		System.arraycopy(nextDHBytes, 0, b, offset, nextDHBytes.length);
+		offset += nextDHBytes.length;
+		System.arraycopy(ctr, 0, b, offset, SerializationConstants.TYPE_LEN_CTR);
+		offset += SerializationConstants.TYPE_LEN_CTR;
+		offset = putInt(b, offset, dataLength);
+
+		int data = offset;
+		if (text != null)
+			putUtf8(b, offset, text);
+		offset += textLength;
+		if (dataLength > textLength) {
+			b[offset++] = 0;
+			for (int i = 0; i < tlvs.size(); i++) {
+				TLV tlv = tlvs.get(i);
+				int valueLength = tlv.value == null ? 0 : tlv.value.length;
+				offset = putShort(b, offset, tlv.type);
+				offset = putShort(b, offset, valueLength);
+				if (valueLength > 0)
+					System.arraycopy(tlv.value, 0, b, offset, valueLength);
+				offset += valueLength;
+			}
+		}
+		encryptionKeys.getSendingCipher().encrypt(ctr, b, data, dataLength, b, data);
+		SessionMetrics m = metrics;
+		if (m != null)
+			m.bytesEncrypted.add(dataLength);
+
+		// The MAC over T, then the old MAC keys.
+		OtrMacContext mac = encryptionKeys.getSendingMac();
+		mac.update(b, 0, offset);
+		mac.doFinal(b, offset, SerializationConstants.TYPE_LEN_MAC);
+		offset += SerializationConstants.TYPE_LEN_MAC;
+		offset = putInt(b, offset, oldKeysLength);
+		keyRing.collectOldMacKeys(b, offset);
+
+		int encodedLength = SerializationUtils.encodedLength(length);
+		if (encodedLength > chars.capacity())
+			chars = CharBuffer.allocate(Math.max(Math.max(encodedLength,
+					SerializationUtils.encodedLength(INITIAL_CAPACITY)), 2 * chars.capacity()));
+		chars.clear();
+		SerializationUtils.writeEncoded(b, length, chars);
+		return new String(chars.array(), 0, encodedLength);
+	}
+
+	/**
+	 * @return the length of the plaintext of a data message: the text,
+	 *         followed, if there are any TLVs, by a NUL byte and the TLVs
+	 */
+	static int dataLength(int textLength, List<TLV> tlvs) {
+		int length = textLength;
+		if (tlvs != null && tlvs.size() > 0) {
+			length++;
+			for (int i = 0; i < tlvs.size(); i++) {
+				TLV tlv = tlvs.get(i);
+				length += 4 + (tlv.value == null ? 0 : tlv.value.length);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @return the length of the binary form of a data message, before it is
+	 *         encoded
+	 */
+	static int length(int protocolVersion, int nextDHLength, int dataLength,
+			int oldKeysLength)
+	{
+		return 2 + 1 + (protocolVersion == 3 ? 8 : 0) + 1 + 4 + 4
+				+ 4 + nextDHLength + SerializationConstants.TYPE_LEN_CTR
+				+ 4 + dataLength + SerializationConstants.TYPE_LEN_MAC + 4
+				+ oldKeysLength;
+	}
+
+	/**
+	 * Zero the buffers, which hold the last message.
+	 */
+	void wipe() {
+		Arrays.fill(buffer, (byte) 0);
+		Arrays.fill(chars.array(), '\0');
+		nextDH = null;
+		nextDHBytes = null;
+	}
+
+	private static int putShort(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 8);
+		b[offset + 1] = (byte) value;
+		return offset + 2;
+	}
+
+	private static int putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+		return offset + 4;
+	}
+
+	/**
+	 * @return the length of s in UTF-8, with unpaired surrogates replaced
+	 *         by '?' as {@link String#getBytes(String)} does
+	 */
+	static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				length++;
+			else if (c < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1)))
+			{
+				length += 4;
+				i++;
+			} else if (isSurrogate(c))
+				length++;
+			else
+				length += 3;
+		}
+		return length;
+	}
+
+	private static boolean isSurrogate(char c) {
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+	}
+
+	/**
+	 * Write s in UTF-8 as {@link String#getBytes(String)} would.
+	 */
+	static void putUtf8(byte[] b, int offset, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				b[offset++] = (byte) c;
+			} else if (c < 0x800) {
+				b[offset++] = (byte) (0xC0 | c >>> 6);
+				b[offset++] = (byte) (0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1)))
+			{
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				b[offset++] = (byte) (0xF0 | cp >>> 18);
+				b[offset++] = (byte) (0x80 | (cp >>> 12) & 0x3F);
+				b[offset++] = (byte) (0x80 | (cp >>> 6) & 0x3F);
+				b[offset++] = (byte) (0x80 | cp & 0x3F);
+			} else if (isSurrogate(c)) {
+				b[offset++] = '?';
+			} else {
+				b[offset++] = (byte) (0xE0 | c >>> 12);
+				b[offset++] = (byte) (0x80 | (c >>> 6) & 0x3F);
+				b[offset++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+	}
+}
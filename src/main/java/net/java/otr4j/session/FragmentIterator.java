@@ -0,0 +1,54 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.session;
+
+import net.java.otr4j.OtrException;
+
+/**
+ * The messages (fragments) to send for one outgoing message, produced one at a
+ * time as they are taken, so that a large message is never held in memory as
+ * a whole. Take all fragments or close the iterator: while the fragments of a
+ * streamed message are taken, the other operations on the session wait.
+ */
+public interface FragmentIterator {
+
+	/**
+	 * @return the total number of fragments
+	 */
+	int size();
+
+	/**
+	 * @return true if there are fragments left to take
+	 */
+	boolean hasNext();
+
+	/**
+	 * Produce the next fragment.
+	 *
+	 * @return the fragment
+	 * @throws OtrException if the fragment can not be produced, for example
+	 *             because the content of the message can not be read
+	 * @throws java.util.NoSuchElementException if there are no fragments left
+	 */
+	String next() throws OtrException;
+
+	/**
+	 * Stop taking fragments and close the content of the message. The peer
+	 * drops the fragments that were sent, so the message is lost. Does
+	 * nothing if all fragments were taken.
+	 */
+	void close();
+}
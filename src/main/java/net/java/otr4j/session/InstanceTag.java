@@ -15,15 +15,13 @@
  */
 package net.java.otr4j.session;
 
-import java.util.Random;
+import net.java.otr4j.crypto.OtrRandom;
 
 /**
  * @author Marin Dzhigarov
  */
 public class InstanceTag {
 
-	private static final Random RANDOM = new Random();
-
 	public static final int ZERO_VALUE = 0;
 
 	/**
@@ -65,7 +63,7 @@ public class InstanceTag {
 	}
 
 	public InstanceTag() {
-		final long val = (long)(RANDOM.nextDouble() * RANGE) + SMALLEST_VALUE;
+		final long val = (long)(OtrRandom.getSecureRandom().nextDouble() * RANGE) + SMALLEST_VALUE;
 		// Because 0xffffffff is the maximum value for both the tag and
 		// the 32 bit integer range, we are able to cast to int without
 		// loss. The (decimal) interpretation changes, though, because
@@ -47,6 +47,8 @@ public final class OtrAssembler {
 	 */
 	private final InstanceTag ownInstance;
 
+	private volatile SessionMetrics metrics;
+
 	private static final String HEAD_FRAGMENT_V2 = "?OTR,";
 	private static final String HEAD_FRAGMENT_V3 = "?OTR|";
 
@@ -95,21 +97,23 @@ public final class OtrAssembler {
 			String[] instances = instancePart[0].split("\\|", 2);
 
 			if (instancePart.length != 2 || instances.length != 2) {
-				discard();
+				drop(1);
 				throw new ProtocolException();
 			}
 
 			int receiverInstance;
 			try {
-				receiverInstance = Integer.parseInt(instances[1], 16);
+				// Tags take all 32 bits, so parse them unsigned.
+				receiverInstance = (int) Long.parseLong(instances[1], 16);
 			} catch (NumberFormatException e) {
-				discard();
+				drop(1);
 				throw new ProtocolException();
 			}
 			if (receiverInstance != 0
 					&& receiverInstance != ownInstance.getValue())
 			{
 				// discard message for different instance id
+				count(1);
 				throw new UnknownInstanceException(
 						"Message for unknown instance tag "
 						+ String.valueOf(receiverInstance)
@@ -120,7 +124,7 @@ public final class OtrAssembler {
 			msgText = instancePart[1];
 		} else {
 			// not a fragmented message
-			discard();
+			drop(0);
 			return msgText;
 		}
 
@@ -131,15 +135,15 @@ public final class OtrAssembler {
 			k = Integer.parseInt(params[0]);
 			n = Integer.parseInt(params[1]);
 		} catch (NumberFormatException e) {
-			discard();
+			drop(1);
 			throw new ProtocolException();
 		} catch (ArrayIndexOutOfBoundsException e) {
-			discard();
+			drop(1);
 			throw new ProtocolException();
 		}
 
 		if (k == 0 || n == 0 || k > n || params.length != 4 || params[3].length() != 0) {
-			discard();
+			drop(1);
 			throw new ProtocolException();
 		}
 
@@ -147,7 +151,7 @@ public final class OtrAssembler {
 
 		if (k == 1) {
 			// first fragment
-			discard();
+			drop(0);
 			fragmentCur = k;
 			fragmentMax = n;
 			fragment.append(msgText);
@@ -157,12 +161,15 @@ public final class OtrAssembler {
 			fragment.append(msgText);
 		} else {
 			// out-of-order fragment
-			discard();
+			drop(1);
 			throw new ProtocolException();
 		}
 
 		if (n == k && n > 0) {
 			String result = fragment.toString();
+			SessionMetrics m = metrics;
+			if (m != null)
+				m.messagesAssembled.increment();
 			discard();
 			return result;
 		} else {
@@ -170,6 +177,32 @@ public final class OtrAssembler {
 		}
 	}
 
+	void setMetrics(SessionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Discard the fragments received so far and the rejected ones, counting
+	 * them as discarded.
+	 */
+	private void drop(int rejected) {
+		count(fragmentCur + rejected);
+		discard();
+	}
+
+	private void count(int discarded) {
+		SessionMetrics m = metrics;
+		if (m != null && discarded > 0)
+			m.fragmentsDiscarded.add(discarded);
+	}
+
+	/**
+	 * @return the length of the fragments accumulated so far
+	 */
+	int length() {
+		return fragment.length();
+	}
+
 	/**
 	 * Discard current fragment buffer and reset the counters.
 	 */
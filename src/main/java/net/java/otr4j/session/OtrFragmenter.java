@@ -16,9 +16,12 @@
 package net.java.otr4j.session;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.util.LinkedList;
+import java.util.NoSuchElementException;
 
 import net.java.otr4j.OtrEngineHost;
+import net.java.otr4j.OtrException;
 import net.java.otr4j.OtrPolicy;
 
 /**
@@ -129,18 +132,18 @@ public class OtrFragmenter {
 		{
 			return 1;
 		}
-		return computeFragmentNumber(message, instructions);
+		return computeFragmentNumber(message.length(), instructions);
 	}
 
 	/**
 	 * Compute the number of fragments required.
 	 *
-	 * @param message the original message
+	 * @param length the length of the original message
 	 * @param instructions fragmentation instructions
 	 * @return returns number of fragments required.
 	 * @throws IOException throws an IOException if fragment size is too small.
 	 */
-	private int computeFragmentNumber(final String message,
+	private int computeFragmentNumber(final int length,
 			final FragmenterInstructions instructions) throws IOException
 	{
 		final int overhead = computeHeaderSize();
@@ -148,13 +151,40 @@ public class OtrFragmenter {
 		if (payloadSize <= 0) {
 			throw new IOException("Fragment size too small for storing content.");
 		}
-		int messages = message.length() / payloadSize;
-		if (message.length() % payloadSize != 0) {
+		int messages = length / payloadSize;
+		if (length % payloadSize != 0) {
 			messages++;
 		}
 		return messages;
 	}
 
+	/**
+	 * Look up and verify the host's fragmentation instructions for the
+	 * session, so that several messages can be fragmented with one lookup.
+	 *
+	 * @return returns the verified instructions
+	 */
+	FragmenterInstructions getInstructions() {
+		final SessionID sessionID = this.session.getSessionID();
+		final FragmenterInstructions requested = this.host
+				.getFragmenterInstructions(sessionID);
+		return FragmenterInstructions.verify(requested);
+	}
+
+	/**
+	 * Check whether a message of the given length is sent as is, without
+	 * fragmentation.
+	 *
+	 * @param length
+	 *            the length of the message
+	 * @return returns true if the message fits in a single fragment
+	 */
+	public boolean fits(final int length) {
+		final FragmenterInstructions instructions = getInstructions();
+		return instructions.maxFragmentSize == FragmenterInstructions.UNLIMITED
+				|| instructions.maxFragmentSize >= length;
+	}
+
 	/**
 	 * Fragment the given message into pieces as specified by the
 	 * FragmenterInstructions instance.
@@ -176,6 +206,101 @@ public class OtrFragmenter {
 		return fragment(message, instructions);
 	}
 
+	/**
+	 * Fragment a message whose characters are read as the fragments are
+	 * taken, so that at most one fragment of it is held in memory. A message
+	 * that needs no fragmentation is read as a whole by the only fragment.
+	 *
+	 * @param message
+	 *            the original message
+	 * @param length
+	 *            the number of characters of the message
+	 * @return returns the fragments of the message
+	 * @throws IOException
+	 *             throws an IOException if the fragment size is too small or if
+	 *             the maximum number of fragments is exceeded.
+	 */
+	public FragmentIterator fragment(final Reader message, final int length)
+			throws IOException
+	{
+		final FragmenterInstructions instructions = getInstructions();
+		final int num;
+		final int payloadSize;
+		if (instructions.maxFragmentSize == FragmenterInstructions.UNLIMITED
+				|| instructions.maxFragmentSize >= length)
+		{
+			num = 1;
+			payloadSize = length;
+		} else {
+			num = computeFragmentNumber(length, instructions);
+			if (instructions.maxFragmentsAllowed != FragmenterInstructions.UNLIMITED
+					&& instructions.maxFragmentsAllowed < num)
+			{
+				throw new IOException("Need more fragments to store full message.");
+			}
+			if (num > MAXIMUM_NUMBER_OF_FRAGMENTS) {
+				throw new IOException(
+						"Number of necessary fragments exceeds limit.");
+			}
+			payloadSize = instructions.maxFragmentSize - computeHeaderSize();
+		}
+		return new FragmentIterator() {
+
+			private final char[] buffer = new char[Math.min(payloadSize, length)];
+			private int count;
+			private int previous;
+
+			@Override
+			public int size() {
+				return num;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return count < num;
+			}
+
+			@Override
+			public String next() throws OtrException {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				final int end = Math.min(previous + payloadSize, length);
+				int done = 0;
+				try {
+					while (done < end - previous) {
+						final int n = message.read(buffer, done, end - previous - done);
+						if (n < 0)
+							throw new IOException("Message ended before its length.");
+						done += n;
+					}
+					if (end == length)
+						message.close();
+				} catch (IOException e) {
+					throw new OtrException(e);
+				}
+				final String partialContent = new String(buffer, 0, done);
+				previous = end;
+				if (num == 1) {
+					count++;
+					return partialContent;
+				}
+				return createMessageFragment(count++, num, partialContent);
+			}
+
+			@Override
+			public void close() {
+				if (!hasNext())
+					return;
+				count = num;
+				try {
+					message.close();
+				} catch (IOException e) {
+					// The message is dropped anyway.
+				}
+			}
+		};
+	}
+
 	/**
 	 * Fragment a message according to the specified instructions.
 	 *
@@ -189,7 +314,7 @@ public class OtrFragmenter {
 	 *             Exception in the case when it is impossible to fragment the
 	 *             message according to the specified instructions.
 	 */
-	private String[] fragment(final String message,
+	String[] fragment(final String message,
 			final FragmenterInstructions instructions) throws IOException
 	{
 		if (instructions.maxFragmentSize == FragmenterInstructions.UNLIMITED
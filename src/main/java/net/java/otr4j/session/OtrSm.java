@@ -9,10 +9,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import net.java.otr4j.OtrEngineHost;
 import net.java.otr4j.OtrException;
-import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.crypto.OtrCryptoEngines;
 import net.java.otr4j.crypto.OtrCryptoException;
 import net.java.otr4j.crypto.SM;
 import net.java.otr4j.crypto.SM.SMException;
@@ -27,6 +28,7 @@ public class OtrSm {
 	private SMState smstate;
 	private final OtrEngineHost engineHost;
 	private final Session session;
+	private Executor executor = SM.getDefaultExecutor();
 
 	/**
 	 * Construct an OTR Socialist Millionaire handler object.
@@ -42,6 +44,26 @@ public class OtrSm {
 
 	public void reset() {
 		smstate = new SMState();
+		smstate.setExecutor(executor);
+	}
+
+	/**
+	 * Set the executor on which the independent exponentiations of each SMP
+	 * step are evaluated, so that a step completes in less wall-clock time on
+	 * multiple cores. The SMP messages are the same as with serial evaluation.
+	 *
+	 * @param executor the executor, or null to evaluate on the calling thread
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+		smstate.setExecutor(executor);
+	}
+
+	/**
+	 * @return the executor for SMP exponentiations, or null
+	 */
+	public Executor getExecutor() {
+		return executor;
 	}
 
 	/* Compute secret session ID as hash of agreed secret */
@@ -100,7 +122,7 @@ public class OtrSm {
 		byte[] theirFp;
 		PublicKey remotePublicKey = session.getRemotePublicKey();
 		try {
-			theirFp = new OtrCryptoEngineImpl()
+			theirFp = OtrCryptoEngines.getEngine()
 					.getFingerprintRaw(remotePublicKey);
 		} catch (OtrCryptoException e) {
 			throw new OtrException(e);
@@ -190,14 +212,6 @@ public class OtrSm {
 
 		int tlvType = tlv.getType();
 
-		PublicKey pubKey = session.getRemotePublicKey();
-		String fingerprint = null;
-		try {
-			fingerprint = new OtrCryptoEngineImpl().getFingerprint(pubKey);
-		} catch (OtrCryptoException e) {
-			e.printStackTrace();
-		}
-
 		if (tlvType == TLV.SMP1Q && nextMsg == SM.EXPECT1) {
 			/* We can only do the verification half now.
 			 * We must wait for the secret to be entered
@@ -287,9 +301,9 @@ public class OtrSm {
 			/* Set trust level based on result */
 			if (smstate.smProgState == SM.PROG_SUCCEEDED){
 
-				engineHost.verify(session.getSessionID(), fingerprint, smstate.approved);
+				engineHost.verify(session.getSessionID(), getRemoteFingerprint(), smstate.approved);
 			} else {
-				engineHost.unverify(session.getSessionID(), fingerprint);
+				engineHost.unverify(session.getSessionID(), getRemoteFingerprint());
 			}
 			if (smstate.smProgState != SM.PROG_CHEATED){
 				/* Send msg with next smp msg content */
@@ -311,9 +325,9 @@ public class OtrSm {
 				throw new OtrException(e);
 			}
 			if (smstate.smProgState == SM.PROG_SUCCEEDED) {
-				engineHost.verify(session.getSessionID(), fingerprint, smstate.approved);
+				engineHost.verify(session.getSessionID(), getRemoteFingerprint(), smstate.approved);
 			} else {
-				engineHost.unverify(session.getSessionID(), fingerprint);
+				engineHost.unverify(session.getSessionID(), getRemoteFingerprint());
 			}
 			if (smstate.smProgState == SM.PROG_CHEATED) {
 				engineHost.smpError(session.getSessionID(), tlvType, true);
@@ -330,6 +344,20 @@ public class OtrSm {
 		return true;
 	}
 
+	/**
+	 * Get the remote fingerprint, only needed once an SMP exchange completes.
+	 * The fingerprint comes from the shared fingerprint cache.
+	 */
+	private String getRemoteFingerprint() {
+		PublicKey pubKey = session.getRemotePublicKey();
+		try {
+			return OtrCryptoEngines.getEngine().getFingerprint(pubKey);
+		} catch (OtrCryptoException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	private List<TLV> makeTlvList(TLV sendtlv) {
 		List<TLV> tlvs = new ArrayList<TLV>(1);
 		tlvs.add(sendtlv);
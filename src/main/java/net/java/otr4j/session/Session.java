@@ -15,10 +15,15 @@
  */
 package net.java.otr4j.session;
 
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.security.KeyPair;
 import java.security.PublicKey;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import net.java.otr4j.OtrEngineListener;
 import net.java.otr4j.OtrException;
@@ -57,6 +62,141 @@ public interface Session {
 	String[] transformSending(String content)
 			throws OtrException;
 
+	/**
+	 * Streaming variant of {@link #transformSending(String)} for very large
+	 * messages. When the session is encrypted, the message is read from
+	 * content, encrypted, authenticated and encoded a chunk at a time while
+	 * the fragments are taken from the returned iterator, so memory use is
+	 * bounded by a few fragments. The message is bound to the session keys
+	 * at the time of this call.
+	 * <p>
+	 * As the peer drops a fragmented message when any other message comes in
+	 * between its fragments, the other calls on the session that may send a
+	 * message, including the receiving ones, wait until all fragments were
+	 * taken or the iterator was closed. Take the fragments on another thread
+	 * than those calls, or take them all before making them. When the session
+	 * is not encrypted, content is read at once and sent as by
+	 * {@link #transformSending(String)}.
+	 *
+	 * @param content the UTF-8 encoded message, closed after the last
+	 *            fragment
+	 * @param length the number of bytes to read from content
+	 * @return the fragments to send
+	 */
+	FragmentIterator transformSending(InputStream content, int length)
+			throws OtrException;
+
+	/**
+	 * Channel variant of {@link #transformSending(InputStream, int)}.
+	 *
+	 * @param content the UTF-8 encoded message, closed after the last
+	 *            fragment
+	 * @param length the number of bytes to read from content
+	 * @return the fragments to send
+	 */
+	FragmentIterator transformSending(ReadableByteChannel content, int length)
+			throws OtrException;
+
+	/**
+	 * Batch variant of {@link #transformReceiving(String)}: handles the
+	 * messages in order, as successive calls would, but looks up the session
+	 * policy only once and takes the session's lock only once. If a message
+	 * fails, its exception is thrown and the messages after it are not
+	 * handled.
+	 *
+	 * @param contents the received messages
+	 * @return for each message, the text to display or null
+	 */
+	List<String> transformReceiving(List<String> contents)
+			throws OtrException;
+
+	/**
+	 * Batch variant of {@link #transformSending(String)}: encrypts the
+	 * messages in order, each with its own counter, as successive calls
+	 * would, but resolves the outgoing instance, the message state, the
+	 * session keys and the fragmenter instructions only once for the batch.
+	 *
+	 * @param contents the messages to send
+	 * @return for each message, the message (fragments) to send or null
+	 */
+	List<String[]> transformSending(List<String> contents)
+			throws OtrException;
+
+	/**
+	 * Buffer variant of {@link #transformReceiving(String)} for transports
+	 * that hold messages in buffers. A complete encrypted message is decoded
+	 * and decrypted straight from content into out, without intermediate
+	 * Strings; other messages are handled as by
+	 * {@link #transformReceiving(String)}.
+	 *
+	 * @param content the received message, which is consumed
+	 * @param out the buffer that receives the UTF-8 encoded text to display
+	 * @return the number of bytes written to out, or -1 if there is nothing
+	 *         to display
+	 * @throws java.nio.BufferOverflowException if out has too little room,
+	 *             which is detected before the message is handled, leaving
+	 *             content untouched: an encrypted message needs room for its
+	 *             encrypted text, other messages for the UTF-8 encoded
+	 *             content and three bytes per char of the fragments received
+	 *             before it
+	 */
+	int transformReceiving(CharBuffer content, ByteBuffer out)
+			throws OtrException;
+
+	/**
+	 * Buffer variant of {@link #transformSending(String, List)} for
+	 * transports that hold messages in buffers. When the session is
+	 * encrypted, the message is encrypted and encoded straight from content
+	 * into out, without intermediate Strings. Messages that the host's
+	 * fragmenter instructions would split are not supported; send those
+	 * through {@link #transformSending(String, List)} or
+	 * {@link #transformSending(InputStream, int)}.
+	 *
+	 * @param content the UTF-8 encoded message to send, which is consumed
+	 * @param tlvs the TLVs to send along, or null
+	 * @param out the buffer that receives the message to send
+	 * @return the number of messages written to out, 0 or 1
+	 * @throws java.nio.BufferOverflowException if out has too little room,
+	 *             which is detected before the message is handled, leaving
+	 *             content untouched; an unencrypted message needs room for
+	 *             its text and a 40 char whitespace tag
+	 * @throws IllegalArgumentException if the encrypted message needs
+	 *             fragmenting, also before the message is handled
+	 */
+	int transformSending(ByteBuffer content, List<TLV> tlvs, CharBuffer out)
+			throws OtrException;
+
+	/**
+	 * Asynchronous variant of {@link #transformReceiving(String)}. The
+	 * asynchronous calls on a session, and the host callbacks they make, run
+	 * one at a time and in the order the calls were made, on the session's
+	 * executor.
+	 *
+	 * @param content the received message
+	 * @return the result of {@link #transformReceiving(String)}; an
+	 *         {@link OtrException} is the cause of the ExecutionException
+	 */
+	Future<String> transformReceivingAsync(String content);
+
+	/**
+	 * Asynchronous variant of {@link #transformSending(String, List)}.
+	 *
+	 * @param content the message to send
+	 * @param tlvs the TLVs to send along, or null
+	 * @return the result of {@link #transformSending(String, List)}
+	 * @see #transformReceivingAsync(String)
+	 */
+	Future<String[]> transformSendingAsync(String content, List<TLV> tlvs);
+
+	/**
+	 * Asynchronous variant of {@link #transformSending(String)}.
+	 *
+	 * @param content the message to send
+	 * @return the result of {@link #transformSending(String)}
+	 * @see #transformReceivingAsync(String)
+	 */
+	Future<String[]> transformSendingAsync(String content);
+
 	void startSession() throws OtrException;
 
 	void endSession() throws OtrException;
@@ -73,6 +213,20 @@ public interface Session {
 
 	void respondSmp(String question, String secret) throws OtrException;
 
+	/**
+	 * Asynchronous variant of {@link #initSmp(String, String)}.
+	 *
+	 * @see #transformReceivingAsync(String)
+	 */
+	Future<Void> initSmpAsync(String question, String secret);
+
+	/**
+	 * Asynchronous variant of {@link #respondSmp(String, String)}.
+	 *
+	 * @see #transformReceivingAsync(String)
+	 */
+	Future<Void> respondSmpAsync(String question, String secret);
+
 	void abortSmp() throws OtrException;
 
 	boolean isSmpInProgress();
@@ -24,6 +24,8 @@ public final class SessionID {
 	private final String accountID;
 	private final String userID;
 	private final String protocolName;
+	/** Computed once, as sessions are looked up by their ID on each message. */
+	private final int hash;
 
 	public static final SessionID EMPTY = new SessionID(null, null, null);
 	/** @deprecated use {@link #EMPTY} instead */
@@ -33,6 +35,7 @@ public final class SessionID {
 		this.accountID = accountID;
 		this.userID = userID;
 		this.protocolName = protocolName;
+		this.hash = computeHashCode();
 	}
 
 	public String getAccountID() {
@@ -54,6 +57,10 @@ public final class SessionID {
 
 	@Override
 	public int hashCode() {
+		return hash;
+	}
+
+	private int computeHashCode() {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result
@@ -73,6 +80,8 @@ public final class SessionID {
 		if (getClass() != obj.getClass())
 			return false;
 		SessionID other = (SessionID) obj;
+		if (hash != other.hash)
+			return false;
 		if (accountID == null) {
 			if (other.accountID != null)
 				return false;
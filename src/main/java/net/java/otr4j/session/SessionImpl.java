@@ -17,20 +17,33 @@ package net.java.otr4j.session;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.security.KeyPair;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Vector;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,8 +53,10 @@ import net.java.otr4j.OtrEngineHost;
 import net.java.otr4j.OtrEngineListener;
 import net.java.otr4j.OtrException;
 import net.java.otr4j.OtrPolicy;
-import net.java.otr4j.crypto.OtrCryptoEngine;
-import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.crypto.DHKeyPairPool;
+import net.java.otr4j.crypto.OtrCryptoEngines;
+import net.java.otr4j.crypto.OtrMacContext;
+import net.java.otr4j.io.EncodedMessageReader;
 import net.java.otr4j.io.OtrInputStream;
 import net.java.otr4j.io.OtrOutputStream;
 import net.java.otr4j.io.SerializationConstants;
@@ -54,9 +69,36 @@ import net.java.otr4j.io.messages.ErrorMessage;
 import net.java.otr4j.io.messages.MysteriousT;
 import net.java.otr4j.io.messages.PlainTextMessage;
 import net.java.otr4j.io.messages.QueryMessage;
+import net.java.otr4j.util.DaemonThreadFactory;
 import net.java.otr4j.util.SelectableMap;
+import net.java.otr4j.util.SerialExecutor;
 
 /**
+ * An OTR session with one buddy, possibly spanning several instances of that
+ * buddy's client.
+ * <p>
+ * Concurrency model: a master session and its instance (slave) sessions share
+ * a single conversation lock, which guards all protocol state: the message
+ * state, the session keys and their counters, the authentication context, the
+ * fragment assembler and the SMP state. Every operation that reads or changes
+ * that state ({@link #transformReceiving(String)},
+ * {@link #transformSending(String, List)}, {@link #injectMessage(AbstractMessage)},
+ * starting, ending and refreshing the session and the SMP calls) holds the
+ * lock for its whole duration, so sending and receiving on one conversation
+ * may be called from different threads and are applied one at a time. While
+ * the fragments of a message streamed by
+ * {@link #transformSending(InputStream, int)} are taken, which happens
+ * without the lock, those operations wait for the last fragment.
+ * Conversations do not share any lock, so traffic on one conversation never
+ * blocks traffic on another. The session status, the remote public key and
+ * the instance tags may be read without taking the lock.
+ * <p>
+ * Host and listener callbacks made during an operation run with the lock
+ * held. They may call back into the same session on the same thread, but must
+ * not wait for another thread that uses the same conversation. Derivation of
+ * new session keys ahead of use, see
+ * {@link #setKeyPrefetchExecutor(Executor)}, synchronizes on the keys
+ * themselves and does not take the conversation lock.
  *
  * @author George Politis
  * @author Danny van Heumen
@@ -67,26 +109,62 @@ public class SessionImpl implements Session {
 
 	private final boolean isMasterSession;
 
+	/**
+	 * Guards the protocol state of this session and of its instances. Shared
+	 * between the master session and its slave sessions.
+	 */
+	private final ConversationLock lock;
+
 	private SessionID sessionID;
 	private OtrEngineHost host;
-	private SessionStatus sessionStatus;
+	private volatile SessionStatus sessionStatus;
 	private AuthContext authContext;
-	private SessionKeys[][] sessionKeys;
-	private Vector<byte[]> oldMacKeys;
+	private final SessionKeyRing sessionKeys = new SessionKeyRing();
+	private final DataMessageWriter dataMessageWriter = new DataMessageWriter();
 	private static final Logger logger = Logger.getLogger(SessionImpl.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Length of the whitespace tag offering all three protocol versions.
+	 */
+	private static final int MAX_WHITESPACE_TAG_LENGTH = 16 + 3 * 8;
 	private final OtrSm otrSm;
-	private BigInteger ess;
+	private volatile BigInteger ess;
 	private OfferStatus offerStatus;
 	private final InstanceTag senderTag;
-	private InstanceTag receiverInstanceTag;
-	private int protocolVersion;
+	private volatile InstanceTag receiverInstanceTag;
+	private volatile int protocolVersion;
 	private final OtrAssembler assembler;
 	private final OtrFragmenter fragmenter;
-	private final List<OtrEngineListener> listeners = new Vector<OtrEngineListener>();
-	private PublicKey remotePublicKey;
+	private final List<OtrEngineListener> listeners = new CopyOnWriteArrayList<OtrEngineListener>();
+	private volatile PublicKey remotePublicKey;
+	private volatile SerialExecutor asyncExecutor;
+	private volatile Executor keyPrefetchExecutor;
+	private volatile SessionMetrics metrics;
+
+	/**
+	 * {@link System#nanoTime()} of the last message or state change requested
+	 * by the host.
+	 */
+	private volatile long lastActivity = System.nanoTime();
+
+	/**
+	 * Set when the session was wiped or exported, after which it must not be
+	 * used.
+	 */
+	private volatile boolean discarded;
+
+	private static Executor defaultExecutor;
 
 	public SessionImpl(SessionID sessionID, OtrEngineHost listener) {
+		this(sessionID, listener, new InstanceTag());
+	}
+
+	// A private constructor for instantiating master sessions with a known
+	// instance tag, as when a snapshot is imported.
+	private SessionImpl(SessionID sessionID, OtrEngineHost listener, InstanceTag senderTag) {
 
+		this.lock = new ConversationLock();
 		this.setSessionID(sessionID);
 		this.setHost(listener);
 
@@ -98,10 +176,10 @@ public class SessionImpl implements Session {
 		this.offerStatus = OfferStatus.idle;
 
 		otrSm = new OtrSm(this, listener);
-		this.senderTag = new InstanceTag();
+		this.senderTag = senderTag;
 		this.receiverInstanceTag = InstanceTag.ZERO_TAG;
 
-		this.slaveSessions = new SelectableMap<InstanceTag, SessionImpl>(new HashMap<InstanceTag, SessionImpl>());
+		this.slaveSessions = new SelectableMap<InstanceTag, SessionImpl>(new ConcurrentHashMap<InstanceTag, SessionImpl>());
 		isMasterSession = true;
 
 		assembler = new OtrAssembler(getSenderInstanceTag());
@@ -110,8 +188,9 @@ public class SessionImpl implements Session {
 
 	// A private constructor for instantiating 'slave' sessions.
 	private SessionImpl(SessionID sessionID, OtrEngineHost listener, InstanceTag senderTag,
-			InstanceTag receiverInstanceTag)
+			InstanceTag receiverInstanceTag, ConversationLock lock)
 	{
+		this.lock = lock;
 		this.setSessionID(sessionID);
 		this.setHost(listener);
 
@@ -137,123 +216,36 @@ public class SessionImpl implements Session {
 
 	private SessionKeys getEncryptionSessionKeys() {
 		logger.finest("Getting encryption keys");
-		return getSessionKeysByIndex(SessionKeys.Previous, SessionKeys.Current);
+		return sessionKeys.getEncryptionKeys();
 	}
 
 	private SessionKeys getMostRecentSessionKeys() {
 		logger.finest("Getting most recent keys.");
-		return getSessionKeysByIndex(SessionKeys.Current, SessionKeys.Current);
+		return sessionKeys.getMostRecentKeys();
 	}
 
 	private SessionKeys getSessionKeysByID(int localKeyID, int remoteKeyID) {
-		logger.log(Level.FINEST,
-				"Searching for session keys with (localKeyID, remoteKeyID) = ({0},{1})",
-				new Object[] {localKeyID, remoteKeyID});
-
-		for (int i = 0; i < getSessionKeys().length; i++) {
-			for (int j = 0; j < getSessionKeys()[i].length; j++) {
-				SessionKeys current = getSessionKeysByIndex(i, j);
-				if (current.getLocalKeyID() == localKeyID
-						&& current.getRemoteKeyID() == remoteKeyID)
-				{
-					logger.finest("Matching keys found.");
-					return current;
-				}
-			}
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.log(Level.FINEST,
+					"Looking up session keys with (localKeyID, remoteKeyID) = ({0},{1})",
+					new Object[] {localKeyID, remoteKeyID});
 		}
-
-		return null;
-	}
-
-	private SessionKeys getSessionKeysByIndex(int localKeyIndex,
-			int remoteKeyIndex)
-	{
-		if (getSessionKeys()[localKeyIndex][remoteKeyIndex] == null)
-			getSessionKeys()[localKeyIndex][remoteKeyIndex] = new SessionKeysImpl(
-					localKeyIndex, remoteKeyIndex);
-
-		return getSessionKeys()[localKeyIndex][remoteKeyIndex];
+		return sessionKeys.get(localKeyID, remoteKeyID);
 	}
 
 	private void rotateRemoteSessionKeys(DHPublicKey pubKey)
 			throws OtrException
 	{
-		logger.finest("Rotating remote keys.");
-		SessionKeys sess1 = getSessionKeysByIndex(SessionKeys.Current,
-				SessionKeys.Previous);
-		if (sess1.getIsUsedReceivingMACKey()) {
-			logger
-					.finest("Detected used Receiving MAC key. Adding to old MAC keys to reveal it.");
-			getOldMacKeys().add(sess1.getReceivingMACKey());
-		}
-
-		SessionKeys sess2 = getSessionKeysByIndex(SessionKeys.Previous,
-				SessionKeys.Previous);
-		if (sess2.getIsUsedReceivingMACKey()) {
-			logger
-					.finest("Detected used Receiving MAC key. Adding to old MAC keys to reveal it.");
-			getOldMacKeys().add(sess2.getReceivingMACKey());
-		}
-
-		SessionKeys sess3 = getSessionKeysByIndex(SessionKeys.Current,
-				SessionKeys.Current);
-		sess1
-				.setRemoteDHPublicKey(sess3.getRemoteKey(), sess3
-						.getRemoteKeyID());
-
-		SessionKeys sess4 = getSessionKeysByIndex(SessionKeys.Previous,
-				SessionKeys.Current);
-		sess2
-				.setRemoteDHPublicKey(sess4.getRemoteKey(), sess4
-						.getRemoteKeyID());
-
-		sess3.setRemoteDHPublicKey(pubKey, sess3.getRemoteKeyID() + 1);
-		sess4.setRemoteDHPublicKey(pubKey, sess4.getRemoteKeyID() + 1);
+		sessionKeys.rotateRemote(pubKey);
 	}
 
 	private void rotateLocalSessionKeys() throws OtrException {
-
-		logger.finest("Rotating local keys.");
-		SessionKeys sess1 = getSessionKeysByIndex(SessionKeys.Previous,
-				SessionKeys.Current);
-		if (sess1.getIsUsedReceivingMACKey()) {
-			logger
-					.finest("Detected used Receiving MAC key. Adding to old MAC keys to reveal it.");
-			getOldMacKeys().add(sess1.getReceivingMACKey());
-		}
-
-		SessionKeys sess2 = getSessionKeysByIndex(SessionKeys.Previous,
-				SessionKeys.Previous);
-		if (sess2.getIsUsedReceivingMACKey()) {
-			logger
-					.finest("Detected used Receiving MAC key. Adding to old MAC keys to reveal it.");
-			getOldMacKeys().add(sess2.getReceivingMACKey());
-		}
-
-		SessionKeys sess3 = getSessionKeysByIndex(SessionKeys.Current,
-				SessionKeys.Current);
-		sess1.setLocalPair(sess3.getLocalPair(), sess3.getLocalKeyID());
-		SessionKeys sess4 = getSessionKeysByIndex(SessionKeys.Current,
-				SessionKeys.Previous);
-		sess2.setLocalPair(sess4.getLocalPair(), sess4.getLocalKeyID());
-
-		KeyPair newPair = new OtrCryptoEngineImpl().generateDHKeyPair();
-		sess3.setLocalPair(newPair, sess3.getLocalKeyID() + 1);
-		sess4.setLocalPair(newPair, sess4.getLocalKeyID() + 1);
+		sessionKeys.rotateLocal(DHKeyPairPool.nextKeyPair());
 	}
 
 	private byte[] collectOldMacKeys() {
 		logger.finest("Collecting old MAC keys to be revealed.");
-		int len = 0;
-		for (int i = 0; i < getOldMacKeys().size(); i++)
-			len += getOldMacKeys().get(i).length;
-
-		ByteBuffer buff = ByteBuffer.allocate(len);
-		for (int i = 0; i < getOldMacKeys().size(); i++)
-			buff.put(getOldMacKeys().get(i));
-
-		getOldMacKeys().clear();
-		return buff.array();
+		return sessionKeys.collectOldMacKeys();
 	}
 
 	private void setSessionStatus(SessionStatus sessionStatus)
@@ -264,19 +256,9 @@ public class SessionImpl implements Session {
 			AuthContext auth = this.getAuthContext();
 			ess = auth.getS();
 			logger.finest("Setting most recent session keys from auth.");
-			for (int i = 0; i < this.getSessionKeys()[0].length; i++) {
-				SessionKeys current = getSessionKeysByIndex(0, i);
-				current.setLocalPair(auth.getLocalDHKeyPair(), 1);
-				current.setRemoteDHPublicKey(auth.getRemoteDHPublicKey(), 1);
-				current.setS(auth.getS());
-			}
-
-			KeyPair nextDH = new OtrCryptoEngineImpl().generateDHKeyPair();
-			for (int i = 0; i < this.getSessionKeys()[1].length; i++) {
-				SessionKeys current = getSessionKeysByIndex(1, i);
-				current.setRemoteDHPublicKey(auth.getRemoteDHPublicKey(), 1);
-				current.setLocalPair(nextDH, 2);
-			}
+			sessionKeys.init(auth.getLocalDHKeyPair(),
+					DHKeyPairPool.nextKeyPair(), auth.getRemoteDHPublicKey(),
+					auth.getS());
 
 			this.setRemotePublicKey(auth.getRemoteLongTermPublicKey());
 
@@ -324,28 +306,32 @@ public class SessionImpl implements Session {
 		return host;
 	}
 
-	private SessionKeys[][] getSessionKeys() {
-		if (sessionKeys == null)
-			sessionKeys = new SessionKeys[2][2];
-		return sessionKeys;
-	}
-
 	private AuthContext getAuthContext() {
 		if (authContext == null)
 			authContext = new AuthContextImpl(this);
 		return authContext;
 	}
 
-	private Vector<byte[]> getOldMacKeys() {
-		if (oldMacKeys == null)
-			oldMacKeys = new Vector<byte[]>();
-		return oldMacKeys;
-	}
-
 	@Override
 	public String transformReceiving(String msgText) throws OtrException {
+		SessionMetrics m = metrics;
+		long start = (m == null) ? 0 : System.nanoTime();
+		try {
+			synchronized (lock) {
+				awaitStream();
+				checkNotDiscarded();
+				lastActivity = System.nanoTime();
+				return transformReceiving(msgText, getSessionPolicy());
+			}
+		} finally {
+			if (m != null)
+				m.receiveLatency.record(System.nanoTime() - start);
+		}
+	}
 
-		OtrPolicy policy = getSessionPolicy();
+	private String transformReceiving(String msgText, OtrPolicy policy)
+			throws OtrException
+	{
 		if (!policy.getAllowV1() && !policy.getAllowV2() && !policy.getAllowV3()) {
 			logger
 					.finest("Policy does not allow neither V1 nor V2 & V3, ignoring message.");
@@ -382,69 +368,11 @@ public class SessionImpl implements Session {
 			offerStatus = OfferStatus.rejected;
 
 		if (m instanceof AbstractEncodedMessage && isMasterSession) {
-
-			AbstractEncodedMessage encodedM = (AbstractEncodedMessage) m;
-
-			if (encodedM.protocolVersion == OTRv.THREE) {
-
-				if (encodedM.receiverInstanceTag != this.getSenderInstanceTag().getValue()
-						&& !(encodedM.messageType == AbstractEncodedMessage.MESSAGE_DH_COMMIT
-						&& encodedM.receiverInstanceTag == 0))
-				{
-					// The message is not intended for us. Discarding...
-					logger.finest("Received an encoded message with receiver instance tag"
-							+ " that is different from ours, ignore this message");
-					getHost().messageFromAnotherInstanceReceived(getSessionID());
-					return null;
-				}
-
-				if (encodedM.senderInstanceTag != this.getReceiverInstanceTag().getValue()
-					&& this.getReceiverInstanceTag().getValue() != 0)
-				{
-					// Message is intended for us but is coming from a different instance.
-					// We relay this message to the appropriate session for transforming.
-
-					logger.finest("Received an encoded message from a different instance. Our buddy"
-							+ "may be logged from multiple locations."); // XXX missing a space at the string connection point
-
-					InstanceTag newReceiverTag = new InstanceTag(encodedM.senderInstanceTag);
-					synchronized (slaveSessions) {
-
-						if (!slaveSessions.containsKey(newReceiverTag)) {
-
-							final SessionImpl session =
-									new SessionImpl(sessionID,
-													getHost(),
-													getSenderInstanceTag(),
-													newReceiverTag);
-
-							if (encodedM.messageType == AbstractEncodedMessage.MESSAGE_DHKEY) {
-								session.getAuthContext().set(this.getAuthContext());
-							}
-							session.addOtrEngineListener(new OtrEngineListener() {
-								@Override
-								public void sessionStatusChanged(SessionID sessionID) {
-									for (OtrEngineListener l : listeners)
-										l.sessionStatusChanged(sessionID);
-								}
-
-								@Override
-								public void multipleInstancesDetected(SessionID sessionID) {}
-
-								@Override
-								public void outgoingSessionChanged(SessionID sessionID) {}
-							});
-
-							slaveSessions.put(newReceiverTag, session);
-
-							getHost().multipleInstancesDetected(sessionID);
-							for (OtrEngineListener l : listeners)
-								l.multipleInstancesDetected(sessionID);
-						}
-					}
-					return slaveSessions.get(newReceiverTag).transformReceiving(msgText);
-				}
-			}
+			SessionImpl session = route((AbstractEncodedMessage) m);
+			if (session == null)
+				return null;
+			if (session != this)
+				return session.transformReceiving(msgText, policy);
 		}
 
 		switch (m.messageType) {
@@ -476,6 +404,92 @@ public class SessionImpl implements Session {
 		}
 	}
 
+	/**
+	 * Find the session that should handle an encoded message received by the
+	 * master session, creating a slave session for a new instance of our
+	 * buddy.
+	 *
+	 * @return the session, or null if the message is not intended for us
+	 */
+	private SessionImpl route(AbstractEncodedMessage encodedM) throws OtrException {
+		if (encodedM.protocolVersion == OTRv.THREE) {
+
+			if (encodedM.receiverInstanceTag != this.getSenderInstanceTag().getValue()
+					&& !(encodedM.messageType == AbstractEncodedMessage.MESSAGE_DH_COMMIT
+					&& encodedM.receiverInstanceTag == 0))
+			{
+				// The message is not intended for us. Discarding...
+				logger.finest("Received an encoded message with receiver instance tag"
+						+ " that is different from ours, ignore this message");
+				getHost().messageFromAnotherInstanceReceived(getSessionID());
+				return null;
+			}
+
+			if (encodedM.senderInstanceTag != this.getReceiverInstanceTag().getValue()
+				&& this.getReceiverInstanceTag().getValue() != 0)
+			{
+				// Message is intended for us but is coming from a different instance.
+				// We relay this message to the appropriate session for transforming.
+
+				logger.finest("Received an encoded message from a different instance. Our buddy"
+						+ "may be logged from multiple locations."); // XXX missing a space at the string connection point
+
+				InstanceTag newReceiverTag = new InstanceTag(encodedM.senderInstanceTag);
+				synchronized (slaveSessions) {
+
+					if (!slaveSessions.containsKey(newReceiverTag)) {
+
+						final SessionImpl session = createSlave(newReceiverTag);
+
+						if (encodedM.messageType == AbstractEncodedMessage.MESSAGE_DHKEY) {
+							session.getAuthContext().set(this.getAuthContext());
+						}
+
+						getHost().multipleInstancesDetected(sessionID);
+						for (OtrEngineListener l : listeners)
+							l.multipleInstancesDetected(sessionID);
+					}
+				}
+				return slaveSessions.get(newReceiverTag);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Create and register the slave session for an instance of our buddy.
+	 */
+	private SessionImpl createSlave(InstanceTag receiverTag) {
+		final SessionImpl session =
+				new SessionImpl(sessionID,
+								getHost(),
+								getSenderInstanceTag(),
+								receiverTag,
+								lock);
+
+		session.setSmpExecutor(otrSm.getExecutor());
+		session.asyncExecutor = getAsyncExecutor();
+		session.setKeyPrefetchExecutor(keyPrefetchExecutor);
+		session.setMetrics(metrics);
+
+		session.addOtrEngineListener(new OtrEngineListener() {
+			@Override
+			public void sessionStatusChanged(SessionID sessionID) {
+				for (OtrEngineListener l : listeners)
+					l.sessionStatusChanged(sessionID);
+			}
+
+			@Override
+			public void multipleInstancesDetected(SessionID sessionID) {}
+
+			@Override
+			public void outgoingSessionChanged(SessionID sessionID) {}
+		});
+
+		slaveSessions.put(receiverTag, session);
+		return session;
+	}
+
 	private void sendingDHCommitMessage(final QueryMessage queryMessage, final boolean supportV1)
 			throws OtrException
 	{
@@ -510,9 +524,11 @@ public class SessionImpl implements Session {
 	private void handleQueryMessage(QueryMessage queryMessage)
 			throws OtrException
 	{
-		logger.log(Level.FINEST, "{0} received a query message from {1} through {2}.",
-				new Object[] {getSessionID().getAccountID(), getSessionID().getUserID(),
-					getSessionID().getProtocolName()});
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.log(Level.FINEST, "{0} received a query message from {1} through {2}.",
+					new Object[] {getSessionID().getAccountID(), getSessionID().getUserID(),
+						getSessionID().getProtocolName()});
+		}
 
 		sendingDHCommitMessage(queryMessage, true);
 	}
@@ -520,9 +536,11 @@ public class SessionImpl implements Session {
 	private void handleErrorMessage(ErrorMessage errorMessage)
 			throws OtrException
 	{
-		logger.log(Level.FINEST, "{0} received an error message from {1} through {2}.",
-				new Object[] {getSessionID().getAccountID(), getSessionID().getUserID(),
-					getSessionID().getProtocolName()});
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.log(Level.FINEST, "{0} received an error message from {1} through {2}.",
+					new Object[] {getSessionID().getAccountID(), getSessionID().getUserID(),
+						getSessionID().getProtocolName()});
+		}
 
 		getHost().showError(this.getSessionID(), errorMessage.error);
 
@@ -545,8 +563,54 @@ public class SessionImpl implements Session {
 	}
 
 	private String handleDataMessage(DataMessage data) throws OtrException {
-		logger.log(Level.FINEST, "{0} received a data message from {1}.",
-				new Object[] {getSessionID().getAccountID(), getSessionID().getUserID()});
+		byte[] dmc = decryptDataMessage(data);
+		if (dmc == null)
+			return null;
+
+		int length = handleTlvs(dmc);
+		if (length < 0)
+			return null;
+
+		String decryptedMsgContent;
+		try {
+			// Expect bytes to be text encoded in UTF-8.
+			decryptedMsgContent = new String(dmc, 0, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new OtrException(e);
+		}
+
+		logger.log(Level.FINEST, "Decrypted message: \"{0}\"", decryptedMsgContent);
+		return decryptedMsgContent;
+	}
+
+	private int handleDataMessage(DataMessage data, ByteBuffer out)
+			throws OtrException
+	{
+		assembler.discard();
+		offerStatus = OfferStatus.accepted;
+
+		byte[] dmc = decryptDataMessage(data);
+		if (dmc == null)
+			return -1;
+
+		int length = handleTlvs(dmc);
+		if (length < 0)
+			return -1;
+
+		out.put(dmc, 0, length);
+		return length;
+	}
+
+	/**
+	 * Verify and decrypt a data message and rotate the session keys.
+	 *
+	 * @return the decrypted message, or null if it could not be read
+	 */
+	private byte[] decryptDataMessage(DataMessage data) throws OtrException {
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.log(Level.FINEST, "{0} received a data message from {1}.",
+					new Object[] {getSessionID().getAccountID(), getSessionID().getUserID()});
+		}
 
 		switch (this.getSessionStatus()) {
 		case ENCRYPTED:
@@ -559,6 +623,7 @@ public class SessionImpl implements Session {
 
 			if (matchingKeys == null) {
 				logger.finest("No matching keys found.");
+				countUnreadable();
 				getHost().unreadableMessageReceived(this.getSessionID());
 				injectMessage(new ErrorMessage(AbstractMessage.MESSAGE_ERROR,
 						getHost().getReplyForUnreadableMessage(getSessionID())));
@@ -575,13 +640,14 @@ public class SessionImpl implements Session {
 				throw new OtrException(e);
 			}
 
-			OtrCryptoEngine otrCryptoEngine = new OtrCryptoEngineImpl();
-
-			byte[] computedMAC = otrCryptoEngine.sha1Hmac(serializedT,
-					matchingKeys.getReceivingMACKey(),
-					SerializationConstants.TYPE_LEN_MAC);
+			byte[] computedMAC = matchingKeys.getReceivingMac().mac(
+					serializedT, SerializationConstants.TYPE_LEN_MAC);
 			if (!Arrays.equals(computedMAC, data.mac)) {
 				logger.finest("MAC verification failed, ignoring message");
+				SessionMetrics m = metrics;
+				if (m != null)
+					m.macFailures.increment();
+				countUnreadable();
 				getHost().unreadableMessageReceived(this.getSessionID());
 				injectMessage(new ErrorMessage(AbstractMessage.MESSAGE_ERROR,
 						getHost().getReplyForUnreadableMessage(getSessionID())));
@@ -595,18 +661,11 @@ public class SessionImpl implements Session {
 
 			matchingKeys.setReceivingCtr(data.ctr);
 
-			byte[] dmc = otrCryptoEngine.aesDecrypt(matchingKeys
-					.getReceivingAESKey(), matchingKeys.getReceivingCtr(),
-					data.encryptedMessage);
-			String decryptedMsgContent;
-			try {
-				// Expect bytes to be text encoded in UTF-8.
-				decryptedMsgContent = new String(dmc, "UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				throw new OtrException(e);
-			}
-
-			logger.log(Level.FINEST, "Decrypted message: \"{0}\"", decryptedMsgContent);
+			byte[] dmc = matchingKeys.getReceivingCipher().decrypt(
+					matchingKeys.getReceivingCtr(), data.encryptedMessage);
+			SessionMetrics m = metrics;
+			if (m != null)
+				m.bytesDecrypted.add(dmc.length);
 
 			// Rotate keys if necessary.
 			SessionKeys mostRecent = this.getMostRecentSessionKeys();
@@ -616,94 +675,97 @@ public class SessionImpl implements Session {
 			if (mostRecent.getRemoteKeyID() == senderKeyID)
 				this.rotateRemoteSessionKeys(data.nextDH);
 
-			// Handle TLVs
-			List<TLV> tlvs = null;
-			int tlvIndex = decryptedMsgContent.indexOf((char) 0x0);
-			if (tlvIndex > -1) {
-				decryptedMsgContent = decryptedMsgContent
-						.substring(0, tlvIndex);
-				tlvIndex++;
-				byte[] tlvsb = new byte[dmc.length - tlvIndex];
-				System.arraycopy(dmc, tlvIndex, tlvsb, 0, tlvsb.length);
-
-				tlvs = new LinkedList<TLV>();
-				ByteArrayInputStream tin = new ByteArrayInputStream(tlvsb);
-				while (tin.available() > 0) {
-					int type;
-					byte[] tdata;
-					OtrInputStream eois = new OtrInputStream(tin);
-					try {
-						type = eois.readShort();
-						tdata = eois.readTlvData();
-						eois.close();
-					} catch (IOException e) {
-						throw new OtrException(e);
-					}
-
-					tlvs.add(new TLV(type, tdata));
-				}
-			}
-			if (tlvs != null && tlvs.size() > 0) {
-				for (TLV tlv : tlvs) {
-					switch (tlv.getType()) {
-					case TLV.DISCONNECTED:
-						this.setSessionStatus(SessionStatus.FINISHED);
-						return null;
-					default:
-						if (otrSm.doProcessTlv(tlv))
-							return null;
-					}
-				}
-			}
-			return decryptedMsgContent;
+			return dmc;
 
 		case FINISHED:
 		case PLAINTEXT:
+			countUnreadable();
 			getHost().unreadableMessageReceived(this.getSessionID());
 			injectMessage(new ErrorMessage(AbstractMessage.MESSAGE_ERROR,
 					getHost().getReplyForUnreadableMessage(getSessionID())));
-			break;
+			return null;
 		default:
 			throw new UnsupportedOperationException("What to do for this state?");
 		}
+	}
 
-		return null;
+	private void countUnreadable() {
+		SessionMetrics m = metrics;
+		if (m != null)
+			m.unreadableMessages.increment();
 	}
 
-	@Override
-	public void injectMessage(AbstractMessage m) throws OtrException {
-		String msg;
-		try {
-			msg = SerializationUtils.toString(m);
-		} catch (IOException e) {
-			throw new OtrException(e);
+	/**
+	 * Handle the TLVs that follow the message text of a decrypted data
+	 * message.
+	 *
+	 * @return the length of the message text, or -1 if a TLV consumed the
+	 *         message
+	 */
+	private int handleTlvs(byte[] dmc) throws OtrException {
+		int textLength = TlvReader.textLength(dmc);
+		TlvReader tlvs = new TlvReader(dmc, textLength);
+		while (tlvs.next()) {
+			switch (tlvs.type()) {
+			case TLV.DISCONNECTED:
+				this.setSessionStatus(SessionStatus.FINISHED);
+				return -1;
+			case TLV.SMP1:
+			case TLV.SMP2:
+			case TLV.SMP3:
+			case TLV.SMP4:
+			case TLV.SMP_ABORT:
+			case TLV.SMP1Q:
+				// Only the SMP steps need the value on its own.
+				if (otrSm.doProcessTlv(tlvs.toTLV()))
+					return -1;
+				break;
+			default:
+				// Padding and unknown TLVs are ignored.
+			}
 		}
-		if (m instanceof QueryMessage)
-			msg += getHost().getFallbackMessage(getSessionID());
+		return textLength;
+	}
 
-		if (SerializationUtils.otrEncoded(msg)) {
-			// Content is OTR encoded, so we are allowed to partition.
-			String[] fragments;
+	@Override
+	public void injectMessage(AbstractMessage m) throws OtrException {
+		synchronized (lock) {
+			awaitStream();
+			String msg;
 			try {
-				fragments = this.fragmenter.fragment(msg);
-				for (String fragment : fragments) {
-					getHost().injectMessage(getSessionID(), fragment);
-				}
+				msg = SerializationUtils.toString(m);
 			} catch (IOException e) {
-				logger.warning("Failed to fragment message according to provided instructions.");
 				throw new OtrException(e);
 			}
-		} else {
-			getHost().injectMessage(getSessionID(), msg);
+			if (m instanceof QueryMessage)
+				msg += getHost().getFallbackMessage(getSessionID());
+
+			if (SerializationUtils.otrEncoded(msg)) {
+				// Content is OTR encoded, so we are allowed to partition.
+				String[] fragments;
+				try {
+					fragments = this.fragmenter.fragment(msg);
+					for (String fragment : fragments) {
+						getHost().injectMessage(getSessionID(), fragment);
+					}
+				} catch (IOException e) {
+					logger.warning("Failed to fragment message according to provided instructions.");
+					throw new OtrException(e);
+				}
+			} else {
+				getHost().injectMessage(getSessionID(), msg);
+			}
 		}
 	}
 
 	private String handlePlainTextMessage(PlainTextMessage plainTextMessage)
 			throws OtrException
 	{
-		logger.log(Level.FINEST, "{0} received a plaintext message from {1} through {2}.",
-				new Object[] {getSessionID().getAccountID(), getSessionID().getUserID(),
-					getSessionID().getProtocolName()});
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.log(Level.FINEST, "{0} received a plaintext message from {1} through {2}.",
+					new Object[] {getSessionID().getAccountID(), getSessionID().getUserID(),
+						getSessionID().getProtocolName()});
+		}
 
 		OtrPolicy policy = getSessionPolicy();
 		List<Integer> versions = plainTextMessage.versions;
@@ -774,185 +836,871 @@ public class SessionImpl implements Session {
 	public String[] transformSending(String msgText, List<TLV> tlvs)
 			throws OtrException
 	{
-		if (isMasterSession && this.slaveSessions.isSelected()
-				&& getProtocolVersion() == OTRv.THREE)
-		{
-			return this.slaveSessions.getSelected().transformSending(msgText, tlvs);
+		SessionMetrics m = metrics;
+		if (m == null)
+			return sendText(msgText, tlvs);
+		long start = System.nanoTime();
+		try {
+			return sendText(msgText, tlvs);
+		} finally {
+			m.sendLatency.record(System.nanoTime() - start);
 		}
+	}
 
-		switch (this.getSessionStatus()) {
-		case PLAINTEXT:
-			OtrPolicy otrPolicy = getSessionPolicy();
-			if (otrPolicy.getRequireEncryption()) {
-				this.startSession();
-				getHost().requireEncryptedMessage(sessionID, msgText);
-				return null;
-			} else {
-				if (otrPolicy.getSendWhitespaceTag()
-						&& offerStatus != OfferStatus.rejected)
-				{
-					offerStatus = OfferStatus.sent;
-					List<Integer> versions = new ArrayList<Integer>(3);
-					if (otrPolicy.getAllowV1())
-						versions.add(OTRv.ONE);
-					if (otrPolicy.getAllowV2())
-						versions.add(OTRv.TWO);
-					if (otrPolicy.getAllowV3())
-						versions.add(OTRv.THREE);
-					if (versions.isEmpty())
-						versions = null;
-					AbstractMessage abstractMessage = new PlainTextMessage(
-							versions, msgText);
-					try {
-						return new String[] {SerializationUtils.toString(abstractMessage)};
-					} catch (IOException e) {
-						throw new OtrException(e);
-					}
+	/**
+	 * {@link #transformSending(String, List)}, without recording its latency
+	 * for the other transforms that fall back to it.
+	 */
+	private String[] sendText(String msgText, List<TLV> tlvs)
+			throws OtrException
+	{
+		synchronized (lock) {
+			awaitStream();
+			checkNotDiscarded();
+			lastActivity = System.nanoTime();
+			if (isMasterSession && this.slaveSessions.isSelected()
+					&& getProtocolVersion() == OTRv.THREE)
+			{
+				return this.slaveSessions.getSelected().sendText(msgText, tlvs);
+			}
+
+			switch (this.getSessionStatus()) {
+			case PLAINTEXT:
+				OtrPolicy otrPolicy = getSessionPolicy();
+				if (otrPolicy.getRequireEncryption()) {
+					this.startSession();
+					getHost().requireEncryptedMessage(sessionID, msgText);
+					return null;
 				} else {
-					return new String[] {msgText};
+					if (otrPolicy.getSendWhitespaceTag()
+							&& offerStatus != OfferStatus.rejected)
+					{
+						offerStatus = OfferStatus.sent;
+						List<Integer> versions = new ArrayList<Integer>(3);
+						if (otrPolicy.getAllowV1())
+							versions.add(OTRv.ONE);
+						if (otrPolicy.getAllowV2())
+							versions.add(OTRv.TWO);
+						if (otrPolicy.getAllowV3())
+							versions.add(OTRv.THREE);
+						if (versions.isEmpty())
+							versions = null;
+						AbstractMessage abstractMessage = new PlainTextMessage(
+								versions, msgText);
+						try {
+							return new String[] {SerializationUtils.toString(abstractMessage)};
+						} catch (IOException e) {
+							throw new OtrException(e);
+						}
+					} else {
+						return new String[] {msgText};
+					}
+				}
+			case ENCRYPTED:
+				if (logger.isLoggable(Level.FINEST)) {
+					logger.log(Level.FINEST, "{0} sends an encrypted message to {1} through {2}.",
+							new Object[] {getSessionID().getAccountID(), getSessionID().getUserID(),
+								getSessionID().getProtocolName()});
+				}
+				final String completeMessage = this.dataMessageWriter.write(
+						this.protocolVersion, getSenderInstanceTag().getValue(),
+						getReceiverInstanceTag().getValue(), this.getEncryptionSessionKeys(),
+						(DHPublicKey) this.getMostRecentSessionKeys().getLocalPair().getPublic(),
+						this.sessionKeys, msgText, tlvs);
+				try {
+					return this.fragmenter.fragment(completeMessage);
+				} catch (IOException e) {
+					throw new OtrException(e);
 				}
+			case FINISHED:
+				getHost().finishedSessionMessage(sessionID, msgText);
+				return null;
+			default:
+				logger.finest("Uknown message state, not processing.");
+				return new String[] {msgText};
 			}
-		case ENCRYPTED:
-			logger.log(Level.FINEST, "{0} sends an encrypted message to {1} through {2}.",
-					new Object[] {getSessionID().getAccountID(), getSessionID().getUserID(),
-						getSessionID().getProtocolName()});
+		}
+	}
+
+	@Override
+	public int transformSending(ByteBuffer content, List<TLV> tlvs, CharBuffer out)
+			throws OtrException
+	{
+		synchronized (lock) {
+			awaitStream();
+			checkNotDiscarded();
+			lastActivity = System.nanoTime();
+			if (isMasterSession && this.slaveSessions.isSelected()
+					&& getProtocolVersion() == OTRv.THREE)
+			{
+				return this.slaveSessions.getSelected().transformSending(content, tlvs, out);
+			}
+
+			if (this.getSessionStatus() != SessionStatus.ENCRYPTED) {
+				// Check the room in out before the message changes any
+				// state: the text may get a whitespace tag, but is never
+				// fragmented.
+				String text = UTF8.decode(content.duplicate()).toString();
+				if (out.remaining() < text.length() + MAX_WHITESPACE_TAG_LENGTH)
+					throw new BufferOverflowException();
+				content.position(content.limit());
+				return put(sendText(text, tlvs), out);
+			}
+
+			// Likewise, work out the length of the encoded message from the
+			// payload, the next D-H public key and the old MAC keys before
+			// the counter is incremented or the old MAC keys are revealed.
+			DHPublicKey nextDH = (DHPublicKey) this.getMostRecentSessionKeys()
+					.getLocalPair().getPublic();
+			int length = SerializationUtils.encodedLength(DataMessageWriter.length(
+					this.protocolVersion, (nextDH.getY().bitLength() + 7) / 8,
+					DataMessageWriter.dataLength(content.remaining(), tlvs),
+					this.sessionKeys.oldMacKeysLength()));
+			if (!this.fragmenter.fits(length))
+				throw new IllegalArgumentException("The message needs "
+						+ "fragmenting; send it as a String or a stream.");
+			if (out.remaining() < length)
+				throw new BufferOverflowException();
+
+			byte[] message;
+			try {
+				message = SerializationUtils.toByteArray(
+						createDataMessage(encodePayload(content, tlvs)));
+			} catch (IOException e) {
+				throw new OtrException(e);
+			}
+			SerializationUtils.writeEncoded(message, out);
+			return 1;
+		}
+	}
 
-			// Get encryption keys.
+	@Override
+	public FragmentIterator transformSending(InputStream content, int length)
+			throws OtrException
+	{
+		synchronized (lock) {
+			awaitStream();
+			checkNotDiscarded();
+			lastActivity = System.nanoTime();
+			if (isMasterSession && this.slaveSessions.isSelected()
+					&& getProtocolVersion() == OTRv.THREE)
+			{
+				return this.slaveSessions.getSelected().transformSending(content, length);
+			}
+
+			try {
+				if (this.getSessionStatus() != SessionStatus.ENCRYPTED) {
+					byte[] b = new byte[length];
+					new DataInputStream(content).readFully(b);
+					content.close();
+					return iterate(sendText(new String(b, "UTF-8"), null));
+				}
+
+				if (logger.isLoggable(Level.FINEST)) {
+					logger.log(Level.FINEST, "{0} streams an encrypted message to {1} through {2}.",
+							new Object[] {getSessionID().getAccountID(), getSessionID().getUserID(),
+								getSessionID().getProtocolName()});
+				}
+
+				// Take everything the message needs from the session now, so
+				// that the fragments can be produced without the lock.
+				SessionKeys encryptionKeys = this.getEncryptionSessionKeys();
+				encryptionKeys.incrementSendingCtr();
+				byte[] ctr = encryptionKeys.getSendingCtr().clone();
+				DHPublicKey nextDH = (DHPublicKey) this.getMostRecentSessionKeys()
+						.getLocalPair().getPublic();
+
+				// Serialize T with an empty message and fill in its length.
+				MysteriousT t =
+						new MysteriousT(this.protocolVersion, getSenderInstanceTag().getValue(),
+								getReceiverInstanceTag().getValue(), 0,
+								encryptionKeys.getLocalKeyID(), encryptionKeys.getRemoteKeyID(),
+								nextDH, ctr, new byte[0]);
+				byte[] header = SerializationUtils.toByteArray(t);
+				for (int i = 1; i <= 4; i++)
+					header[header.length - i] = (byte) (length >>> (8 * (i - 1)));
+
+				byte[] oldKeys = this.collectOldMacKeys();
+				OtrMacContext mac = OtrCryptoEngines.getEngine().createSha1HmacContext(
+						encryptionKeys.getSendingMACKey());
+				InputStream message = new DataMessageInputStream(header, content, length,
+						encryptionKeys.getSendingCipher(), ctr, mac, oldKeys);
+				int messageLength = header.length + length + SerializationConstants.TYPE_LEN_MAC
+						+ SerializationConstants.DATA_LEN + oldKeys.length;
+				SessionMetrics m = metrics;
+				if (m != null)
+					m.bytesEncrypted.add(length);
+				FragmentIterator fragments = this.fragmenter.fragment(
+						new EncodedMessageReader(message),
+						SerializationUtils.encodedLength(messageLength));
+				if (fragments.size() == 1)
+					return fragments;
+				lock.streaming = true;
+				return new StreamedFragments(fragments);
+			} catch (IOException e) {
+				throw new OtrException(e);
+			}
+		}
+	}
+
+	@Override
+	public FragmentIterator transformSending(ReadableByteChannel content, int length)
+			throws OtrException
+	{
+		return transformSending(Channels.newInputStream(content), length);
+	}
+
+	/**
+	 * The lock of a conversation, which also tells whether the fragments of
+	 * a message streamed by {@link SessionImpl#transformSending(InputStream, int)}
+	 * are being taken.
+	 */
+	private static final class ConversationLock {
+		boolean streaming;
+	}
+
+	/**
+	 * Wait until the fragments of a streamed message are all taken or the
+	 * iterator is closed, as the peer drops a fragmented message when any
+	 * other message comes in between. Called with the lock held, before the
+	 * operation changes any state.
+	 */
+	private void awaitStream() throws OtrException {
+		try {
+			while (lock.streaming)
+				lock.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OtrException(e);
+		}
+	}
+
+	/**
+	 * The fragments of a streamed message, which let the other operations on
+	 * the conversation go ahead once they are all taken, taking one fails or
+	 * the iterator is closed.
+	 */
+	private final class StreamedFragments implements FragmentIterator {
+
+		private final FragmentIterator fragments;
+
+		/** Guarded by the lock. */
+		private boolean closed;
+
+		StreamedFragments(FragmentIterator fragments) {
+			this.fragments = fragments;
+		}
+
+		@Override
+		public int size() {
+			return fragments.size();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return fragments.hasNext();
+		}
+
+		@Override
+		public String next() throws OtrException {
+			boolean done = true;
+			try {
+				String fragment = fragments.next();
+				done = !fragments.hasNext();
+				return fragment;
+			} finally {
+				if (done)
+					close();
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized (lock) {
+				if (closed)
+					return;
+				closed = true;
+				lock.streaming = false;
+				lock.notifyAll();
+			}
+			fragments.close();
+		}
+	}
+
+	private static FragmentIterator iterate(final String[] fragments) {
+		return new FragmentIterator() {
+
+			private int count;
+
+			@Override
+			public int size() {
+				return fragments == null ? 0 : fragments.length;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return count < size();
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return fragments[count++];
+			}
+
+			@Override
+			public void close() {
+				count = size();
+			}
+		};
+	}
+
+	@Override
+	public List<String[]> transformSending(List<String> contents)
+			throws OtrException
+	{
+		synchronized (lock) {
+			awaitStream();
+			checkNotDiscarded();
+			lastActivity = System.nanoTime();
+			if (isMasterSession && this.slaveSessions.isSelected()
+					&& getProtocolVersion() == OTRv.THREE)
+			{
+				return this.slaveSessions.getSelected().transformSending(contents);
+			}
+
+			List<String[]> messages = new ArrayList<String[]>(contents.size());
+			if (this.getSessionStatus() != SessionStatus.ENCRYPTED) {
+				for (String content : contents)
+					messages.add(sendText(content, null));
+				return messages;
+			}
+
+			if (logger.isLoggable(Level.FINEST)) {
+				logger.log(Level.FINEST, "{0} sends {1} encrypted messages to {2} through {3}.",
+						new Object[] {getSessionID().getAccountID(), contents.size(),
+							getSessionID().getUserID(), getSessionID().getProtocolName()});
+			}
+
+			// Sending does not rotate keys, so the keys, the next D-H public
+			// key and the fragmenter instructions hold for the whole batch.
 			SessionKeys encryptionKeys = this.getEncryptionSessionKeys();
-			int senderKeyID = encryptionKeys.getLocalKeyID();
-			int receipientKeyID = encryptionKeys.getRemoteKeyID();
+			DHPublicKey nextDH = (DHPublicKey) this.getMostRecentSessionKeys()
+					.getLocalPair().getPublic();
+			FragmenterInstructions instructions = this.fragmenter.getInstructions();
+			for (String content : contents) {
+				try {
+					String m = this.dataMessageWriter.write(this.protocolVersion,
+							getSenderInstanceTag().getValue(),
+							getReceiverInstanceTag().getValue(), encryptionKeys, nextDH,
+							this.sessionKeys, content, null);
+					messages.add(this.fragmenter.fragment(m, instructions));
+				} catch (IOException e) {
+					throw new OtrException(e);
+				}
+			}
+			return messages;
+		}
+	}
 
-			// Increment CTR.
-			encryptionKeys.incrementSendingCtr();
-			byte[] ctr = encryptionKeys.getSendingCtr();
+	@Override
+	public List<String> transformReceiving(List<String> contents)
+			throws OtrException
+	{
+		synchronized (lock) {
+			awaitStream();
+			checkNotDiscarded();
+			lastActivity = System.nanoTime();
+			OtrPolicy policy = getSessionPolicy();
+			List<String> messages = new ArrayList<String>(contents.size());
+			for (String content : contents)
+				messages.add(transformReceiving(content, policy));
+			return messages;
+		}
+	}
+
+	private static int put(String[] messages, CharBuffer out) {
+		if (messages == null)
+			return 0;
+		int length = 0;
+		for (String message : messages)
+			length += message.length();
+		if (out.remaining() < length)
+			throw new BufferOverflowException();
+		for (String message : messages)
+			out.put(message);
+		return messages.length;
+	}
 
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			if (msgText != null && msgText.length() > 0)
+	@Override
+	public int transformReceiving(CharBuffer content, ByteBuffer out)
+			throws OtrException
+	{
+		synchronized (lock) {
+			awaitStream();
+			checkNotDiscarded();
+			lastActivity = System.nanoTime();
+			OtrPolicy policy = getSessionPolicy();
+			AbstractEncodedMessage m = null;
+			if (policy.getAllowV1() || policy.getAllowV2() || policy.getAllowV3()) {
 				try {
-					out.write(msgText.getBytes("UTF8"));
+					m = SerializationUtils.toEncodedMessage(content);
 				} catch (IOException e) {
 					throw new OtrException(e);
 				}
+			}
 
-			// Append tlvs
-			if (tlvs != null && tlvs.size() > 0) {
-				out.write((byte) 0x00);
-
-				OtrOutputStream eoos = new OtrOutputStream(out);
-				for (TLV tlv : tlvs) {
-					try {
-						eoos.writeShort(tlv.type);
-						eoos.writeTlvData(tlv.value);
-					} catch (IOException e) {
-						throw new OtrException(e);
-					}
+			if (!(m instanceof DataMessage)) {
+				// Anything but a complete data message takes the String path,
+				// which shows at most the message itself or, when it completes
+				// a fragmented message, the text of the assembled message, so
+				// check the room in out before it changes any state.
+				String msgText = content.toString();
+				if (out.remaining() < DataMessageWriter.utf8Length(msgText)
+						+ 3 * assembler.length())
+					throw new BufferOverflowException();
+				String text = transformReceiving(msgText, policy);
+				content.position(content.limit());
+				if (text == null)
+					return -1;
+				byte[] b;
+				try {
+					b = text.getBytes("UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					throw new OtrException(e);
 				}
+				out.put(b);
+				return b.length;
+			}
+
+			// The message text is never longer than the encrypted message, so
+			// check the room in out before the message changes any state.
+			DataMessage data = (DataMessage) m;
+			if (out.remaining() < data.encryptedMessage.length)
+				throw new BufferOverflowException();
+			content.position(content.limit());
+
+			SessionImpl session = this;
+			if (isMasterSession) {
+				assembler.discard();
+				offerStatus = OfferStatus.accepted;
+				session = route(data);
+				if (session == null)
+					return -1;
+			}
+			return session.handleDataMessage(data, out);
+		}
+	}
+
+	/**
+	 * Encode the plaintext of a data message: the message text followed, if
+	 * there are any TLVs, by a NUL byte and the TLVs.
+	 */
+	private static byte[] encodePayload(ByteBuffer content, List<TLV> tlvs) {
+		int textLength = content.remaining();
+		int length = DataMessageWriter.dataLength(textLength, tlvs);
+
+		byte[] data = new byte[length];
+		content.get(data, 0, textLength);
+		if (length > textLength) {
+			int offset = textLength + 1;
+			for (TLV tlv : tlvs) {
+				int valueLength = tlv.value == null ? 0 : tlv.value.length;
+				data[offset++] = (byte) (tlv.type >>> 8);
+				data[offset++] = (byte) tlv.type;
+				data[offset++] = (byte) (valueLength >>> 8);
+				data[offset++] = (byte) valueLength;
+				if (valueLength > 0)
+					System.arraycopy(tlv.value, 0, data, offset, valueLength);
+				offset += valueLength;
 			}
+		}
+		return data;
+	}
+
+	/**
+	 * Encrypt and authenticate the plaintext of a data message with the
+	 * current encryption keys.
+	 */
+	private DataMessage createDataMessage(byte[] data) throws OtrException {
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.log(Level.FINEST, "{0} sends an encrypted message to {1} through {2}.",
+					new Object[] {getSessionID().getAccountID(), getSessionID().getUserID(),
+						getSessionID().getProtocolName()});
+		}
 
-			OtrCryptoEngine otrCryptoEngine = new OtrCryptoEngineImpl();
+		// Get encryption keys and the next D-H public key.
+		return createDataMessage(this.getEncryptionSessionKeys(),
+				(DHPublicKey) this.getMostRecentSessionKeys().getLocalPair().getPublic(),
+				data);
+	}
 
-			byte[] data = out.toByteArray();
-			// Encrypt message.
+	/**
+	 * Encrypt and authenticate the plaintext of a data message. The keys only
+	 * change when a message is received, so they may be looked up once for
+	 * several messages; each message still gets its own counter.
+	 */
+	private DataMessage createDataMessage(SessionKeys encryptionKeys,
+			DHPublicKey nextDH, byte[] data) throws OtrException
+	{
+		int senderKeyID = encryptionKeys.getLocalKeyID();
+		int receipientKeyID = encryptionKeys.getRemoteKeyID();
+
+		// Increment CTR.
+		encryptionKeys.incrementSendingCtr();
+		byte[] ctr = encryptionKeys.getSendingCtr();
+
+		// Encrypt message.
+		if (logger.isLoggable(Level.FINEST)) {
 			logger.log(Level.FINEST,
 					"Encrypting message with keyids (localKeyID, remoteKeyID) = ({0}, {1})",
 					new Object[] {senderKeyID, receipientKeyID});
-			byte[] encryptedMsg = otrCryptoEngine.aesEncrypt(encryptionKeys
-					.getSendingAESKey(), ctr, data);
+		}
+		SessionMetrics metrics = this.metrics;
+		if (metrics != null)
+			metrics.bytesEncrypted.add(data.length);
+		byte[] encryptedMsg = encryptionKeys.getSendingCipher().encrypt(
+				ctr, data);
+
+		// Calculate T.
+		MysteriousT t =
+				new MysteriousT(this.protocolVersion, getSenderInstanceTag().getValue(),
+						getReceiverInstanceTag().getValue(),
+						0, senderKeyID, receipientKeyID, nextDH, ctr, encryptedMsg);
+
+		// Calculate T hash.
+		logger
+				.finest("Transforming T to byte[] to calculate it's HmacSHA1.");
+		byte[] serializedT;
+		try {
+			serializedT = SerializationUtils.toByteArray(t);
+		} catch (IOException e) {
+			throw new OtrException(e);
+		}
 
-			// Get most recent keys to get the next D-H public key.
-			SessionKeys mostRecentKeys = this.getMostRecentSessionKeys();
-			DHPublicKey nextDH = (DHPublicKey) mostRecentKeys.getLocalPair()
-					.getPublic();
+		byte[] mac = encryptionKeys.getSendingMac().mac(serializedT,
+				SerializationConstants.TYPE_LEN_MAC);
 
-			// Calculate T.
-			MysteriousT t =
-					new MysteriousT(this.protocolVersion, getSenderInstanceTag().getValue(),
-							getReceiverInstanceTag().getValue(),
-							0, senderKeyID, receipientKeyID, nextDH, ctr, encryptedMsg);
+		// Get old MAC keys to be revealed.
+		byte[] oldKeys = this.collectOldMacKeys();
+		DataMessage m = new DataMessage(t, mac, oldKeys);
+		m.senderInstanceTag = getSenderInstanceTag().getValue();
+		m.receiverInstanceTag = getReceiverInstanceTag().getValue();
+		return m;
+	}
 
-			// Calculate T hash.
-			byte[] sendingMACKey = encryptionKeys.getSendingMACKey();
+	/**
+	 * @param unit the unit of the result
+	 * @return the time since the host last transformed a message with this
+	 *         session or asked it to start, end or refresh itself or to run
+	 *         the SMP
+	 */
+	public long getIdleTime(TimeUnit unit) {
+		return unit.convert(System.nanoTime() - lastActivity, TimeUnit.NANOSECONDS);
+	}
 
-			logger
-					.finest("Transforming T to byte[] to calculate it's HmacSHA1.");
-			byte[] serializedT;
-			try {
-				serializedT = SerializationUtils.toByteArray(t);
-			} catch (IOException e) {
-				throw new OtrException(e);
+	/**
+	 * Zero the key material of this session and its slave sessions, and
+	 * forget any SMP exchange and partly received message in progress, for
+	 * a session that is discarded. Nothing is done if this session or one of
+	 * its slave sessions is encrypted or in the middle of an AKE. Once
+	 * wiped, the session must not be used: its transforms and the calls to
+	 * start, end or refresh it or to run the SMP throw an OtrException.
+	 *
+	 * @return false if the session is encrypted or in the middle of an AKE
+	 *         and was left alone
+	 */
+	public boolean wipe() {
+		synchronized (lock) {
+			if (isInUse())
+				return false;
+			discard();
+			return true;
+		}
+	}
+
+	/**
+	 * @return true if this session or one of its slave sessions is encrypted
+	 *         or in the middle of an AKE, so that {@link #wipe()} leaves it
+	 *         alone
+	 */
+	public boolean isInUse() {
+		synchronized (lock) {
+			if (isInstanceInUse())
+				return true;
+			for (SessionImpl slave : slaveSessions.values()) {
+				if (slave.isInstanceInUse())
+					return true;
 			}
+			return false;
+		}
+	}
 
-			byte[] mac = otrCryptoEngine.sha1Hmac(serializedT, sendingMACKey,
-					SerializationConstants.TYPE_LEN_MAC);
+	private boolean isInstanceInUse() {
+		return sessionStatus == SessionStatus.ENCRYPTED
+				|| (authContext != null
+					&& authContext.getAuthenticationState() != AuthContext.NONE);
+	}
 
-			// Get old MAC keys to be revealed.
-			byte[] oldKeys = this.collectOldMacKeys();
-			DataMessage m = new DataMessage(t, mac, oldKeys);
-			m.senderInstanceTag = getSenderInstanceTag().getValue();
-			m.receiverInstanceTag = getReceiverInstanceTag().getValue();
+	/**
+	 * Wipe the keys of this session and its slave sessions, whatever their
+	 * state, and mark them discarded as {@link #wipe()} does, for a session
+	 * that is replaced by one restored from a snapshot.
+	 */
+	public void discard() {
+		synchronized (lock) {
+			for (SessionImpl slave : slaveSessions.values()) {
+				slave.wipeKeys();
+				slave.discarded = true;
+			}
+			wipeKeys();
+			discarded = true;
+		}
+	}
 
-			try {
-				final String completeMessage = SerializationUtils.toString(m);
-				return this.fragmenter.fragment(completeMessage);
-			} catch (IOException e) {
-				throw new OtrException(e);
+	/**
+	 * @throws OtrException if the session was wiped or exported
+	 */
+	private void checkNotDiscarded() throws OtrException {
+		if (discarded)
+			throw new OtrException(new IllegalStateException(
+					"The session was wiped or exported."));
+	}
+
+	private void wipeKeys() {
+		sessionKeys.wipe();
+		dataMessageWriter.wipe();
+		if (authContext != null)
+			authContext.reset();
+		otrSm.reset();
+		assembler.discard();
+		ess = null;
+	}
+
+	/**
+	 * Export the state of this session and its slave sessions, sealed under a
+	 * key of the host, so that the session can be restored with
+	 * {@link #importState(byte[], byte[], OtrEngineHost)} after a restart or
+	 * on another node instead of running the AKE again. The snapshot holds
+	 * the session status, the instance tags, the protocol version and, for
+	 * encrypted sessions, the session keys with their counters and the MAC
+	 * keys yet to be revealed. An AKE or SMP exchange in progress is not
+	 * part of it and starts over after the import.
+	 * <p>
+	 * Only the master session can be exported. Its keys are wiped and it is
+	 * marked discarded as by {@link #wipe()}, so that it cannot repeat the
+	 * counters of the restored session.
+	 * <p>
+	 * <b>A snapshot must be destroyed once it was imported.</b> Each import
+	 * skips the sending counters ahead by a random amount, so that restoring
+	 * the same snapshot twice does not reuse keystream, but both copies
+	 * would still speak for the same session.
+	 *
+	 * @param key the key to seal the snapshot under, of at least 16 bytes
+	 * @return the sealed snapshot
+	 */
+	public byte[] exportState(byte[] key) throws OtrException {
+		if (!isMasterSession)
+			throw new IllegalStateException("Only the master session can be exported.");
+
+		Buffer buffer = new Buffer();
+		try {
+			synchronized (lock) {
+				checkNotDiscarded();
+				OtrOutputStream out = new OtrOutputStream(buffer);
+				writeString(out, sessionID.getAccountID());
+				writeString(out, sessionID.getUserID());
+				writeString(out, sessionID.getProtocolName());
+				out.writeInt(senderTag.getValue());
+				out.writeInt(protocolVersion);
+				out.writeByte(offerStatus.ordinal());
+				writeInstance(out);
+				List<SessionImpl> slaves = new ArrayList<SessionImpl>(slaveSessions.values());
+				out.writeInt(slaves.size());
+				for (SessionImpl slave : slaves)
+					slave.writeInstance(out);
+				SessionImpl selected = slaveSessions.isSelected() ? slaveSessions.getSelected() : this;
+				out.writeInt(selected.getReceiverInstanceTag().getValue());
+				byte[] snapshot = SessionSnapshot.seal(buffer.array(), buffer.size(), key);
+				discard();
+				return snapshot;
 			}
-		case FINISHED:
-			getHost().finishedSessionMessage(sessionID, msgText);
-			return null;
-		default:
-			logger.finest("Uknown message state, not processing.");
-			return new String[] {msgText};
+		} catch (IOException e) {
+			throw new OtrException(e);
+		} finally {
+			buffer.wipe();
+		}
+	}
+
+	/**
+	 * Restore a session from a snapshot of {@link #exportState(byte[])}. The
+	 * session is not registered anywhere; see
+	 * {@link net.java.otr4j.OtrSessionManagerImpl#importSession(byte[], byte[])}.
+	 * <p>
+	 * <b>The snapshot must be destroyed once it was imported.</b> The sending
+	 * counters are skipped ahead by a random amount, so that a snapshot that
+	 * is restored twice by mistake does not reuse keystream.
+	 *
+	 * @param snapshot the sealed snapshot
+	 * @param key the key the snapshot was sealed under
+	 * @param host the host of the restored session
+	 * @return the restored session
+	 * @throws OtrException if the snapshot was sealed under another key, was
+	 *             tampered with or cannot be read
+	 */
+	public static SessionImpl importState(byte[] snapshot, byte[] key,
+			OtrEngineHost host) throws OtrException
+	{
+		byte[] state = SessionSnapshot.open(snapshot, key);
+		try {
+			OtrInputStream in = new OtrInputStream(new ByteArrayInputStream(state));
+			SessionID sessionID = new SessionID(readString(in), readString(in),
+					readString(in));
+			SessionImpl session = new SessionImpl(sessionID, host,
+					new InstanceTag(in.readInt()));
+			synchronized (session.lock) {
+				session.protocolVersion = in.readInt();
+				session.offerStatus = OfferStatus.values()[in.readByte()];
+				session.readInstance(in);
+				for (int slaves = in.readInt(); slaves > 0; slaves--) {
+					InstanceTag receiverTag = new InstanceTag(in.readInt());
+					session.createSlave(receiverTag).readInstance(in);
+				}
+				InstanceTag selected = new InstanceTag(in.readInt());
+				if (session.slaveSessions.containsKey(selected))
+					session.slaveSessions.select(selected);
+			}
+			return session;
+		} catch (IOException e) {
+			throw new OtrException(e);
+		} catch (RuntimeException e) {
+			// Out of range values in a snapshot that passed the MAC check.
+			throw new OtrException(e);
+		} finally {
+			Arrays.fill(state, (byte) 0);
+		}
+	}
+
+	/**
+	 * Write the state of this instance, starting with its receiver instance
+	 * tag, which {@link #importState} reads before {@link #readInstance}.
+	 */
+	private void writeInstance(OtrOutputStream out) throws IOException {
+		out.writeInt(receiverInstanceTag.getValue());
+		out.writeByte(sessionStatus.ordinal());
+		out.writeByte(ess == null ? 0 : 1);
+		if (ess != null)
+			out.writeBigInt(ess);
+		out.writeByte(remotePublicKey == null ? 0 : 1);
+		if (remotePublicKey != null)
+			out.writePublicKey(remotePublicKey);
+		if (sessionStatus == SessionStatus.ENCRYPTED)
+			sessionKeys.write(out);
+	}
+
+	private void readInstance(OtrInputStream in) throws IOException {
+		if (isMasterSession)
+			receiverInstanceTag = new InstanceTag(in.readInt());
+		sessionStatus = SessionStatus.values()[in.readByte()];
+		if (in.readByte() != 0)
+			ess = in.readBigInt();
+		if (in.readByte() != 0)
+			remotePublicKey = in.readPublicKey();
+		if (sessionStatus == SessionStatus.ENCRYPTED)
+			sessionKeys.read(in);
+	}
+
+	private static void writeString(OtrOutputStream out, String s) throws IOException {
+		out.writeByte(s == null ? 0 : 1);
+		if (s != null)
+			out.writeData(s.getBytes(UTF8));
+	}
+
+	private static String readString(OtrInputStream in) throws IOException {
+		return in.readByte() == 0 ? null : new String(in.readData(), UTF8);
+	}
+
+	/**
+	 * Output stream whose buffer is read in place and zeroed once the
+	 * snapshot is sealed.
+	 */
+	private static final class Buffer extends ByteArrayOutputStream {
+		Buffer() {
+			super(1024);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+
+		void wipe() {
+			Arrays.fill(buf, (byte) 0);
 		}
 	}
 
 	@Override
 	public void startSession() throws OtrException {
-		if (this.slaveSessions.isSelected() && getProtocolVersion() == OTRv.THREE) {
-			this.slaveSessions.getSelected().startSession();
-			return;
-		}
-		if (this.getSessionStatus() == SessionStatus.ENCRYPTED)
-			return;
+		synchronized (lock) {
+			awaitStream();
+			checkNotDiscarded();
+			lastActivity = System.nanoTime();
+			if (this.slaveSessions.isSelected() && getProtocolVersion() == OTRv.THREE) {
+				this.slaveSessions.getSelected().startSession();
+				return;
+			}
+			if (this.getSessionStatus() == SessionStatus.ENCRYPTED)
+				return;
 
-		if (!getSessionPolicy().getAllowV2() && !getSessionPolicy().getAllowV3())
-			throw new UnsupportedOperationException();
+			if (!getSessionPolicy().getAllowV2() && !getSessionPolicy().getAllowV3())
+				throw new UnsupportedOperationException();
 
-		this.getAuthContext().startAuth();
+			this.getAuthContext().startAuth();
+		}
 	}
 
 	@Override
 	public void endSession() throws OtrException {
-		if (this.slaveSessions.isSelected() && getProtocolVersion() == OTRv.THREE) {
-			this.slaveSessions.getSelected().endSession();
-			return;
-		}
-		SessionStatus status = this.getSessionStatus();
-		switch (status) {
-		case ENCRYPTED:
-			List<TLV> tlvs = new ArrayList<TLV>(1);
-			tlvs.add(new TLV(TLV.DISCONNECTED, null));
+		synchronized (lock) {
+			awaitStream();
+			checkNotDiscarded();
+			lastActivity = System.nanoTime();
+			if (this.slaveSessions.isSelected() && getProtocolVersion() == OTRv.THREE) {
+				this.slaveSessions.getSelected().endSession();
+				return;
+			}
+			SessionStatus status = this.getSessionStatus();
+			switch (status) {
+			case ENCRYPTED:
+				List<TLV> tlvs = new ArrayList<TLV>(1);
+				tlvs.add(new TLV(TLV.DISCONNECTED, null));
 
-			String[] msg = this.transformSending(null, tlvs);
-			for (String part : msg) {
-				getHost().injectMessage(getSessionID(), part);
+				String[] msg = this.transformSending(null, tlvs);
+				for (String part : msg) {
+					getHost().injectMessage(getSessionID(), part);
+				}
+				this.setSessionStatus(SessionStatus.PLAINTEXT);
+				break;
+			case FINISHED:
+				this.setSessionStatus(SessionStatus.PLAINTEXT);
+				break;
+			case PLAINTEXT:
+				break;
+			default:
+				throw new UnsupportedOperationException("What to do for this state?");
 			}
-			this.setSessionStatus(SessionStatus.PLAINTEXT);
-			break;
-		case FINISHED:
-			this.setSessionStatus(SessionStatus.PLAINTEXT);
-			break;
-		case PLAINTEXT:
-			break;
-		default:
-			throw new UnsupportedOperationException("What to do for this state?");
 		}
 	}
 
 	@Override
 	public void refreshSession() throws OtrException {
-		this.endSession();
-		this.startSession();
+		synchronized (lock) {
+			awaitStream();
+			checkNotDiscarded();
+			lastActivity = System.nanoTime();
+			this.endSession();
+			this.startSession();
+		}
 	}
 
 	private void setRemotePublicKey(PublicKey pubKey) {
@@ -993,54 +1741,240 @@ public class SessionImpl implements Session {
 
 	@Override
 	public void initSmp(String question, String secret) throws OtrException {
-		if (this.slaveSessions.isSelected() && getProtocolVersion() == OTRv.THREE) {
-			this.slaveSessions.getSelected().initSmp(question, secret);
-			return;
-		}
-		if (this.getSessionStatus() != SessionStatus.ENCRYPTED)
-			return;
-		List<TLV> tlvs = otrSm.initRespondSmp(question, secret, true);
-		String[] msg = transformSending("", tlvs);
-		for (String part : msg) {
-			getHost().injectMessage(getSessionID(), part);
+		synchronized (lock) {
+			awaitStream();
+			checkNotDiscarded();
+			lastActivity = System.nanoTime();
+			if (this.slaveSessions.isSelected() && getProtocolVersion() == OTRv.THREE) {
+				this.slaveSessions.getSelected().initSmp(question, secret);
+				return;
+			}
+			if (this.getSessionStatus() != SessionStatus.ENCRYPTED)
+				return;
+			List<TLV> tlvs = otrSm.initRespondSmp(question, secret, true);
+			String[] msg = transformSending("", tlvs);
+			for (String part : msg) {
+				getHost().injectMessage(getSessionID(), part);
+			}
 		}
 	}
 
 	@Override
 	public void respondSmp(String question, String secret) throws OtrException {
-		if (this.slaveSessions.isSelected() && getProtocolVersion() == OTRv.THREE) {
-			this.slaveSessions.getSelected().respondSmp(question, secret);
-			return;
+		synchronized (lock) {
+			awaitStream();
+			checkNotDiscarded();
+			lastActivity = System.nanoTime();
+			if (this.slaveSessions.isSelected() && getProtocolVersion() == OTRv.THREE) {
+				this.slaveSessions.getSelected().respondSmp(question, secret);
+				return;
+			}
+			if (this.getSessionStatus() != SessionStatus.ENCRYPTED)
+				return;
+			List<TLV> tlvs = otrSm.initRespondSmp(question, secret, false);
+			String[] msg = transformSending("", tlvs);
+			for (String part : msg) {
+				getHost().injectMessage(getSessionID(), part);
+			}
 		}
-		if (this.getSessionStatus() != SessionStatus.ENCRYPTED)
-			return;
-		List<TLV> tlvs = otrSm.initRespondSmp(question, secret, false);
-		String[] msg = transformSending("", tlvs);
-		for (String part : msg) {
-			getHost().injectMessage(getSessionID(), part);
+	}
+
+	@Override
+	public Future<String> transformReceivingAsync(final String msgText) {
+		return submit(new Callable<String>() {
+			@Override
+			public String call() throws OtrException {
+				return transformReceiving(msgText);
+			}
+		});
+	}
+
+	@Override
+	public Future<String[]> transformSendingAsync(String msgText) {
+		return transformSendingAsync(msgText, null);
+	}
+
+	@Override
+	public Future<String[]> transformSendingAsync(final String msgText,
+			final List<TLV> tlvs)
+	{
+		return submit(new Callable<String[]>() {
+			@Override
+			public String[] call() throws OtrException {
+				return transformSending(msgText, tlvs);
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> initSmpAsync(final String question,
+			final String secret)
+	{
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws OtrException {
+				initSmp(question, secret);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> respondSmpAsync(final String question,
+			final String secret)
+	{
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws OtrException {
+				respondSmp(question, secret);
+				return null;
+			}
+		});
+	}
+
+	private <T> Future<T> submit(Callable<T> callable) {
+		FutureTask<T> task = new FutureTask<T>(callable);
+		getAsyncExecutor().execute(task);
+		return task;
+	}
+
+	private SerialExecutor getAsyncExecutor() {
+		SerialExecutor executor = asyncExecutor;
+		if (executor == null) {
+			synchronized (this) {
+				if (asyncExecutor == null)
+					asyncExecutor = new SerialExecutor(getDefaultExecutor());
+				executor = asyncExecutor;
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Set the executor on which the asynchronous calls of this session run.
+	 * The calls still run one at a time and in order; set the executor before
+	 * making any, as calls already queued keep their executor.
+	 *
+	 * @param executor the executor, or null for the default executor
+	 */
+	public void setExecutor(Executor executor) {
+		asyncExecutor = new SerialExecutor(executor == null ? getDefaultExecutor()
+				: executor);
+	}
+
+	/**
+	 * Set the executor for sessions that have none of their own. By default
+	 * this is a shared pool of daemon threads, one per processor.
+	 *
+	 * @param executor the executor, or null for the shared pool
+	 */
+	public static synchronized void setDefaultExecutor(Executor executor) {
+		defaultExecutor = executor;
+	}
+
+	private static synchronized Executor getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = Executors.newFixedThreadPool(Runtime
+					.getRuntime().availableProcessors(),
+					new DaemonThreadFactory("otr4j-session"));
 		}
+		return defaultExecutor;
 	}
 
 	@Override
 	public void abortSmp() throws OtrException {
-		if (this.slaveSessions.isSelected() && getProtocolVersion() == OTRv.THREE) {
-			this.slaveSessions.getSelected().abortSmp();
-			return;
+		synchronized (lock) {
+			awaitStream();
+			checkNotDiscarded();
+			lastActivity = System.nanoTime();
+			if (this.slaveSessions.isSelected() && getProtocolVersion() == OTRv.THREE) {
+				this.slaveSessions.getSelected().abortSmp();
+				return;
+			}
+			if (this.getSessionStatus() != SessionStatus.ENCRYPTED)
+				return;
+			List<TLV> tlvs = otrSm.abortSmp();
+			String[] msg = transformSending("", tlvs);
+			for (String part : msg) {
+				getHost().injectMessage(getSessionID(), part);
+			}
 		}
-		if (this.getSessionStatus() != SessionStatus.ENCRYPTED)
-			return;
-		List<TLV> tlvs = otrSm.abortSmp();
-		String[] msg = transformSending("", tlvs);
-		for (String part : msg) {
-			getHost().injectMessage(getSessionID(), part);
+	}
+
+	/**
+	 * Set the executor on which the exponentiations of the Socialist
+	 * Millionaire Protocol are evaluated, for this session and its instances.
+	 *
+	 * @param executor the executor, or null to evaluate on the calling thread
+	 * @see OtrSm#setExecutor(java.util.concurrent.Executor)
+	 */
+	public void setSmpExecutor(Executor executor) {
+		otrSm.setExecutor(executor);
+		synchronized (slaveSessions) {
+			for (SessionImpl session : slaveSessions.values())
+				session.setSmpExecutor(executor);
+		}
+	}
+
+	/**
+	 * Derive the shared secret and symmetric keys of new session keys on the
+	 * given executor right after each key rotation, so that the next message
+	 * finds them ready. Applies to this session and its instances.
+	 *
+	 * @param executor the executor, or null (the default) to derive keys on
+	 *            demand
+	 */
+	public void setKeyPrefetchExecutor(Executor executor) {
+		keyPrefetchExecutor = executor;
+		sessionKeys.setPrefetchExecutor(executor);
+		synchronized (slaveSessions) {
+			for (SessionImpl session : slaveSessions.values())
+				session.setKeyPrefetchExecutor(executor);
 		}
 	}
 
+	/**
+	 * @return the number of D-H shared secrets of this session's keys that
+	 *         were derived ahead of use on the key prefetch executor
+	 */
+	public long getPrefetchedKeyDerivations() {
+		return sessionKeys.getPrefetchedDerivations();
+	}
+
+	/**
+	 * @return the number of D-H shared secrets of this session's keys that
+	 *         were derived by the message that needed them
+	 */
+	public long getOnDemandKeyDerivations() {
+		return sessionKeys.getOnDemandDerivations();
+	}
+
+	/**
+	 * Set the metrics that this session and its slave sessions count into.
+	 *
+	 * @param metrics the metrics, or null to count nothing
+	 */
+	public void setMetrics(SessionMetrics metrics) {
+		this.metrics = metrics;
+		dataMessageWriter.setMetrics(metrics);
+		assembler.setMetrics(metrics);
+		synchronized (slaveSessions) {
+			for (SessionImpl session : slaveSessions.values())
+				session.setMetrics(metrics);
+		}
+	}
+
+	SessionMetrics getMetrics() {
+		return metrics;
+	}
+
 	@Override
 	public boolean isSmpInProgress() {
-		if (this.slaveSessions.isSelected() && getProtocolVersion() == OTRv.THREE)
-			return this.slaveSessions.getSelected().isSmpInProgress();
-		return otrSm.isSmpInProgress();
+		synchronized (lock) {
+			if (this.slaveSessions.isSelected() && getProtocolVersion() == OTRv.THREE)
+				return this.slaveSessions.getSelected().isSmpInProgress();
+			return otrSm.isSmpInProgress();
+		}
 	}
 
 	@Override
@@ -1055,18 +1989,22 @@ public class SessionImpl implements Session {
 
 	@Override
 	public void setReceiverInstanceTag(InstanceTag receiverInstanceTag) {
-		// ReceiverInstanceTag of a slave session is not supposed to change
-		if (!isMasterSession)
-			return;
-		this.receiverInstanceTag = receiverInstanceTag;
+		synchronized (lock) {
+			// ReceiverInstanceTag of a slave session is not supposed to change
+			if (!isMasterSession)
+				return;
+			this.receiverInstanceTag = receiverInstanceTag;
+		}
 	}
 
 	@Override
 	public void setProtocolVersion(int protocolVersion) {
-		// Protocol version of a slave session is not supposed to change
-		if (!isMasterSession)
-			return;
-		this.protocolVersion = protocolVersion;
+		synchronized (lock) {
+			// Protocol version of a slave session is not supposed to change
+			if (!isMasterSession)
+				return;
+			this.protocolVersion = protocolVersion;
+		}
 	}
 
 	@Override
@@ -1084,23 +2022,25 @@ public class SessionImpl implements Session {
 
 	@Override
 	public boolean setOutgoingInstance(InstanceTag tag) {
-		// Only master session can set the outgoing session.
-		if (!isMasterSession)
-			return false;
-		if (tag.equals(getReceiverInstanceTag())) {
-			this.slaveSessions.deselect();
-			for (OtrEngineListener l : listeners)
-				l.outgoingSessionChanged(sessionID);
-			return true;
-		}
-		if (slaveSessions.containsKey(tag)) {
-			slaveSessions.select(tag);
-			for (OtrEngineListener l : listeners)
-				l.outgoingSessionChanged(sessionID);
-			return true;
-		} else {
-			this.slaveSessions.deselect();
-			return false;
+		synchronized (lock) {
+			// Only master session can set the outgoing session.
+			if (!isMasterSession)
+				return false;
+			if (tag.equals(getReceiverInstanceTag())) {
+				this.slaveSessions.deselect();
+				for (OtrEngineListener l : listeners)
+					l.outgoingSessionChanged(sessionID);
+				return true;
+			}
+			if (slaveSessions.containsKey(tag)) {
+				slaveSessions.select(tag);
+				for (OtrEngineListener l : listeners)
+					l.outgoingSessionChanged(sessionID);
+				return true;
+			} else {
+				this.slaveSessions.deselect();
+				return false;
+			}
 		}
 	}
 
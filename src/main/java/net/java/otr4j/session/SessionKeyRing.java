@@ -0,0 +1,368 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.session;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.interfaces.DHPublicKey;
+
+import net.java.otr4j.OtrException;
+import net.java.otr4j.crypto.OtrDHPrivateKey;
+import net.java.otr4j.crypto.OtrDHPublicKey;
+import net.java.otr4j.io.OtrInputStream;
+import net.java.otr4j.io.OtrOutputStream;
+
+/**
+ * The session keys of an encrypted session: one {@link SessionKeys} for each
+ * combination of our two most recent D-H key pairs and the remote party's two
+ * most recent D-H public keys, indexed as [local][remote] by
+ * {@link SessionKeys#PREVIOUS} and {@link SessionKeys#CURRENT}.
+ *
+ * Session keys are looked up by key ID in constant time. Rotating our key
+ * pair shifts a row and rotating the remote public key shifts a column, so
+ * the keys that stay in use keep their derived keys, ciphers and counters.
+ * Receiving MAC keys that were used are collected when their keys are
+ * discarded, so that they can be revealed.
+ *
+ * With a prefetch executor, the shared secret and symmetric keys of every new
+ * slot are derived on that executor right away, instead of by the first
+ * message that needs them.
+ */
+final class SessionKeyRing {
+
+	private static final Logger logger = Logger.getLogger(SessionKeyRing.class
+			.getName());
+
+	private static final int PREVIOUS = SessionKeys.PREVIOUS;
+	private static final int CURRENT = SessionKeys.CURRENT;
+
+	/** Initial capacity for old MAC keys: the four keys of two rotations. */
+	private static final int OLD_MAC_KEYS_CAPACITY = 4 * 20;
+
+	private final SessionKeysImpl[][] keys = new SessionKeysImpl[2][2];
+	private final KeyPair[] localPairs = new KeyPair[2];
+	private final DHPublicKey[] remoteKeys = new DHPublicKey[2];
+
+	/** Key ID of our current key pair; the previous one has ID - 1. */
+	private int localKeyID;
+	/** Key ID of the current remote public key; the previous one has ID - 1. */
+	private int remoteKeyID;
+
+	private byte[] oldMacKeys = new byte[OLD_MAC_KEYS_CAPACITY];
+	private int oldMacKeysLength;
+
+	private final Counters counters = new Counters();
+	private volatile Executor prefetchExecutor;
+
+	/**
+	 * Number of shared secrets derived ahead of use and on demand.
+	 */
+	static final class Counters {
+		final AtomicLong prefetched = new AtomicLong();
+		final AtomicLong onDemand = new AtomicLong();
+	}
+
+	/**
+	 * @param executor the executor to derive the keys of new slots on, or
+	 *            null to derive them on demand
+	 */
+	void setPrefetchExecutor(Executor executor) {
+		this.prefetchExecutor = executor;
+	}
+
+	/**
+	 * @return the number of shared secrets derived ahead of use
+	 */
+	long getPrefetchedDerivations() {
+		return counters.prefetched.get();
+	}
+
+	/**
+	 * @return the number of shared secrets derived by the message that needed
+	 *         them
+	 */
+	long getOnDemandDerivations() {
+		return counters.onDemand.get();
+	}
+
+	/**
+	 * Start over with the keys agreed on in the AKE: our key pair and the
+	 * remote public key from the AKE, both with key ID 1, and our next key
+	 * pair with key ID 2. There is no previous remote public key yet.
+	 *
+	 * @param localPair our key pair from the AKE
+	 * @param nextPair our next key pair
+	 * @param remoteKey the remote public key from the AKE
+	 * @param s the shared secret of the AKE
+	 */
+	void init(KeyPair localPair, KeyPair nextPair, DHPublicKey remoteKey,
+			BigInteger s)
+	{
+		localKeyID = 2;
+		remoteKeyID = 1;
+		localPairs[PREVIOUS] = localPair;
+		localPairs[CURRENT] = nextPair;
+		remoteKeys[PREVIOUS] = null;
+		remoteKeys[CURRENT] = remoteKey;
+		for (int local = PREVIOUS; local <= CURRENT; local++)
+			fill(local, PREVIOUS);
+		for (int local = PREVIOUS; local <= CURRENT; local++)
+			fill(local, CURRENT);
+		keys[PREVIOUS][CURRENT].setS(s);
+		for (int local = PREVIOUS; local <= CURRENT; local++)
+			prefetch(local, CURRENT);
+	}
+
+	/**
+	 * @return the session keys for the given key IDs, or null if we no longer
+	 *         or not yet have them
+	 */
+	SessionKeys get(int localKeyID, int remoteKeyID) {
+		int local = localKeyID - this.localKeyID + CURRENT;
+		int remote = remoteKeyID - this.remoteKeyID + CURRENT;
+		if (local < PREVIOUS || local > CURRENT || remote < PREVIOUS
+				|| remote > CURRENT)
+			return null;
+		return keys[local][remote];
+	}
+
+	/**
+	 * @return the keys to encrypt with: our previous key pair and the
+	 *         current remote public key
+	 */
+	SessionKeys getEncryptionKeys() {
+		return keys[PREVIOUS][CURRENT];
+	}
+
+	/**
+	 * @return the keys of our current key pair and the current remote public
+	 *         key
+	 */
+	SessionKeys getMostRecentKeys() {
+		return keys[CURRENT][CURRENT];
+	}
+
+	/**
+	 * Replace our previous key pair by the current one and make the given key
+	 * pair current.
+	 *
+	 * @param nextPair our new key pair
+	 */
+	void rotateLocal(KeyPair nextPair) throws OtrException {
+		logger.finest("Rotating local keys.");
+		discard(keys[PREVIOUS][PREVIOUS]);
+		discard(keys[PREVIOUS][CURRENT]);
+
+		SessionKeysImpl[] row = keys[PREVIOUS];
+		keys[PREVIOUS] = keys[CURRENT];
+		keys[CURRENT] = row;
+		localPairs[PREVIOUS] = localPairs[CURRENT];
+		localPairs[CURRENT] = nextPair;
+		localKeyID++;
+		fill(CURRENT, PREVIOUS);
+		fill(CURRENT, CURRENT);
+		prefetch(CURRENT, PREVIOUS);
+		prefetch(CURRENT, CURRENT);
+	}
+
+	/**
+	 * Replace the previous remote public key by the current one and make the
+	 * given public key current.
+	 *
+	 * @param nextKey the remote party's new public key
+	 */
+	void rotateRemote(DHPublicKey nextKey) throws OtrException {
+		logger.finest("Rotating remote keys.");
+		discard(keys[CURRENT][PREVIOUS]);
+		discard(keys[PREVIOUS][PREVIOUS]);
+
+		for (int local = PREVIOUS; local <= CURRENT; local++)
+			keys[local][PREVIOUS] = keys[local][CURRENT];
+		remoteKeys[PREVIOUS] = remoteKeys[CURRENT];
+		remoteKeys[CURRENT] = nextKey;
+		remoteKeyID++;
+		fill(PREVIOUS, CURRENT);
+		fill(CURRENT, CURRENT);
+		prefetch(PREVIOUS, CURRENT);
+		prefetch(CURRENT, CURRENT);
+	}
+
+	/**
+	 * @return the used receiving MAC keys of all discarded keys since the
+	 *         last call, concatenated
+	 */
+	byte[] collectOldMacKeys() {
+		byte[] collected = Arrays.copyOf(oldMacKeys, oldMacKeysLength);
+		Arrays.fill(oldMacKeys, 0, oldMacKeysLength, (byte) 0);
+		oldMacKeysLength = 0;
+		return collected;
+	}
+
+	/**
+	 * Zero all key material and forget the key pairs and public keys, for a
+	 * session that is discarded. {@link #init} starts over afterwards.
+	 */
+	void wipe() {
+		for (int local = PREVIOUS; local <= CURRENT; local++) {
+			for (int remote = PREVIOUS; remote <= CURRENT; remote++) {
+				if (keys[local][remote] != null)
+					keys[local][remote].wipe();
+				keys[local][remote] = null;
+			}
+			localPairs[local] = null;
+			remoteKeys[local] = null;
+		}
+		localKeyID = 0;
+		remoteKeyID = 0;
+		Arrays.fill(oldMacKeys, (byte) 0);
+		oldMacKeysLength = 0;
+	}
+
+	/**
+	 * Write the key IDs, our key pairs, the remote public keys, the state of
+	 * every slot and the old MAC keys, for a snapshot of the session.
+	 */
+	void write(OtrOutputStream out) throws IOException {
+		out.writeInt(localKeyID);
+		out.writeInt(remoteKeyID);
+		for (int local = PREVIOUS; local <= CURRENT; local++) {
+			out.writeBigInt(((DHPrivateKey) localPairs[local].getPrivate()).getX());
+			out.writeDHPublicKey((DHPublicKey) localPairs[local].getPublic());
+		}
+		for (int remote = PREVIOUS; remote <= CURRENT; remote++) {
+			out.writeByte(remoteKeys[remote] == null ? 0 : 1);
+			if (remoteKeys[remote] != null)
+				out.writeDHPublicKey(remoteKeys[remote]);
+		}
+		for (int local = PREVIOUS; local <= CURRENT; local++) {
+			for (int remote = PREVIOUS; remote <= CURRENT; remote++) {
+				if (keys[local][remote] != null)
+					keys[local][remote].writeState(out);
+			}
+		}
+		out.writeData(Arrays.copyOf(oldMacKeys, oldMacKeysLength));
+	}
+
+	/**
+	 * Start over with the keys that {@link #write(OtrOutputStream)} wrote.
+	 * Shared secrets that were derived are read back rather than derived
+	 * again.
+	 */
+	void read(OtrInputStream in) throws IOException {
+		localKeyID = in.readInt();
+		remoteKeyID = in.readInt();
+		for (int local = PREVIOUS; local <= CURRENT; local++) {
+			BigInteger x = in.readBigInt();
+			localPairs[local] = new KeyPair(new OtrDHPublicKey(in.readBigInt()),
+					new OtrDHPrivateKey(x));
+		}
+		for (int remote = PREVIOUS; remote <= CURRENT; remote++)
+			remoteKeys[remote] = in.readByte() == 0 ? null : in.readDHPublicKey();
+		for (int local = PREVIOUS; local <= CURRENT; local++) {
+			for (int remote = PREVIOUS; remote <= CURRENT; remote++) {
+				fill(local, remote);
+				if (keys[local][remote] != null)
+					keys[local][remote].readState(in);
+			}
+		}
+		byte[] macKeys = in.readData();
+		if (macKeys.length > oldMacKeys.length) {
+			Arrays.fill(oldMacKeys, (byte) 0);
+			oldMacKeys = new byte[macKeys.length];
+		}
+		System.arraycopy(macKeys, 0, oldMacKeys, 0, macKeys.length);
+		oldMacKeysLength = macKeys.length;
+		Arrays.fill(macKeys, (byte) 0);
+	}
+
+	/**
+	 * @return the length of what {@link #collectOldMacKeys()} would return
+	 */
+	int oldMacKeysLength() {
+		return oldMacKeysLength;
+	}
+
+	/**
+	 * Variant of {@link #collectOldMacKeys()} that copies the keys into a
+	 * buffer of the caller.
+	 *
+	 * @param out the buffer, with room for {@link #oldMacKeysLength()} bytes
+	 * @param offset the offset to copy the keys to
+	 */
+	void collectOldMacKeys(byte[] out, int offset) {
+		System.arraycopy(oldMacKeys, 0, out, offset, oldMacKeysLength);
+		Arrays.fill(oldMacKeys, 0, oldMacKeysLength, (byte) 0);
+		oldMacKeysLength = 0;
+	}
+
+	private void fill(int local, int remote) {
+		DHPublicKey remoteKey = remoteKeys[remote];
+		keys[local][remote] = (remoteKey == null) ? null : new SessionKeysImpl(
+				localPairs[local], localKeyID - CURRENT + local, remoteKey,
+				remoteKeyID - CURRENT + remote, counters);
+	}
+
+	private void prefetch(int local, int remote) {
+		Executor executor = prefetchExecutor;
+		final SessionKeysImpl sessionKeys = keys[local][remote];
+		if (executor == null || sessionKeys == null)
+			return;
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sessionKeys.prefetch();
+					} catch (OtrException e) {
+						logger.log(Level.FINE,
+								"Deriving session keys ahead of use failed.", e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The keys are derived on demand instead.
+		}
+	}
+
+	private void discard(SessionKeys sessionKeys) throws OtrException {
+		if (sessionKeys == null || !sessionKeys.getIsUsedReceivingMACKey())
+			return;
+
+		logger.log(Level.FINEST,
+				"Adding used receiving MAC key of ({0},{1}) to old MAC keys to reveal it.",
+				new Object[] {sessionKeys.getLocalKeyID(),
+					sessionKeys.getRemoteKeyID()});
+		byte[] macKey = sessionKeys.getReceivingMACKey();
+		if (oldMacKeysLength + macKey.length > oldMacKeys.length) {
+			byte[] full = oldMacKeys;
+			oldMacKeys = Arrays.copyOf(full, Math.max(2 * full.length,
+					oldMacKeysLength + macKey.length));
+			Arrays.fill(full, (byte) 0);
+		}
+		System.arraycopy(macKey, 0, oldMacKeys, oldMacKeysLength, macKey.length);
+		oldMacKeysLength += macKey.length;
+	}
+}
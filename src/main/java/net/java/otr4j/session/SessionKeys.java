@@ -21,6 +21,8 @@ import java.security.KeyPair;
 import javax.crypto.interfaces.DHPublicKey;
 
 import net.java.otr4j.OtrException;
+import net.java.otr4j.crypto.OtrCipherContext;
+import net.java.otr4j.crypto.OtrMacContext;
 
 /**
  * @author George Politis
@@ -58,6 +60,30 @@ public interface SessionKeys {
 
 	byte[] getReceivingMACKey() throws OtrException;
 
+	/**
+	 * @return AES-CTR cipher bound to the sending AES key, kept until the
+	 * keys are rotated
+	 */
+	OtrCipherContext getSendingCipher() throws OtrException;
+
+	/**
+	 * @return AES-CTR cipher bound to the receiving AES key, kept until the
+	 * keys are rotated
+	 */
+	OtrCipherContext getReceivingCipher() throws OtrException;
+
+	/**
+	 * @return HmacSHA1 bound to the sending MAC key, kept until the keys are
+	 * rotated
+	 */
+	OtrMacContext getSendingMac() throws OtrException;
+
+	/**
+	 * @return HmacSHA1 bound to the receiving MAC key, kept until the keys
+	 * are rotated
+	 */
+	OtrMacContext getReceivingMac() throws OtrException;
+
 	void setS(BigInteger s);
 
 	void setIsUsedReceivingMACKey(Boolean isUsedReceivingMACKey);
@@ -26,8 +26,15 @@ import java.util.logging.Logger;
 import javax.crypto.interfaces.DHPublicKey;
 
 import net.java.otr4j.OtrException;
+import net.java.otr4j.crypto.OtrCipherContext;
 import net.java.otr4j.crypto.OtrCryptoEngine;
-import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.crypto.OtrCryptoEngines;
+import net.java.otr4j.crypto.OtrDH;
+import net.java.otr4j.crypto.OtrMacContext;
+import net.java.otr4j.crypto.OtrRandom;
+import net.java.otr4j.io.OtrInputStream;
+import net.java.otr4j.io.OtrOutputStream;
+import net.java.otr4j.io.SerializationConstants;
 import net.java.otr4j.io.SerializationUtils;
 
 /**
@@ -37,7 +44,13 @@ import net.java.otr4j.io.SerializationUtils;
 class SessionKeysImpl implements SessionKeys {
 
 	private static final Logger logger = Logger.getLogger(SessionKeysImpl.class.getName());
-	private final String keyDescription;
+
+	/**
+	 * Number of random bits by which {@link #readState(OtrInputStream)}
+	 * skips the sending counter ahead, above the one bit that is always set.
+	 */
+	private static final int SENDING_CTR_SKIP_BITS = 47;
+
 	private final byte[] sendingCtr = new byte[16];
 	private final byte[] receivingCtr = new byte[16];
 
@@ -50,47 +63,50 @@ class SessionKeysImpl implements SessionKeys {
 	private byte[] receivingAESKey;
 	private byte[] sendingMACKey;
 	private byte[] receivingMACKey;
+	private OtrCipherContext sendingCipher;
+	private OtrCipherContext receivingCipher;
+	private OtrMacContext sendingMac;
+	private OtrMacContext receivingMac;
 	private Boolean isUsedReceivingMACKey;
 	private BigInteger s;
 	private Boolean isHigh;
+	private final SessionKeyRing.Counters counters;
 
-	SessionKeysImpl(int localKeyIndex, int remoteKeyIndex) {
-
-		String tmpKeyDescription;
-		if (localKeyIndex == 0)
-			tmpKeyDescription = "(Previous local, ";
-		else
-			tmpKeyDescription = "(Most recent local, ";
-
-		if (remoteKeyIndex == 0)
-			tmpKeyDescription += "Previous remote)";
-		else
-			tmpKeyDescription += "Most recent remote)";
-		this.keyDescription = tmpKeyDescription;
+	SessionKeysImpl(KeyPair localPair, int localKeyID, DHPublicKey remoteKey,
+			int remoteKeyID, SessionKeyRing.Counters counters)
+	{
+		this.counters = counters;
+		this.localPair = localPair;
+		this.localKeyID = localKeyID;
+		this.remoteKey = remoteKey;
+		this.remoteKeyID = remoteKeyID;
+		this.reset();
 	}
 
 	@Override
-	public void setLocalPair(KeyPair keyPair, int localPairKeyID) {
+	public synchronized void setLocalPair(KeyPair keyPair, int localPairKeyID) {
 		this.localPair = keyPair;
 		this.setLocalKeyID(localPairKeyID);
-		logger.log(Level.FINEST, "{0} current local key ID: {1}",
-				new Object[] {keyDescription, this.getLocalKeyID()});
+		logger.log(Level.FINEST, "Local key ID set to {0}, remote key ID is {1}",
+				new Object[] {this.getLocalKeyID(), this.getRemoteKeyID()});
 		this.reset();
 	}
 
 	@Override
-	public void setRemoteDHPublicKey(DHPublicKey pubKey, int remoteKeyID) {
+	public synchronized void setRemoteDHPublicKey(DHPublicKey pubKey, int remoteKeyID) {
 		this.setRemoteKey(pubKey);
 		this.setRemoteKeyID(remoteKeyID);
-		logger.log(Level.FINEST, "{0} current remote key ID: {1}",
-				new Object[] {keyDescription, this.getRemoteKeyID()});
+		logger.log(Level.FINEST, "Remote key ID set to {0}, local key ID is {1}",
+				new Object[] {this.getRemoteKeyID(), this.getLocalKeyID()});
 		this.reset();
 	}
 
 	@Override
 	public void incrementSendingCtr() {
-		logger.log(Level.FINEST, "Incrementing counter for (localkeyID, remoteKeyID) = ({0},{1})",
-				new Object[] {getLocalKeyID(), getRemoteKeyID()});
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.log(Level.FINEST, "Incrementing counter for (localkeyID, remoteKeyID) = ({0},{1})",
+					new Object[] {getLocalKeyID(), getRemoteKeyID()});
+		}
 		// logger.debug("Counter prior increament: " +
 		// Utils.dump(sendingCtr,
 		// true, 16));
@@ -117,14 +133,72 @@ class SessionKeysImpl implements SessionKeys {
 		System.arraycopy(ctr, 0, receivingCtr, 0, ctr.length);
 	}
 
+	/**
+	 * Zero the derived keys and counters and forget the keys they came from.
+	 * The cipher and MAC contexts are dropped; their key schedules are not
+	 * reachable to be zeroed.
+	 */
+	synchronized void wipe() {
+		for (byte[] key : new byte[][] {sendingAESKey, receivingAESKey,
+				sendingMACKey, receivingMACKey})
+		{
+			if (key != null)
+				Arrays.fill(key, (byte) 0);
+		}
+		this.localPair = null;
+		this.remoteKey = null;
+		this.reset();
+	}
+
+	/**
+	 * Write the counters, whether the receiving MAC key was used and the
+	 * shared secret if it was derived, for a snapshot of the session.
+	 */
+	synchronized void writeState(OtrOutputStream out) throws IOException {
+		out.writeCtr(sendingCtr);
+		out.writeCtr(receivingCtr);
+		out.writeByte(Boolean.TRUE.equals(isUsedReceivingMACKey) ? 1 : 0);
+		out.writeByte(s == null ? 0 : 1);
+		if (s != null)
+			out.writeBigInt(s);
+	}
+
+	/**
+	 * Read back what {@link #writeState(OtrOutputStream)} wrote into keys
+	 * created for the same key pair and public key. The sending counter is
+	 * skipped ahead by a random amount between 2^47 and 2^48, so that two
+	 * sessions restored from the same snapshot do not encrypt with the same
+	 * counters. The peer accepts the gap, as counters only have to increase.
+	 */
+	synchronized void readState(OtrInputStream in) throws IOException {
+		System.arraycopy(in.readCtr(), 0, sendingCtr, 0, SerializationConstants.TYPE_LEN_CTR);
+		long skip = (1L << SENDING_CTR_SKIP_BITS) | (OtrRandom.getSecureRandom().nextLong()
+				>>> (Long.SIZE - SENDING_CTR_SKIP_BITS));
+		for (int i = 7; i >= 0; i--) {
+			int sum = (sendingCtr[i] & 0xFF) + (int) (skip & 0xFF);
+			sendingCtr[i] = (byte) sum;
+			skip = (skip >>> 8) + (sum >>> 8);
+		}
+		System.arraycopy(in.readCtr(), 0, receivingCtr, 0, SerializationConstants.TYPE_LEN_CTR);
+		this.isUsedReceivingMACKey = in.readByte() != 0;
+		if (in.readByte() != 0)
+			this.s = in.readBigInt();
+	}
+
 	private void reset() {
-		logger.log(Level.FINEST, "Resetting {0} session keys.", keyDescription);
+		logger.log(Level.FINEST,
+				"Resetting session keys for (localKeyID, remoteKeyID) = ({0},{1})",
+				new Object[] {getLocalKeyID(), getRemoteKeyID()});
 		Arrays.fill(this.sendingCtr, (byte) 0x00);
 		Arrays.fill(this.receivingCtr, (byte) 0x00);
 		this.sendingAESKey = null;
 		this.receivingAESKey = null;
 		this.sendingMACKey = null;
 		this.receivingMACKey = null;
+		this.sendingCipher = null;
+		this.receivingCipher = null;
+		this.sendingMac = null;
+		this.receivingMac = null;
 		this.setIsUsedReceivingMACKey(false);
 		this.s = null;
 		if (getLocalPair() != null && getRemoteKey() != null) {
@@ -143,7 +217,7 @@ class SessionKeysImpl implements SessionKeys {
 			ByteBuffer buff = ByteBuffer.allocate(len);
 			buff.put(b);
 			buff.put(secbytes);
-			byte[] result = new OtrCryptoEngineImpl().sha1Hash(buff.array());
+			byte[] result = OtrCryptoEngines.getEngine().sha1Hash(buff.array());
 			return result;
 		} catch (IOException e) {
 			throw new OtrException(e);
@@ -151,7 +225,7 @@ class SessionKeysImpl implements SessionKeys {
 	}
 
 	@Override
-	public byte[] getSendingAESKey() throws OtrException {
+	public synchronized byte[] getSendingAESKey() throws OtrException {
 		if (sendingAESKey != null)
 			return sendingAESKey;
 
@@ -170,7 +244,7 @@ class SessionKeysImpl implements SessionKeys {
 	}
 
 	@Override
-	public byte[] getReceivingAESKey() throws OtrException {
+	public synchronized byte[] getReceivingAESKey() throws OtrException {
 		if (receivingAESKey != null)
 			return receivingAESKey;
 
@@ -190,36 +264,97 @@ class SessionKeysImpl implements SessionKeys {
 	}
 
 	@Override
-	public byte[] getSendingMACKey() throws OtrException {
+	public synchronized byte[] getSendingMACKey() throws OtrException {
 		if (sendingMACKey != null)
 			return sendingMACKey;
 
-		sendingMACKey = new OtrCryptoEngineImpl().sha1Hash(getSendingAESKey());
+		sendingMACKey = OtrCryptoEngines.getEngine().sha1Hash(getSendingAESKey());
 		logger.finest("Calculated sending MAC key.");
 		return sendingMACKey;
 	}
 
 	@Override
-	public byte[] getReceivingMACKey() throws OtrException {
+	public synchronized byte[] getReceivingMACKey() throws OtrException {
 		if (receivingMACKey == null) {
-			receivingMACKey = new OtrCryptoEngineImpl()
+			receivingMACKey = OtrCryptoEngines.getEngine()
 					.sha1Hash(getReceivingAESKey());
 			logger.finest("Calculated receiving AES key.");
 		}
 		return receivingMACKey;
 	}
 
+	@Override
+	public OtrCipherContext getSendingCipher() throws OtrException {
+		if (sendingCipher == null) {
+			sendingCipher = OtrCryptoEngines.getEngine().createAesCtrContext(
+					getSendingAESKey());
+			logger.finest("Created sending cipher.");
+		}
+		return sendingCipher;
+	}
+
+	@Override
+	public OtrCipherContext getReceivingCipher() throws OtrException {
+		if (receivingCipher == null) {
+			receivingCipher = OtrCryptoEngines.getEngine().createAesCtrContext(
+					getReceivingAESKey());
+			logger.finest("Created receiving cipher.");
+		}
+		return receivingCipher;
+	}
+
+	@Override
+	public OtrMacContext getSendingMac() throws OtrException {
+		if (sendingMac == null) {
+			sendingMac = OtrCryptoEngines.getEngine().createSha1HmacContext(
+					getSendingMACKey());
+			logger.finest("Created sending MAC.");
+		}
+		return sendingMac;
+	}
+
+	@Override
+	public OtrMacContext getReceivingMac() throws OtrException {
+		if (receivingMac == null) {
+			receivingMac = OtrCryptoEngines.getEngine().createSha1HmacContext(
+					getReceivingMACKey());
+			logger.finest("Created receiving MAC.");
+		}
+		return receivingMac;
+	}
+
 	private BigInteger getS() throws OtrException {
 		if (s == null) {
-			s = new OtrCryptoEngineImpl().generateSecret(getLocalPair()
-					.getPrivate(), getRemoteKey());
-			logger.finest("Calculating shared secret S.");
+			s = OtrDH.generateSecret(getLocalPair().getPrivate(),
+					getRemoteKey());
+			logger.finest("Calculated shared secret S on demand.");
+			if (counters != null)
+				counters.onDemand.incrementAndGet();
 		}
 		return s;
 	}
 
+	/**
+	 * Derive the shared secret and the AES and MAC keys now, ahead of the
+	 * first message that needs them. Nothing is done if the keys were wiped
+	 * since the derivation was queued.
+	 */
+	synchronized void prefetch() throws OtrException {
+		if (localPair == null)
+			return;
+		if (s == null) {
+			s = OtrDH.generateSecret(getLocalPair().getPrivate(),
+					getRemoteKey());
+			logger.finest("Calculated shared secret S ahead of use.");
+			if (counters != null)
+				counters.prefetched.incrementAndGet();
+		}
+		getSendingMACKey();
+		getReceivingMACKey();
+	}
+
 	@Override
-	public void setS(BigInteger s) {
+	public synchronized void setS(BigInteger s) {
 		this.s = s;
 	}
 
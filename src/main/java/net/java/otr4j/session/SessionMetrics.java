@@ -0,0 +1,136 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.session;
+
+import net.java.otr4j.util.LatencyHistogram;
+import net.java.otr4j.util.StripedCounter;
+
+/**
+ * Counters of the sessions that share this object: the AKEs, unreadable
+ * messages, fragments and bytes they process and the latency of their
+ * transforms. Set with {@link SessionImpl#setMetrics(SessionMetrics)};
+ * sessions without metrics count nothing. The counters are striped, so
+ * sessions on many threads can share them.
+ */
+public final class SessionMetrics {
+
+	final StripedCounter akesStarted = new StripedCounter();
+	final StripedCounter akesCompleted = new StripedCounter();
+	final StripedCounter akesFailed = new StripedCounter();
+	final StripedCounter unreadableMessages = new StripedCounter();
+	final StripedCounter macFailures = new StripedCounter();
+	final StripedCounter messagesAssembled = new StripedCounter();
+	final StripedCounter fragmentsDiscarded = new StripedCounter();
+	final StripedCounter bytesEncrypted = new StripedCounter();
+	final StripedCounter bytesDecrypted = new StripedCounter();
+	final LatencyHistogram sendLatency = new LatencyHistogram();
+	final LatencyHistogram receiveLatency = new LatencyHistogram();
+
+	/**
+	 * @return the number of AKEs that we started or answered
+	 */
+	public long getAkesStarted() {
+		return akesStarted.sum();
+	}
+
+	/**
+	 * @return the number of AKEs that made a session encrypted
+	 */
+	public long getAkesCompleted() {
+		return akesCompleted.sum();
+	}
+
+	/**
+	 * @return the number of AKEs abandoned because a hash, MAC or signature
+	 *         of the other party did not verify
+	 */
+	public long getAkesFailed() {
+		return akesFailed.sum();
+	}
+
+	/**
+	 * @return the number of messages reported to the host as unreadable
+	 */
+	public long getUnreadableMessages() {
+		return unreadableMessages.sum();
+	}
+
+	/**
+	 * @return the number of data messages whose MAC did not verify
+	 */
+	public long getMacFailures() {
+		return macFailures.sum();
+	}
+
+	/**
+	 * @return the number of messages assembled from fragments
+	 */
+	public long getMessagesAssembled() {
+		return messagesAssembled.sum();
+	}
+
+	/**
+	 * @return the number of fragments dropped because they were malformed,
+	 *         out of order or for another instance, or because the message
+	 *         they were part of was never completed
+	 */
+	public long getFragmentsDiscarded() {
+		return fragmentsDiscarded.sum();
+	}
+
+	/**
+	 * @return the number of plaintext bytes, message and TLVs, encrypted
+	 */
+	public long getBytesEncrypted() {
+		return bytesEncrypted.sum();
+	}
+
+	/**
+	 * @return the number of plaintext bytes decrypted
+	 */
+	public long getBytesDecrypted() {
+		return bytesDecrypted.sum();
+	}
+
+	/**
+	 * @return the latency of {@link Session#transformSending(String, java.util.List)}
+	 */
+	public LatencyHistogram getSendLatency() {
+		return sendLatency;
+	}
+
+	/**
+	 * @return the latency of {@link Session#transformReceiving(String)}
+	 */
+	public LatencyHistogram getReceiveLatency() {
+		return receiveLatency;
+	}
+
+	/**
+	 * Set all counters and histograms back to zero.
+	 */
+	public void reset() {
+		for (StripedCounter counter : new StripedCounter[] {akesStarted,
+				akesCompleted, akesFailed, unreadableMessages, macFailures,
+				messagesAssembled, fragmentsDiscarded, bytesEncrypted,
+				bytesDecrypted})
+		{
+			counter.reset();
+		}
+		sendLatency.reset();
+		receiveLatency.reset();
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.session;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import net.java.otr4j.OtrException;
+import net.java.otr4j.crypto.OtrCryptoEngine;
+import net.java.otr4j.crypto.OtrCryptoEngines;
+import net.java.otr4j.crypto.OtrCryptoException;
+import net.java.otr4j.crypto.OtrMacContext;
+import net.java.otr4j.crypto.OtrRandom;
+
+/**
+ * Encryption of session snapshots under a key of the host. A sealed
+ * snapshot is laid out as
+ * <pre>
+ * version (2 bytes) | counter (8 bytes) | AES-CTR ciphertext | HMAC-SHA1 (20 bytes)
+ * </pre>
+ * with the MAC over everything before it. The AES and MAC keys are derived
+ * from the key of the host with HMAC-SHA256, and the counter is random, so
+ * one key can seal many snapshots.
+ */
+final class SessionSnapshot {
+
+	/** Version of the snapshot format. */
+	static final int VERSION = 1;
+
+	/** Smallest accepted length of the key of the host. */
+	static final int MIN_KEY_LENGTH = 16;
+
+	private static final int HEADER_LENGTH = 2 + 8;
+	private static final int MAC_LENGTH = 20;
+
+	private SessionSnapshot() {
+	}
+
+	/**
+	 * @param state the serialized session state
+	 * @param length the length of the state in the buffer
+	 * @param key the key of the host
+	 * @return the sealed snapshot
+	 */
+	static byte[] seal(byte[] state, int length, byte[] key) throws OtrException {
+		byte[] sealed = new byte[HEADER_LENGTH + length + MAC_LENGTH];
+		sealed[0] = (byte) (VERSION >>> 8);
+		sealed[1] = (byte) VERSION;
+		byte[] nonce = new byte[8];
+		OtrRandom.nextBytes(nonce);
+		System.arraycopy(nonce, 0, sealed, 2, nonce.length);
+
+		OtrCryptoEngine engine = OtrCryptoEngines.getEngine();
+		engine.createAesCtrContext(aesKey(key)).encrypt(counter(nonce), state, 0,
+				length, sealed, HEADER_LENGTH);
+		OtrMacContext mac = engine.createSha1HmacContext(macKey(key));
+		mac.update(sealed, 0, HEADER_LENGTH + length);
+		mac.doFinal(sealed, HEADER_LENGTH + length, MAC_LENGTH);
+		return sealed;
+	}
+
+	/**
+	 * @param sealed a snapshot sealed by {@link #seal(byte[], int, byte[])}
+	 * @param key the key of the host
+	 * @return the serialized session state
+	 * @throws OtrException if the snapshot is of another version, was sealed
+	 *             under another key or was tampered with
+	 */
+	static byte[] open(byte[] sealed, byte[] key) throws OtrException {
+		if (sealed.length < HEADER_LENGTH + MAC_LENGTH)
+			throw new OtrException(new IllegalArgumentException(
+					"Snapshot is truncated"));
+		int version = (sealed[0] & 0xff) << 8 | (sealed[1] & 0xff);
+		if (version != VERSION)
+			throw new OtrException(new IllegalArgumentException(
+					"Unsupported snapshot version " + version));
+
+		int length = sealed.length - HEADER_LENGTH - MAC_LENGTH;
+		OtrCryptoEngine engine = OtrCryptoEngines.getEngine();
+		OtrMacContext mac = engine.createSha1HmacContext(macKey(key));
+		mac.update(sealed, 0, HEADER_LENGTH + length);
+		byte[] expected = mac.doFinal(MAC_LENGTH);
+		if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(sealed,
+				HEADER_LENGTH + length, sealed.length)))
+			throw new OtrCryptoException(new IllegalArgumentException(
+					"Snapshot MAC verification failed"));
+
+		byte[] state = new byte[length];
+		engine.createAesCtrContext(aesKey(key)).encrypt(
+				counter(Arrays.copyOfRange(sealed, 2, HEADER_LENGTH)), sealed,
+				HEADER_LENGTH, length, state, 0);
+		return state;
+	}
+
+	private static byte[] counter(byte[] nonce) {
+		// The nonce fills the top half, as in data messages.
+		return Arrays.copyOf(nonce, 16);
+	}
+
+	private static byte[] aesKey(byte[] key) throws OtrCryptoException {
+		return Arrays.copyOf(derive(key, 1), OtrCryptoEngine.AES_KEY_BYTE_LENGTH);
+	}
+
+	private static byte[] macKey(byte[] key) throws OtrCryptoException {
+		return derive(key, 2);
+	}
+
+	private static byte[] derive(byte[] key, int purpose) throws OtrCryptoException {
+		if (key == null || key.length < MIN_KEY_LENGTH)
+			throw new IllegalArgumentException("The snapshot key must have at least "
+					+ MIN_KEY_LENGTH + " bytes");
+		return OtrCryptoEngines.getEngine().sha256Hmac(new byte[] { (byte) purpose },
+				key);
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.session;
+
+import java.util.Arrays;
+
+/**
+ * Reads the TLVs that follow the message text of a decrypted data message in
+ * place. After each {@link #next()} the current TLV is given by its type and
+ * the offset and length of its value in the message, so that a value is only
+ * copied when it is needed on its own.
+ * <p>
+ * A TLV that is cut short by the end of the message is read leniently:
+ * missing header bytes read as zero and the value ends with the message.
+ */
+final class TlvReader {
+
+	private final byte[] b;
+	private int position;
+	private int type;
+	private int offset;
+	private int length;
+
+	/**
+	 * @param b the decrypted message
+	 * @param textLength the length of its text, see {@link #textLength(byte[])}
+	 */
+	TlvReader(byte[] b, int textLength) {
+		this.b = b;
+		this.position = textLength + 1;
+	}
+
+	/**
+	 * @param b the decrypted message
+	 * @return the length of the message text, that is the index of the NUL
+	 *         byte that separates it from the TLVs, or the length of b if it
+	 *         has no TLVs
+	 */
+	static int textLength(byte[] b) {
+		int i = 0;
+		while (i < b.length && b[i] != 0x0)
+			i++;
+		return i;
+	}
+
+	/**
+	 * Move to the next TLV.
+	 *
+	 * @return false if there are no more TLVs
+	 */
+	boolean next() {
+		if (position >= b.length)
+			return false;
+		type = get(position) << 8 | get(position + 1);
+		int declared = get(position + 2) << 8 | get(position + 3);
+		offset = Math.min(position + 4, b.length);
+		length = Math.min(declared, b.length - offset);
+		position = offset + length;
+		return true;
+	}
+
+	int type() {
+		return type;
+	}
+
+	/**
+	 * @return the offset of the value of the current TLV in the message
+	 */
+	int offset() {
+		return offset;
+	}
+
+	/**
+	 * @return the length of the value of the current TLV
+	 */
+	int length() {
+		return length;
+	}
+
+	/**
+	 * @return the current TLV with a copy of its value
+	 */
+	TLV toTLV() {
+		return new TLV(type, Arrays.copyOfRange(b, offset, offset + length));
+	}
+
+	private int get(int i) {
+		return i < b.length ? b[i] & 0xFF : 0;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations for statistics, striped like
+ * {@link StripedCounter}. Durations are counted in buckets that grow
+ * exponentially, four per power of two nanoseconds, so a percentile is
+ * reported within 25% of the true value.
+ */
+public final class LatencyHistogram {
+
+	/** Buckets for all non-negative longs: 4 exact, then 4 per power of two. */
+	static final int BUCKETS = 4 + 4 * 61;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(
+			StripedCounter.STRIPES * BUCKETS);
+	private final StripedCounter total = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	static int bucket(long nanos) {
+		if (nanos < 4)
+			return nanos < 0 ? 0 : (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - 2)) & 3;
+		return 4 * (exponent - 1) + sub;
+	}
+
+	/**
+	 * @return the largest duration that falls in the bucket
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < 4)
+			return bucket;
+		int exponent = bucket / 4 + 1;
+		long width = 1L << (exponent - 2);
+		return (4 + bucket % 4) * width + width - 1;
+	}
+
+	/**
+	 * @param nanos the duration to record, in nanoseconds
+	 */
+	public void record(long nanos) {
+		buckets.getAndIncrement(StripedCounter.stripe() * BUCKETS + bucket(nanos));
+		total.add(nanos);
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos))
+			m = max.get();
+	}
+
+	/**
+	 * @return the number of recorded durations
+	 */
+	public long getCount() {
+		long count = 0;
+		for (long n : snapshot())
+			count += n;
+		return count;
+	}
+
+	/**
+	 * @param unit the unit of the result
+	 * @return the mean duration, or 0 if none was recorded
+	 */
+	public double getMean(TimeUnit unit) {
+		long count = getCount();
+		return count == 0 ? 0 : (double) total.sum() / count / unit.toNanos(1);
+	}
+
+	/**
+	 * @param unit the unit of the result
+	 * @return the longest recorded duration
+	 */
+	public double getMax(TimeUnit unit) {
+		return (double) max.get() / unit.toNanos(1);
+	}
+
+	/**
+	 * @param percentile the percentile, between 0 and 100
+	 * @param unit the unit of the result
+	 * @return the duration that the given percentage of the recorded
+	 *         durations do not exceed, rounded up to the bucket, or 0 if
+	 *         none was recorded
+	 */
+	public double getPercentile(double percentile, TimeUnit unit) {
+		long[] counts = snapshot();
+		long count = 0;
+		for (long n : counts)
+			count += n;
+		if (count == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(percentile / 100 * count);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts[bucket];
+			if (seen >= rank && seen > 0)
+				return (double) Math.min(upperBound(bucket), max.get()) / unit.toNanos(1);
+		}
+		return (double) max.get() / unit.toNanos(1);
+	}
+
+	public void reset() {
+		for (int i = 0; i < buckets.length(); i++)
+			buckets.set(i, 0);
+		total.reset();
+		max.set(0);
+	}
+
+	private long[] snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+			for (int bucket = 0; bucket < BUCKETS; bucket++)
+				counts[bucket] += buckets.get(stripe * BUCKETS + bucket);
+		}
+		return counts;
+	}
+}
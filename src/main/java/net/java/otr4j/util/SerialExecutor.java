@@ -0,0 +1,99 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.util;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executor that runs its tasks one at a time, in submission order, on the
+ * threads of an underlying executor. Many serial executors can share one
+ * underlying executor. If the underlying executor rejects a task, the task is
+ * run on the submitting thread instead, still in order.
+ */
+public final class SerialExecutor implements Executor {
+
+	private static final Logger logger = Logger.getLogger(SerialExecutor.class
+			.getName());
+
+	private final Executor executor;
+	private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+	private boolean running;
+
+	/**
+	 * @param executor the executor that runs the tasks
+	 */
+	public SerialExecutor(Executor executor) {
+		if (executor == null) {
+			throw new NullPointerException("executor");
+		}
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		if (task == null) {
+			throw new NullPointerException("task");
+		}
+		synchronized (tasks) {
+			tasks.add(task);
+			if (running)
+				return;
+			running = true;
+		}
+		scheduleNext();
+	}
+
+	/**
+	 * Hand the next task to the underlying executor, or stop running when
+	 * there is none.
+	 */
+	private void scheduleNext() {
+		while (true) {
+			final Runnable task;
+			synchronized (tasks) {
+				task = tasks.poll();
+				if (task == null) {
+					running = false;
+					return;
+				}
+			}
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							task.run();
+						} finally {
+							scheduleNext();
+						}
+					}
+				});
+				return;
+			} catch (RejectedExecutionException e) {
+				try {
+					task.run();
+				} catch (RuntimeException ex) {
+					logger.log(Level.WARNING, "Serial task failed.", ex);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for statistics that many threads update and few read. Updates go
+ * to one of several cells, picked by thread, that lie on separate cache
+ * lines, so that threads on different cores rarely contend; reading sums the
+ * cells.
+ */
+public final class StripedCounter {
+
+	/** Longs per cell, so that cells are 128 bytes apart. */
+	static final int PAD = 16;
+
+	/** Number of cells: a power of two of at least twice the processors. */
+	static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+	static int stripes(int processors) {
+		int stripes = Integer.highestOneBit(Math.max(1, 2 * processors - 1)) << 1;
+		return Math.min(stripes, 64);
+	}
+
+	/**
+	 * @return the stripe of the current thread, between 0 and
+	 *         {@link #STRIPES}
+	 */
+	static int stripe() {
+		long id = Thread.currentThread().getId();
+		// Thread IDs are sequential; spread them over the stripes.
+		return (int) ((id * 0x9E3779B97F4A7C15L) >>> 58) & (STRIPES - 1);
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long delta) {
+		cells.getAndAdd(stripe() * PAD, delta);
+	}
+
+	/**
+	 * @return the sum of all updates; updates made concurrently may or may
+	 *         not be included
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PAD);
+		return sum;
+	}
+
+	public void reset() {
+		for (int i = 0; i < STRIPES; i++)
+			cells.set(i * PAD, 0);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.java.otr4j.session.SessionID;
+
+import org.mockito.Mockito;
+
+/**
+ * Micro benchmark of session lookups on the session manager, with many
+ * threads looking up sessions among many registered ones. This is not a unit
+ * test; run it with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=net.java.otr4j.OtrSessionManagerBenchmark \
+ *     -Dexec.args="1000000 32"
+ * </pre>
+ * where the arguments are the number of sessions and the number of threads.
+ */
+public final class OtrSessionManagerBenchmark {
+
+	private static final int LOOKUPS_PER_THREAD = 2000000;
+
+	private OtrSessionManagerBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+		final OtrSessionManagerImpl manager = new OtrSessionManagerImpl(
+				Mockito.mock(OtrEngineHost.class));
+		final SessionID[] ids = new SessionID[count];
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			ids[i] = new SessionID("alice@example.org", "user" + i + "@example.org",
+					"xmpp");
+			manager.getSession(ids[i]);
+		}
+		System.out.println(String.format("created %d sessions in %.0f ms", count,
+				(System.nanoTime() - start) / 1e6));
+
+		for (int round = 0; round < 3; round++) {
+			final AtomicLong found = new AtomicLong();
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int seed = t;
+				workers[t] = new Thread() {
+					@Override
+					public void run() {
+						int n = seed * 7919;
+						long hits = 0;
+						for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+							n = (n * 1103515245 + 12345) & Integer.MAX_VALUE;
+							if (manager.getSession(ids[n % ids.length]) != null)
+								hits++;
+						}
+						found.addAndGet(hits);
+					}
+				};
+			}
+			start = System.nanoTime();
+			for (Thread worker : workers)
+				worker.start();
+			for (Thread worker : workers)
+				worker.join();
+			long elapsed = System.nanoTime() - start;
+			System.out.println(String.format("%d threads: %.1f M lookups/s", threads,
+					found.get() / (elapsed / 1e3)));
+		}
+	}
+}
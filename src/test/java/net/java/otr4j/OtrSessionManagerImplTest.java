@@ -0,0 +1,461 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.lang.management.ManagementFactory;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import net.java.otr4j.OtrSessionEvictionListener.Cause;
+import net.java.otr4j.session.Session;
+import net.java.otr4j.session.SessionID;
+import net.java.otr4j.session.SessionStatus;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests for the eviction of sessions from the session manager.
+ */
+public class OtrSessionManagerImplTest {
+
+	private static final String PROTOCOL = "Scytale";
+
+	private static final KeyPair KEY_PAIR;
+	static {
+		try {
+			KEY_PAIR = KeyPairGenerator.getInstance("DSA").genKeyPair();
+		} catch (Exception e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final List<SessionID> evicted = new ArrayList<SessionID>();
+	private final List<Cause> causes = new ArrayList<Cause>();
+
+	private OtrSessionManagerImpl manager(final Queue<String> outbox) throws Exception {
+		OtrEngineHost host = Mockito.mock(OtrEngineHost.class);
+		Mockito.when(host.getSessionPolicy(Mockito.any(SessionID.class))).thenReturn(
+				new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+						| OtrPolicy.ERROR_START_AKE));
+		Mockito.when(host.getLocalKeyPair(Mockito.any(SessionID.class))).thenReturn(KEY_PAIR);
+		Mockito.when(host.getFallbackMessage(Mockito.any(SessionID.class))).thenReturn("");
+		Mockito.doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				outbox.add((String) invocation.getArguments()[1]);
+				return null;
+			}
+		}).when(host).injectMessage(Mockito.any(SessionID.class), Mockito.anyString());
+
+		OtrSessionManagerImpl manager = new OtrSessionManagerImpl(host);
+		manager.addSessionEvictionListener(new OtrSessionEvictionListener() {
+			@Override
+			public void sessionEvicted(SessionID sessionID, Cause cause) {
+				evicted.add(sessionID);
+				causes.add(cause);
+			}
+		});
+		return manager;
+	}
+
+	private static SessionID id(String account, String user) {
+		return new SessionID(account, user, PROTOCOL);
+	}
+
+	@Test
+	public void testEvictionIsOffByDefault() throws Exception {
+		OtrSessionManagerImpl manager = manager(new LinkedList<String>());
+		for (int i = 0; i < 100; i++)
+			manager.getSession(id("alice", "user" + i));
+		Thread.sleep(5);
+		assertEquals(0, manager.evictIdleSessions());
+		assertEquals(100, manager.getSessionCount());
+		assertEquals(0, evicted.size());
+	}
+
+	@Test
+	public void testConcurrentGetSessionCreatesOnce() throws Exception {
+		final OtrSessionManagerImpl manager = manager(new LinkedList<String>());
+		final CountDownLatch start = new CountDownLatch(1);
+		final Session[] sessions = new Session[16];
+		Thread[] threads = new Thread[sessions.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int n = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					sessions[n] = manager.getSession(id("alice", "bob"));
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(1, manager.getSessionCount());
+		for (Session session : sessions)
+			assertSame(sessions[0], session);
+		assertSame(sessions[0], manager.getSession(id("alice", "bob")));
+	}
+
+	@Test
+	public void testIdleSessionsAreEvicted() throws Exception {
+		OtrSessionManagerImpl manager = manager(new LinkedList<String>());
+		Session idle = manager.getSession(id("alice", "idle"));
+		Session active = manager.getSession(id("alice", "active"));
+		// Set after creating the sessions, so that getSession does not run
+		// the sweep while they are created.
+		manager.setMaxIdleTime(20, TimeUnit.MILLISECONDS);
+		Thread.sleep(40);
+		active.transformSending("Still here");
+
+		assertEquals(1, manager.evictIdleSessions());
+		assertEquals(1, manager.getSessionCount());
+		assertEquals(1, manager.getIdleEvictionCount());
+		assertEquals(0, manager.getCapacityEvictionCount());
+		assertEquals(id("alice", "idle"), evicted.get(0));
+		assertEquals(Cause.IDLE, causes.get(0));
+
+		assertSame(active, manager.getSession(id("alice", "active")));
+		assertNotSame(idle, manager.getSession(id("alice", "idle")));
+
+		// The evicted session was wiped and can no longer be used.
+		try {
+			idle.transformSending("Gone");
+			fail("Expected OtrException.");
+		} catch (OtrException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void testSessionsInTheMiddleOfAnAkeAreKept() throws Exception {
+		Queue<String> aliceOut = new LinkedList<String>();
+		Queue<String> bobOut = new LinkedList<String>();
+		OtrSessionManagerImpl alice = manager(aliceOut);
+		OtrSessionManagerImpl bob = manager(bobOut);
+		Session aliceSession = alice.getSession(id("alice", "bob"));
+		Session bobSession = bob.getSession(id("bob", "alice"));
+
+		// Bob answers the query with a D-H Commit and awaits the D-H Key.
+		aliceSession.startSession();
+		bobSession.transformReceiving(aliceOut.poll());
+		assertEquals(1, bobOut.size());
+
+		bob.setMaxSessions(1);
+		bob.getSession(id("bob", "carol"));
+		assertEquals(2, bob.getSessionCount());
+		assertEquals(0, bob.getCapacityEvictionCount());
+		bob.setMaxIdleTime(1, TimeUnit.MILLISECONDS);
+		Thread.sleep(5);
+		assertEquals(1, bob.evictIdleSessions());
+		assertEquals(id("bob", "carol"), evicted.get(0));
+		assertSame(bobSession, bob.getSession(id("bob", "alice")));
+
+		// The AKE completes as if nothing happened.
+		exchange(aliceSession, aliceOut, bobSession, bobOut);
+		assertEquals(SessionStatus.ENCRYPTED, bobSession.getSessionStatus());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedSessionsAreEvicted() throws Exception {
+		OtrSessionManagerImpl manager = manager(new LinkedList<String>());
+		manager.setMaxSessions(10);
+		for (int i = 0; i < 10; i++)
+			manager.getSession(id("alice", "user" + i));
+		Thread.sleep(5);
+		// Use the first half again, so that the second half is least
+		// recently used.
+		List<Session> used = new ArrayList<Session>();
+		for (int i = 0; i < 5; i++) {
+			Session session = manager.getSession(id("alice", "user" + i));
+			session.transformSending("Hello");
+			used.add(session);
+		}
+
+		manager.getSession(id("alice", "new"));
+		// Down to the low water mark of 9, taking the least recently used.
+		assertEquals(9, manager.getSessionCount());
+		assertEquals(2, manager.getCapacityEvictionCount());
+		assertEquals(Cause.CAPACITY, causes.get(0));
+		for (SessionID sessionID : evicted)
+			assertEquals(true, sessionID.getUserID().compareTo("user5") >= 0);
+		for (int i = 0; i < 5; i++)
+			assertSame(used.get(i), manager.getSession(id("alice", "user" + i)));
+	}
+
+	@Test
+	public void testCapacityEvictionIsRateLimited() throws Exception {
+		OtrSessionManagerImpl manager = manager(new LinkedList<String>());
+		// Sessions in the middle of an AKE cannot be evicted.
+		for (int i = 0; i < 20; i++)
+			manager.getSession(id("bob", "user" + i)).transformReceiving("?OTRv23?");
+		manager.setMaxSessions(20);
+
+		// Eviction runs for the first session over the maximum, finds
+		// nothing to evict and then waits for as many new sessions as it
+		// would normally free: 20 - 18.
+		manager.getSession(id("bob", "new1"));
+		manager.getSession(id("bob", "new2"));
+		assertEquals(22, manager.getSessionCount());
+		assertEquals(0, manager.getCapacityEvictionCount());
+		manager.getSession(id("bob", "new3"));
+		assertEquals(21, manager.getSessionCount());
+		assertEquals(2, manager.getCapacityEvictionCount());
+		assertEquals(id("bob", "new1"), evicted.get(0));
+		assertEquals(id("bob", "new2"), evicted.get(1));
+	}
+
+	private static void exchange(Session alice, Queue<String> aliceOut,
+			Session bob, Queue<String> bobOut) throws Exception
+	{
+		while (!aliceOut.isEmpty() || !bobOut.isEmpty()) {
+			while (!aliceOut.isEmpty())
+				bob.transformReceiving(aliceOut.poll());
+			while (!bobOut.isEmpty())
+				alice.transformReceiving(bobOut.poll());
+		}
+	}
+
+	@Test
+	public void testExportedSessionIsRestored() throws Exception {
+		Queue<String> aliceOut = new LinkedList<String>();
+		Queue<String> bobOut = new LinkedList<String>();
+		OtrSessionManagerImpl alice = manager(aliceOut);
+		OtrSessionManagerImpl bob = manager(bobOut);
+		Session aliceSession = alice.getSession(id("alice", "bob"));
+		Session bobSession = bob.getSession(id("bob", "alice"));
+		aliceSession.startSession();
+		exchange(aliceSession, aliceOut, bobSession, bobOut);
+		assertEquals(SessionStatus.ENCRYPTED, aliceSession.getSessionStatus());
+
+		// Rotate the keys a few times, so that there are old MAC keys to
+		// reveal.
+		for (int i = 0; i < 3; i++) {
+			assertEquals("Ping " + i, bobSession.transformReceiving(
+					aliceSession.transformSending("Ping " + i)[0]));
+			assertEquals("Pong " + i, aliceSession.transformReceiving(
+					bobSession.transformSending("Pong " + i)[0]));
+		}
+
+		byte[] key = new byte[16];
+		key[0] = 42;
+		BigInteger s = aliceSession.getS();
+		byte[] snapshot = alice.exportSession(id("alice", "bob"), key);
+		assertEquals(0, alice.getSessionCount());
+
+		// The exported session cannot repeat the counters of the restored one.
+		try {
+			aliceSession.transformSending("Ping");
+			fail("Expected OtrException.");
+		} catch (OtrException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		OtrSessionManagerImpl restored = manager(aliceOut);
+		Session session = restored.importSession(snapshot, key);
+		assertEquals(id("alice", "bob"), session.getSessionID());
+		assertSame(session, restored.getSession(id("alice", "bob")));
+		assertEquals(SessionStatus.ENCRYPTED, session.getSessionStatus());
+		assertEquals(aliceSession.getSenderInstanceTag(), session.getSenderInstanceTag());
+		assertEquals(aliceSession.getReceiverInstanceTag(), session.getReceiverInstanceTag());
+		assertEquals(s, session.getS());
+		assertEquals(aliceSession.getRemotePublicKey(), session.getRemotePublicKey());
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals("Ping " + i, bobSession.transformReceiving(
+					session.transformSending("Ping " + i)[0]));
+			assertEquals("Pong " + i, session.transformReceiving(
+					bobSession.transformSending("Pong " + i)[0]));
+		}
+		assertEquals(0, aliceOut.size());
+
+		// Importing again replaces the session and wipes the one it replaces.
+		Session replacing = restored.importSession(snapshot, key);
+		assertSame(replacing, restored.getSession(id("alice", "bob")));
+		try {
+			session.startSession();
+			fail("Expected OtrException.");
+		} catch (OtrException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void testSnapshotRestoredTwiceDoesNotRepeatCounters() throws Exception {
+		Queue<String> aliceOut = new LinkedList<String>();
+		Queue<String> bobOut = new LinkedList<String>();
+		OtrSessionManagerImpl alice = manager(aliceOut);
+		OtrSessionManagerImpl bob = manager(bobOut);
+		Session aliceSession = alice.getSession(id("alice", "bob"));
+		Session bobSession = bob.getSession(id("bob", "alice"));
+		aliceSession.startSession();
+		exchange(aliceSession, aliceOut, bobSession, bobOut);
+		assertEquals(SessionStatus.ENCRYPTED, aliceSession.getSessionStatus());
+
+		byte[] key = new byte[16];
+		byte[] snapshot = alice.exportSession(id("alice", "bob"), key);
+		Session first = manager(aliceOut).importSession(snapshot, key);
+		Session second = manager(aliceOut).importSession(snapshot, key);
+
+		// Same keys, so the same message is only encrypted differently if
+		// the counters differ. The peer takes both.
+		String fromFirst = first.transformSending("Hello")[0];
+		String fromSecond = second.transformSending("Hello")[0];
+		assertFalse(fromFirst.equals(fromSecond));
+		assertEquals("Hello", bobSession.transformReceiving(fromFirst));
+		assertEquals("Hello", bobSession.transformReceiving(fromSecond));
+	}
+
+	@Test
+	public void testSnapshotIsAuthenticated() throws Exception {
+		OtrSessionManagerImpl alice = manager(new LinkedList<String>());
+		alice.getSession(id("alice", "bob"));
+		byte[] key = new byte[16];
+		byte[] snapshot = alice.exportSession(id("alice", "bob"), key);
+
+		byte[] otherKey = new byte[16];
+		otherKey[15] = 1;
+		try {
+			alice.importSession(snapshot, otherKey);
+			fail("Imported a snapshot with the wrong key");
+		} catch (OtrException e) {
+			// expected
+		}
+		snapshot[snapshot.length / 2] ^= 1;
+		try {
+			alice.importSession(snapshot, key);
+			fail("Imported a tampered snapshot");
+		} catch (OtrException e) {
+			// expected
+		}
+		assertEquals(0, alice.getSessionCount());
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		Queue<String> aliceOut = new LinkedList<String>();
+		Queue<String> bobOut = new LinkedList<String>();
+		OtrSessionManagerImpl alice = manager(aliceOut);
+		OtrSessionManagerImpl bob = manager(bobOut);
+		Session aliceSession = alice.getSession(id("alice", "bob"));
+		alice.getSession(id("alice", "carol"));
+		OtrMetrics metrics = alice.enableMetrics();
+		assertSame(metrics, alice.enableMetrics());
+		Session bobSession = bob.getSession(id("bob", "alice"));
+
+		aliceSession.startSession();
+		exchange(aliceSession, aliceOut, bobSession, bobOut);
+		assertEquals(1, metrics.getAkesStarted());
+		assertEquals(1, metrics.getAkesCompleted());
+		assertEquals(0, metrics.getAkesFailed());
+		assertEquals(1, metrics.getEncryptedSessions());
+		assertEquals(1, metrics.getPlaintextSessions());
+
+		String[] sent = aliceSession.transformSending("Hello");
+		bobSession.transformReceiving(sent[0]);
+		assertEquals(1, metrics.getSendCount());
+		assertEquals(5, metrics.getBytesEncrypted());
+		assertTrue(metrics.getSendLatencyMax() > 0);
+
+		String reply = bobSession.transformSending("Hello, Alice")[0];
+		assertEquals("Hello, Alice", aliceSession.transformReceiving(reply));
+		assertEquals(12, metrics.getBytesDecrypted());
+		char[] tampered = bobSession.transformSending("Twice")[0].toCharArray();
+		// Still valid Base64, in the next D-H key that the MAC covers.
+		tampered[tampered.length / 2] = tampered[tampered.length / 2] == 'A' ? 'B' : 'A';
+		aliceSession.transformReceiving(new String(tampered));
+		assertEquals(1, metrics.getMacFailures());
+		assertEquals(1, metrics.getUnreadableMessages());
+		// The D-H Key and Signature messages of the AKE and two data
+		// messages.
+		assertEquals(4, metrics.getReceiveCount());
+
+		ObjectName name = metrics.register("alice");
+		try {
+			assertEquals(1, ManagementFactory.getPlatformMBeanServer().getAttribute(
+					name, "EncryptedSessions"));
+			assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(
+					name, "MacFailures"));
+		} finally {
+			metrics.unregister();
+		}
+
+		metrics.reset();
+		assertEquals(0, metrics.getMacFailures());
+		assertEquals(0, metrics.getReceiveCount());
+	}
+
+	@Test
+	public void testEncryptedSessionsAreKept() throws Exception {
+		Queue<String> aliceOut = new LinkedList<String>();
+		Queue<String> bobOut = new LinkedList<String>();
+		OtrSessionManagerImpl alice = manager(aliceOut);
+		OtrSessionManagerImpl bob = manager(bobOut);
+		Session aliceSession = alice.getSession(id("alice", "bob"));
+		Session bobSession = bob.getSession(id("bob", "alice"));
+
+		aliceSession.startSession();
+		while (!aliceOut.isEmpty() || !bobOut.isEmpty()) {
+			while (!aliceOut.isEmpty())
+				bobSession.transformReceiving(aliceOut.poll());
+			while (!bobOut.isEmpty())
+				aliceSession.transformReceiving(bobOut.poll());
+		}
+		assertEquals(SessionStatus.ENCRYPTED, aliceSession.getSessionStatus());
+
+		alice.setMaxIdleTime(1, TimeUnit.MILLISECONDS);
+		alice.setMaxSessions(1);
+		alice.getSession(id("alice", "carol"));
+		Thread.sleep(5);
+		assertEquals(1, alice.evictIdleSessions());
+		assertEquals(id("alice", "carol"), evicted.get(0));
+		assertSame(aliceSession, alice.getSession(id("alice", "bob")));
+
+		// Once finished, the session is evicted and its keys are wiped.
+		aliceSession.endSession();
+		assertEquals(SessionStatus.PLAINTEXT, aliceSession.getSessionStatus());
+		Thread.sleep(5);
+		assertEquals(1, alice.evictIdleSessions());
+		assertEquals(0, alice.getSessionCount());
+		assertEquals(2, alice.getIdleEvictionCount());
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+
+import javax.crypto.interfaces.DHPublicKey;
+
+import org.junit.Test;
+
+/**
+ * Tests for the pool of pre-generated D-H key pairs.
+ */
+public class DHKeyPairPoolTest {
+
+	private static void awaitAvailable(DHKeyPairPool pool, int count)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 30000;
+		while (pool.getAvailable() < count
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(count, pool.getAvailable());
+	}
+
+	@Test
+	public void testTakeFromFilledPoolIsHit() throws Exception {
+		DHKeyPairPool pool = new DHKeyPairPool(2, 1);
+		try {
+			awaitAvailable(pool, 2);
+			KeyPair first = pool.take();
+			KeyPair second = pool.take();
+			assertNotNull(first);
+			assertFalse(((DHPublicKey) first.getPublic()).getY().equals(
+					((DHPublicKey) second.getPublic()).getY()));
+			assertEquals(2, pool.getHits());
+			assertEquals(0, pool.getMisses());
+			assertTrue(pool.getRefills() >= 2);
+			assertTrue(pool.getAverageRefillNanos() > 0);
+			assertTrue(pool.getMaxRefillNanos() >= pool.getAverageRefillNanos());
+
+			// Taking schedules refills back up to the capacity.
+			awaitAvailable(pool, 2);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testTakeFromShutDownPoolGeneratesInline() throws Exception {
+		DHKeyPairPool pool = new DHKeyPairPool(1, 1);
+		pool.shutdown();
+		assertEquals(0, pool.getAvailable());
+		assertNotNull(pool.take());
+		assertEquals(0, pool.getHits());
+		assertEquals(1, pool.getMisses());
+	}
+
+	@Test
+	public void testNextKeyPairUsesDefaultPool() throws Exception {
+		assertNull(DHKeyPairPool.getDefault());
+		assertNotNull(DHKeyPairPool.nextKeyPair());
+
+		DHKeyPairPool pool = new DHKeyPairPool(1, 1);
+		DHKeyPairPool.setDefault(pool);
+		try {
+			assertSame(pool, DHKeyPairPool.getDefault());
+			awaitAvailable(pool, 1);
+			assertNotNull(DHKeyPairPool.nextKeyPair());
+			assertEquals(1, pool.getHits() + pool.getMisses());
+		} finally {
+			DHKeyPairPool.setDefault(null);
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.DSAParams;
+import java.security.interfaces.DSAPublicKey;
+import java.security.spec.DSAPublicKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Tests for the cached, table-based DSA verifier.
+ */
+public class DSAVerifierTest {
+
+	private static KeyPair generateKeyPair() throws Exception {
+		KeyPairGenerator kg = KeyPairGenerator.getInstance("DSA");
+		kg.initialize(1024);
+		return kg.genKeyPair();
+	}
+
+	@Test
+	public void testVerifiesJceSignatures() throws Exception {
+		KeyPair pair = generateKeyPair();
+		DSAPublicKey pub = (DSAPublicKey) pair.getPublic();
+		DSAVerifier verifier = DSAVerifier.getInstance(pub);
+
+		for (int i = 0; i < 5; i++) {
+			// NONEwithDSA signs a 20-byte value as is, which is m for a
+			// 160-bit q.
+			byte[] m = new byte[20];
+			m[0] = (byte) i;
+			m[19] = 1;
+			Signature signer = Signature.getInstance("NONEwithDSA");
+			signer.initSign(pair.getPrivate());
+			signer.update(m);
+			BigInteger[] rs = decodeDer(signer.sign());
+
+			BigInteger mi = new BigInteger(1, m);
+			assertTrue(verifier.verify(mi, rs[0], rs[1]));
+			assertFalse(verifier.verify(mi.add(BigInteger.ONE), rs[0], rs[1]));
+			assertFalse(verifier.verify(mi, rs[0], rs[1].add(BigInteger.ONE)));
+			assertFalse(verifier.verify(mi, BigInteger.ZERO, rs[1]));
+			assertFalse(verifier.verify(mi, rs[0], verifier.getQ()));
+		}
+	}
+
+	@Test
+	public void testCacheEvictsLeastRecentlyUsed() throws Exception {
+		int previous = DSAVerifier.getCacheSize();
+		DSAVerifier.setCacheSize(2);
+		try {
+			DSAPublicKey a = (DSAPublicKey) generateKeyPair().getPublic();
+			DSAPublicKey b = (DSAPublicKey) generateKeyPair().getPublic();
+			DSAPublicKey c = (DSAPublicKey) generateKeyPair().getPublic();
+
+			DSAVerifier va = DSAVerifier.getInstance(a);
+			DSAVerifier vb = DSAVerifier.getInstance(b);
+			assertSame(va, DSAVerifier.getInstance(a));
+			// b is now least recently used and makes room for c.
+			DSAVerifier.getInstance(c);
+			assertEquals(2, DSAVerifier.getCachedCount());
+			assertSame(va, DSAVerifier.getInstance(a));
+			assertNotSame(vb, DSAVerifier.getInstance(b));
+
+			DSAVerifier.setCacheSize(0);
+			assertEquals(0, DSAVerifier.getCachedCount());
+		} finally {
+			DSAVerifier.setCacheSize(previous);
+		}
+	}
+
+	@Test
+	public void testTablesBuiltOnceKeyVerifiedAndUsedAgain() throws Exception {
+		KeyPair pair = generateKeyPair();
+		DSAPublicKey pub = (DSAPublicKey) pair.getPublic();
+		byte[] m = new byte[20];
+		m[19] = 1;
+		BigInteger mi = new BigInteger(1, m);
+		BigInteger[] rs = sign(pair, m);
+
+		// First contact verifies without tables, and so does a key whose
+		// signature has not verified yet.
+		DSAVerifier verifier = DSAVerifier.getInstance(pub);
+		assertFalse(verifier.hasTables());
+		assertFalse(verifier.verify(mi, rs[0], rs[1].add(BigInteger.ONE)));
+		assertSame(verifier, DSAVerifier.getInstance(pub));
+		assertFalse(verifier.hasTables());
+
+		assertTrue(verifier.verify(mi, rs[0], rs[1]));
+		assertFalse(verifier.hasTables());
+
+		// Once it has verified, the next use builds the tables.
+		assertSame(verifier, DSAVerifier.getInstance(pub));
+		assertTrue(verifier.hasTables());
+		assertTrue(verifier.verify(mi, rs[0], rs[1]));
+		assertFalse(verifier.verify(mi.add(BigInteger.ONE), rs[0], rs[1]));
+	}
+
+	@Test
+	public void testLargeKeysAreNotCached() throws Exception {
+		DSAParams params = ((DSAPublicKey) generateKeyPair().getPublic()).getParams();
+		BigInteger bigP = BigInteger.ONE.shiftLeft(2048).add(BigInteger.ONE);
+		BigInteger bigQ = BigInteger.ONE.shiftLeft(256).add(BigInteger.ONE);
+		KeyFactory kf = KeyFactory.getInstance("DSA");
+		DSAPublicKey[] keys = {
+				(DSAPublicKey) kf.generatePublic(new DSAPublicKeySpec(
+						BigInteger.valueOf(2), bigP, params.getQ(), params.getG())),
+				(DSAPublicKey) kf.generatePublic(new DSAPublicKeySpec(
+						BigInteger.valueOf(2), params.getP(), bigQ, params.getG())) };
+
+		for (DSAPublicKey key : keys) {
+			int cached = DSAVerifier.getCachedCount();
+			DSAVerifier verifier = DSAVerifier.getInstance(key);
+			assertEquals(cached, DSAVerifier.getCachedCount());
+			assertNotSame(verifier, DSAVerifier.getInstance(key));
+			assertFalse(verifier.hasTables());
+		}
+	}
+
+	/**
+	 * Sign a 20-byte value as is with NONEwithDSA.
+	 */
+	private static BigInteger[] sign(KeyPair pair, byte[] m) throws Exception {
+		Signature signer = Signature.getInstance("NONEwithDSA");
+		signer.initSign(pair.getPrivate());
+		signer.update(m);
+		return decodeDer(signer.sign());
+	}
+
+	/**
+	 * Decode a DER SEQUENCE { INTEGER r, INTEGER s }.
+	 */
+	private static BigInteger[] decodeDer(byte[] der) {
+		int offset = 2;
+		BigInteger[] rs = new BigInteger[2];
+		for (int i = 0; i < 2; i++) {
+			int len = der[offset + 1];
+			byte[] value = new byte[len];
+			System.arraycopy(der, offset + 2, value, 0, len);
+			rs[i] = new BigInteger(1, value);
+			offset += 2 + len;
+		}
+		return rs;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+
+import net.java.otr4j.io.SerializationUtils;
+
+import org.junit.Test;
+
+/**
+ * Tests for the shared fingerprint cache.
+ */
+public class FingerprintCacheTest {
+
+	@Test
+	public void testFingerprintMatchesDefinition() throws Exception {
+		PublicKey key = KeyPairGenerator.getInstance("DSA").genKeyPair()
+				.getPublic();
+
+		// SHA-1 over the OTR serialization without the 2-byte key type.
+		byte[] serialized = SerializationUtils.writePublicKey(key);
+		MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+		sha1.update(serialized, 2, serialized.length - 2);
+		byte[] expected = sha1.digest();
+
+		assertArrayEquals(expected, FingerprintCache.getFingerprintRaw(key));
+		assertEquals(SerializationUtils.byteArrayToHexString(expected),
+				FingerprintCache.getFingerprint(key));
+
+		// Callers get their own copy of the raw form.
+		FingerprintCache.getFingerprintRaw(key)[0] ^= 1;
+		assertArrayEquals(expected, FingerprintCache.getFingerprintRaw(key));
+	}
+
+	@Test
+	public void testLookupByEncodedBytes() throws Exception {
+		PublicKey key = KeyPairGenerator.getInstance("DSA").genKeyPair()
+				.getPublic();
+		byte[] encoded = key.getEncoded();
+		assertNull(FingerprintCache.getCachedFingerprint(encoded));
+
+		// A copy decoded from the encoding, as a key store would do.
+		PublicKey decoded = KeyFactory.getInstance("DSA").generatePublic(
+				new X509EncodedKeySpec(encoded));
+		String fingerprint = FingerprintCache.getFingerprint(decoded);
+
+		assertEquals(fingerprint, FingerprintCache.getCachedFingerprint(encoded));
+		assertArrayEquals(FingerprintCache.getFingerprintRaw(decoded),
+				FingerprintCache.getCachedFingerprintRaw(encoded));
+		assertEquals(fingerprint, FingerprintCache.getFingerprint(key));
+
+		FingerprintCache.clear();
+		assertNull(FingerprintCache.getCachedFingerprint(encoded));
+	}
+}
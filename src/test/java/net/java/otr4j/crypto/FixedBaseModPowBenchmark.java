@@ -0,0 +1,76 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * Micro benchmark comparing {@link BigInteger#modPow(BigInteger, BigInteger)}
+ * with the shared fixed-base generator table, for D-H private key sized and
+ * SMP sized exponents. This is not a unit test; run it with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=net.java.otr4j.crypto.FixedBaseModPowBenchmark
+ * </pre>
+ */
+public final class FixedBaseModPowBenchmark {
+
+	private static final int WARMUP_ITERATIONS = 500;
+	private static final int MEASURED_ITERATIONS = 2000;
+
+	private FixedBaseModPowBenchmark() {
+	}
+
+	public static void main(String[] args) {
+		long start = System.nanoTime();
+		FixedBaseModPow table = FixedBaseModPow.getGenerator();
+		System.out.println(String.format("table construction       %8.2f ms",
+				(System.nanoTime() - start) / 1e6));
+
+		run("D-H (320-bit)", table,
+				OtrCryptoEngine.DH_PRIVATE_KEY_MINIMUM_BIT_LENGTH);
+		run("SMP (1536-bit)", table, SM.MOD_LEN_BITS);
+	}
+
+	private static void run(String name, FixedBaseModPow table, int bits) {
+		SecureRandom random = new SecureRandom();
+		BigInteger[] exponents = new BigInteger[MEASURED_ITERATIONS];
+		for (int i = 0; i < exponents.length; i++)
+			exponents[i] = new BigInteger(bits, random);
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			OtrCryptoEngine.GENERATOR.modPow(exponents[i],
+					OtrCryptoEngine.MODULUS);
+			table.pow(exponents[i]);
+		}
+
+		long start = System.nanoTime();
+		for (BigInteger e : exponents)
+			OtrCryptoEngine.GENERATOR.modPow(e, OtrCryptoEngine.MODULUS);
+		long modPow = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (BigInteger e : exponents)
+			table.pow(e);
+		long fixedBase = System.nanoTime() - start;
+
+		System.out.println(String.format(
+				"%-16s modPow %8.1f us, fixed base %8.1f us",
+				name, modPow / 1e3 / exponents.length,
+				fixedBase / 1e3 / exponents.length));
+	}
+}
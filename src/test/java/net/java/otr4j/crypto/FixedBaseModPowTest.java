@@ -0,0 +1,78 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.interfaces.DHPublicKey;
+
+import org.junit.Test;
+
+/**
+ * Tests that fixed-base exponentiation agrees with
+ * {@link BigInteger#modPow(BigInteger, BigInteger)}.
+ */
+public class FixedBaseModPowTest {
+
+	private static final BigInteger P = OtrCryptoEngine.MODULUS;
+	private static final BigInteger G = OtrCryptoEngine.GENERATOR;
+
+	@Test
+	public void testGeneratorMatchesModPow() {
+		FixedBaseModPow table = FixedBaseModPow.getGenerator();
+		assertSame(table, FixedBaseModPow.getGenerator());
+
+		SecureRandom random = new SecureRandom();
+		for (int bits : new int[] { 1, 5, 64, 320, 1535, 1536 }) {
+			for (int i = 0; i < 5; i++) {
+				BigInteger e = new BigInteger(bits, random);
+				assertEquals(G.modPow(e, P), table.pow(e));
+			}
+		}
+		assertEquals(BigInteger.ONE, table.pow(BigInteger.ZERO));
+		assertEquals(G.modPow(SM.ORDER_S, P), table.pow(SM.ORDER_S));
+		assertEquals(G.modPow(OtrCryptoEngine.MODULUS_MINUS_TWO, P),
+				table.pow(OtrCryptoEngine.MODULUS_MINUS_TWO));
+	}
+
+	@Test
+	public void testOutOfRangeExponentsFallBack() {
+		FixedBaseModPow table = new FixedBaseModPow(BigInteger.valueOf(3), P,
+				64, 3);
+		BigInteger big = new BigInteger(200, new SecureRandom());
+		assertEquals(BigInteger.valueOf(3).modPow(big, P), table.pow(big));
+		assertEquals(BigInteger.valueOf(3).modPow(BigInteger.valueOf(-7), P),
+				table.pow(BigInteger.valueOf(-7)));
+		assertEquals(BigInteger.valueOf(3).modPow(BigInteger.valueOf(1234567), P),
+				table.pow(BigInteger.valueOf(1234567)));
+	}
+
+	@Test
+	public void testGeneratedDHKeyPairIsConsistent() throws Exception {
+		KeyPair pair = new OtrCryptoEngineImpl().generateDHKeyPair();
+		BigInteger x = ((DHPrivateKey) pair.getPrivate()).getX();
+		BigInteger y = ((DHPublicKey) pair.getPublic()).getY();
+		assertEquals(OtrCryptoEngine.DH_PRIVATE_KEY_MINIMUM_BIT_LENGTH,
+				x.bitLength());
+		assertEquals(G.modPow(x, P), y);
+	}
+}
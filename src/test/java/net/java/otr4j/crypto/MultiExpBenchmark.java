@@ -0,0 +1,188 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Micro benchmark for the SMP proof checks. It compares separate
+ * {@link BigInteger#modPow(BigInteger, BigInteger)} calls, {@link MultiExp}
+ * and an interleaved Straus evaluation (2-bit windows, Barrett reduction) of
+ * g1^d * x^c, and then times every step of complete SMP exchanges, serially
+ * and with the exponentiations of each step spread over a thread pool. This is
+ * not a unit test; run it with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=net.java.otr4j.crypto.MultiExpBenchmark
+ * </pre>
+ */
+public final class MultiExpBenchmark {
+
+	private static final int ITERATIONS = 200;
+	private static final int EXCHANGES = 50;
+
+	private static final BigInteger P = SM.MODULUS_S;
+	private static final BigInteger G1 = new BigInteger(1, SM.GENERATOR_S);
+
+	private MultiExpBenchmark() {
+	}
+
+	public static void main(String[] args) throws SM.SMException {
+		FixedBaseModPow.getGenerator();
+		SecureRandom random = new SecureRandom();
+		BigInteger[] x = new BigInteger[ITERATIONS];
+		BigInteger[] c = new BigInteger[ITERATIONS];
+		BigInteger[] d = new BigInteger[ITERATIONS];
+		for (int i = 0; i < ITERATIONS; i++) {
+			x[i] = G1.modPow(SM.randomExponent(), P);
+			c[i] = new BigInteger(256, random);
+			d[i] = SM.randomExponent().mod(SM.ORDER_S);
+		}
+
+		for (int round = 0; round < 2; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				G1.modPow(d[i], P).multiply(x[i].modPow(c[i], P)).mod(P);
+			long separate = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				MultiExp.product(G1, d[i], x[i], c[i]);
+			long multiExp = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				straus(G1, d[i], x[i], c[i]);
+			long straus = System.nanoTime() - start;
+
+			System.out.println(String.format("g1^d * x^c: modPow %8.1f us, "
+					+ "MultiExp %8.1f us, Straus %8.1f us",
+					separate / 1e3 / ITERATIONS, multiExp / 1e3 / ITERATIONS,
+					straus / 1e3 / ITERATIONS));
+		}
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int round = 0; round < 2; round++) {
+				steps("serial", null);
+				steps(threads + " threads", executor);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void steps(String name, Executor executor)
+			throws SM.SMException
+	{
+		long[] steps = new long[6];
+		Arrays.fill(steps, 0);
+		for (int i = 0; i < EXCHANGES; i++)
+			exchange(steps, executor);
+		String[] names = { "step1", "step2a", "step2b", "step3", "step4",
+				"step5" };
+		StringBuilder line = new StringBuilder(String.format("%-11s", name));
+		for (int i = 0; i < steps.length; i++)
+			line.append(String.format("%s %7.2f ms  ", names[i],
+					steps[i] / 1e6 / EXCHANGES));
+		System.out.println(line.toString().trim());
+	}
+
+	private static void exchange(long[] steps, Executor executor)
+			throws SM.SMException
+	{
+		SM.SMState alice = new SM.SMState();
+		alice.setExecutor(executor);
+		SM.SMState bob = new SM.SMState();
+		bob.setExecutor(executor);
+
+		long start = System.nanoTime();
+		byte[] msg1 = SM.step1(alice, "secret".getBytes());
+		steps[0] += System.nanoTime() - start;
+
+		start = System.nanoTime();
+		SM.step2a(bob, msg1, 0);
+		steps[1] += System.nanoTime() - start;
+
+		start = System.nanoTime();
+		byte[] msg2 = SM.step2b(bob, "secret".getBytes());
+		steps[2] += System.nanoTime() - start;
+
+		start = System.nanoTime();
+		byte[] msg3 = SM.step3(alice, msg2);
+		steps[3] += System.nanoTime() - start;
+
+		start = System.nanoTime();
+		byte[] msg4 = SM.step4(bob, msg3);
+		steps[4] += System.nanoTime() - start;
+
+		start = System.nanoTime();
+		SM.step5(alice, msg4);
+		steps[5] += System.nanoTime() - start;
+
+		if (alice.smProgState != SM.PROG_SUCCEEDED)
+			throw new IllegalStateException("SMP exchange failed");
+	}
+
+	/**
+	 * Straus (Shamir's trick with 2-bit windows) on plain BigInteger
+	 * arithmetic, kept here only as the reference point for {@link MultiExp}.
+	 */
+	static BigInteger straus(BigInteger b1, BigInteger e1, BigInteger b2,
+			BigInteger e2)
+	{
+		int k = P.bitLength();
+		BigInteger mu = BigInteger.ONE.shiftLeft(2 * k).divide(P);
+
+		BigInteger[][] table = new BigInteger[4][4];
+		BigInteger[] p1 = { BigInteger.ONE, b1, reduce(b1.multiply(b1), mu, k),
+				null };
+		p1[3] = reduce(p1[2].multiply(b1), mu, k);
+		BigInteger[] p2 = { BigInteger.ONE, b2, reduce(b2.multiply(b2), mu, k),
+				null };
+		p2[3] = reduce(p2[2].multiply(b2), mu, k);
+		for (int i = 0; i < 4; i++)
+			for (int j = 0; j < 4; j++)
+				table[i][j] = reduce(p1[i].multiply(p2[j]), mu, k);
+
+		int bits = Math.max(e1.bitLength(), e2.bitLength());
+		bits += bits & 1;
+		BigInteger result = BigInteger.ONE;
+		for (int i = bits - 2; i >= 0; i -= 2) {
+			result = reduce(result.multiply(result), mu, k);
+			result = reduce(result.multiply(result), mu, k);
+			int w1 = (e1.testBit(i + 1) ? 2 : 0) | (e1.testBit(i) ? 1 : 0);
+			int w2 = (e2.testBit(i + 1) ? 2 : 0) | (e2.testBit(i) ? 1 : 0);
+			if ((w1 | w2) != 0)
+				result = reduce(result.multiply(table[w1][w2]), mu, k);
+		}
+		return result;
+	}
+
+	private static BigInteger reduce(BigInteger x, BigInteger mu, int k) {
+		BigInteger q = x.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+		BigInteger r = x.subtract(q.multiply(P));
+		while (r.compareTo(P) >= 0)
+			r = r.subtract(P);
+		return r;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+import org.junit.Test;
+
+/**
+ * Known-answer tests for the products of powers used by the SMP proof
+ * checks, against the separate modPow evaluation they replace.
+ */
+public class MultiExpTest {
+
+	private static final BigInteger P = SM.MODULUS_S;
+	private static final BigInteger G1 = new BigInteger(1, SM.GENERATOR_S);
+
+	private final SecureRandom random = new SecureRandom();
+
+	private BigInteger element() {
+		return G1.modPow(SM.randomExponent(), P);
+	}
+
+	private BigInteger exponent() {
+		return SM.randomExponent().mod(SM.ORDER_S);
+	}
+
+	private BigInteger hashSized() {
+		return new BigInteger(256, random);
+	}
+
+	@Test
+	public void testProductMatchesModPow() {
+		for (int i = 0; i < 5; i++) {
+			BigInteger b = element();
+			BigInteger e1 = exponent();
+			BigInteger e2 = hashSized();
+			BigInteger e3 = exponent();
+			assertEquals(b.modPow(e1, P), MultiExp.pow(b, e1));
+			assertEquals(G1.modPow(e1, P), MultiExp.pow(G1, e1));
+			assertEquals(G1.modPow(e1, P).multiply(b.modPow(e2, P)).mod(P),
+					MultiExp.product(G1, e1, b, e2));
+			assertEquals(G1.modPow(e1, P).multiply(b.modPow(e3, P)).mod(P)
+					.multiply(b.modPow(e2, P)).mod(P),
+					MultiExp.product(G1, e1, b, e3, b, e2));
+		}
+		assertEquals(BigInteger.ONE, MultiExp.product(new BigInteger[0],
+				new BigInteger[0]));
+	}
+
+	@Test
+	public void testCheckKnowLogMatchesReference() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			BigInteger c = hashSized();
+			BigInteger d = exponent();
+			BigInteger x = element();
+
+			BigInteger gd = G1.modPow(d, P);
+			BigInteger xc = x.modPow(c, P);
+			int expected = SM.hash(1, gd.multiply(xc).mod(P), null).compareTo(c);
+
+			assertEquals(expected, SM.checkKnowLog(c, d, G1, x, 1));
+		}
+	}
+
+	@Test
+	public void testProofsCheckOut() throws Exception {
+		BigInteger x = exponent();
+		BigInteger[] cd = SM.proofKnowLog(G1, x, 3);
+		assertEquals(0, SM.checkKnowLog(cd[0], cd[1], G1, G1.modPow(x, P), 3));
+	}
+
+	@Test
+	public void testCheckEqualCoordsMatchesReference() throws Exception {
+		SM.SMState state = new SM.SMState();
+		state.g2 = element();
+		state.g3 = element();
+		for (int i = 0; i < 5; i++) {
+			BigInteger c = hashSized();
+			BigInteger d1 = exponent();
+			BigInteger d2 = exponent();
+			BigInteger p = element();
+			BigInteger q = element();
+
+			BigInteger temp1 = state.g3.modPow(d1, P).multiply(p.modPow(c, P))
+					.mod(P);
+			BigInteger temp2 = state.g1.modPow(d1, P).multiply(
+					state.g2.modPow(d2, P)).mod(P);
+			temp2 = q.modPow(c, P).multiply(temp2).mod(P);
+			int expected = c.compareTo(SM.hash(5, temp1, temp2));
+
+			assertEquals(expected, SM.checkEqualCoords(c, d1, d2, p, q, state, 5));
+		}
+	}
+
+	@Test
+	public void testCheckEqualLogsMatchesReference() throws Exception {
+		SM.SMState state = new SM.SMState();
+		state.g3o = element();
+		state.qab = element();
+		for (int i = 0; i < 5; i++) {
+			BigInteger c = hashSized();
+			BigInteger d = exponent();
+			BigInteger r = element();
+
+			BigInteger temp1 = state.g1.modPow(d, P).multiply(
+					state.g3o.modPow(c, P)).mod(P);
+			BigInteger temp2 = state.qab.modPow(d, P).multiply(r.modPow(c, P))
+					.mod(P);
+			int expected = c.compareTo(SM.hash(6, temp1, temp2));
+
+			assertEquals(expected, SM.checkEqualLogs(c, d, r, state, 6));
+		}
+	}
+
+	@Test
+	public void testFullExchange() throws Exception {
+		assertEquals(SM.PROG_SUCCEEDED, exchange("secret", "secret"));
+		assertEquals(SM.PROG_FAILED, exchange("secret", "other"));
+	}
+
+	static int exchange(String aliceSecret, String bobSecret)
+			throws SM.SMException
+	{
+		SM.SMState alice = new SM.SMState();
+		SM.SMState bob = new SM.SMState();
+		byte[] msg1 = SM.step1(alice, aliceSecret.getBytes());
+		SM.step2a(bob, msg1, 0);
+		byte[] msg2 = SM.step2b(bob, bobSecret.getBytes());
+		byte[] msg3 = SM.step3(alice, msg2);
+		byte[] msg4 = SM.step4(bob, msg3);
+		SM.step5(alice, msg4);
+		assertEquals(alice.smProgState, bob.smProgState);
+		return alice.smProgState;
+	}
+}
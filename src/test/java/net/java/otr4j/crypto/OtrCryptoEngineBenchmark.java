@@ -0,0 +1,106 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+/**
+ * Micro benchmark comparing the per-call operations of crypto engine
+ * configurations on a data-message sized payload. This is not a unit test;
+ * run it with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=net.java.otr4j.crypto.OtrCryptoEngineBenchmark
+ * </pre>
+ */
+public final class OtrCryptoEngineBenchmark {
+
+	private static final int WARMUP_ITERATIONS = 20000;
+	private static final int MEASURED_ITERATIONS = 200000;
+
+	private OtrCryptoEngineBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int payloadSize = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+
+		run("fresh primitives", new OtrCryptoEngineImpl(false), payloadSize);
+		run("per-thread primitives", new OtrCryptoEngineImpl(true), payloadSize);
+		runContexts("per-key contexts", new OtrCryptoEngineImpl(true),
+				payloadSize);
+	}
+
+	private static void run(String name, OtrCryptoEngine engine,
+			int payloadSize) throws OtrCryptoException
+	{
+		byte[] key = new byte[OtrCryptoEngine.AES_KEY_BYTE_LENGTH];
+		byte[] ctr = new byte[16];
+		byte[] payload = new byte[payloadSize];
+
+		// The operations performed for a single data message: encrypt,
+		// hash the AES key into a MAC key and MAC the result.
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			dataMessage(engine, key, ctr, payload);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ITERATIONS; i++)
+			dataMessage(engine, key, ctr, payload);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format("%-24s %8.0f ns/message", name,
+				(double) elapsed / MEASURED_ITERATIONS));
+	}
+
+	private static void runContexts(String name, OtrCryptoEngine engine,
+			int payloadSize) throws OtrCryptoException
+	{
+		byte[] key = new byte[OtrCryptoEngine.AES_KEY_BYTE_LENGTH];
+		byte[] ctr = new byte[16];
+		byte[] payload = new byte[payloadSize];
+
+		// Session keys create their contexts once and reuse them for every
+		// message until the keys rotate.
+		OtrCipherContext cipher = engine.createAesCtrContext(key);
+		OtrMacContext mac = engine.createSha1HmacContext(engine.sha1Hash(key));
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			dataMessage(engine, cipher, mac, ctr, payload);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ITERATIONS; i++)
+			dataMessage(engine, cipher, mac, ctr, payload);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format("%-24s %8.0f ns/message", name,
+				(double) elapsed / MEASURED_ITERATIONS));
+	}
+
+	private static void dataMessage(OtrCryptoEngine engine,
+			OtrCipherContext cipher, OtrMacContext mac, byte[] ctr,
+			byte[] payload) throws OtrCryptoException
+	{
+		byte[] encrypted = cipher.encrypt(ctr, payload);
+		mac.mac(encrypted, 20);
+		engine.sha256Hash(encrypted);
+	}
+
+	private static void dataMessage(OtrCryptoEngine engine, byte[] key,
+			byte[] ctr, byte[] payload) throws OtrCryptoException
+	{
+		byte[] encrypted = engine.aesEncrypt(key, ctr, payload);
+		byte[] macKey = engine.sha1Hash(key);
+		engine.sha1Hmac(encrypted, macKey, 20);
+		engine.sha256Hash(encrypted);
+	}
+}
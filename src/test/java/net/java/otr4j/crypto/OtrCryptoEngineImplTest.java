@@ -0,0 +1,103 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import net.java.otr4j.io.SerializationUtils;
+
+import org.junit.Test;
+
+/**
+ * Tests for the OTR crypto engine, in particular that reusing per-thread
+ * primitives produces the same results as creating fresh ones.
+ */
+public class OtrCryptoEngineImplTest {
+
+	private static final byte[] KEY_1 = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8,
+			9, 10, 11, 12, 13, 14, 15, 16 };
+	private static final byte[] KEY_2 = new byte[] { 16, 15, 14, 13, 12, 11,
+			10, 9, 8, 7, 6, 5, 4, 3, 2, 1 };
+	private static final byte[] CTR = new byte[] { 0, 0, 0, 0, 0, 0, 0, 5, 0,
+			0, 0, 0, 0, 0, 0, 0 };
+
+	private final OtrCryptoEngine reusing = new OtrCryptoEngineImpl(true);
+	private final OtrCryptoEngine fresh = new OtrCryptoEngineImpl(false);
+
+	@Test
+	public void testSha1HashKnownAnswer() throws Exception {
+		byte[] expected = SerializationUtils
+				.hexStringToByteArray("A9993E364706816ABA3E25717850C26C9CD0D89D");
+		assertArrayEquals(expected, reusing.sha1Hash("abc".getBytes("US-ASCII")));
+		// Second use of the same thread-local digest must not be affected
+		// by the first one.
+		assertArrayEquals(expected, reusing.sha1Hash("abc".getBytes("US-ASCII")));
+		assertArrayEquals(expected, fresh.sha1Hash("abc".getBytes("US-ASCII")));
+	}
+
+	@Test
+	public void testSha256HmacKnownAnswer() throws Exception {
+		// RFC 4231, test case 2
+		byte[] key = "Jefe".getBytes("US-ASCII");
+		byte[] data = "what do ya want for nothing?".getBytes("US-ASCII");
+		byte[] expected = SerializationUtils
+				.hexStringToByteArray("5BDCC146BF60754E6A042426089575C75A003F089D2739839DEC58B964EC3843");
+		assertArrayEquals(expected, reusing.sha256Hmac(data, key));
+		assertArrayEquals(expected, fresh.sha256Hmac(data, key));
+	}
+
+	@Test
+	public void testReusedMacIsRekeyed() throws Exception {
+		byte[] data = "data".getBytes("US-ASCII");
+		byte[] mac1 = reusing.sha1Hmac(data, KEY_1, 20);
+		byte[] mac2 = reusing.sha1Hmac(data, KEY_2, 20);
+		assertArrayEquals(fresh.sha1Hmac(data, KEY_1, 20), mac1);
+		assertArrayEquals(fresh.sha1Hmac(data, KEY_2, 20), mac2);
+		assertEquals(20, mac1.length);
+	}
+
+	@Test
+	public void testReusedCipherMatchesFreshCipher() throws Exception {
+		byte[] plain = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+		byte[] enc1 = reusing.aesEncrypt(KEY_1, CTR, plain);
+		byte[] enc2 = reusing.aesEncrypt(KEY_2, null, plain);
+		assertArrayEquals(fresh.aesEncrypt(KEY_1, CTR, plain), enc1);
+		assertArrayEquals(fresh.aesEncrypt(KEY_2, null, plain), enc2);
+		assertArrayEquals(plain, reusing.aesDecrypt(KEY_1, CTR, enc1));
+		assertArrayEquals(plain, reusing.aesDecrypt(KEY_2, null, enc2));
+	}
+
+	@Test
+	public void testContextsMatchOneShotOperations() throws Exception {
+		byte[] plain = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+		byte[] ctr2 = CTR.clone();
+		ctr2[7]++;
+		OtrCryptoEngine[] engines = { reusing, new JceOtrCryptoEngine() };
+		for (OtrCryptoEngine engine : engines) {
+			OtrCipherContext cipher = engine.createAesCtrContext(KEY_1);
+			OtrMacContext mac = engine.createSha1HmacContext(KEY_2);
+			// Several messages through the same contexts.
+			for (byte[] ctr : new byte[][] { CTR, ctr2, null, CTR }) {
+				byte[] enc = cipher.encrypt(ctr, plain);
+				assertArrayEquals(fresh.aesEncrypt(KEY_1, ctr, plain), enc);
+				assertArrayEquals(plain, cipher.decrypt(ctr, enc));
+				assertArrayEquals(fresh.sha1Hmac(enc, KEY_2, 20),
+						mac.mac(enc, 20));
+			}
+		}
+	}
+}
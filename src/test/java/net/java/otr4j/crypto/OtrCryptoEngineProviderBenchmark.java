@@ -0,0 +1,72 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+/**
+ * Micro benchmark comparing AES-CTR throughput of all available crypto
+ * engine providers, and reporting the fastest one for each payload size.
+ * This is not a unit test; run it with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=net.java.otr4j.crypto.OtrCryptoEngineProviderBenchmark
+ * </pre>
+ * and select the winner with <tt>-Dnet.java.otr4j.crypto.engine=&lt;name&gt;</tt>.
+ */
+public final class OtrCryptoEngineProviderBenchmark {
+
+	private static final int[] PAYLOAD_SIZES = { 64, 1024, 16384, 262144 };
+	private static final long BYTES_PER_RUN = 64L * 1024 * 1024;
+
+	private OtrCryptoEngineProviderBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		byte[] key = new byte[OtrCryptoEngine.AES_KEY_BYTE_LENGTH];
+		byte[] ctr = new byte[16];
+
+		for (int size : PAYLOAD_SIZES) {
+			byte[] payload = new byte[size];
+			int iterations = (int) Math.max(1, BYTES_PER_RUN / size);
+
+			String winner = null;
+			double best = Double.MAX_VALUE;
+			for (OtrCryptoEngineProvider provider : OtrCryptoEngines
+					.getProviders())
+			{
+				OtrCryptoEngine engine = provider.createEngine();
+
+				// Warm up, then measure.
+				for (int i = 0; i < iterations / 4; i++)
+					engine.aesEncrypt(key, ctr, payload);
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++)
+					engine.aesEncrypt(key, ctr, payload);
+				double nsPerByte = (double) (System.nanoTime() - start)
+						/ iterations / size;
+
+				System.out.println(String.format(
+						"%-14s %8d bytes %8.2f ns/byte %8.1f MB/s",
+						provider.getName(), size, nsPerByte, 1000 / nsPerByte));
+				if (nsPerByte < best) {
+					best = nsPerByte;
+					winner = provider.getName();
+				}
+			}
+			System.out.println(String.format("%-14s %8d bytes: %s",
+					"winner", size, winner));
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for crypto engine provider discovery and for the agreement of the
+ * provided engines.
+ */
+public class OtrCryptoEnginesTest {
+
+	@Test
+	public void testBuiltInProvidersAreDiscovered() {
+		OtrCryptoEngineProvider bc = OtrCryptoEngines
+				.getProvider(BouncyCastleOtrCryptoEngineProvider.NAME);
+		OtrCryptoEngineProvider jce = OtrCryptoEngines
+				.getProvider(JceOtrCryptoEngineProvider.NAME);
+		assertNotNull(bc);
+		assertNotNull(jce);
+		assertTrue(bc.createEngine() instanceof OtrCryptoEngineImpl);
+		assertTrue(jce.createEngine() instanceof JceOtrCryptoEngine);
+		assertNull(OtrCryptoEngines.getProvider("no-such-engine"));
+	}
+
+	@Test
+	public void testSetEngine() {
+		OtrCryptoEngine engine = new JceOtrCryptoEngine();
+		OtrCryptoEngines.setEngine(engine);
+		try {
+			assertSame(engine, OtrCryptoEngines.getEngine());
+		} finally {
+			OtrCryptoEngines.setEngine(null);
+		}
+		assertTrue(OtrCryptoEngines.getEngine() instanceof OtrCryptoEngineImpl);
+	}
+
+	@Test
+	public void testJceAesCtrMatchesBouncyCastle() throws Exception {
+		OtrCryptoEngine bc = new OtrCryptoEngineImpl();
+		OtrCryptoEngine jce = new JceOtrCryptoEngine();
+		Random random = new Random(42);
+		byte[] key = new byte[OtrCryptoEngine.AES_KEY_BYTE_LENGTH];
+		byte[] ctr = new byte[16];
+		random.nextBytes(key);
+		random.nextBytes(ctr);
+		// The counter's low half starts at zero, as in data messages.
+		for (int i = 8; i < 16; i++)
+			ctr[i] = 0;
+
+		for (int length : new int[] { 0, 1, 15, 16, 17, 1000, 65537 }) {
+			byte[] plain = new byte[length];
+			random.nextBytes(plain);
+			byte[] encrypted = bc.aesEncrypt(key, ctr, plain);
+			assertArrayEquals(encrypted, jce.aesEncrypt(key, ctr, plain));
+			assertArrayEquals(plain, jce.aesDecrypt(key, ctr, encrypted));
+			assertArrayEquals(bc.aesEncrypt(key, null, plain),
+					jce.aesEncrypt(key, null, plain));
+		}
+	}
+}
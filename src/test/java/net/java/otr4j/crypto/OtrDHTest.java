@@ -0,0 +1,106 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHPrivateKeySpec;
+import javax.crypto.spec.DHPublicKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Tests for the JCE-free D-H implementation.
+ */
+public class OtrDHTest {
+
+	private static final BigInteger P = OtrCryptoEngine.MODULUS;
+	private static final BigInteger G = OtrCryptoEngine.GENERATOR;
+
+	@Test
+	public void testAgreementIsSymmetric() throws Exception {
+		SecureRandom random = new SecureRandom();
+		KeyPair a = OtrDH.generateKeyPair(random);
+		KeyPair b = OtrDH.generateKeyPair(random);
+		assertEquals(OtrDH.generateSecret(a.getPrivate(), b.getPublic()),
+				OtrDH.generateSecret(b.getPrivate(), a.getPublic()));
+	}
+
+	@Test
+	public void testAgreementMatchesJce() throws Exception {
+		KeyPair a = OtrDH.generateKeyPair(new SecureRandom());
+		KeyPair b = OtrDH.generateKeyPair(new SecureRandom());
+
+		KeyFactory keyFactory = KeyFactory.getInstance("DH");
+		PrivateKey jcePrivate = keyFactory.generatePrivate(new DHPrivateKeySpec(
+				((DHPrivateKey) a.getPrivate()).getX(), P, G));
+		PublicKey jcePublic = keyFactory.generatePublic(new DHPublicKeySpec(
+				((DHPublicKey) b.getPublic()).getY(), P, G));
+
+		KeyAgreement ka = KeyAgreement.getInstance("DH");
+		ka.init(jcePrivate);
+		ka.doPhase(jcePublic, true);
+		BigInteger expected = new BigInteger(1, ka.generateSecret());
+
+		assertEquals(expected, OtrDH.generateSecret(a.getPrivate(),
+				b.getPublic()));
+		// JCE keys in the OTR group are accepted as well.
+		assertEquals(expected, OtrDH.generateSecret(jcePrivate, jcePublic));
+	}
+
+	@Test
+	public void testIllegalPublicValueIsRejected() throws Exception {
+		KeyPair a = OtrDH.generateKeyPair(new SecureRandom());
+		BigInteger[] illegal = new BigInteger[] { BigInteger.ZERO,
+				BigInteger.ONE, P.subtract(BigInteger.ONE), P };
+		for (BigInteger y : illegal) {
+			assertFalse(OtrDH.isValidPublicValue(y));
+			try {
+				OtrDH.generateSecret(a.getPrivate(), new OtrDHPublicKey(y));
+				fail("Accepted illegal public value " + y);
+			} catch (OtrCryptoException e) {
+				// expected
+			}
+		}
+		assertTrue(OtrDH.isValidPublicValue(OtrCryptoEngine.BIGINTEGER_TWO));
+		assertTrue(OtrDH.isValidPublicValue(OtrCryptoEngine.MODULUS_MINUS_TWO));
+	}
+
+	@Test
+	public void testKeysCompareByValue() {
+		BigInteger y = BigInteger.valueOf(12345);
+		assertEquals(new OtrDHPublicKey(y), new OtrDHPublicKey(y));
+		assertEquals(new OtrDHPublicKey(y).hashCode(),
+				new OtrDHPublicKey(y).hashCode());
+		assertFalse(new OtrDHPublicKey(y).equals(new OtrDHPublicKey(y.add(
+				BigInteger.ONE))));
+		assertEquals(new OtrDHPrivateKey(y), new OtrDHPrivateKey(y));
+		assertEquals(P, new OtrDHPublicKey(y).getParams().getP());
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * Micro benchmark comparing a fresh {@link SecureRandom} per SMP sized
+ * exponent with the per-thread generators of {@link OtrRandom}, on one and on
+ * several threads. Pass "deterministic" to seed {@link OtrRandom} from a fixed
+ * source for reproducible runs. This is not a unit test; run it with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=net.java.otr4j.crypto.OtrRandomBenchmark
+ * </pre>
+ */
+public final class OtrRandomBenchmark {
+
+	private static final int ITERATIONS = 20000;
+
+	private OtrRandomBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && "deterministic".equals(args[0]))
+			OtrRandom.setSource(new OtrRandomTest.DeterministicSource(1));
+
+		int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		for (int round = 0; round < 2; round++) {
+			for (int n : new int[] { 1, threads }) {
+				long fresh = run(n, true);
+				long shared = run(n, false);
+				System.out.println(String.format("%2d thread(s): new SecureRandom "
+						+ "%7.2f us, OtrRandom %7.2f us", n,
+						fresh / 1e3 / ITERATIONS, shared / 1e3 / ITERATIONS));
+			}
+		}
+	}
+
+	private static long run(int threads, final boolean fresh)
+			throws InterruptedException
+	{
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					byte[] bytes = new byte[SM.MOD_LEN_BYTES];
+					for (int j = 0; j < ITERATIONS; j++) {
+						SecureRandom random = fresh ? new SecureRandom()
+								: OtrRandom.getSecureRandom();
+						random.nextBytes(bytes);
+						new BigInteger(1, bytes);
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		return System.nanoTime() - start;
+	}
+}
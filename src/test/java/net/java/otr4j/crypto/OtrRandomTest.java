@@ -0,0 +1,114 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for the library's per-thread random number generators.
+ */
+public class OtrRandomTest {
+
+	/**
+	 * A reproducible source of seed material, as a test or benchmark would
+	 * install it.
+	 */
+	static final class DeterministicSource implements OtrRandomSource {
+		private final SecureRandom random;
+
+		DeterministicSource(long seed) throws NoSuchAlgorithmException {
+			random = SecureRandom.getInstance("SHA1PRNG");
+			random.setSeed(seed);
+		}
+
+		@Override
+		public synchronized void nextSeed(byte[] seed) {
+			random.nextBytes(seed);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		OtrRandom.setSource(null);
+	}
+
+	@Test
+	public void testDeterministicSourceIsReproducible() throws Exception {
+		OtrRandom.setSource(new DeterministicSource(42));
+		byte[] first = new byte[64];
+		OtrRandom.nextBytes(first);
+		BigInteger firstExponent = SM.randomExponent();
+
+		OtrRandom.setSource(new DeterministicSource(42));
+		byte[] second = new byte[64];
+		OtrRandom.nextBytes(second);
+		assertArrayEquals(first, second);
+		assertEquals(firstExponent, SM.randomExponent());
+
+		OtrRandom.setSource(new DeterministicSource(43));
+		OtrRandom.nextBytes(second);
+		assertFalse(Arrays.equals(first, second));
+	}
+
+	@Test
+	public void testGeneratorIsPerThread() throws Exception {
+		final SecureRandom[] other = new SecureRandom[1];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				other[0] = OtrRandom.getSecureRandom();
+			}
+		};
+		thread.start();
+		thread.join();
+
+		SecureRandom mine = OtrRandom.getSecureRandom();
+		assertSame(mine, OtrRandom.getSecureRandom());
+		assertNotSame(mine, other[0]);
+	}
+
+	@Test
+	public void testReseedAndSourceChangeReplaceGenerator() {
+		SecureRandom first = OtrRandom.getSecureRandom();
+		OtrRandom.reseed();
+		SecureRandom second = OtrRandom.getSecureRandom();
+		assertNotSame(first, second);
+		OtrRandom.setSource(null);
+		assertNotSame(second, OtrRandom.getSecureRandom());
+	}
+
+	@Test
+	public void testLargeRequest() {
+		byte[] bytes = new byte[100000];
+		OtrRandom.nextBytes(bytes);
+		assertFalse(Arrays.equals(Arrays.copyOfRange(bytes, 0, 4096),
+				Arrays.copyOfRange(bytes, 4096, 8192)));
+		assertFalse(Arrays.equals(new byte[16], Arrays.copyOfRange(bytes,
+				bytes.length - 16, bytes.length)));
+	}
+}
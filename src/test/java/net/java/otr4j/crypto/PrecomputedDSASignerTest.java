@@ -0,0 +1,73 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.DSAPrivateKey;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests that signatures from precomputed values verify, and that no
+ * precomputed value is used twice.
+ */
+public class PrecomputedDSASignerTest {
+
+	private static KeyPair generateKeyPair() throws Exception {
+		KeyPairGenerator kg = KeyPairGenerator.getInstance("DSA");
+		kg.initialize(1024);
+		return kg.genKeyPair();
+	}
+
+	@Test
+	public void testSignaturesVerify() throws Exception {
+		KeyPair pair = generateKeyPair();
+		OtrCryptoEngine engine = new OtrCryptoEngineImpl();
+
+		Set<BigInteger> rs = new HashSet<BigInteger>();
+		for (int i = 0; i < 20; i++) {
+			byte[] hash = engine.sha256Hash(("message " + i).getBytes("UTF-8"));
+			byte[] signature = engine.sign(hash, pair.getPrivate());
+			assertEquals(40, signature.length);
+			assertTrue(engine.verify(hash, pair.getPublic(), signature));
+
+			byte[] other = engine.sha256Hash(("other " + i).getBytes("UTF-8"));
+			assertFalse(engine.verify(other, pair.getPublic(), signature));
+
+			byte[] r = new byte[20];
+			System.arraycopy(signature, 0, r, 0, 20);
+			// r = g^k mod p mod q, so a repeated r means a reused k.
+			assertTrue(rs.add(new BigInteger(1, r)));
+		}
+	}
+
+	@Test
+	public void testSignerIsSharedPerKey() throws Exception {
+		DSAPrivateKey key = (DSAPrivateKey) generateKeyPair().getPrivate();
+		PrecomputedDSASigner signer = PrecomputedDSASigner.getInstance(key);
+		assertSame(signer, PrecomputedDSASigner.getInstance(key));
+		assertEquals(key.getParams().getQ(), signer.getQ());
+	}
+}
@@ -1,6 +1,11 @@
 package net.java.otr4j.crypto;
 
 import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -60,4 +65,66 @@ public class SMTest {
     public void testCheckExponTooLarge() throws SM.SMException {
         assertTrue(SM.checkExpon(SM.ORDER_S));
     }
+
+    @Test
+    public void testParallelStepsMatchSerial() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            byte[][] serial = exchange(null, "secret", "secret");
+            byte[][] parallel = exchange(executor, "secret", "secret");
+            for (int i = 0; i < serial.length; i++)
+                assertArrayEquals(serial[i], parallel[i]);
+
+            serial = exchange(null, "secret", "other");
+            parallel = exchange(executor, "secret", "other");
+            for (int i = 0; i < serial.length; i++)
+                assertArrayEquals(serial[i], parallel[i]);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutDownExecutorRunsOnCaller() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        assertArrayEquals(exchange(null, "secret", "secret")[3],
+                exchange(executor, "secret", "secret")[3]);
+    }
+
+    /**
+     * Run an SMP exchange with fixed randomness and return its four messages.
+     */
+    private static byte[][] exchange(Executor executor, String aliceSecret,
+            String bobSecret) throws SM.SMException, NoSuchAlgorithmException
+    {
+        SM.SMState alice = new SM.SMState();
+        alice.setExecutor(executor);
+        alice.random = seededRandom(1);
+        SM.SMState bob = new SM.SMState();
+        bob.setExecutor(executor);
+        bob.random = seededRandom(2);
+
+        byte[][] msgs = new byte[4][];
+        msgs[0] = SM.step1(alice, aliceSecret.getBytes());
+        SM.step2a(bob, msgs[0], 0);
+        msgs[1] = SM.step2b(bob, bobSecret.getBytes());
+        msgs[2] = SM.step3(alice, msgs[1]);
+        msgs[3] = SM.step4(bob, msgs[2]);
+        SM.step5(alice, msgs[3]);
+
+        int expected = aliceSecret.equals(bobSecret) ? SM.PROG_SUCCEEDED
+                : SM.PROG_FAILED;
+        assertEquals(expected, alice.smProgState);
+        assertEquals(expected, bob.smProgState);
+        return msgs;
+    }
+
+    private static SecureRandom seededRandom(int seed)
+            throws NoSuchAlgorithmException
+    {
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        random.setSeed(new byte[] { (byte) seed });
+        return random;
+    }
 }
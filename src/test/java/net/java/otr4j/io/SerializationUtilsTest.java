@@ -15,8 +15,19 @@
  */
 package net.java.otr4j.io;
 
+import java.io.ByteArrayInputStream;
+import java.io.Reader;
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
 import junit.framework.Assert;
 
+import net.java.otr4j.io.messages.AbstractEncodedMessage;
+import net.java.otr4j.io.messages.DataMessage;
+
+import org.bouncycastle.util.encoders.Base64;
 import org.junit.Test;
 
 /**
@@ -53,4 +64,77 @@ public class SerializationUtilsTest {
 	public void testOTRv3FragmentNotOTREncoded() {
 		Assert.assertFalse(SerializationUtils.otrEncoded("?OTR|5a73a599|27e31597,00001,00003,?OTR:AAMDJ+MVmSfjFZcAAAAAAQAAAAIAAADA1g5IjD1ZGLDVQEyCgCyn9hbrL3KAbGDdzE2ZkMyTKl7XfkSxh8YJnudstiB74i4BzT0W2haClg6dMary/jo9sMudwmUdlnKpIGEKXWdvJKT+hQ26h9nzMgEditLB8v,"));
 	}
+
+	@Test
+	public void testWriteEncodedMatchesBase64() throws Exception {
+		Random random = new Random(1);
+		for (int length = 0; length < 64; length++) {
+			byte[] b = new byte[length];
+			random.nextBytes(b);
+			String expected = "?OTR:" + new String(Base64.encode(b)) + ".";
+			Assert.assertEquals(expected.length(), SerializationUtils.encodedLength(length));
+			CharBuffer out = CharBuffer.allocate(expected.length());
+			SerializationUtils.writeEncoded(b, out);
+			Assert.assertFalse(out.hasRemaining());
+			out.flip();
+			Assert.assertEquals(expected, out.toString());
+		}
+	}
+
+	@Test
+	public void testEncodedMessageReaderMatchesBase64() throws Exception {
+		Random random = new Random(2);
+		for (int length = 0; length < 64; length++) {
+			byte[] b = new byte[length];
+			random.nextBytes(b);
+			String expected = "?OTR:" + new String(Base64.encode(b)) + ".";
+			Reader reader = new EncodedMessageReader(new ByteArrayInputStream(b));
+			StringBuilder actual = new StringBuilder();
+			// Odd sized reads cross the prefix, the Base64 groups and the end.
+			char[] buffer = new char[3];
+			int n;
+			while ((n = reader.read(buffer)) >= 0)
+				actual.append(buffer, 0, n);
+			reader.close();
+			Assert.assertEquals(expected, actual.toString());
+		}
+	}
+
+	@Test
+	public void testWriteEncodedChecksRoomFirst() {
+		CharBuffer out = CharBuffer.allocate(SerializationUtils.encodedLength(10) - 1);
+		try {
+			SerializationUtils.writeEncoded(new byte[10], out);
+			Assert.fail("Expected BufferOverflowException.");
+		} catch (BufferOverflowException e) {
+			Assert.assertEquals(0, out.position());
+		}
+	}
+
+	@Test
+	public void testToEncodedMessageFromChars() throws Exception {
+		String message = "?OTR:AAMDJ+MVmSfjFZcAAAAAAQAAAAIAAADA1g5IjD1ZGLDVQEyCgCyn9hbrL3KAbGDdzE2ZkMyTKl7XfkSxh8YJnudstiB74i4BzT0W2haClg6dMary/jo9sMudwmUdlnKpIGEKXWdvJKT+hQ26h9nzMgEditLB8vjPEWAJ6gBXvZrY6ZQrx3gb4v0UaSMOMiR5sB7Eaulb2Yc6RmRnnlxgUUC2alosg4WIeFN951PLjScajVba6dqlDi+q1H5tPvI5SWMN7PCBWIJ41+WvF+5IAZzQZYgNaVLbAAAAAAAAAAEAAAAHwNiIi5Ms+4PsY/L2ipkTtquknfx6HodLvk3RAAAAAA==.";
+		DataMessage expected = (DataMessage) SerializationUtils.toMessage(message);
+		AbstractEncodedMessage actual = SerializationUtils.toEncodedMessage(CharBuffer.wrap(message));
+		Assert.assertTrue(actual instanceof DataMessage);
+		DataMessage data = (DataMessage) actual;
+		Assert.assertEquals(expected.senderKeyID, data.senderKeyID);
+		Assert.assertEquals(expected.recipientKeyID, data.recipientKeyID);
+		Assert.assertEquals(expected.senderInstanceTag, data.senderInstanceTag);
+		Assert.assertEquals(expected.nextDH.getY(), data.nextDH.getY());
+		Assert.assertTrue(Arrays.equals(expected.ctr, data.ctr));
+		Assert.assertTrue(Arrays.equals(expected.encryptedMessage, data.encryptedMessage));
+		Assert.assertTrue(Arrays.equals(expected.mac, data.mac));
+		Assert.assertTrue(Arrays.equals(SerializationUtils.toByteArray(expected),
+				SerializationUtils.toByteArray(data)));
+	}
+
+	@Test
+	public void testToEncodedMessageLeavesOtherMessages() throws Exception {
+		Assert.assertNull(SerializationUtils.toEncodedMessage("?OTRv23?"));
+		Assert.assertNull(SerializationUtils.toEncodedMessage("Hello ?OTR:AAMD."));
+		Assert.assertNull(SerializationUtils.toEncodedMessage("?OTR:AAMDJ+MV"));
+		Assert.assertNull(SerializationUtils.toEncodedMessage("?OTR|5a73a599|27e31597,00001,00003,?OTR:AAMD,"));
+		Assert.assertNull(SerializationUtils.toEncodedMessage("?OTR:AA\nD."));
+	}
 }
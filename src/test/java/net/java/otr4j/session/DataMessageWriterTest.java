@@ -0,0 +1,47 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests for the UTF-8 encoding of the reusable data message writer.
+ */
+public class DataMessageWriterTest {
+
+	private static final String[] TEXTS = {
+		"",
+		"plain ASCII",
+		"\u00e9\u00e8 \u20ac \u4e2d\u6587",
+		"\ud83d\ude00 paired surrogates \ud834\udd1e",
+		"unpaired \ud83d high, \ude00 low and \ud83d",
+		"\u007f\u0080\u07ff\u0800\uffff",
+	};
+
+	@Test
+	public void testUtf8MatchesGetBytes() throws Exception {
+		for (String text : TEXTS) {
+			byte[] expected = text.getBytes("UTF-8");
+			assertEquals(text, expected.length, DataMessageWriter.utf8Length(text));
+			byte[] actual = new byte[expected.length];
+			DataMessageWriter.putUtf8(actual, 0, text);
+			assertArrayEquals(text, expected, actual);
+		}
+	}
+}
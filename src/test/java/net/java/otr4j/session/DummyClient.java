@@ -42,6 +42,7 @@ public class DummyClient {
 	private Connection connection;
 	private MessageProcessor processor;
 	private Queue<ProcessedMessage> processedMsgs = new LinkedList<ProcessedMessage>();
+	private int maxFragmentSize = FragmenterInstructions.UNLIMITED;
 
 	public DummyClient(String account) {
 		this.account = account;
@@ -59,6 +60,10 @@ public class DummyClient {
 		this.policy = policy;
 	}
 
+	public void setMaxFragmentSize(int maxFragmentSize) {
+		this.maxFragmentSize = maxFragmentSize;
+	}
+
 	public void send(String recipient, String s) throws OtrException {
 		if (session == null) {
 			final SessionID sessionID = new SessionID(account, recipient, "DummyProtocol");
@@ -310,7 +315,7 @@ public class DummyClient {
 		
 		public FragmenterInstructions getFragmenterInstructions(SessionID sessionID) {
 			return new FragmenterInstructions(FragmenterInstructions.UNLIMITED,
-					FragmenterInstructions.UNLIMITED);
+					maxFragmentSize);
 		}
 	}
 }
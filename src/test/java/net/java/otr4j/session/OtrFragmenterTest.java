@@ -16,6 +16,7 @@
 package net.java.otr4j.session;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.regex.Pattern;
 
 import net.java.otr4j.OtrEngineHost;
@@ -412,6 +413,43 @@ public class OtrFragmenterTest {
 		Mockito.verify(host, Mockito.times(1)).getFragmenterInstructions(Mockito.any(SessionID.class));
 	}
 
+	@Test
+	public void testFragmentReaderMatchesFragmentString() throws Exception {
+		final Session session = createSessionMock(POLICY_V3, 0x5a73a599, 0x27e31597);
+		final OtrEngineHost host = host(new FragmenterInstructions(-1, 80));
+		final OtrFragmenter fragmenter = new OtrFragmenter(session, host);
+		final String[] expected = fragmenter.fragment(specV3MessageFull);
+		final FragmentIterator fragments = fragmenter.fragment(
+				new StringReader(specV3MessageFull), specV3MessageFull.length());
+		Assert.assertEquals(expected.length, fragments.size());
+		for (String fragment : expected) {
+			Assert.assertTrue(fragments.hasNext());
+			Assert.assertEquals(fragment, fragments.next());
+		}
+		Assert.assertFalse(fragments.hasNext());
+	}
+
+	@Test
+	public void testFragmentReaderToSingleMessage() throws Exception {
+		final Session session = createSessionMock(POLICY_V3, 0, 0);
+		final OtrEngineHost host = host(new FragmenterInstructions(
+				FragmenterInstructions.UNLIMITED, FragmenterInstructions.UNLIMITED));
+		final OtrFragmenter fragmenter = new OtrFragmenter(session, host);
+		final FragmentIterator fragments = fragmenter.fragment(
+				new StringReader(specV3MessageFull), specV3MessageFull.length());
+		Assert.assertEquals(1, fragments.size());
+		Assert.assertEquals(specV3MessageFull, fragments.next());
+		Assert.assertFalse(fragments.hasNext());
+	}
+
+	@Test(expected = IOException.class)
+	public void testFragmentReaderNumFragmentsTooLimited() throws IOException {
+		Session session = createSessionMock(POLICY_V3, 0, 0);
+		FragmenterInstructions instructions = new FragmenterInstructions(2, 100);
+		OtrFragmenter fragmenter = new OtrFragmenter(session, host(instructions));
+		fragmenter.fragment(new StringReader(specV3MessageFull), specV3MessageFull.length());
+	}
+
 	@Test(expected = IOException.class)
 	public void testFragmentSizeTooSmallForOverhead() throws IOException {
 		final Session session = createSessionMock(POLICY_V3, 0, 0);;
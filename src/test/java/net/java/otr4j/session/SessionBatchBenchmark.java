@@ -0,0 +1,105 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.java.otr4j.OtrPolicy;
+import net.java.otr4j.OtrPolicyImpl;
+
+/**
+ * Micro benchmark comparing single message transforms with the batch
+ * variants of {@link Session}, sending and receiving bursts of messages on an
+ * encrypted session. This is not a unit test; run it with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=net.java.otr4j.session.SessionBatchBenchmark
+ * </pre>
+ */
+public final class SessionBatchBenchmark {
+
+	private static final int ROUNDS = 200;
+
+	private SessionBatchBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		DummyClient bob = new DummyClient("Bob@Wonderland");
+		bob.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+		DummyClient alice = new DummyClient("Alice@Wonderland");
+		alice.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		Server server = new PriorityServer();
+		alice.connect(server);
+		bob.connect(server);
+
+		bob.send(alice.getAccount(), "?OTRv23?");
+		alice.pollReceivedMessage(); // Query
+		bob.pollReceivedMessage(); // DH-Commit
+		alice.pollReceivedMessage(); // DH-Key
+		bob.pollReceivedMessage(); // Reveal signature
+		alice.pollReceivedMessage(); // Signature
+
+		Session sender = alice.getSession();
+		Session receiver = bob.getSession();
+		for (int round = 0; round < 3; round++) {
+			for (int burst : new int[] { 1, 10, 50 }) {
+				List<String> texts = new ArrayList<String>();
+				for (int i = 0; i < burst; i++)
+					texts.add("A queued message of typical length, number " + i);
+
+				long single = 0;
+				long batch = 0;
+				for (int r = 0; r < ROUNDS; r++) {
+					single += single(sender, receiver, texts);
+					batch += batch(sender, receiver, texts);
+				}
+				System.out.println(String.format("burst %2d: single calls %7.2f us,"
+						+ " batch %7.2f us per message", burst,
+						single / 1e3 / ROUNDS / burst, batch / 1e3 / ROUNDS / burst));
+			}
+		}
+
+		bob.exit();
+		alice.exit();
+	}
+
+	private static long single(Session sender, Session receiver,
+			List<String> texts) throws Exception
+	{
+		long start = System.nanoTime();
+		List<String> wire = new ArrayList<String>(texts.size());
+		for (String text : texts)
+			wire.add(sender.transformSending(text)[0]);
+		for (String message : wire)
+			receiver.transformReceiving(message);
+		return System.nanoTime() - start;
+	}
+
+	private static long batch(Session sender, Session receiver,
+			List<String> texts) throws Exception
+	{
+		long start = System.nanoTime();
+		List<String> wire = new ArrayList<String>(texts.size());
+		for (String[] parts : sender.transformSending(texts))
+			wire.add(parts[0]);
+		receiver.transformReceiving(wire);
+		return System.nanoTime() - start;
+	}
+}
@@ -15,8 +15,26 @@
  */
 package net.java.otr4j.session;
 
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import net.java.otr4j.OtrException;
 import net.java.otr4j.OtrPolicy;
 import net.java.otr4j.OtrPolicyImpl;
 
@@ -338,4 +356,539 @@ public class SessionImplTest extends junit.framework.TestCase {
 		bob.exit();
 		alice.exit();
 	}
+
+	public void testAsyncTransformsKeepOrder() throws Exception {
+		DummyClient bob = new DummyClient("Bob@Wonderland");
+		bob.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		DummyClient alice = new DummyClient("Alice@Wonderland");
+		alice.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		Server server = new PriorityServer();
+		alice.connect(server);
+		bob.connect(server);
+
+		bob.send(alice.getAccount(), "?OTRv23?");
+		alice.pollReceivedMessage(); // Query
+		bob.pollReceivedMessage(); // DH-Commit
+		alice.pollReceivedMessage(); // DH-Key
+		bob.pollReceivedMessage(); // Reveal signature
+		alice.pollReceivedMessage(); // Signature
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			SessionImpl aliceSession = (SessionImpl) alice.getSession();
+			SessionImpl bobSession = (SessionImpl) bob.getSession();
+			aliceSession.setExecutor(executor);
+			bobSession.setExecutor(executor);
+
+			List<Future<String[]>> sent = new ArrayList<Future<String[]>>();
+			for (int i = 0; i < 20; i++)
+				sent.add(aliceSession.transformSendingAsync("Message " + i));
+
+			List<Future<String>> received = new ArrayList<Future<String>>();
+			for (Future<String[]> parts : sent) {
+				String[] message = parts.get();
+				assertEquals(1, message.length);
+				received.add(bobSession.transformReceivingAsync(message[0]));
+			}
+
+			// Messages decrypt only if they were encrypted and are decrypted
+			// in counter order.
+			for (int i = 0; i < received.size(); i++)
+				assertEquals("Message " + i, received.get(i).get());
+		} finally {
+			executor.shutdown();
+		}
+
+		bob.exit();
+		alice.exit();
+	}
+
+	public void testBufferTransforms() throws Exception {
+		DummyClient bob = new DummyClient("Bob@Wonderland");
+		bob.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		DummyClient alice = new DummyClient("Alice@Wonderland");
+		alice.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		Server server = new PriorityServer();
+		alice.connect(server);
+		bob.connect(server);
+
+		bob.send(alice.getAccount(), "?OTRv23?");
+		alice.pollReceivedMessage(); // Query
+		bob.pollReceivedMessage(); // DH-Commit
+		alice.pollReceivedMessage(); // DH-Key
+		bob.pollReceivedMessage(); // Reveal signature
+		alice.pollReceivedMessage(); // Signature
+
+		Session aliceSession = alice.getSession();
+		Session bobSession = bob.getSession();
+		assertEquals(SessionStatus.ENCRYPTED, aliceSession.getSessionStatus());
+		CharBuffer wire = CharBuffer.allocate(4096);
+		ByteBuffer text = ByteBuffer.allocate(1024);
+
+		for (int i = 0; i < 5; i++) {
+			// Buffers on both ends.
+			String msg = "Message \u00e9 " + i;
+			wire.clear();
+			assertEquals(1, aliceSession.transformSending(utf8(msg),
+					Collections.singletonList(new TLV(TLV.PADDING, new byte[7])), wire));
+			wire.flip();
+			assertTrue(wire.toString().startsWith("?OTR:"));
+			text.clear();
+			assertTrue(bobSession.transformReceiving(wire, text) > 0);
+			assertEquals(msg, utf8(text));
+
+			// Strings on one end, buffers on the other.
+			String[] reply = bobSession.transformSending("Reply " + i);
+			text.clear();
+			assertTrue(aliceSession.transformReceiving(CharBuffer.wrap(reply[0]), text) > 0);
+			assertEquals("Reply " + i, utf8(text));
+		}
+
+		// Too little room is detected before the message is handled.
+		wire.clear();
+		aliceSession.transformSending(utf8("Does not fit"), null, wire);
+		wire.flip();
+		try {
+			bobSession.transformReceiving(wire, ByteBuffer.allocate(3));
+			fail("Expected BufferOverflowException.");
+		} catch (java.nio.BufferOverflowException e) {
+			assertEquals(0, wire.position());
+		}
+		text.clear();
+		bobSession.transformReceiving(wire, text);
+		assertEquals("Does not fit", utf8(text));
+
+		// Likewise on sending: the counter is not used up and content is
+		// left for the next call.
+		ByteBuffer content = utf8("Sent later");
+		try {
+			aliceSession.transformSending(content, null, CharBuffer.allocate(16));
+			fail("Expected BufferOverflowException.");
+		} catch (java.nio.BufferOverflowException e) {
+			assertEquals(0, content.position());
+		}
+		wire.clear();
+		assertEquals(1, aliceSession.transformSending(content, null, wire));
+		wire.flip();
+		text.clear();
+		assertTrue(bobSession.transformReceiving(wire, text) > 0);
+		assertEquals("Sent later", utf8(text));
+
+		// Messages that need fragmenting go through the other transforms.
+		alice.setMaxFragmentSize(64);
+		content = utf8("Needs fragmenting");
+		wire.clear();
+		try {
+			aliceSession.transformSending(content, null, wire);
+			fail("Expected IllegalArgumentException.");
+		} catch (IllegalArgumentException e) {
+			assertEquals(0, content.position());
+			assertEquals(0, wire.position());
+		}
+
+		bob.exit();
+		alice.exit();
+	}
+
+	private static ByteBuffer utf8(String text) throws Exception {
+		return ByteBuffer.wrap(text.getBytes("UTF-8"));
+	}
+
+	private static String utf8(ByteBuffer text) throws Exception {
+		return new String(text.array(), 0, text.position(), "UTF-8");
+	}
+
+	public void testBatchTransforms() throws Exception {
+		DummyClient bob = new DummyClient("Bob@Wonderland");
+		bob.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		DummyClient alice = new DummyClient("Alice@Wonderland");
+		alice.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		Server server = new PriorityServer();
+		alice.connect(server);
+		bob.connect(server);
+
+		bob.send(alice.getAccount(), "?OTRv23?");
+		alice.pollReceivedMessage(); // Query
+		bob.pollReceivedMessage(); // DH-Commit
+		alice.pollReceivedMessage(); // DH-Key
+		bob.pollReceivedMessage(); // Reveal signature
+		alice.pollReceivedMessage(); // Signature
+
+		Session aliceSession = alice.getSession();
+		Session bobSession = bob.getSession();
+
+		// Batches in both directions rotate the keys between them.
+		for (int round = 0; round < 3; round++) {
+			List<String> texts = new ArrayList<String>();
+			for (int i = 0; i < 10; i++)
+				texts.add("Round " + round + " message " + i);
+
+			List<String> wire = new ArrayList<String>();
+			for (String[] parts : aliceSession.transformSending(texts)) {
+				assertEquals(1, parts.length);
+				wire.add(parts[0]);
+			}
+			// A single message after the batch continues the counter.
+			wire.add(aliceSession.transformSending("Single " + round)[0]);
+			List<String> received = bobSession.transformReceiving(wire);
+			assertEquals(texts, received.subList(0, texts.size()));
+			assertEquals("Single " + round, received.get(texts.size()));
+
+			List<String> replies = new ArrayList<String>();
+			for (String[] parts : bobSession.transformSending(texts))
+				replies.add(parts[0]);
+			assertEquals(texts, aliceSession.transformReceiving(replies));
+		}
+
+		bob.exit();
+		alice.exit();
+	}
+
+	public void testStreamingSend() throws Exception {
+		DummyClient bob = new DummyClient("Bob@Wonderland");
+		bob.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		DummyClient alice = new DummyClient("Alice@Wonderland");
+		alice.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		Server server = new PriorityServer();
+		alice.connect(server);
+		bob.connect(server);
+
+		bob.send(alice.getAccount(), "?OTRv23?");
+		alice.pollReceivedMessage(); // Query
+		bob.pollReceivedMessage(); // DH-Commit
+		alice.pollReceivedMessage(); // DH-Key
+		bob.pollReceivedMessage(); // Reveal signature
+		alice.pollReceivedMessage(); // Signature
+
+		Session aliceSession = alice.getSession();
+		Session bobSession = bob.getSession();
+		assertEquals(SessionStatus.ENCRYPTED, aliceSession.getSessionStatus());
+
+		// Several cipher chunks, with an uneven tail and multi-byte text.
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < 100000; i++)
+			text.append("Line ").append(i).append(" \u00e9\u20ac\n");
+		String expected = text.toString();
+
+		for (int round = 0; round < 2; round++) {
+			byte[] b = expected.getBytes("UTF-8");
+			FragmentIterator fragments =
+					aliceSession.transformSending(new ByteArrayInputStream(b), b.length);
+			String received = null;
+			while (fragments.hasNext()) {
+				String fragment = fragments.next();
+				assertTrue(fragment.startsWith("?OTR:"));
+				received = bobSession.transformReceiving(fragment);
+			}
+			assertEquals(expected, received);
+
+			// The session continues normally in both directions.
+			String reply = bobSession.transformSending("Reply " + round)[0];
+			assertEquals("Reply " + round, aliceSession.transformReceiving(reply));
+			String next = aliceSession.transformSending("Next " + round)[0];
+			assertEquals("Next " + round, bobSession.transformReceiving(next));
+		}
+
+		bob.exit();
+		alice.exit();
+	}
+
+	public void testStreamHoldsUpOtherMessages() throws Exception {
+		DummyClient bob = new DummyClient("Bob@Wonderland");
+		bob.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		DummyClient alice = new DummyClient("Alice@Wonderland");
+		alice.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		Server server = new PriorityServer();
+		alice.connect(server);
+		bob.connect(server);
+
+		bob.send(alice.getAccount(), "?OTRv23?");
+		alice.pollReceivedMessage(); // Query
+		bob.pollReceivedMessage(); // DH-Commit
+		alice.pollReceivedMessage(); // DH-Key
+		bob.pollReceivedMessage(); // Reveal signature
+		alice.pollReceivedMessage(); // Signature
+
+		final Session aliceSession = alice.getSession();
+		Session bobSession = bob.getSession();
+		assertEquals(SessionStatus.ENCRYPTED, aliceSession.getSessionStatus());
+		alice.setMaxFragmentSize(1000);
+
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 10000)
+			text.append("Streamed ");
+		String expected = text.toString();
+		byte[] b = expected.getBytes("UTF-8");
+		FragmentIterator fragments =
+				aliceSession.transformSending(new ByteArrayInputStream(b), b.length);
+		assertTrue(fragments.size() > 1);
+		assertNull(bobSession.transformReceiving(fragments.next()));
+
+		// Another message sent in between the fragments waits for the last.
+		final String[][] between = new String[1][];
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					between[0] = aliceSession.transformSending("In between");
+				} catch (OtrException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		sender.start();
+		sender.join(200);
+		assertTrue(sender.isAlive());
+
+		String received = null;
+		while (fragments.hasNext())
+		{ String f = fragments.next(); received = bobSession.transformReceiving(f); System.err.println("DBG " + f.substring(0, 40) + " -> " + (received == null ? null : received.length())); }
+		assertEquals(expected, received);
+		sender.join();
+		for (String fragment : between[0])
+			received = bobSession.transformReceiving(fragment);
+		assertEquals("In between", received);
+
+		// A closed stream lets other messages go ahead right away.
+		fragments = aliceSession.transformSending(new ByteArrayInputStream(b), b.length);
+		fragments.next();
+		fragments.close();
+		assertFalse(fragments.hasNext());
+		assertEquals(1, aliceSession.transformSending("After").length);
+
+		bob.exit();
+		alice.exit();
+	}
+
+	public void testReceivedTlvs() throws Exception {
+		DummyClient bob = new DummyClient("Bob@Wonderland");
+		bob.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		DummyClient alice = new DummyClient("Alice@Wonderland");
+		alice.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		Server server = new PriorityServer();
+		alice.connect(server);
+		bob.connect(server);
+
+		bob.send(alice.getAccount(), "?OTRv23?");
+		alice.pollReceivedMessage(); // Query
+		bob.pollReceivedMessage(); // DH-Commit
+		alice.pollReceivedMessage(); // DH-Key
+		bob.pollReceivedMessage(); // Reveal signature
+		alice.pollReceivedMessage(); // Signature
+
+		Session aliceSession = alice.getSession();
+		Session bobSession = bob.getSession();
+
+		// Padding and unknown TLVs leave the text.
+		List<TLV> tlvs = new ArrayList<TLV>();
+		tlvs.add(new TLV(TLV.PADDING, new byte[16]));
+		tlvs.add(new TLV(0x1234, new byte[] {1, 2, 3}));
+		String message = aliceSession.transformSending("Padded", tlvs)[0];
+		assertEquals("Padded", bobSession.transformReceiving(message));
+
+		// An SMP abort is consumed by the SMP handler.
+		tlvs = Collections.singletonList(new TLV(TLV.SMP_ABORT, new byte[0]));
+		message = aliceSession.transformSending("Aborted", tlvs)[0];
+		assertNull(bobSession.transformReceiving(message));
+		assertEquals(SessionStatus.ENCRYPTED, bobSession.getSessionStatus());
+
+		// A disconnect ends the session.
+		tlvs = Collections.singletonList(new TLV(TLV.DISCONNECTED, null));
+		message = aliceSession.transformSending("", tlvs)[0];
+		assertNull(bobSession.transformReceiving(message));
+		assertEquals(SessionStatus.FINISHED, bobSession.getSessionStatus());
+
+		bob.exit();
+		alice.exit();
+	}
+
+	public void testSteadyStateSendAllocation() throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return;
+		com.sun.management.ThreadMXBean allocation =
+				(com.sun.management.ThreadMXBean) threads;
+		if (!allocation.isThreadAllocatedMemorySupported())
+			return;
+		allocation.setThreadAllocatedMemoryEnabled(true);
+
+		DummyClient bob = new DummyClient("Bob@Wonderland");
+		bob.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		DummyClient alice = new DummyClient("Alice@Wonderland");
+		alice.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+				| OtrPolicy.ERROR_START_AKE));
+
+		Server server = new PriorityServer();
+		alice.connect(server);
+		bob.connect(server);
+
+		bob.send(alice.getAccount(), "?OTRv23?");
+		alice.pollReceivedMessage(); // Query
+		bob.pollReceivedMessage(); // DH-Commit
+		alice.pollReceivedMessage(); // DH-Key
+		bob.pollReceivedMessage(); // Reveal signature
+		alice.pollReceivedMessage(); // Signature
+
+		Session aliceSession = alice.getSession();
+		Session bobSession = bob.getSession();
+		String text = "The quick brown fox jumps over the lazy dog, "
+				+ "again and again, in a steady stream of chat messages.";
+		String last = null;
+		for (int i = 0; i < 2000; i++)
+			last = aliceSession.transformSending(text)[0];
+		assertEquals(text, bobSession.transformReceiving(last));
+
+		long thread = Thread.currentThread().getId();
+		int messages = 1000;
+		long before = allocation.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < messages; i++)
+			last = aliceSession.transformSending(text)[0];
+		long perMessage = (allocation.getThreadAllocatedBytes(thread) - before) / messages;
+		assertEquals(text, bobSession.transformReceiving(last));
+
+		// The encoded string takes two bytes a character; leave some room
+		// for the crypto provider and the host's fragmenter instructions.
+		long budget = 2L * last.length() + 1024;
+		assertTrue("Allocated " + perMessage + " bytes per message, over " + budget,
+				perMessage <= budget);
+
+		bob.exit();
+		alice.exit();
+	}
+
+	public void testConcurrentSendAndReceive() throws Exception {
+		final int pairs = 3;
+		final int messages = 200;
+
+		List<DummyClient> clients = new ArrayList<DummyClient>();
+		List<Thread> threads = new ArrayList<Thread>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+
+		for (int p = 0; p < pairs; p++) {
+			DummyClient bob = new DummyClient("Bob@Wonderland");
+			bob.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+					| OtrPolicy.ERROR_START_AKE));
+
+			DummyClient alice = new DummyClient("Alice@Wonderland");
+			alice.setPolicy(new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+					| OtrPolicy.ERROR_START_AKE));
+
+			Server server = new PriorityServer();
+			alice.connect(server);
+			bob.connect(server);
+
+			bob.send(alice.getAccount(), "?OTRv23?");
+			alice.pollReceivedMessage(); // Query
+			bob.pollReceivedMessage(); // DH-Commit
+			alice.pollReceivedMessage(); // DH-Key
+			bob.pollReceivedMessage(); // Reveal signature
+			alice.pollReceivedMessage(); // Signature
+
+			assertEquals(SessionStatus.ENCRYPTED, bob.getSession().getSessionStatus());
+			assertEquals(SessionStatus.ENCRYPTED, alice.getSession().getSessionStatus());
+
+			clients.add(alice);
+			clients.add(bob);
+
+			// Each session sends on one thread while it receives on another.
+			Session aliceSession = alice.getSession();
+			Session bobSession = bob.getSession();
+			String pair = "Pair " + p;
+			BlockingQueue<String> toBob = new LinkedBlockingQueue<String>();
+			BlockingQueue<String> toAlice = new LinkedBlockingQueue<String>();
+			threads.add(sender(aliceSession, toBob, pair + " Alice", messages, start, failures));
+			threads.add(receiver(bobSession, toBob, pair + " Alice", messages, start, failures));
+			threads.add(sender(bobSession, toAlice, pair + " Bob", messages, start, failures));
+			threads.add(receiver(aliceSession, toAlice, pair + " Bob", messages, start, failures));
+		}
+
+		for (Thread thread : threads)
+			thread.start();
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join(TimeUnit.MINUTES.toMillis(2));
+			assertFalse("Stress test thread did not finish.", thread.isAlive());
+		}
+
+		if (!failures.isEmpty()) {
+			AssertionError error = new AssertionError(failures.size()
+					+ " stress test thread(s) failed.");
+			error.initCause(failures.peek());
+			throw error;
+		}
+
+		for (DummyClient client : clients)
+			assertEquals(SessionStatus.ENCRYPTED, client.getSession().getSessionStatus());
+		for (DummyClient client : clients)
+			client.exit();
+	}
+
+	private static Thread sender(final Session session, final BlockingQueue<String> out,
+			final String prefix, final int messages, final CountDownLatch start,
+			final Queue<Throwable> failures)
+	{
+		return new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					start.await();
+					for (int i = 0; i < messages; i++) {
+						String[] parts = session.transformSending(prefix + " " + i);
+						assertEquals(1, parts.length);
+						out.put(parts[0]);
+					}
+				} catch (Throwable t) {
+					failures.add(t);
+				}
+			}
+		}, prefix + " sender");
+	}
+
+	private static Thread receiver(final Session session, final BlockingQueue<String> in,
+			final String prefix, final int messages, final CountDownLatch start,
+			final Queue<Throwable> failures)
+	{
+		return new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					start.await();
+					for (int i = 0; i < messages; i++) {
+						String message = in.poll(1, TimeUnit.MINUTES);
+						assertNotNull("Message " + i + " was never sent.", message);
+						assertEquals(prefix + " " + i, session.transformReceiving(message));
+					}
+				} catch (Throwable t) {
+					failures.add(t);
+				}
+			}
+		}, prefix + " receiver");
+	}
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.crypto.interfaces.DHPublicKey;
+
+import net.java.otr4j.crypto.OtrDH;
+import net.java.otr4j.crypto.OtrRandom;
+
+import org.junit.Test;
+
+/**
+ * Tests for the key-ID indexed session keys.
+ */
+public class SessionKeyRingTest {
+
+	private static KeyPair keyPair() {
+		return OtrDH.generateKeyPair(OtrRandom.getSecureRandom());
+	}
+
+	private static DHPublicKey pub(KeyPair pair) {
+		return (DHPublicKey) pair.getPublic();
+	}
+
+	@Test
+	public void testLookupByKeyID() {
+		SessionKeyRing ring = new SessionKeyRing();
+		KeyPair local = keyPair();
+		ring.init(local, keyPair(), pub(keyPair()), BigInteger.TEN);
+
+		assertSame(ring.getEncryptionKeys(), ring.get(1, 1));
+		assertSame(ring.getMostRecentKeys(), ring.get(2, 1));
+		assertSame(local, ring.get(1, 1).getLocalPair());
+		assertNull(ring.get(1, 0));
+		assertNull(ring.get(0, 1));
+		assertNull(ring.get(3, 1));
+		assertNull(ring.get(2, 2));
+	}
+
+	@Test
+	public void testRotationShiftsKeys() throws Exception {
+		SessionKeyRing ring = new SessionKeyRing();
+		ring.init(keyPair(), keyPair(), pub(keyPair()), BigInteger.TEN);
+
+		SessionKeys mostRecent = ring.getMostRecentKeys();
+		mostRecent.incrementSendingCtr();
+		ring.rotateLocal(keyPair());
+		assertSame(mostRecent, ring.get(2, 1));
+		assertSame(mostRecent, ring.getEncryptionKeys());
+		assertEquals(1, mostRecent.getSendingCtr()[7]);
+		assertEquals(3, ring.getMostRecentKeys().getLocalKeyID());
+		assertNull(ring.get(1, 1));
+
+		SessionKeys encryption = ring.getEncryptionKeys();
+		DHPublicKey next = pub(keyPair());
+		ring.rotateRemote(next);
+		assertSame(encryption, ring.get(2, 1));
+		assertSame(next, ring.getEncryptionKeys().getRemoteKey());
+		assertEquals(2, ring.getEncryptionKeys().getRemoteKeyID());
+		assertEquals(2, ring.getEncryptionKeys().getLocalKeyID());
+		assertSame(next, ring.get(3, 2).getRemoteKey());
+	}
+
+	@Test
+	public void testWipeZeroesKeys() throws Exception {
+		SessionKeyRing ring = new SessionKeyRing();
+		ring.init(keyPair(), keyPair(), pub(keyPair()), BigInteger.TEN);
+
+		ring.getEncryptionKeys().setIsUsedReceivingMACKey(true);
+		SessionKeys keys = ring.getMostRecentKeys();
+		byte[] aesKey = keys.getSendingAESKey();
+		byte[] macKey = keys.getReceivingMACKey();
+		keys.incrementSendingCtr();
+		ring.rotateLocal(keyPair());
+		assertSame(keys, ring.getEncryptionKeys());
+		assertEquals(20, ring.oldMacKeysLength());
+
+		ring.wipe();
+		assertArrayEquals(new byte[aesKey.length], aesKey);
+		assertArrayEquals(new byte[macKey.length], macKey);
+		assertArrayEquals(new byte[16], keys.getSendingCtr());
+		assertNull(keys.getLocalPair());
+		assertEquals(0, ring.oldMacKeysLength());
+		assertNull(ring.getEncryptionKeys());
+		assertNull(ring.getMostRecentKeys());
+
+		// A new AKE starts over.
+		ring.init(keyPair(), keyPair(), pub(keyPair()), BigInteger.TEN);
+		assertEquals(1, ring.getEncryptionKeys().getLocalKeyID());
+	}
+
+	@Test
+	public void testUsedMacKeysAreCollectedOnDiscard() throws Exception {
+		SessionKeyRing ring = new SessionKeyRing();
+		ring.init(keyPair(), keyPair(), pub(keyPair()), BigInteger.TEN);
+
+		SessionKeys used = ring.get(1, 1);
+		used.setIsUsedReceivingMACKey(true);
+		byte[] macKey = used.getReceivingMACKey().clone();
+		ring.get(2, 1).setIsUsedReceivingMACKey(true);
+
+		ring.rotateLocal(keyPair());
+		assertArrayEquals(macKey, ring.collectOldMacKeys());
+		assertEquals(0, ring.collectOldMacKeys().length);
+
+		for (int i = 0; i < 8; i++) {
+			ring.getEncryptionKeys().setIsUsedReceivingMACKey(true);
+			ring.getMostRecentKeys().setIsUsedReceivingMACKey(true);
+			ring.rotateRemote(pub(keyPair()));
+		}
+		// The first rotation discards no keys, every later one two used keys.
+		assertEquals(7 * 2 * 20, ring.collectOldMacKeys().length);
+	}
+
+	@Test
+	public void testBothSidesAgree() throws Exception {
+		KeyPair a1 = keyPair();
+		KeyPair a2 = keyPair();
+		KeyPair b1 = keyPair();
+		KeyPair b2 = keyPair();
+		BigInteger s = OtrDH.generateSecret(a1.getPrivate(), pub(b1));
+
+		SessionKeyRing alice = new SessionKeyRing();
+		alice.init(a1, a2, pub(b1), s);
+		SessionKeyRing bob = new SessionKeyRing();
+		bob.init(b1, b2, pub(a1), s);
+
+		// Alice rotates her keys after Bob's first message, Bob his after
+		// Alice's next message.
+		alice.rotateRemote(pub(b2));
+		bob.rotateRemote(pub(a2));
+		SessionKeys aliceKeys = alice.getEncryptionKeys();
+		SessionKeys bobKeys = bob.get(aliceKeys.getRemoteKeyID(),
+				aliceKeys.getLocalKeyID());
+		assertArrayEquals(aliceKeys.getSendingAESKey(),
+				bobKeys.getReceivingAESKey());
+		assertArrayEquals(aliceKeys.getSendingMACKey(),
+				bobKeys.getReceivingMACKey());
+	}
+
+	@Test
+	public void testPrefetchDerivesNewKeysAheadOfUse() throws Exception {
+		SessionKeyRing ring = new SessionKeyRing();
+		ring.setPrefetchExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		ring.init(keyPair(), keyPair(), pub(keyPair()), BigInteger.TEN);
+		// The AKE's keys come with their shared secret.
+		assertEquals(1, ring.getPrefetchedDerivations());
+
+		ring.rotateRemote(pub(keyPair()));
+		ring.rotateLocal(keyPair());
+		assertEquals(5, ring.getPrefetchedDerivations());
+
+		ring.getEncryptionKeys().getSendingMac();
+		ring.getMostRecentKeys().getReceivingAESKey();
+		assertEquals(0, ring.getOnDemandDerivations());
+	}
+
+	@Test
+	public void testPrefetchAfterWipeDoesNothing() throws Exception {
+		final List<Runnable> pending = new ArrayList<Runnable>();
+		SessionKeyRing ring = new SessionKeyRing();
+		ring.setPrefetchExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				pending.add(command);
+			}
+		});
+		ring.init(keyPair(), keyPair(), pub(keyPair()), BigInteger.TEN);
+		ring.rotateRemote(pub(keyPair()));
+		assertFalse(pending.isEmpty());
+
+		ring.wipe();
+		for (Runnable command : pending)
+			command.run();
+		assertEquals(0, ring.getPrefetchedDerivations());
+	}
+
+	@Test
+	public void testWithoutPrefetchKeysAreDerivedOnDemand() throws Exception {
+		SessionKeyRing ring = new SessionKeyRing();
+		ring.init(keyPair(), keyPair(), pub(keyPair()), BigInteger.TEN);
+		ring.rotateRemote(pub(keyPair()));
+		ring.getEncryptionKeys().getSendingAESKey();
+		ring.getEncryptionKeys().getSendingMACKey();
+		assertEquals(1, ring.getOnDemandDerivations());
+		assertEquals(0, ring.getPrefetchedDerivations());
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for reading the TLVs of a decrypted data message in place.
+ */
+public class TlvReaderTest {
+
+	@Test
+	public void testTextWithoutTlvs() {
+		byte[] b = {'h', 'i'};
+		assertEquals(2, TlvReader.textLength(b));
+		assertFalse(new TlvReader(b, 2).next());
+	}
+
+	@Test
+	public void testTlvsInPlace() {
+		byte[] b = {'h', 'i', 0,
+			0, 0, 0, 2, 9, 9,
+			0, 6, 0, 0,
+			0, 7, 0, 3, 1, 2, 3};
+		int textLength = TlvReader.textLength(b);
+		assertEquals(2, textLength);
+		TlvReader tlvs = new TlvReader(b, textLength);
+
+		assertTrue(tlvs.next());
+		assertEquals(TLV.PADDING, tlvs.type());
+		assertEquals(7, tlvs.offset());
+		assertEquals(2, tlvs.length());
+
+		assertTrue(tlvs.next());
+		assertEquals(TLV.SMP_ABORT, tlvs.type());
+		assertEquals(0, tlvs.length());
+
+		assertTrue(tlvs.next());
+		assertEquals(TLV.SMP1Q, tlvs.type());
+		assertEquals(17, tlvs.offset());
+		TLV tlv = tlvs.toTLV();
+		assertEquals(TLV.SMP1Q, tlv.getType());
+		assertArrayEquals(new byte[] {1, 2, 3}, tlv.getValue());
+
+		assertFalse(tlvs.next());
+	}
+
+	@Test
+	public void testTruncatedTlvs() {
+		byte[] value = {'x', 0, 0, 7, 0, 5, 1, 2};
+		TlvReader tlvs = new TlvReader(value, TlvReader.textLength(value));
+		assertTrue(tlvs.next());
+		assertEquals(TLV.SMP1Q, tlvs.type());
+		assertEquals(6, tlvs.offset());
+		assertEquals(2, tlvs.length());
+		assertFalse(tlvs.next());
+
+		byte[] header = {'x', 0, 0, 1, 0};
+		tlvs = new TlvReader(header, 1);
+		assertTrue(tlvs.next());
+		assertEquals(TLV.DISCONNECTED, tlvs.type());
+		assertEquals(0, tlvs.length());
+		assertFalse(tlvs.next());
+	}
+}
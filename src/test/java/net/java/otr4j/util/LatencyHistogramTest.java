@@ -0,0 +1,94 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LatencyHistogram} and {@link StripedCounter}.
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketsCoverAllDurations() {
+		for (long nanos : new long[] {0, 1, 3, 4, 7, 8, 15, 16, 1000, 999999,
+				1L << 40, Long.MAX_VALUE})
+		{
+			int bucket = LatencyHistogram.bucket(nanos);
+			assertTrue(bucket < LatencyHistogram.BUCKETS);
+			assertTrue(nanos <= LatencyHistogram.upperBound(bucket));
+			assertTrue(bucket == 0 || nanos > LatencyHistogram.upperBound(bucket - 1));
+		}
+		assertEquals(Long.MAX_VALUE,
+				LatencyHistogram.upperBound(LatencyHistogram.BUCKETS - 1));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(99, TimeUnit.NANOSECONDS), 0);
+		for (int i = 1; i <= 1000; i++)
+			histogram.record(i * 1000L);
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500.5, histogram.getMean(TimeUnit.MICROSECONDS), 1e-9);
+		assertEquals(1000, histogram.getMax(TimeUnit.MICROSECONDS), 0);
+		// Within the precision of the buckets, and never below the truth.
+		double median = histogram.getPercentile(50, TimeUnit.MICROSECONDS);
+		assertTrue(median >= 500 && median <= 500 * 1.25);
+		double p99 = histogram.getPercentile(99, TimeUnit.MICROSECONDS);
+		assertTrue(p99 >= 990 && p99 <= 1000);
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax(TimeUnit.NANOSECONDS), 0);
+	}
+
+	@Test
+	public void testStripedCounterSumsAllThreads() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++)
+						counter.increment();
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(80000, counter.sum());
+
+		counter.reset();
+		assertEquals(0, counter.sum());
+	}
+
+	@Test
+	public void testStripes() {
+		assertEquals(2, StripedCounter.stripes(1));
+		assertEquals(8, StripedCounter.stripes(4));
+		assertEquals(16, StripedCounter.stripes(6));
+		assertEquals(64, StripedCounter.stripes(256));
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.otr4j.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for the executor that runs its tasks one at a time and in order.
+ */
+public class SerialExecutorTest {
+
+	@Test
+	public void testTasksRunInSubmissionOrder() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			SerialExecutor executor = new SerialExecutor(pool);
+			final List<Integer> order = Collections
+					.synchronizedList(new ArrayList<Integer>());
+			final CountDownLatch done = new CountDownLatch(200);
+			for (int i = 0; i < 200; i++) {
+				final int n = i;
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						order.add(n);
+						done.countDown();
+					}
+				});
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < 200; i++)
+				assertEquals(Integer.valueOf(i), order.get(i));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testRejectedTasksRunOnCaller() {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		pool.shutdown();
+		SerialExecutor executor = new SerialExecutor(pool);
+		final Thread caller = Thread.currentThread();
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 3; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					threads.add(Thread.currentThread());
+				}
+			});
+		}
+		assertEquals(Collections.nCopies(3, caller), threads);
+	}
+}